@@ -1849,6 +1849,20 @@ public abstract class ActivityManagerNative extends Binder implements IActivityM
 				return true;
 			}
 
+			case REGISTER_BATCHED_PROCESS_OBSERVER_TRANSACTION: {
+				data.enforceInterface(IActivityManager.descriptor);
+				IBatchedProcessObserver observer = IBatchedProcessObserver.Stub.asInterface(data.readStrongBinder());
+				registerBatchedProcessObserver(observer);
+				return true;
+			}
+
+			case UNREGISTER_BATCHED_PROCESS_OBSERVER_TRANSACTION: {
+				data.enforceInterface(IActivityManager.descriptor);
+				IBatchedProcessObserver observer = IBatchedProcessObserver.Stub.asInterface(data.readStrongBinder());
+				unregisterBatchedProcessObserver(observer);
+				return true;
+			}
+
 			case GET_PACKAGE_ASK_SCREEN_COMPAT_TRANSACTION: {
 				data.enforceInterface(IActivityManager.descriptor);
 				String pkg = data.readString();
@@ -4724,6 +4738,28 @@ class ActivityManagerProxy implements IActivityManager {
 		reply.recycle();
 	}
 
+	public void registerBatchedProcessObserver(IBatchedProcessObserver observer) throws RemoteException {
+		Parcel data = Parcel.obtain();
+		Parcel reply = Parcel.obtain();
+		data.writeInterfaceToken(IActivityManager.descriptor);
+		data.writeStrongBinder(observer != null ? observer.asBinder() : null);
+		mRemote.transact(REGISTER_BATCHED_PROCESS_OBSERVER_TRANSACTION, data, reply, 0);
+		reply.readException();
+		data.recycle();
+		reply.recycle();
+	}
+
+	public void unregisterBatchedProcessObserver(IBatchedProcessObserver observer) throws RemoteException {
+		Parcel data = Parcel.obtain();
+		Parcel reply = Parcel.obtain();
+		data.writeInterfaceToken(IActivityManager.descriptor);
+		data.writeStrongBinder(observer != null ? observer.asBinder() : null);
+		mRemote.transact(UNREGISTER_BATCHED_PROCESS_OBSERVER_TRANSACTION, data, reply, 0);
+		reply.readException();
+		data.recycle();
+		reply.recycle();
+	}
+
 	public boolean isIntentSenderTargetedToPackage(IIntentSender sender) throws RemoteException {
 		Parcel data = Parcel.obtain();
 		Parcel reply = Parcel.obtain();
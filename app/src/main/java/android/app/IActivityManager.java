@@ -413,6 +413,10 @@ public interface IActivityManager extends IInterface {
 
 	public void unregisterProcessObserver(IProcessObserver observer) throws RemoteException;
 
+	public void registerBatchedProcessObserver(IBatchedProcessObserver observer) throws RemoteException;
+
+	public void unregisterBatchedProcessObserver(IBatchedProcessObserver observer) throws RemoteException;
+
 	public boolean isIntentSenderTargetedToPackage(IIntentSender sender) throws RemoteException;
 
 	public boolean isIntentSenderAnActivity(IIntentSender sender) throws RemoteException;
@@ -824,4 +828,6 @@ public interface IActivityManager extends IInterface {
 	int CHECK_PERMISSION_WITH_TOKEN_TRANSACTION = IBinder.FIRST_CALL_TRANSACTION + 241;
 	int REGISTER_TASK_STACK_LISTENER_TRANSACTION = IBinder.FIRST_CALL_TRANSACTION + 242;
 	int SYSTEM_BACKUP_RESTORED = IBinder.FIRST_CALL_TRANSACTION + 243;
+	int REGISTER_BATCHED_PROCESS_OBSERVER_TRANSACTION = IBinder.FIRST_CALL_TRANSACTION + 244;
+	int UNREGISTER_BATCHED_PROCESS_OBSERVER_TRANSACTION = IBinder.FIRST_CALL_TRANSACTION + 245;
 }
@@ -0,0 +1,151 @@
+/*
+ * This file is auto-generated.  DO NOT MODIFY.
+ * Original file: frameworks/base/core/java/android/app/IBatchedProcessObserver.aidl
+ */
+package android.app;
+
+/**
+ * Batched variant of IProcessObserver.  All process changes from one
+ * oom adjustment pass (and any further passes within the activity
+ * manager's minimum delivery interval) are coalesced per process and
+ * delivered in a single call.
+ * {@hide}
+ */
+public interface IBatchedProcessObserver extends android.os.IInterface {
+    /**
+     * Local-side IPC implementation stub class.
+     */
+    public static abstract class Stub extends android.os.Binder implements IBatchedProcessObserver {
+        private static final String DESCRIPTOR = "android.app.IBatchedProcessObserver";
+
+        /**
+         * Construct the stub at attach it to the interface.
+         */
+        public Stub() {
+            this.attachInterface(this, DESCRIPTOR);
+        }
+
+        /**
+         * Cast an IBinder object into an android.app.IBatchedProcessObserver interface,
+         * generating a proxy if needed.
+         */
+        public static IBatchedProcessObserver asInterface(android.os.IBinder obj) {
+            if ((obj == null)) {
+                return null;
+            }
+            android.os.IInterface iin = obj.queryLocalInterface(DESCRIPTOR);
+            if (((iin != null) && (iin instanceof IBatchedProcessObserver))) {
+                return ((IBatchedProcessObserver) iin);
+            }
+            return new Proxy(obj);
+        }
+
+        @Override
+        public android.os.IBinder asBinder() {
+            return this;
+        }
+
+        @Override
+        public boolean onTransact(int code, android.os.Parcel data, android.os.Parcel reply, int flags) throws android.os.RemoteException {
+            switch (code) {
+                case INTERFACE_TRANSACTION: {
+                    reply.writeString(DESCRIPTOR);
+                    return true;
+                }
+                case TRANSACTION_onProcessesChanged: {
+                    data.enforceInterface(DESCRIPTOR);
+                    int[] _arg0;
+                    _arg0 = data.createIntArray();
+                    int[] _arg1;
+                    _arg1 = data.createIntArray();
+                    int[] _arg2;
+                    _arg2 = data.createIntArray();
+                    int[] _arg3;
+                    _arg3 = data.createIntArray();
+                    boolean[] _arg4;
+                    _arg4 = data.createBooleanArray();
+                    this.onProcessesChanged(_arg0, _arg1, _arg2, _arg3, _arg4);
+                    return true;
+                }
+                case TRANSACTION_onProcessDied: {
+                    data.enforceInterface(DESCRIPTOR);
+                    int _arg0;
+                    _arg0 = data.readInt();
+                    int _arg1;
+                    _arg1 = data.readInt();
+                    this.onProcessDied(_arg0, _arg1);
+                    return true;
+                }
+            }
+            return super.onTransact(code, data, reply, flags);
+        }
+
+        private static class Proxy implements IBatchedProcessObserver {
+            private android.os.IBinder mRemote;
+
+            Proxy(android.os.IBinder remote) {
+                mRemote = remote;
+            }
+
+            @Override
+            public android.os.IBinder asBinder() {
+                return mRemote;
+            }
+
+            public String getInterfaceDescriptor() {
+                return DESCRIPTOR;
+            }
+
+            @Override
+            public void onProcessesChanged(int[] pids, int[] uids, int[] changes, int[] processStates, boolean[] foregroundActivities) throws android.os.RemoteException {
+                android.os.Parcel _data = android.os.Parcel.obtain();
+                try {
+                    _data.writeInterfaceToken(DESCRIPTOR);
+                    _data.writeIntArray(pids);
+                    _data.writeIntArray(uids);
+                    _data.writeIntArray(changes);
+                    _data.writeIntArray(processStates);
+                    _data.writeBooleanArray(foregroundActivities);
+                    mRemote.transact(Stub.TRANSACTION_onProcessesChanged, _data, null, android.os.IBinder.FLAG_ONEWAY);
+                } finally {
+                    _data.recycle();
+                }
+            }
+
+            @Override
+            public void onProcessDied(int pid, int uid) throws android.os.RemoteException {
+                android.os.Parcel _data = android.os.Parcel.obtain();
+                try {
+                    _data.writeInterfaceToken(DESCRIPTOR);
+                    _data.writeInt(pid);
+                    _data.writeInt(uid);
+                    mRemote.transact(Stub.TRANSACTION_onProcessDied, _data, null, android.os.IBinder.FLAG_ONEWAY);
+                } finally {
+                    _data.recycle();
+                }
+            }
+        }
+
+        static final int TRANSACTION_onProcessesChanged = (android.os.IBinder.FIRST_CALL_TRANSACTION + 0);
+        static final int TRANSACTION_onProcessDied = (android.os.IBinder.FIRST_CALL_TRANSACTION + 1);
+    }
+
+    /**
+     * Set in the changes array when the process' foreground activities
+     * state changed.
+     */
+    public static final int CHANGE_ACTIVITIES = 1;
+
+    /**
+     * Set in the changes array when the process state changed.
+     */
+    public static final int CHANGE_PROCESS_STATE = 2;
+
+    /**
+     * One entry per changed process; the arrays are parallel.  The state
+     * values are the latest ones, intermediate states are not reported.
+     */
+    public void onProcessesChanged(int[] pids, int[] uids, int[] changes, int[] processStates, boolean[] foregroundActivities) throws android.os.RemoteException;
+
+    public void onProcessDied(int pid, int uid) throws android.os.RemoteException;
+}
@@ -26,8 +26,11 @@ import com.android.internal.os.Zygote;
 import java.io.BufferedWriter;
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -414,6 +417,13 @@ public class Process {
 			this.abiList = abiList;
 		}
 
+		/**
+		 * A connection over plain streams, for tests.
+		 */
+		ZygoteState(InputStream inputStream, OutputStream outputStream, List<String> abiList) {
+			this(null, new DataInputStream(inputStream), new BufferedWriter(new OutputStreamWriter(outputStream), 256), abiList);
+		}
+
 		public static ZygoteState connect(String socketAddress) throws IOException {
 			DataInputStream zygoteInputStream = null;
 			BufferedWriter zygoteWriter = null;
@@ -446,7 +456,12 @@ public class Process {
 
 		public void close() {
 			try {
-				socket.close();
+				if (socket != null) {
+					socket.close();
+				} else {
+					inputStream.close();
+					writer.close();
+				}
 			} catch (IOException ex) {
 				Log.e(LOG_TAG, "I/O exception on routine close", ex);
 			}
@@ -460,14 +475,182 @@ public class Process {
 	}
 
 	/**
-	 * The state of the connection to the primary zygote.
+	 * Most fork requests that may be outstanding on a zygote connection.  The
+	 * zygote's replies are small, but nobody reads them until their callers
+	 * ask, so this keeps the zygote from ever blocking on a full socket.
+	 */
+	static final int ZYGOTE_MAX_PIPELINED = 8;
+
+	/**
+	 * The one connection to a zygote socket.  Every connection the zygote has
+	 * open is inherited by each child it forks until the child closes it, so
+	 * there is never more than one.  Requests on it are pipelined instead:
+	 * a caller writes its request without waiting for the replies to earlier
+	 * ones, the zygote works through them in the order they were written, and
+	 * the replies are read back in that order, each caller reading those of
+	 * the callers before it until it gets its own.
+	 */
+	static class ZygoteChannel {
+		final String socketAddress;
+		// Guards mState and mOutstanding, and is held while writing a request.
+		private final Object mWriteLock = new Object();
+		// Held while reading replies, so only one caller reads at a time.
+		private final Object mReadLock = new Object();
+		private ZygoteState mState;
+		// Requests whose reply has not been read, oldest first.
+		private final ArrayDeque<PendingStart> mOutstanding = new ArrayDeque<PendingStart>();
+		private volatile List<String> mAbiList;
+
+		ZygoteChannel(String socketAddress) {
+			this.socketAddress = socketAddress;
+		}
+
+		/**
+		 * Opens the connection.  Overridden by tests.
+		 */
+		ZygoteState connect() throws IOException {
+			return ZygoteState.connect(socketAddress);
+		}
+
+		/**
+		 * Opens the connection if it is not open, so that the zygote's ABI list
+		 * is known.
+		 */
+		void ensureConnected() throws ZygoteStartFailedEx {
+			synchronized (mWriteLock) {
+				getStateLocked();
+			}
+		}
+
+		boolean matches(String abi) {
+			final List<String> abiList = mAbiList;
+			return abiList != null && abiList.contains(abi);
+		}
+
+		private ZygoteState getStateLocked() throws ZygoteStartFailedEx {
+			if (mState == null || mState.isClosed()) {
+				try {
+					mState = connect();
+				} catch (IOException ioe) {
+					throw new ZygoteStartFailedEx("Error connecting to zygote " + socketAddress, ioe);
+				}
+				mAbiList = mState.abiList;
+			}
+			return mState;
+		}
+
+		/**
+		 * Writes a fork request and returns without reading the reply.  If too
+		 * many requests are outstanding, reads the oldest reply first.
+		 */
+		PendingStart send(ArrayList<String> args) throws ZygoteStartFailedEx {
+			for (;;) {
+				final PendingStart oldest;
+				synchronized (mWriteLock) {
+					if (mOutstanding.size() < ZYGOTE_MAX_PIPELINED) {
+						final ZygoteState state = getStateLocked();
+						zygoteSendArgs(state, args);
+						final PendingStart pending = new PendingStart(this, state);
+						mOutstanding.add(pending);
+						return pending;
+					}
+					oldest = mOutstanding.peek();
+				}
+				// Not under mWriteLock, so others can keep writing meanwhile.
+				readUntil(oldest);
+			}
+		}
+
+		/**
+		 * Reads replies, oldest first, until the one to the given request has
+		 * been read.
+		 */
+		void readUntil(PendingStart pending) {
+			synchronized (mReadLock) {
+				while (!pending.mDone) {
+					final PendingStart head;
+					synchronized (mWriteLock) {
+						head = mOutstanding.poll();
+					}
+					head.readResult();
+				}
+			}
+		}
+
+		int getOutstandingCount() {
+			synchronized (mWriteLock) {
+				return mOutstanding.size();
+			}
+		}
+	}
+
+	/**
+	 * A fork request that has been sent to the zygote and whose reply has not
+	 * necessarily been read yet.  See {@link #startAsync}.
+	 *
+	 * @hide
+	 */
+	public static final class PendingStart {
+		private final ZygoteChannel mChannel;
+		private final ZygoteState mState;
+		// Guarded by the channel's read lock.
+		private boolean mDone;
+		private ProcessStartResult mResult;
+		private ZygoteStartFailedEx mFailure;
+
+		PendingStart(ZygoteChannel channel, ZygoteState state) {
+			mChannel = channel;
+			mState = state;
+		}
+
+		void readResult() {
+			if (mState.isClosed()) {
+				// The reply was lost with the connection it would have come on.
+				mFailure = new ZygoteStartFailedEx("zygote connection closed");
+			} else {
+				try {
+					mResult = zygoteReadResult(mState);
+				} catch (ZygoteStartFailedEx ex) {
+					mFailure = ex;
+				}
+			}
+			mDone = true;
+		}
+
+		/**
+		 * Waits for the zygote's reply, reading the replies to earlier requests
+		 * first, unless it has been read already.
+		 *
+		 * @return An object that describes the result of the attempt to start the process.
+		 * @throws RuntimeException on fatal start failure
+		 */
+		public ProcessStartResult get() {
+			try {
+				return getOrThrow();
+			} catch (ZygoteStartFailedEx ex) {
+				Log.e(LOG_TAG, "Starting VM process through Zygote failed");
+				throw new RuntimeException("Starting VM process through Zygote failed", ex);
+			}
+		}
+
+		ProcessStartResult getOrThrow() throws ZygoteStartFailedEx {
+			mChannel.readUntil(this);
+			if (mFailure != null) {
+				throw mFailure;
+			}
+			return mResult;
+		}
+	}
+
+	/**
+	 * The connection to the primary zygote.
 	 */
-	static ZygoteState primaryZygoteState;
+	static final ZygoteChannel primaryZygote = new ZygoteChannel(ZYGOTE_SOCKET);
 
 	/**
-	 * The state of the connection to the secondary zygote.
+	 * The connection to the secondary zygote.
 	 */
-	static ZygoteState secondaryZygoteState;
+	static final ZygoteChannel secondaryZygote = new ZygoteChannel(SECONDARY_ZYGOTE_SOCKET);
 
 	/**
 	 * Start a new process.
@@ -512,6 +695,25 @@ public class Process {
 		}
 	}
 
+	/**
+	 * Like {@link #start}, but returns as soon as the request has been sent to
+	 * the zygote.  The pid is read by {@link PendingStart#get}, so a caller can
+	 * have the zygote work on several starts while it does other things.
+	 *
+	 * @throws RuntimeException if the request could not be sent
+	 * {@hide}
+	 */
+	public static final PendingStart startAsync(final String processClass, final String niceName, int uid, int gid, int[] gids, int debugFlags, int mountExternal,//
+												int targetSdkVersion, String seInfo, String abi, String instructionSet, String appDataDir, String[] zygoteArgs) {
+		try {
+			final ArrayList<String> argsForZygote = buildZygoteArgs(processClass, niceName, uid, gid, gids, debugFlags, mountExternal, targetSdkVersion, seInfo, instructionSet, appDataDir, zygoteArgs);
+			return openZygoteSocketIfNeeded(abi).send(argsForZygote);
+		} catch (ZygoteStartFailedEx ex) {
+			Log.e(LOG_TAG, "Starting VM process through Zygote failed");
+			throw new RuntimeException("Starting VM process through Zygote failed", ex);
+		}
+	}
+
 	/**
 	 * retry interval for opening a zygote socket
 	 */
@@ -541,51 +743,63 @@ public class Process {
 	}
 
 	/**
-	 * Sends an argument list to the zygote process, which starts a new child
-	 * and returns the child's pid. Please note: the present implementation
-	 * replaces newlines in the argument list with spaces.
+	 * Writes a fork request to the zygote without waiting for the reply.
 	 *
-	 * @throws ZygoteStartFailedEx if process start failed for any reason
+	 * @throws ZygoteStartFailedEx if the request could not be written
 	 */
-	private static ProcessStartResult zygoteSendArgsAndGetResult(ZygoteState zygoteState, ArrayList<String> args) throws ZygoteStartFailedEx {
-		try {
-			/**
-			 * See com.android.internal.os.ZygoteInit.readArgumentList()
-			 * Presently the wire format to the zygote process is:
-			 * a) a count of arguments (argc, in essence)
-			 * b) a number of newline-separated argument strings equal to count
-			 *
-			 * After the zygote process reads these it will write the pid of
-			 * the child or -1 on failure, followed by boolean to
-			 * indicate whether a wrapper process was used.
-			 */
-			final BufferedWriter writer = zygoteState.writer;
-			final DataInputStream inputStream = zygoteState.inputStream;
-
-			writer.write(Integer.toString(args.size()));
-			writer.newLine();
-
-			int sz = args.size();
-			for (int i = 0; i < sz; i++) {
-				String arg = args.get(i);
-				if (arg.indexOf('\n') >= 0) {
-					throw new ZygoteStartFailedEx("embedded newlines not allowed");
-				}
-				writer.write(arg);
-				writer.newLine();
+	private static void zygoteSendArgs(ZygoteState zygoteState, ArrayList<String> args) throws ZygoteStartFailedEx {
+		/**
+		 * See com.android.internal.os.ZygoteInit.readArgumentList()
+		 * Presently the wire format to the zygote process is:
+		 * a) a count of arguments (argc, in essence)
+		 * b) a number of newline-separated argument strings equal to count
+		 *
+		 * After the zygote process reads these it will write the pid of
+		 * the child or -1 on failure, followed by boolean to
+		 * indicate whether a wrapper process was used.
+		 */
+		// Check everything before writing so a bad argument can't leave half a
+		// request on the connection, then write the request in one go.
+		final StringBuilder request = new StringBuilder(512);
+		request.append(args.size()).append('\n');
+		int sz = args.size();
+		for (int i = 0; i < sz; i++) {
+			String arg = args.get(i);
+			if (arg.indexOf('\n') >= 0) {
+				throw new ZygoteStartFailedEx("embedded newlines not allowed");
 			}
+			request.append(arg).append('\n');
+		}
 
+		try {
+			final BufferedWriter writer = zygoteState.writer;
+			writer.write(request.toString());
 			writer.flush();
+		} catch (IOException ex) {
+			zygoteState.close();
+			throw new ZygoteStartFailedEx(ex);
+		}
+	}
+
+	/**
+	 * Reads the reply to the request last written with {@link #zygoteSendArgs}.
+	 *
+	 * @throws ZygoteStartFailedEx if process start failed for any reason
+	 */
+	private static ProcessStartResult zygoteReadResult(ZygoteState zygoteState) throws ZygoteStartFailedEx {
+		try {
+			final DataInputStream inputStream = zygoteState.inputStream;
 
 			// Should there be a timeout on this?
 			ProcessStartResult result = new ProcessStartResult();
 			//等待socket服务端（即zygote）返回新创建的进程pid;
 			//对于等待时长问题，Google正在考虑此处是否应该有一个timeout，但目前是没有的
 			result.pid = inputStream.readInt();
+			// Read the whole reply even on failure so the connection can be reused.
+			result.usingWrapper = inputStream.readBoolean();
 			if (result.pid < 0) {
 				throw new ZygoteStartFailedEx("fork() failed");
 			}
-			result.usingWrapper = inputStream.readBoolean();
 			return result;
 		} catch (IOException ex) {
 			zygoteState.close();
@@ -615,81 +829,87 @@ public class Process {
 	private static ProcessStartResult startViaZygote(final String processClass, final String niceName, final int uid, final int gid, final int[] gids, //
 													 int debugFlags, int mountExternal, int targetSdkVersion, String seInfo, String abi, String instructionSet,//
 													  String appDataDir, String[] extraArgs) throws ZygoteStartFailedEx {
-		synchronized (Process.class) {
-			ArrayList<String> argsForZygote = new ArrayList<String>();
-
-			// --runtime-init, --setuid=, --setgid=,
-			// and --setgroups= must go first
-			argsForZygote.add("--runtime-init");
-			argsForZygote.add("--setuid=" + uid);
-			argsForZygote.add("--setgid=" + gid);
-			if ((debugFlags & Zygote.DEBUG_ENABLE_JNI_LOGGING) != 0) {
-				argsForZygote.add("--enable-jni-logging");
-			}
-			if ((debugFlags & Zygote.DEBUG_ENABLE_SAFEMODE) != 0) {
-				argsForZygote.add("--enable-safemode");
-			}
-			if ((debugFlags & Zygote.DEBUG_ENABLE_DEBUGGER) != 0) {
-				argsForZygote.add("--enable-debugger");
-			}
-			if ((debugFlags & Zygote.DEBUG_ENABLE_CHECKJNI) != 0) {
-				argsForZygote.add("--enable-checkjni");
-			}
-			if ((debugFlags & Zygote.DEBUG_ENABLE_ASSERT) != 0) {
-				argsForZygote.add("--enable-assert");
-			}
-			if (mountExternal == Zygote.MOUNT_EXTERNAL_MULTIUSER) {
-				argsForZygote.add("--mount-external-multiuser");
-			} else if (mountExternal == Zygote.MOUNT_EXTERNAL_MULTIUSER_ALL) {
-				argsForZygote.add("--mount-external-multiuser-all");
-			}
-			argsForZygote.add("--target-sdk-version=" + targetSdkVersion);
+		final ArrayList<String> argsForZygote = buildZygoteArgs(processClass, niceName, uid, gid, gids, debugFlags, mountExternal, targetSdkVersion, seInfo, instructionSet, appDataDir, extraArgs);
+		// Other callers can write their requests while this one waits.
+		return openZygoteSocketIfNeeded(abi).send(argsForZygote).getOrThrow();
+	}
+
+	private static ArrayList<String> buildZygoteArgs(final String processClass, final String niceName, final int uid, final int gid, final int[] gids, //
+													 int debugFlags, int mountExternal, int targetSdkVersion, String seInfo, String instructionSet,//
+													 String appDataDir, String[] extraArgs) {
+		ArrayList<String> argsForZygote = new ArrayList<String>();
+
+		// --runtime-init, --setuid=, --setgid=,
+		// and --setgroups= must go first
+		argsForZygote.add("--runtime-init");
+		argsForZygote.add("--setuid=" + uid);
+		argsForZygote.add("--setgid=" + gid);
+		if ((debugFlags & Zygote.DEBUG_ENABLE_JNI_LOGGING) != 0) {
+			argsForZygote.add("--enable-jni-logging");
+		}
+		if ((debugFlags & Zygote.DEBUG_ENABLE_SAFEMODE) != 0) {
+			argsForZygote.add("--enable-safemode");
+		}
+		if ((debugFlags & Zygote.DEBUG_ENABLE_DEBUGGER) != 0) {
+			argsForZygote.add("--enable-debugger");
+		}
+		if ((debugFlags & Zygote.DEBUG_ENABLE_CHECKJNI) != 0) {
+			argsForZygote.add("--enable-checkjni");
+		}
+		if ((debugFlags & Zygote.DEBUG_ENABLE_ASSERT) != 0) {
+			argsForZygote.add("--enable-assert");
+		}
+		if (mountExternal == Zygote.MOUNT_EXTERNAL_MULTIUSER) {
+			argsForZygote.add("--mount-external-multiuser");
+		} else if (mountExternal == Zygote.MOUNT_EXTERNAL_MULTIUSER_ALL) {
+			argsForZygote.add("--mount-external-multiuser-all");
+		}
+		argsForZygote.add("--target-sdk-version=" + targetSdkVersion);
 
-			//TODO optionally enable debuger
-			//argsForZygote.add("--enable-debugger");
+		//TODO optionally enable debuger
+		//argsForZygote.add("--enable-debugger");
 
-			// --setgroups is a comma-separated list
-			if (gids != null && gids.length > 0) {
-				StringBuilder sb = new StringBuilder();
-				sb.append("--setgroups=");
+		// --setgroups is a comma-separated list
+		if (gids != null && gids.length > 0) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("--setgroups=");
 
-				int sz = gids.length;
-				for (int i = 0; i < sz; i++) {
-					if (i != 0) {
-						sb.append(',');
-					}
-					sb.append(gids[i]);
+			int sz = gids.length;
+			for (int i = 0; i < sz; i++) {
+				if (i != 0) {
+					sb.append(',');
 				}
-
-				argsForZygote.add(sb.toString());
+				sb.append(gids[i]);
 			}
 
-			if (niceName != null) {
-				argsForZygote.add("--nice-name=" + niceName);
-			}
+			argsForZygote.add(sb.toString());
+		}
 
-			if (seInfo != null) {
-				argsForZygote.add("--seinfo=" + seInfo);
-			}
+		if (niceName != null) {
+			argsForZygote.add("--nice-name=" + niceName);
+		}
 
-			if (instructionSet != null) {
-				argsForZygote.add("--instruction-set=" + instructionSet);
-			}
+		if (seInfo != null) {
+			argsForZygote.add("--seinfo=" + seInfo);
+		}
 
-			if (appDataDir != null) {
-				argsForZygote.add("--app-data-dir=" + appDataDir);
-			}
+		if (instructionSet != null) {
+			argsForZygote.add("--instruction-set=" + instructionSet);
+		}
 
-			argsForZygote.add(processClass);
+		if (appDataDir != null) {
+			argsForZygote.add("--app-data-dir=" + appDataDir);
+		}
 
-			if (extraArgs != null) {
-				for (String arg : extraArgs) {
-					argsForZygote.add(arg);
-				}
-			}
+		argsForZygote.add(processClass);
 
-			return zygoteSendArgsAndGetResult(openZygoteSocketIfNeeded(abi), argsForZygote);
+		if (extraArgs != null) {
+			for (String arg : extraArgs) {
+				argsForZygote.add(arg);
+			}
 		}
+
+		return argsForZygote;
 	}
 
 	/**
@@ -710,30 +930,18 @@ public class Process {
 	 * Tries to open socket to Zygote process if not already open. If
 	 * already open, does nothing.  May block and retry.
 	 */
-	private static ZygoteState openZygoteSocketIfNeeded(String abi) throws ZygoteStartFailedEx {
-		if (primaryZygoteState == null || primaryZygoteState.isClosed()) {
-			try {
-				primaryZygoteState = ZygoteState.connect(ZYGOTE_SOCKET);
-			} catch (IOException ioe) {
-				throw new ZygoteStartFailedEx("Error connecting to primary zygote", ioe);
-			}
-		}
+	private static ZygoteChannel openZygoteSocketIfNeeded(String abi) throws ZygoteStartFailedEx {
+		primaryZygote.ensureConnected();
 
-		if (primaryZygoteState.matches(abi)) {
-			return primaryZygoteState;
+		if (primaryZygote.matches(abi)) {
+			return primaryZygote;
 		}
 
 		// The primary zygote didn't match. Try the secondary.
-		if (secondaryZygoteState == null || secondaryZygoteState.isClosed()) {
-			try {
-				secondaryZygoteState = ZygoteState.connect(SECONDARY_ZYGOTE_SOCKET);
-			} catch (IOException ioe) {
-				throw new ZygoteStartFailedEx("Error connecting to secondary zygote", ioe);
-			}
-		}
+		secondaryZygote.ensureConnected();
 
-		if (secondaryZygoteState.matches(abi)) {
-			return secondaryZygoteState;
+		if (secondaryZygote.matches(abi)) {
+			return secondaryZygote;
 		}
 
 		throw new ZygoteStartFailedEx("Unsupported zygote ABI: " + abi);
@@ -65,6 +65,7 @@ import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 
 public final class ActiveServices {
@@ -123,18 +124,28 @@ public final class ActiveServices {
      */
     final ArrayMap<IBinder, ArrayList<ConnectionRecord>> mServiceConnections = new ArrayMap<IBinder, ArrayList<ConnectionRecord>>();
 
+    /**
+     * The same connections as an index of which client processes are bound
+     * to which services, in both directions.
+     */
+    final ServiceConnectionGraph mConnectionGraph = new ServiceConnectionGraph();
+
+    // Scratch list for updateServiceConnectionActivitiesLocked().
+    private final ArrayList<ProcessRecord> mTmpHosts = new ArrayList<ProcessRecord>();
+
     /**
      * List of services that we have been asked to start,
      * but haven't yet been able to.  It is used to hold start requests
      * while waiting for their corresponding application thread to get
-     * going.
+     * going.  Kept in the order they were requested.
      */
-    final ArrayList<ServiceRecord> mPendingServices = new ArrayList<ServiceRecord>();
+    final LinkedHashSet<ServiceRecord> mPendingServices = new LinkedHashSet<ServiceRecord>();
 
     /**
-     * List of services that are scheduled to restart following a crash.
+     * Services that are scheduled to restart following a crash, in the order
+     * they are due.
      */
-    final ArrayList<ServiceRecord> mRestartingServices = new ArrayList<ServiceRecord>();
+    final ServiceRestartQueue mRestartingServices = new ServiceRestartQueue();
 
     /**
      * List of services that are in the process of being destroyed.
@@ -169,7 +180,7 @@ public final class ActiveServices {
         final ArrayMap<ComponentName, ServiceRecord> mServicesByName = new ArrayMap<ComponentName, ServiceRecord>();
         final ArrayMap<Intent.FilterComparison, ServiceRecord> mServicesByIntent = new ArrayMap<Intent.FilterComparison, ServiceRecord>();
 
-        final ArrayList<ServiceRecord> mDelayedStartList = new ArrayList<ServiceRecord>();
+        final LinkedHashSet<ServiceRecord> mDelayedStartList = new LinkedHashSet<ServiceRecord>();
         /* XXX eventually I'd like to have this based on processes instead of services.
          * That is, if we try to start two services in a row both running in the same
          * process, this should be one entry in mStartingBackground for that one process
@@ -224,7 +235,9 @@ public final class ActiveServices {
                 }
             }
             while (mDelayedStartList.size() > 0 && mStartingBackground.size() < mMaxStartingBackground) {
-                ServiceRecord r = mDelayedStartList.remove(0);
+                Iterator<ServiceRecord> it = mDelayedStartList.iterator();
+                ServiceRecord r = it.next();
+                it.remove();
                 if (DEBUG_DELAYED_STARTS) Slog.v(TAG, "REM FR DELAY LIST (exec next): " + r);
                 if (r.pendingStarts.size() <= 0) {
                     Slog.w(TAG, "**** NO PENDING STARTS! " + r + " startReq=" + r.startRequested + " delayedStop=" + r.delayedStop);
@@ -232,8 +245,9 @@ public final class ActiveServices {
                 if (DEBUG_DELAYED_SERVICE) {
                     if (mDelayedStartList.size() > 0) {
                         Slog.v(TAG, "Remaining delayed list:");
-                        for (int i = 0; i < mDelayedStartList.size(); i++) {
-                            Slog.v(TAG, "  #" + i + ": " + mDelayedStartList.get(i));
+                        int i = 0;
+                        for (ServiceRecord delayed : mDelayedStartList) {
+                            Slog.v(TAG, "  #" + i++ + ": " + delayed);
                         }
                     }
                 }
@@ -588,13 +602,18 @@ public final class ActiveServices {
     }
 
     public void updateServiceConnectionActivitiesLocked(ProcessRecord clientProc) {
+        final ArrayList<ProcessRecord> hosts = mTmpHosts;
+        hosts.clear();
+        mConnectionGraph.collectServiceHosts(clientProc, false, hosts);
+        updateServiceHostActivitiesLocked(hosts);
+        hosts.clear();
+    }
+
+    private void updateServiceHostActivitiesLocked(ArrayList<ProcessRecord> hosts) {
         ArraySet<ProcessRecord> updatedProcesses = null;
-        for (int i = 0; i < clientProc.connections.size(); i++) {
-            final ConnectionRecord conn = clientProc.connections.valueAt(i);
-            final ProcessRecord proc = conn.binding.service.app;
-            if (proc == null || proc == clientProc) {
-                continue;
-            } else if (updatedProcesses == null) {
+        for (int i = 0; i < hosts.size(); i++) {
+            final ProcessRecord proc = hosts.get(i);
+            if (updatedProcesses == null) {
                 updatedProcesses = new ArraySet<>();
             } else if (updatedProcesses.contains(proc)) {
                 continue;
@@ -613,24 +632,8 @@ public final class ActiveServices {
             }
         }
 
-        boolean anyClientActivities = false;
-        for (int i = proc.services.size() - 1; i >= 0 && !anyClientActivities; i--) {
-            ServiceRecord sr = proc.services.valueAt(i);
-            for (int conni = sr.connections.size() - 1; conni >= 0 && !anyClientActivities; conni--) {
-                ArrayList<ConnectionRecord> clist = sr.connections.valueAt(conni);
-                for (int cri = clist.size() - 1; cri >= 0; cri--) {
-                    ConnectionRecord cr = clist.get(cri);
-                    if (cr.binding.client == null || cr.binding.client == proc) {
-                        // Binding to ourself is not interesting.
-                        continue;
-                    }
-                    if (cr.binding.client.activities.size() > 0) {
-                        anyClientActivities = true;
-                        break;
-                    }
-                }
-            }
-        }
+        // Binding to ourself is not interesting.
+        final boolean anyClientActivities = mConnectionGraph.hasClientWithActivities(proc);
         if (anyClientActivities != proc.hasClientActivities) {
             proc.hasClientActivities = anyClientActivities;
             if (updateLru) {
@@ -733,6 +736,7 @@ public final class ActiveServices {
                 activity.connections.add(c);
             }
             b.client.connections.add(c);
+            mConnectionGraph.connect(c);
             if ((c.flags & Context.BIND_ABOVE_CLIENT) != 0) {
                 b.client.hasAboveClient = true;
             }
@@ -980,10 +984,10 @@ public final class ActiveServices {
                     smap.mServicesByIntent.put(filter, r);
 
                     // Make sure this component isn't in the pending list.
-                    for (int i = mPendingServices.size() - 1; i >= 0; i--) {
-                        ServiceRecord pr = mPendingServices.get(i);
+                    for (Iterator<ServiceRecord> it = mPendingServices.iterator(); it.hasNext();) {
+                        ServiceRecord pr = it.next();
                         if (pr.serviceInfo.applicationInfo.uid == sInfo.applicationInfo.uid && pr.name.equals(name)) {
-                            mPendingServices.remove(i);
+                            it.remove();
                         }
                     }
                 }
@@ -1121,19 +1125,11 @@ public final class ActiveServices {
 
             // Make sure that we don't end up restarting a bunch of services
             // all at the same time.
-            boolean repeat;
-            do {
-                repeat = false;
-                for (int i = mRestartingServices.size() - 1; i >= 0; i--) {
-                    ServiceRecord r2 = mRestartingServices.get(i);
-                    if (r2 != r && r.nextRestartTime >= (r2.nextRestartTime - SERVICE_MIN_RESTART_TIME_BETWEEN) && r.nextRestartTime < (r2.nextRestartTime + SERVICE_MIN_RESTART_TIME_BETWEEN)) {
-                        r.nextRestartTime = r2.nextRestartTime + SERVICE_MIN_RESTART_TIME_BETWEEN;
-                        r.restartDelay = r.nextRestartTime - now;
-                        repeat = true;
-                        break;
-                    }
-                }
-            } while (repeat);
+            final long freeTime = mRestartingServices.findFreeTime(r, r.nextRestartTime, SERVICE_MIN_RESTART_TIME_BETWEEN);
+            if (freeTime != r.nextRestartTime) {
+                r.nextRestartTime = freeTime;
+                r.restartDelay = freeTime - now;
+            }
 
         } else {
             // Persistent processes are immediately restarted, so there is no
@@ -1146,7 +1142,8 @@ public final class ActiveServices {
 
         if (!mRestartingServices.contains(r)) {
             r.createdFromFg = false;
-            mRestartingServices.add(r);
+            // The tracker must be set before the service is queued, so the
+            // queue counts it.
             r.makeRestarting(mAm.mProcessStats.getMemFactorLocked(), now);
         }
 
@@ -1155,6 +1152,7 @@ public final class ActiveServices {
         mAm.mHandler.removeCallbacks(r.restarter);
         mAm.mHandler.postAtTime(r.restarter, r.nextRestartTime);
         r.nextRestartTime = SystemClock.uptimeMillis() + r.restartDelay;
+        mRestartingServices.schedule(r, r.nextRestartTime);
         Slog.w(TAG, "Scheduling restart of crashed service " + r.shortName + " in " + r.restartDelay + "ms");
         EventLog.writeEvent(EventLogTags.AM_SCHEDULE_SERVICE_RESTART, r.userId, r.shortName, r.restartDelay);
 
@@ -1190,14 +1188,7 @@ public final class ActiveServices {
         if (r.restartTracker != null) {
             // If this is the last restarting record with this tracker, then clear
             // the tracker's restarting state.
-            boolean stillTracking = false;
-            for (int i = mRestartingServices.size() - 1; i >= 0; i--) {
-                if (mRestartingServices.get(i).restartTracker == r.restartTracker) {
-                    stillTracking = true;
-                    break;
-                }
-            }
-            if (!stillTracking) {
+            if (!mRestartingServices.isTracking(r.restartTracker)) {
                 r.restartTracker.setRestarting(false, mAm.mProcessStats.getMemFactorLocked(), SystemClock.uptimeMillis());
                 r.restartTracker = null;
             }
@@ -1484,6 +1475,7 @@ public final class ActiveServices {
                 ConnectionRecord cr = c.get(i);
                 // There is still a connection to the service that is
                 // being brought down.  Mark it as dead.
+                mConnectionGraph.serviceDead(cr);
                 cr.serviceDead = true;
                 try {
                     cr.conn.connected(r.name, null);
@@ -1525,11 +1517,8 @@ public final class ActiveServices {
         unscheduleServiceRestartLocked(r, 0, true);
 
         // Also make sure it is not on the pending list.
-        for (int i = mPendingServices.size() - 1; i >= 0; i--) {
-            if (mPendingServices.get(i) == r) {
-                mPendingServices.remove(i);
-                if (DEBUG_SERVICE) Slog.v(TAG, "Removed pending: " + r);
-            }
+        if (mPendingServices.remove(r)) {
+            if (DEBUG_SERVICE) Slog.v(TAG, "Removed pending: " + r);
         }
 
         r.cancelNotification();
@@ -1591,6 +1580,7 @@ public final class ActiveServices {
         IBinder binder = c.conn.asBinder();
         AppBindRecord b = c.binding;
         ServiceRecord s = b.service;
+        mConnectionGraph.disconnect(c);
         ArrayList<ConnectionRecord> clist = s.connections.get(binder);
         if (clist != null) {
             clist.remove(c);
@@ -1795,16 +1785,25 @@ public final class ActiveServices {
         boolean didSomething = false;
         // Collect any services that are waiting for this process to come up.
         if (mPendingServices.size() > 0) {
+            // Starting a service can change the pending list, so pick out the
+            // ones for this process first.
+            ArrayList<ServiceRecord> starting = null;
+            for (ServiceRecord sr : mPendingServices) {
+                if (proc != sr.isolatedProc && (proc.uid != sr.appInfo.uid || !processName.equals(sr.processName))) {
+                    continue;
+                }
+                if (starting == null) {
+                    starting = new ArrayList<ServiceRecord>();
+                }
+                starting.add(sr);
+            }
             ServiceRecord sr = null;
             try {
-                for (int i = 0; i < mPendingServices.size(); i++) {
-                    sr = mPendingServices.get(i);
-                    if (proc != sr.isolatedProc && (proc.uid != sr.appInfo.uid || !processName.equals(sr.processName))) {
+                for (int i = 0, N = starting != null ? starting.size() : 0; i < N; i++) {
+                    sr = starting.get(i);
+                    if (!mPendingServices.remove(sr)) {
                         continue;
                     }
-
-                    mPendingServices.remove(i);
-                    i--;
                     proc.addPackage(sr.appInfo.packageName, sr.appInfo.versionCode, mAm.mProcessStats);
                     realStartServiceLocked(sr, proc, sr.createdFromFg);
                     didSomething = true;
@@ -1819,9 +1818,7 @@ public final class ActiveServices {
         // be weird to bring up the process but arbitrarily not let the services
         // run at this point just because their restart time hasn't come up.
         if (mRestartingServices.size() > 0) {
-            ServiceRecord sr = null;
-            for (int i = 0; i < mRestartingServices.size(); i++) {
-                sr = mRestartingServices.get(i);
+            for (ServiceRecord sr : mRestartingServices) {
                 if (proc != sr.isolatedProc && (proc.uid != sr.appInfo.uid || !processName.equals(sr.processName))) {
                     continue;
                 }
@@ -1833,15 +1830,23 @@ public final class ActiveServices {
     }
 
     void processStartTimedOutLocked(ProcessRecord proc) {
-        for (int i = 0; i < mPendingServices.size(); i++) {
-            ServiceRecord sr = mPendingServices.get(i);
+        ArrayList<ServiceRecord> timedOut = null;
+        for (ServiceRecord sr : mPendingServices) {
             if ((proc.uid == sr.appInfo.uid && proc.processName.equals(sr.processName)) || sr.isolatedProc == proc) {
-                Slog.w(TAG, "Forcing bringing down service: " + sr);
-                sr.isolatedProc = null;
-                mPendingServices.remove(i);
-                i--;
-                bringDownServiceLocked(sr);
+                if (timedOut == null) {
+                    timedOut = new ArrayList<ServiceRecord>();
+                }
+                timedOut.add(sr);
+            }
+        }
+        for (int i = 0, N = timedOut != null ? timedOut.size() : 0; i < N; i++) {
+            ServiceRecord sr = timedOut.get(i);
+            if (!mPendingServices.remove(sr)) {
+                continue;
             }
+            Slog.w(TAG, "Forcing bringing down service: " + sr);
+            sr.isolatedProc = null;
+            bringDownServiceLocked(sr);
         }
     }
 
@@ -2007,11 +2012,15 @@ public final class ActiveServices {
         }
 
         // Clean up any connections this application has to other services.
+        // The hosts are collected first, since removing the connections
+        // takes them out of the graph.
+        final ArrayList<ProcessRecord> hosts = new ArrayList<ProcessRecord>();
+        mConnectionGraph.collectServiceHosts(app, false, hosts);
         for (int i = app.connections.size() - 1; i >= 0; i--) {
             ConnectionRecord r = app.connections.valueAt(i);
             removeConnectionLocked(r, app, null);
         }
-        updateServiceConnectionActivitiesLocked(app);
+        updateServiceHostActivitiesLocked(hosts);
         app.connections.clear();
 
         ServiceMap smap = getServiceMap(app.userId);
@@ -2069,17 +2078,24 @@ public final class ActiveServices {
             app.services.clear();
 
             // Make sure there are no more restarting services for this process.
-            for (int i = mRestartingServices.size() - 1; i >= 0; i--) {
-                ServiceRecord r = mRestartingServices.get(i);
+            ArrayList<ServiceRecord> restarting = null;
+            for (ServiceRecord r : mRestartingServices) {
                 if (r.processName.equals(app.processName) && r.serviceInfo.applicationInfo.uid == app.info.uid) {
-                    mRestartingServices.remove(i);
-                    clearRestartingIfNeededLocked(r);
+                    if (restarting == null) {
+                        restarting = new ArrayList<ServiceRecord>();
+                    }
+                    restarting.add(r);
                 }
             }
-            for (int i = mPendingServices.size() - 1; i >= 0; i--) {
-                ServiceRecord r = mPendingServices.get(i);
+            for (int i = 0, N = restarting != null ? restarting.size() : 0; i < N; i++) {
+                ServiceRecord r = restarting.get(i);
+                mRestartingServices.remove(r);
+                clearRestartingIfNeededLocked(r);
+            }
+            for (Iterator<ServiceRecord> it = mPendingServices.iterator(); it.hasNext();) {
+                ServiceRecord r = it.next();
                 if (r.processName.equals(app.processName) && r.serviceInfo.applicationInfo.uid == app.info.uid) {
-                    mPendingServices.remove(i);
+                    it.remove();
                 }
             }
         }
@@ -2156,8 +2172,10 @@ public final class ActiveServices {
                     }
                 }
 
-                for (int i = 0; i < mRestartingServices.size() && res.size() < maxNum; i++) {
-                    ServiceRecord r = mRestartingServices.get(i);
+                for (ServiceRecord r : mRestartingServices) {
+                    if (res.size() >= maxNum) {
+                        break;
+                    }
                     ActivityManager.RunningServiceInfo info = makeRunningServiceInfoLocked(r);
                     info.restarting = r.nextRestartTime;
                     res.add(info);
@@ -2170,8 +2188,10 @@ public final class ActiveServices {
                     res.add(makeRunningServiceInfoLocked(sr));
                 }
 
-                for (int i = 0; i < mRestartingServices.size() && res.size() < maxNum; i++) {
-                    ServiceRecord r = mRestartingServices.get(i);
+                for (ServiceRecord r : mRestartingServices) {
+                    if (res.size() >= maxNum) {
+                        break;
+                    }
                     if (r.userId == userId) {
                         ActivityManager.RunningServiceInfo info = makeRunningServiceInfoLocked(r);
                         info.restarting = r.nextRestartTime;
@@ -2353,8 +2373,7 @@ public final class ActiveServices {
                     needSep |= printed;
                 }
                 printed = false;
-                for (int si = 0, SN = smap.mDelayedStartList.size(); si < SN; si++) {
-                    ServiceRecord r = smap.mDelayedStartList.get(si);
+                for (ServiceRecord r : smap.mDelayedStartList) {
                     if (!matcher.match(r, r.name)) {
                         continue;
                     }
@@ -2399,8 +2418,7 @@ public final class ActiveServices {
 
         if (mPendingServices.size() > 0) {
             boolean printed = false;
-            for (int i = 0; i < mPendingServices.size(); i++) {
-                ServiceRecord r = mPendingServices.get(i);
+            for (ServiceRecord r : mPendingServices) {
                 if (!matcher.match(r, r.name)) {
                     continue;
                 }
@@ -2423,8 +2441,7 @@ public final class ActiveServices {
 
         if (mRestartingServices.size() > 0) {
             boolean printed = false;
-            for (int i = 0; i < mRestartingServices.size(); i++) {
-                ServiceRecord r = mRestartingServices.get(i);
+            for (ServiceRecord r : mRestartingServices) {
                 if (!matcher.match(r, r.name)) {
                     continue;
                 }
@@ -2442,6 +2459,9 @@ public final class ActiveServices {
                 pw.println(r);
                 r.dump(pw, "    ");
             }
+            if (printed && dumpAll) {
+                mRestartingServices.dump(pw, "  ");
+            }
             needSep = true;
         }
 
@@ -2493,6 +2513,9 @@ public final class ActiveServices {
                     cr.dump(pw, "    ");
                 }
             }
+            if (printed) {
+                mConnectionGraph.dump(pw, "  ");
+            }
         }
 
         if (!printedAnything) {
@@ -36,6 +36,7 @@ import android.app.IActivityContainerCallback;
 import android.app.IActivityController;
 import android.app.IAppTask;
 import android.app.IApplicationThread;
+import android.app.IBatchedProcessObserver;
 import android.app.IInstrumentationWatcher;
 import android.app.INotificationManager;
 import android.app.IProcessObserver;
@@ -134,7 +135,6 @@ import android.text.format.DateUtils;
 import android.text.format.Time;
 import android.util.ArrayMap;
 import android.util.ArraySet;
-import android.util.AtomicFile;
 import android.util.EventLog;
 import android.util.EventLogTags;
 import android.util.Log;
@@ -144,7 +144,6 @@ import android.util.Slog;
 import android.util.SparseArray;
 import android.util.SparseIntArray;
 import android.util.TimeUtils;
-import android.util.Xml;
 import android.view.Display;
 import android.view.Gravity;
 import android.view.LayoutInflater;
@@ -163,7 +162,6 @@ import com.android.internal.os.ProcessCpuTracker;
 import com.android.internal.os.TransferPipe;
 import com.android.internal.os.Zygote;
 import com.android.internal.util.FastPrintWriter;
-import com.android.internal.util.FastXmlSerializer;
 import com.android.internal.util.MemInfoReader;
 import com.android.internal.util.Preconditions;
 import com.android.server.AppOpsService;
@@ -182,11 +180,6 @@ import com.android.server.statusbar.StatusBarManagerInternal;
 import com.android.server.wm.AppTransition;
 import com.android.server.wm.WindowManagerService;
 import com.google.android.collect.Lists;
-import com.google.android.collect.Maps;
-
-import org.xmlpull.v1.XmlPullParser;
-import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlSerializer;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
@@ -217,23 +210,14 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 import dalvik.system.VMRuntime;
-import libcore.io.IoUtils;
 
 import static android.Manifest.permission.INTERACT_ACROSS_USERS;
 import static android.Manifest.permission.INTERACT_ACROSS_USERS_FULL;
 import static android.Manifest.permission.START_TASKS_FROM_RECENTS;
 import static android.content.pm.PackageManager.PERMISSION_GRANTED;
-import static com.android.internal.util.XmlUtils.readBooleanAttribute;
-import static com.android.internal.util.XmlUtils.readIntAttribute;
-import static com.android.internal.util.XmlUtils.readLongAttribute;
-import static com.android.internal.util.XmlUtils.writeBooleanAttribute;
-import static com.android.internal.util.XmlUtils.writeIntAttribute;
-import static com.android.internal.util.XmlUtils.writeLongAttribute;
 import static com.android.server.Watchdog.NATIVE_STACKS_OF_INTEREST;
 import static com.android.server.am.ActivityStackSupervisor.HOME_STACK_ID;
 import static com.android.server.am.TaskRecord.INVALID_TASK_ID;
-import static org.xmlpull.v1.XmlPullParser.END_DOCUMENT;
-import static org.xmlpull.v1.XmlPullParser.START_TAG;
 
 public final class ActivityManagerService extends ActivityManagerNative implements Watchdog.Monitor, BatteryStatsImpl.BatteryCallback {
 
@@ -323,6 +307,10 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 	// when the request is due to the memory state being lowered.
 	static final int FULL_PSS_LOWERED_INTERVAL = 2 * 60 * 1000;
 
+	// How often we sample /proc/<pid>/stat of all our processes by default;
+	// off unless debug.am.proc_sample_interval asks for it.
+	static final long PROC_SAMPLE_INTERVAL = 0;
+
 	// The rate at which we check for apps using excessive power -- 15 mins.
 	static final int POWER_CHECK_DELAY = (DEBUG_POWER_QUICK ? 2 : 15) * 60 * 1000;
 
@@ -431,7 +419,7 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 	/**
 	 * List of intents that were used to start the most recent tasks.
 	 */
-	ArrayList<TaskRecord> mRecentTasks;
+	RecentTaskList mRecentTasks;
 	ArrayList<TaskRecord> mTmpRecents = new ArrayList<TaskRecord>();
 
 	/**
@@ -573,6 +561,13 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 	 */
 	final ArrayList<ProcessRecord> mProcessesOnHold = new ArrayList<ProcessRecord>();
 
+	/**
+	 * Nesting depth of startProcessStartBatchLocked(), and the starts whose pid
+	 * will be collected when the outermost batch finishes.
+	 */
+	int mProcessStartBatchDepth;
+	final ArrayList<PendingProcessStart> mPendingProcessStarts = new ArrayList<PendingProcessStart>();
+
 	/**
 	 * List of persistent applications that are in the process
 	 * of being started.
@@ -587,30 +582,61 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 	/**
 	 * List of running applications, sorted by recent usage.
 	 * The first entry in the list is the least recently used.
+	 * Processes hosting activities are at the top, below them the processes
+	 * hosting services, and below those everything else; see LruProcessList.
 	 */
-	final ArrayList<ProcessRecord> mLruProcesses = new ArrayList<ProcessRecord>();
+	final LruProcessList mLruProcesses = new LruProcessList();
 
 	/**
-	 * Where in mLruProcesses that the processes hosting activities start.
+	 * List of processes that should gc as soon as things are idle.
 	 */
-	int mLruProcessActivityStart = 0;
+	final ArrayList<ProcessRecord> mProcessesToGc = new ArrayList<ProcessRecord>();
 
 	/**
-	 * Where in mLruProcesses that the processes hosting services start.
-	 * This is after (lower index) than mLruProcessesActivityStart.
+	 * Work left for the deferred phase of cleaning up after processes that
+	 * died; see finishAppDiedCleanup().
 	 */
-	int mLruProcessServiceStart = 0;
+	boolean mAppDiedCleanupScheduled;
+	boolean mAppDiedResumePending;
+	boolean mAppDiedHasVisibleActivities;
+	boolean mAppDiedOomAdjPending;
+	final ArrayList<ProcessRecord> mAppDiedLowMemReports = new ArrayList<ProcessRecord>();
+	final ArrayList<String> mAppDiedBackupDisconnects = new ArrayList<String>();
 
 	/**
-	 * List of processes that should gc as soon as things are idle.
+	 * How long the locked and the deferred phases of cleaning up after dead
+	 * processes took, in total and at most, in ms.
 	 */
-	final ArrayList<ProcessRecord> mProcessesToGc = new ArrayList<ProcessRecord>();
+	int mNumAppDiedCleanups;
+	long mAppDiedCleanupTime;
+	long mAppDiedCleanupMaxTime;
+	int mNumAppDiedBatches;
+	long mAppDiedBatchTime;
+	long mAppDiedBatchMaxTime;
 
 	/**
 	 * Processes we want to collect PSS data from.
 	 */
 	final ArrayList<ProcessRecord> mPendingPssProcesses = new ArrayList<ProcessRecord>();
 
+	/**
+	 * Reads /proc/<pid>/stat for the periodic sampling of our processes, whose
+	 * results only show up in the process dump.  Sampled on the background
+	 * thread.
+	 */
+	final ProcStatsSampler mProcStatsSampler = new ProcStatsSampler();
+
+	/**
+	 * How often the background thread samples /proc/<pid>/stat of every
+	 * process we run, in ms; 0 turns the sampling off.
+	 */
+	final long mProcSampleInterval = SystemProperties.getLong("debug.am.proc_sample_interval", PROC_SAMPLE_INTERVAL);
+
+	/**
+	 * Pids of the current sampling pass; only used on the background thread.
+	 */
+	int[] mProcSamplePids = new int[0];
+
 	/**
 	 * Last time we requested PSS data of all processes.
 	 */
@@ -742,7 +768,7 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 	 * by the user ID the sticky is for, and can include UserHandle.USER_ALL
 	 * for stickies that are sent to all users.
 	 */
-	final SparseArray<ArrayMap<String, ArrayList<Intent>>> mStickyBroadcasts = new SparseArray<ArrayMap<String, ArrayList<Intent>>>();
+	final StickyBroadcastStore mStickyBroadcasts = new StickyBroadcastStore();
 
 	//辅助AMS进行Service管理的类，包括Service的启动，绑定，和停止等
 	final ActiveServices mServices;
@@ -785,6 +811,12 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 
 	final ProviderMap mProviderMap;
 
+	/**
+	 * Published providers that clients already hold a connection to, for
+	 * lookups that do not need to take the lock.
+	 */
+	final ProviderFastPath mProviderFastPath = new ProviderFastPath();
+
 	/**
 	 * List of content providers who have clients waiting for them.  The
 	 * application is currently being launched and the provider will be
@@ -793,32 +825,22 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 	final ArrayList<ContentProviderRecord> mLaunchingProviders = new ArrayList<ContentProviderRecord>();
 
 	/**
-	 * File storing persisted {@link #mGrantedUriPermissions}.
+	 * Storage for persisted {@link #mGrantedUriPermissions}; only touched on
+	 * the handler thread once the system is up.
 	 */
-	private final AtomicFile mGrantFile;
+	private final UriGrantsJournal mGrantFile;
 
 	/**
-	 * XML constants used in {@link #mGrantFile}
+	 * Global set of specific {@link Uri} permissions that have been granted,
+	 * by target uid and indexed by package and Uri path.
 	 */
-	private static final String TAG_URI_GRANTS = "uri-grants";
-	private static final String TAG_URI_GRANT = "uri-grant";
-	private static final String ATTR_USER_HANDLE = "userHandle";
-	private static final String ATTR_SOURCE_USER_ID = "sourceUserId";
-	private static final String ATTR_TARGET_USER_ID = "targetUserId";
-	private static final String ATTR_SOURCE_PKG = "sourcePkg";
-	private static final String ATTR_TARGET_PKG = "targetPkg";
-	private static final String ATTR_URI = "uri";
-	private static final String ATTR_MODE_FLAGS = "modeFlags";
-	private static final String ATTR_CREATED_TIME = "createdTime";
-	private static final String ATTR_PREFIX = "prefix";
+	@GuardedBy("this")
+	private final UriPermissionStore mGrantedUriPermissions = new UriPermissionStore();
 
 	/**
-	 * Global set of specific {@link Uri} permissions that have been granted.
-	 * This optimized lookup structure maps from {@link UriPermission#targetUid}
-	 * to {@link UriPermission#uri} to {@link UriPermission}.
+	 * Scratch list for walking grants while revoking them.
 	 */
-	@GuardedBy("this")
-	private final SparseArray<ArrayMap<GrantUri, UriPermission>> mGrantedUriPermissions = new SparseArray<ArrayMap<GrantUri, UriPermission>>();
+	private final ArrayList<UriPermission> mTmpUriPermissions = new ArrayList<UriPermission>();
 
 	public static class GrantUri {
 		public final int sourceUserId;
@@ -908,6 +930,12 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 	 */
 	final TaskPersister mTaskPersister;
 
+	/**
+	 * Where the recent tasks themselves are saved; the persister still
+	 * writes their images and reads the XML files of earlier releases.
+	 */
+	final TaskStore mTaskStore;
+
 	/**
 	 * Current configuration information.  HistoryRecord objects are given
 	 * a reference to this object to indicate which configuration they are
@@ -1021,6 +1049,22 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 	 */
 	int mLruSeq = 0;
 
+	/**
+	 * Scratch state for incremental oom adj updates.
+	 */
+	final ArrayList<ProcessRecord> mTmpOomAdjProcs = new ArrayList<ProcessRecord>();
+	final ArraySet<ProcessRecord> mTmpOomAdjSeen = new ArraySet<ProcessRecord>();
+	final ArrayList<ProcessRecord> mTmpOomAdjHosts = new ArrayList<ProcessRecord>();
+	boolean[] mTmpOomAdjWasCached = new boolean[16];
+
+	/**
+	 * How many incremental oom adj updates were done, how many processes
+	 * they recomputed in total, and how many had to fall back to a full update.
+	 */
+	int mNumOomAdjIncremental = 0;
+	long mNumOomAdjIncrementalProcs = 0;
+	int mNumOomAdjIncrementalFallbacks = 0;
+
 	/**
 	 * Keep track of the non-cached/empty process we last found, to help
 	 * determine how to distribute cached/empty processes next time.
@@ -1133,6 +1177,7 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 		int pid;
 		int processState;
 		boolean foregroundActivities;
+		int numEvents;  // individual changes folded into this item
 	}
 
 	final RemoteCallbackList<IProcessObserver> mProcessObservers = new RemoteCallbackList<IProcessObserver>();
@@ -1141,6 +1186,35 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 	final ArrayList<ProcessChangeItem> mPendingProcessChanges = new ArrayList<ProcessChangeItem>();
 	final ArrayList<ProcessChangeItem> mAvailProcessChanges = new ArrayList<ProcessChangeItem>();
 
+	/**
+	 * Set while an oom adj pass is running, so that all of the process
+	 * changes it produces are dispatched together once it is done.
+	 */
+	boolean mDeferProcessChangesDispatch = false;
+
+	/**
+	 * Minimum time between two deliveries to batched process observers.
+	 */
+	static final long BATCHED_PROCESS_CHANGES_MIN_INTERVAL = 100;
+
+	final RemoteCallbackList<IBatchedProcessObserver> mBatchedProcessObservers = new RemoteCallbackList<IBatchedProcessObserver>();
+
+	/**
+	 * Changes waiting to be delivered to batched process observers, by pid.
+	 * Only touched on the handler thread.
+	 */
+	final SparseArray<ProcessChangeItem> mBatchedProcessChanges = new SparseArray<ProcessChangeItem>();
+	final ArrayList<ProcessChangeItem> mAvailBatchedProcessChanges = new ArrayList<ProcessChangeItem>();
+	boolean mBatchedProcessChangesScheduled = false;
+	long mLastBatchedProcessChangesTime = 0;
+
+	/**
+	 * Observer callbacks that were not made because changes were
+	 * coalesced, for regular and batched observers respectively.
+	 */
+	long mProcessObserverCallbacksSaved = 0;
+	long mBatchedProcessObserverCallbacksSaved = 0;
+
 	/**
 	 * Runtime CPU use collection thread.  This object's lock is used to
 	 * perform synchronization with the thread (notifying it to run).
@@ -1254,6 +1328,8 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 	static final int SEND_LOCALE_TO_MOUNT_DAEMON_MSG = 47;
 	static final int DISMISS_DIALOG_MSG = 48;
 	static final int NOTIFY_TASK_STACK_CHANGE_LISTENERS_MSG = 49;
+	static final int DISPATCH_BATCHED_PROCESSES_CHANGED = 50;
+	static final int FINISH_APP_DIED_CLEANUP_MSG = 51;
 
 	static final int FIRST_ACTIVITY_STACK_MSG = 100;
 	static final int FIRST_BROADCAST_QUEUE_MSG = 200;
@@ -1633,6 +1709,10 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 					dispatchProcessesChanged();
 					break;
 				}
+				case DISPATCH_BATCHED_PROCESSES_CHANGED: {
+					dispatchBatchedProcessesChanged();
+					break;
+				}
 				case DISPATCH_PROCESS_DIED: {
 					final int pid = msg.arg1;
 					final int uid = msg.arg2;
@@ -1761,6 +1841,10 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 					d.dismiss();
 					break;
 				}
+				case FINISH_APP_DIED_CLEANUP_MSG: {
+					finishAppDiedCleanup();
+					break;
+				}
 				case NOTIFY_TASK_STACK_CHANGE_LISTENERS_MSG: {
 					synchronized (ActivityManagerService.this) {
 						int i = mTaskStackListeners.beginBroadcast();
@@ -1784,6 +1868,7 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 	;
 
 	static final int COLLECT_PSS_BG_MSG = 1;
+	static final int PROC_SAMPLE_BG_MSG = 2;
 
 	final Handler mBgHandler = new Handler(BackgroundThread.getHandler().getLooper()) {
 		@Override
@@ -1825,40 +1910,62 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 						}
 					}
 
-					int num = 0;
-					long[] tmp = new long[1];
-					do {
-						ProcessRecord proc;
-						int procState;
-						int pid;
-						long lastPssTime;
-						synchronized (ActivityManagerService.this) {
-							if (mPendingPssProcesses.size() <= 0) {
-								if (mTestPssMode || DEBUG_PSS)
-									Slog.d(TAG, "Collected PSS of " + num + " processes in " + (SystemClock.uptimeMillis() - start) + "ms");
-								mPendingPssProcesses.clear();
-								return;
-							}
-							proc = mPendingPssProcesses.remove(0);
-							procState = proc.pssProcState;
-							lastPssTime = proc.lastPssTime;
-							if (proc.thread != null && procState == proc.setProcState && (lastPssTime + ProcessList.PSS_SAFE_TIME_FROM_STATE_CHANGE) < SystemClock.uptimeMillis()) {
-								pid = proc.pid;
-							} else {
-								proc = null;
-								pid = 0;
+					// Take everything that is pending at once, read all of it
+					// in one pass without the lock, then record it in one go.
+					// Anything requested meanwhile sends a new message.
+					ProcessRecord[] procs;
+					int[] procStates;
+					int[] pids;
+					long[] lastPssTimes;
+					int N = 0;
+					synchronized (ActivityManagerService.this) {
+						final int NP = mPendingPssProcesses.size();
+						procs = new ProcessRecord[NP];
+						procStates = new int[NP];
+						pids = new int[NP];
+						lastPssTimes = new long[NP];
+						final long now = SystemClock.uptimeMillis();
+						for (int i = 0; i < NP; i++) {
+							final ProcessRecord proc = mPendingPssProcesses.get(i);
+							final int procState = proc.pssProcState;
+							if (proc.thread != null && procState == proc.setProcState && (proc.lastPssTime + ProcessList.PSS_SAFE_TIME_FROM_STATE_CHANGE) < now) {
+								procs[N] = proc;
+								procStates[N] = procState;
+								pids[N] = proc.pid;
+								lastPssTimes[N] = proc.lastPssTime;
+								N++;
 							}
 						}
-						if (proc != null) {
-							long pss = Debug.getPss(pid, tmp, null);
-							synchronized (ActivityManagerService.this) {
-								if (pss != 0 && proc.thread != null && proc.setProcState == procState && proc.pid == pid && proc.lastPssTime == lastPssTime) {
-									num++;
-									recordPssSample(proc, procState, pss, tmp[0], SystemClock.uptimeMillis());
-								}
+						mPendingPssProcesses.clear();
+					}
+					final long[] pss = new long[N];
+					final long[] uss = new long[N];
+					final long[] tmp = new long[1];
+					for (int i = 0; i < N; i++) {
+						pss[i] = Debug.getPss(pids[i], tmp, null);
+						uss[i] = tmp[0];
+					}
+					int num = 0;
+					synchronized (ActivityManagerService.this) {
+						final long now = SystemClock.uptimeMillis();
+						for (int i = 0; i < N; i++) {
+							final ProcessRecord proc = procs[i];
+							if (pss[i] != 0 && proc.thread != null && proc.setProcState == procStates[i] && proc.pid == pids[i] && proc.lastPssTime == lastPssTimes[i]) {
+								num++;
+								recordPssSample(proc, procStates[i], pss[i], uss[i], now);
 							}
 						}
-					} while (true);
+					}
+					if (mTestPssMode || DEBUG_PSS)
+						Slog.d(TAG, "Collected PSS of " + num + " processes in " + (SystemClock.uptimeMillis() - start) + "ms");
+					break;
+				}
+				case PROC_SAMPLE_BG_MSG: {
+					sampleProcessStats();
+					if (mProcSampleInterval > 0) {
+						sendEmptyMessageDelayed(PROC_SAMPLE_BG_MSG, mProcSampleInterval);
+					}
+					break;
 				}
 			}
 		}
@@ -2043,7 +2150,7 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 
 		mAppOpsService = new AppOpsService(new File(systemDir, "appops.xml"), mHandler);
 
-		mGrantFile = new AtomicFile(new File(systemDir, "urigrants.xml"));
+		mGrantFile = new UriGrantsJournal(new File(systemDir, "urigrants.xml"), new File(systemDir, "urigrants.journal"));
 
 		// User 0 is the first and only user that runs at boot.
 		mStartedUsers.put(0, new UserStartedState(new UserHandle(0), true));
@@ -2064,6 +2171,7 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 		mIntentFirewall = new IntentFirewall(new IntentFirewallInterface(), mHandler);
 		mStackSupervisor = new ActivityStackSupervisor(this);
 		mTaskPersister = new TaskPersister(systemDir, mStackSupervisor);
+		mTaskStore = new TaskStore(this, systemDir, BackgroundThread.getHandler());
 
 		mProcessCpuThread = new Thread("CpuTracker") {
 			@Override
@@ -2370,55 +2478,54 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 		mHandler.sendMessage(msg);
 	}
 
-	private int updateLruProcessInternalLocked(ProcessRecord app, long now, int index, String what, Object obj, ProcessRecord srcApp) {
+	/**
+	 * Moves a process that app depends on down to just below "before" in the
+	 * non-service area of the LRU list, or to the top of that area if "before"
+	 * is null.  Returns where the next dependent process should go.
+	 */
+	private ProcessRecord updateLruProcessInternalLocked(ProcessRecord app, long now, ProcessRecord before, String what, Object obj, ProcessRecord srcApp) {
 		app.lastActivityTime = now;
 
 		if (app.activities.size() > 0) {
 			// Don't want to touch dependent processes that are hosting activities.
-			return index;
+			return before;
 		}
 
-		int lrui = mLruProcesses.lastIndexOf(app);
-		if (lrui < 0) {
+		final int segment = mLruProcesses.getSegment(app);
+		if (segment < 0) {
 			Slog.wtf(TAG, "Adding dependent process " + app + " not on LRU list: " + what + " " + obj + " from " + srcApp);
-			return index;
+			return before;
 		}
 
-		if (lrui >= index) {
-			// Don't want to cause this to move dependent processes *back* in the
-			// list as if they were less frequently used.
-			return index;
+		if (segment != LruProcessList.SEGMENT_OTHER) {
+			// Don't want to touch dependent processes that are hosting activities.
+			return before;
 		}
 
-		if (lrui >= mLruProcessActivityStart) {
-			// Don't want to touch dependent processes that are hosting activities.
-			return index;
+		if (before == app || (before != null && !mLruProcesses.isBefore(app, before))) {
+			// Don't want to cause this to move dependent processes *back* in the
+			// list as if they were less frequently used.
+			return before;
 		}
 
-		mLruProcesses.remove(lrui);
-		if (index > 0) {
-			index--;
+		if (DEBUG_LRU) Slog.d(TAG, "Moving dep " + app + " in LRU list below " + before);
+		if (before != null) {
+			mLruProcesses.moveBefore(app, before);
+		} else {
+			mLruProcesses.unlinkProcess(app);
+			mLruProcesses.addToSegmentTop(app, LruProcessList.SEGMENT_OTHER);
 		}
-		if (DEBUG_LRU) Slog.d(TAG, "Moving dep from " + lrui + " to " + index + " in LRU list: " + app);
-		mLruProcesses.add(index, app);
-		return index;
+		return app;
 	}
 
 	final void removeLruProcessLocked(ProcessRecord app) {
-		int lrui = mLruProcesses.lastIndexOf(app);
-		if (lrui >= 0) {
+		if (mLruProcesses.contains(app)) {
 			if (!app.killed) {
 				Slog.wtfStack(TAG, "Removing process that hasn't been killed: " + app);
 				Process.killProcessQuiet(app.pid);
 				Process.killProcessGroup(app.info.uid, app.pid);
 			}
-			if (lrui <= mLruProcessActivityStart) {
-				mLruProcessActivityStart--;
-			}
-			if (lrui <= mLruProcessServiceStart) {
-				mLruProcessServiceStart--;
-			}
-			mLruProcesses.remove(lrui);
+			mLruProcesses.removeProcess(app);
 		}
 	}
 
@@ -2440,115 +2547,59 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 		// First a quick reject: if the app is already at the position we will
 		// put it, then there is nothing to do.
 		if (hasActivity) {
-			final int N = mLruProcesses.size();
-			if (N > 0 && mLruProcesses.get(N - 1) == app) {
+			if (mLruProcesses.getTop() == app) {
 				if (DEBUG_LRU) Slog.d(TAG, "Not moving, already top activity: " + app);
 				return;
 			}
 		} else {
-			if (mLruProcessServiceStart > 0 && mLruProcesses.get(mLruProcessServiceStart - 1) == app) {
+			if (mLruProcesses.getSegmentTop(LruProcessList.SEGMENT_OTHER) == app) {
 				if (DEBUG_LRU) Slog.d(TAG, "Not moving, already top other: " + app);
 				return;
 			}
 		}
 
-		int lrui = mLruProcesses.lastIndexOf(app);
+		final boolean onList = mLruProcesses.contains(app);
 
-		if (app.persistent && lrui >= 0) {
+		if (app.persistent && onList) {
 			// We don't care about the position of persistent processes, as long as
 			// they are in the list.
 			if (DEBUG_LRU) Slog.d(TAG, "Not moving, persistent: " + app);
 			return;
 		}
 
-        /* In progress: compute new position first, so we can avoid doing work
-		   if the process is not actually going to move.  Not yet working.
-        int addIndex;
-        int nextIndex;
-        boolean inActivity = false, inService = false;
-        if (hasActivity) {
-            // Process has activities, put it at the very tipsy-top.
-            addIndex = mLruProcesses.size();
-            nextIndex = mLruProcessServiceStart;
-            inActivity = true;
-        } else if (hasService) {
-            // Process has services, put it at the top of the service list.
-            addIndex = mLruProcessActivityStart;
-            nextIndex = mLruProcessServiceStart;
-            inActivity = true;
-            inService = true;
-        } else  {
-            // Process not otherwise of interest, it goes to the top of the non-service area.
-            addIndex = mLruProcessServiceStart;
-            if (client != null) {
-                int clientIndex = mLruProcesses.lastIndexOf(client);
-                if (clientIndex < 0) Slog.d(TAG, "Unknown client " + client + " when updating "
-                        + app);
-                if (clientIndex >= 0 && addIndex > clientIndex) {
-                    addIndex = clientIndex;
-                }
-            }
-            nextIndex = addIndex > 0 ? addIndex-1 : addIndex;
-        }
-
-        Slog.d(TAG, "Update LRU at " + lrui + " to " + addIndex + " (act="
-                + mLruProcessActivityStart + "): " + app);
-        */
-
-		if (lrui >= 0) {
-			if (lrui < mLruProcessActivityStart) {
-				mLruProcessActivityStart--;
-			}
-			if (lrui < mLruProcessServiceStart) {
-				mLruProcessServiceStart--;
-			}
-            /*
-            if (addIndex > lrui) {
-                addIndex--;
-            }
-            if (nextIndex > lrui) {
-                nextIndex--;
-            }
-            */
-			mLruProcesses.remove(lrui);
+		// Remember what was above the process, in case a client restriction
+		// below needs to keep it where it was.
+		final ProcessRecord oldNext = onList ? mLruProcesses.getNext(app) : null;
+		if (onList) {
+			mLruProcesses.unlinkProcess(app);
 		}
 
-        /*
-        mLruProcesses.add(addIndex, app);
-        if (inActivity) {
-            mLruProcessActivityStart++;
-        }
-        if (inService) {
-            mLruProcessActivityStart++;
-        }
-        */
-
-		int nextIndex;
+		// Dependent processes are moved to just below this one.
+		ProcessRecord nextBefore;
 		if (hasActivity) {
-			final int N = mLruProcesses.size();
-			if (app.activities.size() == 0 && mLruProcessActivityStart < (N - 1)) {
+			final ProcessRecord top = mLruProcesses.getSegmentTop(LruProcessList.SEGMENT_ACTIVITY);
+			if (app.activities.size() == 0 && top != null && mLruProcesses.getSegmentBottom(LruProcessList.SEGMENT_ACTIVITY) != top) {
 				// Process doesn't have activities, but has clients with
 				// activities...  move it up, but one below the top (the top
 				// should always have a real activity).
 				if (DEBUG_LRU) Slog.d(TAG, "Adding to second-top of LRU activity list: " + app);
-				mLruProcesses.add(N - 1, app);
+				mLruProcesses.addBefore(app, top);
 				// To keep it from spamming the LRU list (by making a bunch of clients),
 				// we will push down any other entries owned by the app.
 				final int uid = app.info.uid;
-				for (int i = N - 2; i > mLruProcessActivityStart; i--) {
-					ProcessRecord subProc = mLruProcesses.get(i);
+				final ProcessRecord bottom = mLruProcesses.getSegmentBottom(LruProcessList.SEGMENT_ACTIVITY);
+				ProcessRecord subProc = mLruProcesses.getPrev(app);
+				while (subProc != bottom && mLruProcesses.getSegment(subProc) == LruProcessList.SEGMENT_ACTIVITY) {
 					if (subProc.info.uid == uid) {
 						// We want to push this one down the list.  If the process after
 						// it is for the same uid, however, don't do so, because we don't
 						// want them internally to be re-ordered.
-						if (mLruProcesses.get(i - 1).info.uid != uid) {
-							if (DEBUG_LRU)
-								Slog.d(TAG, "Pushing uid " + uid + " swapping at " + i + ": " + mLruProcesses.get(i) + " : " + mLruProcesses.get(i - 1));
-							ProcessRecord tmp = mLruProcesses.get(i);
-							mLruProcesses.set(i, mLruProcesses.get(i - 1));
-							mLruProcesses.set(i - 1, tmp);
-							i--;
+						final ProcessRecord below = mLruProcesses.getPrev(subProc);
+						if (below.info.uid != uid) {
+							if (DEBUG_LRU) Slog.d(TAG, "Pushing uid " + uid + " swapping: " + subProc + " : " + below);
+							mLruProcesses.swapWithPrev(subProc);
 						}
+						subProc = mLruProcesses.getPrev(subProc);
 					} else {
 						// A gap, we can stop here.
 						break;
@@ -2557,37 +2608,42 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 			} else {
 				// Process has activities, put it at the very tipsy-top.
 				if (DEBUG_LRU) Slog.d(TAG, "Adding to top of LRU activity list: " + app);
-				mLruProcesses.add(app);
+				mLruProcesses.addToSegmentTop(app, LruProcessList.SEGMENT_ACTIVITY);
 			}
-			nextIndex = mLruProcessServiceStart;
+			nextBefore = null;
 		} else if (hasService) {
 			// Process has services, put it at the top of the service list.
 			if (DEBUG_LRU) Slog.d(TAG, "Adding to top of LRU service list: " + app);
-			mLruProcesses.add(mLruProcessActivityStart, app);
-			nextIndex = mLruProcessServiceStart;
-			mLruProcessActivityStart++;
+			mLruProcesses.addToSegmentTop(app, LruProcessList.SEGMENT_SERVICE);
+			nextBefore = null;
 		} else {
 			// Process not otherwise of interest, it goes to the top of the non-service area.
-			int index = mLruProcessServiceStart;
+			ProcessRecord anchor = null;
 			if (client != null) {
 				// If there is a client, don't allow the process to be moved up higher
 				// in the list than that client.
-				int clientIndex = mLruProcesses.lastIndexOf(client);
-				if (DEBUG_LRU && clientIndex < 0) Slog.d(TAG, "Unknown client " + client + " when updating " + app);
-				if (clientIndex <= lrui) {
+				final boolean clientOnList = mLruProcesses.contains(client);
+				if (DEBUG_LRU && !clientOnList) Slog.d(TAG, "Unknown client " + client + " when updating " + app);
+				if (onList && (!clientOnList || oldNext == null || mLruProcesses.isBefore(client, oldNext))) {
 					// Don't allow the client index restriction to push it down farther in the
 					// list than it already is.
-					clientIndex = lrui;
-				}
-				if (clientIndex >= 0 && index > clientIndex) {
-					index = clientIndex;
+					anchor = oldNext;
+				} else if (clientOnList) {
+					anchor = client;
 				}
 			}
-			if (DEBUG_LRU) Slog.d(TAG, "Adding at " + index + " of LRU list: " + app);
-			mLruProcesses.add(index, app);
-			nextIndex = index - 1;
-			mLruProcessActivityStart++;
-			mLruProcessServiceStart++;
+			if (anchor != null && mLruProcesses.getSegment(anchor) == LruProcessList.SEGMENT_OTHER) {
+				if (DEBUG_LRU) Slog.d(TAG, "Adding below " + anchor + " in LRU list: " + app);
+				mLruProcesses.addBefore(app, anchor);
+			} else {
+				if (DEBUG_LRU) Slog.d(TAG, "Adding to top of LRU other list: " + app);
+				mLruProcesses.addToSegmentTop(app, LruProcessList.SEGMENT_OTHER);
+			}
+			nextBefore = mLruProcesses.getPrev(app);
+			if (nextBefore == null) {
+				// Already at the bottom; nothing can be moved below it.
+				nextBefore = app;
+			}
 		}
 
 		// If the app is currently using a content provider or service,
@@ -2595,13 +2651,13 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 		for (int j = app.connections.size() - 1; j >= 0; j--) {
 			ConnectionRecord cr = app.connections.valueAt(j);
 			if (cr.binding != null && !cr.serviceDead && cr.binding.service != null && cr.binding.service.app != null && cr.binding.service.app.lruSeq != mLruSeq && !cr.binding.service.app.persistent) {
-				nextIndex = updateLruProcessInternalLocked(cr.binding.service.app, now, nextIndex, "service connection", cr, app);
+				nextBefore = updateLruProcessInternalLocked(cr.binding.service.app, now, nextBefore, "service connection", cr, app);
 			}
 		}
 		for (int j = app.conProviders.size() - 1; j >= 0; j--) {
 			ContentProviderRecord cpr = app.conProviders.get(j).provider;
 			if (cpr.proc != null && cpr.proc.lruSeq != mLruSeq && !cpr.proc.persistent) {
-				nextIndex = updateLruProcessInternalLocked(cpr.proc, now, nextIndex, "provider reference", cpr, app);
+				nextBefore = updateLruProcessInternalLocked(cpr.proc, now, nextBefore, "provider reference", cpr, app);
 			}
 		}
 	}
@@ -2898,8 +2954,92 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 			if (entryPoint == null) entryPoint = "android.app.ActivityThread";
 			checkTime(startTime, "startProcess: asking zygote to start proc");
 			//Process.java的start函数，将通过socket发送消息给zygote  zygote将派生出一个子进程，子进程将通过反射调用ActivityThread的main函数
-			Process.ProcessStartResult startResult = Process.start(entryPoint, app.processName, uid, uid, gids, debugFlags, mountExternal, app.info.targetSdkVersion//
+			Process.PendingStart pendingStart = Process.startAsync(entryPoint, app.processName, uid, uid, gids, debugFlags, mountExternal, app.info.targetSdkVersion//
 					, app.info.seinfo, requiredAbi, instructionSet, app.info.dataDir, entryPointArgs);
+			final PendingProcessStart start = new PendingProcessStart(app, pendingStart, hostingType, hostingNameStr, entryPoint, isActivityProcess, uid, startTime);
+			if (mProcessStartBatchDepth > 0) {
+				// Let the zygote work on this while we send the rest of the batch.
+				mPendingProcessStarts.add(start);
+				return;
+			}
+			finishProcessStartLocked(start);
+		} catch (RuntimeException e) {
+			// XXX do better error recovery.
+			app.setPid(0);
+			mBatteryStatsService.noteProcessFinish(app.processName, app.info.uid);
+			if (app.isolated) {
+				mBatteryStatsService.removeIsolatedUid(app.uid, app.info.uid);
+			}
+			Slog.e(TAG, "Failure starting process " + app.processName, e);
+		}
+	}
+
+	/**
+	 * A process whose fork request has been sent to the zygote but whose pid has
+	 * not been collected yet.
+	 */
+	static final class PendingProcessStart {
+		final ProcessRecord app;
+		final Process.PendingStart pendingStart;
+		final String hostingType;
+		final String hostingNameStr;
+		final String entryPoint;
+		final boolean isActivityProcess;
+		final int uid;
+		final long startTime;
+
+		PendingProcessStart(ProcessRecord _app, Process.PendingStart _pendingStart, String _hostingType, String _hostingNameStr, String _entryPoint, boolean _isActivityProcess, int _uid, long _startTime) {
+			app = _app;
+			pendingStart = _pendingStart;
+			hostingType = _hostingType;
+			hostingNameStr = _hostingNameStr;
+			entryPoint = _entryPoint;
+			isActivityProcess = _isActivityProcess;
+			uid = _uid;
+			startTime = _startTime;
+		}
+	}
+
+	/**
+	 * Starts batching process starts: until the matching
+	 * {@link #finishProcessStartBatchLocked}, startProcessLocked() only sends the
+	 * fork request and the pids are collected at the end, so the zygote can work
+	 * on one start while the next is being prepared.
+	 *
+	 * <p>Until then a process started in the batch has a pid of 0 and is not in
+	 * mPidsSelfLocked, so it cannot attach and nothing can find it by pid.  Only
+	 * code that starts processes and looks at nothing else may run inside a
+	 * batch: today that is the loop over the processes held until boot in
+	 * finishBooting() and the loop over persistent apps in systemReady(), both
+	 * through startProcessLocked() or addAppLocked().  Anything that reads
+	 * app.pid after starting a process, such as starting an instrumentation or
+	 * a backup agent, must not.  The batch must be finished in a finally block
+	 * so a failed start cannot leave the others pending.</p>
+	 */
+	void startProcessStartBatchLocked() {
+		mProcessStartBatchDepth++;
+	}
+
+	void finishProcessStartBatchLocked() {
+		if (--mProcessStartBatchDepth > 0) {
+			return;
+		}
+		for (int i = 0; i < mPendingProcessStarts.size(); i++) {
+			finishProcessStartLocked(mPendingProcessStarts.get(i));
+		}
+		mPendingProcessStarts.clear();
+	}
+
+	private final void finishProcessStartLocked(PendingProcessStart start) {
+		final ProcessRecord app = start.app;
+		final long startTime = start.startTime;
+		final int uid = start.uid;
+		final String hostingType = start.hostingType;
+		final String hostingNameStr = start.hostingNameStr;
+		final String entryPoint = start.entryPoint;
+		final boolean isActivityProcess = start.isActivityProcess;
+		try {
+			Process.ProcessStartResult startResult = start.pendingStart.get();
 			checkTime(startTime, "startProcess: returned from zygote!");
 
 			if (app.isolated) {
@@ -3147,6 +3287,7 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 
 	private void dispatchProcessesChanged() {
 		int N;
+		int saved = 0;
 		synchronized (this) {
 			N = mPendingProcessChanges.size();
 			if (mActiveProcessChanges.length < N) {
@@ -3156,8 +3297,20 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 			mAvailProcessChanges.addAll(mPendingProcessChanges);
 			mPendingProcessChanges.clear();
 			if (DEBUG_PROCESS_OBSERVERS) Slog.i(TAG, "*** Delivering " + N + " process changes");
+			for (int j = 0; j < N; j++) {
+				final ProcessChangeItem item = mActiveProcessChanges[j];
+				saved += item.numEvents - Integer.bitCount(item.changes);
+			}
+			if (mBatchedProcessObservers.getRegisteredCallbackCount() > 0) {
+				for (int j = 0; j < N; j++) {
+					addBatchedProcessChange(mActiveProcessChanges[j]);
+				}
+			}
 		}
 
+		scheduleBatchedProcessesChanged();
+		mProcessObserverCallbacksSaved += saved * (long) mProcessObservers.getRegisteredCallbackCount();
+
 		int i = mProcessObservers.beginBroadcast();
 		while (i > 0) {
 			i--;
@@ -3196,6 +3349,115 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 			}
 		}
 		mProcessObservers.finishBroadcast();
+
+		// Anything still pending for the process is stale now.
+		final ProcessChangeItem item = mBatchedProcessChanges.get(pid);
+		if (item != null) {
+			mBatchedProcessChanges.remove(pid);
+			mAvailBatchedProcessChanges.add(item);
+		}
+		i = mBatchedProcessObservers.beginBroadcast();
+		while (i > 0) {
+			i--;
+			final IBatchedProcessObserver observer = mBatchedProcessObservers.getBroadcastItem(i);
+			if (observer != null) {
+				try {
+					observer.onProcessDied(pid, uid);
+				} catch (RemoteException e) {
+				}
+			}
+		}
+		mBatchedProcessObservers.finishBroadcast();
+	}
+
+	/**
+	 * Fold a dispatched change into the delta for batched observers.  Called
+	 * on the handler thread with the activity manager lock held.
+	 */
+	private void addBatchedProcessChange(ProcessChangeItem change) {
+		ProcessChangeItem item = mBatchedProcessChanges.get(change.pid);
+		if (item == null) {
+			final int NA = mAvailBatchedProcessChanges.size();
+			item = NA > 0 ? mAvailBatchedProcessChanges.remove(NA - 1) : new ProcessChangeItem();
+			item.changes = 0;
+			item.numEvents = 0;
+			item.pid = change.pid;
+			item.uid = change.uid;
+			mBatchedProcessChanges.put(change.pid, item);
+		}
+		item.changes |= change.changes;
+		item.numEvents += change.numEvents;
+		item.processState = change.processState;
+		item.foregroundActivities = change.foregroundActivities;
+	}
+
+	/**
+	 * Deliver the accumulated delta to batched observers now, or schedule it
+	 * so they are called at most once per BATCHED_PROCESS_CHANGES_MIN_INTERVAL.
+	 * Handler thread only.
+	 */
+	private void scheduleBatchedProcessesChanged() {
+		if (mBatchedProcessChangesScheduled || mBatchedProcessChanges.size() == 0) {
+			return;
+		}
+		final long when = mLastBatchedProcessChangesTime + BATCHED_PROCESS_CHANGES_MIN_INTERVAL;
+		if (when <= SystemClock.uptimeMillis()) {
+			dispatchBatchedProcessesChanged();
+		} else {
+			mBatchedProcessChangesScheduled = true;
+			mHandler.sendEmptyMessageAtTime(DISPATCH_BATCHED_PROCESSES_CHANGED, when);
+		}
+	}
+
+	private void dispatchBatchedProcessesChanged() {
+		mBatchedProcessChangesScheduled = false;
+		final int N = mBatchedProcessChanges.size();
+		if (N == 0) {
+			return;
+		}
+		mLastBatchedProcessChangesTime = SystemClock.uptimeMillis();
+		final int[] pids = new int[N];
+		final int[] uids = new int[N];
+		final int[] changes = new int[N];
+		final int[] processStates = new int[N];
+		final boolean[] foregroundActivities = new boolean[N];
+		int numEvents = 0;
+		for (int j = 0; j < N; j++) {
+			final ProcessChangeItem item = mBatchedProcessChanges.valueAt(j);
+			pids[j] = item.pid;
+			uids[j] = item.uid;
+			changes[j] = item.changes;
+			processStates[j] = item.processState;
+			foregroundActivities[j] = item.foregroundActivities;
+			numEvents += item.numEvents;
+			mAvailBatchedProcessChanges.add(item);
+		}
+		mBatchedProcessChanges.clear();
+		if (DEBUG_PROCESS_OBSERVERS) Slog.i(TAG, "*** Delivering " + N + " batched process changes (" + numEvents + " events)");
+
+		int i = mBatchedProcessObservers.beginBroadcast();
+		mBatchedProcessObserverCallbacksSaved += (numEvents - 1) * (long) i;
+		while (i > 0) {
+			i--;
+			final IBatchedProcessObserver observer = mBatchedProcessObservers.getBroadcastItem(i);
+			if (observer != null) {
+				try {
+					observer.onProcessesChanged(pids, uids, changes, processStates, foregroundActivities);
+				} catch (RemoteException e) {
+				}
+			}
+		}
+		mBatchedProcessObservers.finishBroadcast();
+	}
+
+	/**
+	 * Send out the process changes collected while dispatch was deferred.
+	 */
+	private void scheduleProcessChangesDispatchLocked() {
+		if (mPendingProcessChanges.size() > 0 && !mHandler.hasMessages(DISPATCH_PROCESSES_CHANGED)) {
+			if (DEBUG_PROCESS_OBSERVERS) Slog.i(TAG, "*** Enqueueing dispatch processes changed!");
+			mHandler.obtainMessage(DISPATCH_PROCESSES_CHANGED).sendToTarget();
+		}
 	}
 
 	@Override
@@ -3495,11 +3757,12 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 			return;
 		}
 
-		for (int i = mRecentTasks.size() - 1; i >= 0; --i) {
-			TaskRecord tr = mRecentTasks.get(i);
+		TaskRecord next;
+		for (TaskRecord tr = mRecentTasks.firstForUser(userId); tr != null; tr = next) {
+			next = mRecentTasks.nextForUser(tr);
 			if (tr.userId == userId) {
 				if (DEBUG_TASKS) Slog.i(TAG, "remove RecentTask " + tr + " when finishing user" + userId);
-				mRecentTasks.remove(i);
+				mRecentTasks.remove(tr);
 				tr.removedFromRecents();
 			}
 		}
@@ -3516,9 +3779,9 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 		}
 	};
 
-	// Extract the affiliates of the chain containing mRecentTasks[start].
-	private int processNextAffiliateChainLocked(int start) {
-		final TaskRecord startTask = mRecentTasks.get(start);
+	// Extract the affiliates of the chain containing startTask.  Returns the task
+	// to continue from.
+	private TaskRecord processNextAffiliateChainLocked(TaskRecord startTask) {
 		final int affiliateId = startTask.mAffiliatedTaskId;
 
 		// Quick identification of isolated tasks. I.e. those not launched behind.
@@ -3527,16 +3790,22 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 			// and that the chain is so messed up that this task no longer points to them but
 			// the gain of this optimization outweighs the risk.
 			startTask.inRecents = true;
-			return start + 1;
+			return mRecentTasks.next(startTask);
 		}
 
 		// Remove all tasks that are affiliated to affiliateId and put them in mTmpRecents.
+		// The group goes back in where startTask was, before the first task that is not
+		// part of it.
 		mTmpRecents.clear();
-		for (int i = mRecentTasks.size() - 1; i >= start; --i) {
-			final TaskRecord task = mRecentTasks.get(i);
+		TaskRecord insertBefore = null;
+		TaskRecord next;
+		for (TaskRecord task = startTask; task != null; task = next) {
+			next = mRecentTasks.next(task);
 			if (task.mAffiliatedTaskId == affiliateId) {
-				mRecentTasks.remove(i);
+				mRecentTasks.remove(task);
 				mTmpRecents.add(task);
+			} else if (insertBefore == null) {
+				insertBefore = task;
 			}
 		}
 
@@ -3579,10 +3848,12 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 		}
 
 		// Insert the group back into mRecentTasks at start.
-		mRecentTasks.addAll(start, mTmpRecents);
+		for (int i = 0; i < tmpSize; ++i) {
+			mRecentTasks.addBefore(insertBefore, mTmpRecents.get(i));
+		}
 
 		// Let the caller know where we left off.
-		return start + tmpSize;
+		return insertBefore;
 	}
 
 	/**
@@ -3602,22 +3873,19 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 		final ActivityInfo dummyAct = new ActivityInfo();
 		final ApplicationInfo dummyApp = new ApplicationInfo();
 
-		int N = mRecentTasks.size();
-
 		int[] users = userId == UserHandle.USER_ALL ? getUsersLocked() : new int[]{userId};
 		for (int user : users) {
-			for (int i = 0; i < N; i++) {
-				TaskRecord task = mRecentTasks.get(i);
+			TaskRecord next;
+			for (TaskRecord task = mRecentTasks.firstForUser(user); task != null; task = next) {
+				next = mRecentTasks.nextForUser(task);
 				if (task.userId != user) {
 					// Only look at tasks for the user ID of interest.
 					continue;
 				}
 				if (task.autoRemoveRecents && task.getTopActivity() == null) {
 					// This situation is broken, and we should just get rid of it now.
-					mRecentTasks.remove(i);
+					mRecentTasks.remove(task);
 					task.removedFromRecents();
-					i--;
-					N--;
 					Slog.w(TAG, "Removing auto-remove without activity: " + task);
 					continue;
 				}
@@ -3655,10 +3923,8 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 						}
 						if (app == dummyApp || (app.flags & ApplicationInfo.FLAG_INSTALLED) == 0) {
 							// Doesn't exist any more!  Good-bye.
-							mRecentTasks.remove(i);
+							mRecentTasks.remove(task);
 							task.removedFromRecents();
-							i--;
-							N--;
 							Slog.w(TAG, "Removing no longer valid recent: " + task);
 							continue;
 						} else {
@@ -3687,28 +3953,33 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 		}
 
 		// Verify the affiliate chain for each task.
-		for (int i = 0; i < N; i = processNextAffiliateChainLocked(i)) {
+		for (TaskRecord task = mRecentTasks.first(); task != null; task = processNextAffiliateChainLocked(task)) {
 		}
 
 		mTmpRecents.clear();
 		// mRecentTasks is now in sorted, affiliated order.
+		// Availability may have changed without the list changing.
+		mRecentTasks.invalidate();
 	}
 
-	private final boolean moveAffiliatedTasksToFront(TaskRecord task, int taskIndex) {
-		int N = mRecentTasks.size();
+	private final boolean moveAffiliatedTasksToFront(TaskRecord task) {
+		// Positions below are relative to where the chain should start.
 		TaskRecord top = task;
-		int topIndex = taskIndex;
-		while (top.mNextAffiliate != null && topIndex > 0) {
+		TaskRecord topPos = task;
+		int taskIndex = 0;
+		TaskRecord before;
+		while (top.mNextAffiliate != null && (before = mRecentTasks.prev(topPos)) != null) {
 			top = top.mNextAffiliate;
-			topIndex--;
+			topPos = before;
+			taskIndex++;
 		}
-		if (DEBUG_RECENTS) Slog.d(TAG, "addRecent: adding affilliates starting at " + topIndex + " from intial " + taskIndex);
+		if (DEBUG_RECENTS) Slog.d(TAG, "addRecent: adding affilliates starting " + taskIndex + " before " + task);
 		// Find the end of the chain, doing a sanity check along the way.
 		boolean sane = top.mAffiliatedTaskId == task.mAffiliatedTaskId;
-		int endIndex = topIndex;
+		int endIndex = 0;
+		TaskRecord cur = topPos;
 		TaskRecord prev = top;
-		while (endIndex < N) {
-			TaskRecord cur = mRecentTasks.get(endIndex);
+		while (cur != null) {
 			if (DEBUG_RECENTS) Slog.d(TAG, "addRecent: looking at next chain @" + endIndex + " " + cur);
 			if (cur == top) {
 				// Verify start of the chain.
@@ -3747,8 +4018,9 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 				break;
 			}
 			prev = cur;
+			cur = mRecentTasks.next(cur);
 			endIndex++;
-			if (endIndex >= N) {
+			if (cur == null) {
 				Slog.wtf(TAG, "Bad chain ran off index " + endIndex + ": last task " + prev);
 				sane = false;
 				break;
@@ -3763,12 +4035,8 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 		if (sane) {
 			// All looks good, we can just move all of the affiliated tasks
 			// to the top.
-			for (int i = topIndex; i <= endIndex; i++) {
-				if (DEBUG_RECENTS) Slog.d(TAG, "addRecent: moving affiliated " + task + " from " + i + " to " + (i - topIndex));
-				TaskRecord cur = mRecentTasks.remove(i);
-				mRecentTasks.add(i - topIndex, cur);
-			}
-			if (DEBUG_RECENTS) Slog.d(TAG, "addRecent: done moving tasks  " + topIndex + " to " + endIndex);
+			if (DEBUG_RECENTS) Slog.d(TAG, "addRecent: moving affiliated " + topPos + " through " + cur + " to the top");
+			mRecentTasks.moveRangeToFront(topPos, cur);
 			return true;
 		}
 
@@ -3779,16 +4047,16 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 	final void addRecentTaskLocked(TaskRecord task) {
 		final boolean isAffiliated = task.mAffiliatedTaskId != task.taskId || task.mNextAffiliateTaskId != INVALID_TASK_ID || task.mPrevAffiliateTaskId != INVALID_TASK_ID;
 
-		int N = mRecentTasks.size();
+		final TaskRecord first = mRecentTasks.first();
 		// Quick case: check if the top-most recent task is the same.
-		if (!isAffiliated && N > 0 && mRecentTasks.get(0) == task) {
+		if (!isAffiliated && first == task) {
 			if (DEBUG_RECENTS) Slog.d(TAG, "addRecent: already at top: " + task);
 			return;
 		}
 		// Another quick case: check if this is part of a set of affiliated
 		// tasks that are at the top.
-		if (isAffiliated && N > 0 && task.inRecents && task.mAffiliatedTaskId == mRecentTasks.get(0).mAffiliatedTaskId) {
-			if (DEBUG_RECENTS) Slog.d(TAG, "addRecent: affiliated " + mRecentTasks.get(0) + " at top when adding " + task);
+		if (isAffiliated && first != null && task.inRecents && task.mAffiliatedTaskId == first.mAffiliatedTaskId) {
+			if (DEBUG_RECENTS) Slog.d(TAG, "addRecent: affiliated " + first + " at top when adding " + task);
 			return;
 		}
 		// Another quick case: never add voice sessions.
@@ -3802,18 +4070,16 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 		// Slightly less quick case: the task is already in recents, so all we need
 		// to do is move it.
 		if (task.inRecents) {
-			int taskIndex = mRecentTasks.indexOf(task);
-			if (taskIndex >= 0) {
+			if (mRecentTasks.contains(task)) {
 				if (!isAffiliated) {
 					// Simple case: this is not an affiliated task, so we just move it to the front.
-					mRecentTasks.remove(taskIndex);
-					mRecentTasks.add(0, task);
+					mRecentTasks.moveToFront(task);
 					notifyTaskPersisterLocked(task, false);
-					if (DEBUG_RECENTS) Slog.d(TAG, "addRecent: moving to top " + task + " from " + taskIndex);
+					if (DEBUG_RECENTS) Slog.d(TAG, "addRecent: moving to top " + task);
 					return;
 				} else {
 					// More complicated: need to keep all affiliated tasks together.
-					if (moveAffiliatedTasksToFront(task, taskIndex)) {
+					if (moveAffiliatedTasksToFront(task)) {
 						// All went well.
 						return;
 					}
@@ -3831,17 +4097,15 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 		if (DEBUG_RECENTS) Slog.d(TAG, "addRecent: trimming tasks for " + task);
 		trimRecentsForTaskLocked(task, true);
 
-		N = mRecentTasks.size();
-		while (N >= ActivityManager.getMaxRecentTasksStatic()) {
-			final TaskRecord tr = mRecentTasks.remove(N - 1);
+		while (mRecentTasks.size() >= ActivityManager.getMaxRecentTasksStatic()) {
+			final TaskRecord tr = mRecentTasks.removeLast();
 			tr.removedFromRecents();
-			N--;
 		}
 		task.inRecents = true;
 		if (!isAffiliated || needAffiliationFix) {
 			// If this is a simple non-affiliated task, or we had some failure trying to
 			// handle it as part of an affilated task, then just place it at the top.
-			mRecentTasks.add(0, task);
+			mRecentTasks.addFirst(task);
 		} else if (isAffiliated) {
 			// If this is a new affiliated task, then move all of the affiliated tasks
 			// to the front and insert this new one.
@@ -3850,24 +4114,21 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 				other = task.mPrevAffiliate;
 			}
 			if (other != null) {
-				int otherIndex = mRecentTasks.indexOf(other);
-				if (otherIndex >= 0) {
+				if (mRecentTasks.contains(other)) {
 					// Insert new task at appropriate location.
-					int taskIndex;
 					if (other == task.mNextAffiliate) {
-						// We found the index of our next affiliation, which is who is
+						// We found our next affiliation, which is who is
 						// before us in the list, so add after that point.
-						taskIndex = otherIndex + 1;
+						mRecentTasks.addAfter(other, task);
 					} else {
-						// We found the index of our previous affiliation, which is who is
+						// We found our previous affiliation, which is who is
 						// after us in the list, so add at their position.
-						taskIndex = otherIndex;
+						mRecentTasks.addBefore(other, task);
 					}
-					if (DEBUG_RECENTS) Slog.d(TAG, "addRecent: new affiliated task added at " + taskIndex + ": " + task);
-					mRecentTasks.add(taskIndex, task);
+					if (DEBUG_RECENTS) Slog.d(TAG, "addRecent: new affiliated task added next to " + other + ": " + task);
 
 					// Now move everything to the front.
-					if (moveAffiliatedTasksToFront(task, taskIndex)) {
+					if (moveAffiliatedTasksToFront(task)) {
 						// All went well.
 						return;
 					}
@@ -4270,6 +4531,7 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 	 * to the process.
 	 */
 	private final void handleAppDiedLocked(ProcessRecord app, boolean restarting, boolean allowRestart) {
+		final long start = SystemClock.uptimeMillis();
 		int pid = app.pid;
 		boolean kept = cleanUpApplicationRecordLocked(app, restarting, allowRestart, -1);
 		if (!kept && !restarting) {
@@ -4296,14 +4558,89 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 		}
 
 		if (!restarting) {
-			if (!mStackSupervisor.resumeTopActivitiesLocked()) {
-				// If there was nothing to resume, and we are not already
-				// restarting this process, but there is a visible activity that
-				// is hosted by the process...  then make sure all visible
-				// activities are running, taking care of restarting this
-				// process.
-				if (hasVisibleActivities) {
-					mStackSupervisor.ensureActivitiesVisibleLocked(null, 0);
+			// Resuming is left to the deferred phase, so that when several
+			// processes die together it is done once for all of them.
+			mAppDiedResumePending = true;
+			mAppDiedHasVisibleActivities |= hasVisibleActivities;
+			scheduleAppDiedCleanupLocked();
+		}
+
+		final long time = SystemClock.uptimeMillis() - start;
+		mNumAppDiedCleanups++;
+		mAppDiedCleanupTime += time;
+		if (time > mAppDiedCleanupMaxTime) {
+			mAppDiedCleanupMaxTime = time;
+		}
+		if (DEBUG_CLEANUP) Slog.v(TAG, "Cleaned up " + app + " in " + time + "ms");
+	}
+
+	final void scheduleAppDiedCleanupLocked() {
+		if (!mAppDiedCleanupScheduled) {
+			mAppDiedCleanupScheduled = true;
+			mHandler.sendEmptyMessage(FINISH_APP_DIED_CLEANUP_MSG);
+		}
+	}
+
+	/**
+	 * Second phase of cleaning up after dead processes: everything that was
+	 * left for later while their records were unlinked, done once for all
+	 * the processes that died since the last time.  Calls out to other
+	 * services are made without the lock.
+	 */
+	final void finishAppDiedCleanup() {
+		String[] backupPackages = null;
+		synchronized (this) {
+			final long start = SystemClock.uptimeMillis();
+			mAppDiedCleanupScheduled = false;
+
+			if (mAppDiedResumePending) {
+				final boolean hasVisibleActivities = mAppDiedHasVisibleActivities;
+				mAppDiedResumePending = false;
+				mAppDiedHasVisibleActivities = false;
+				if (!mStackSupervisor.resumeTopActivitiesLocked()) {
+					// If there was nothing to resume, but there is a visible
+					// activity that was hosted by one of the processes...  then
+					// make sure all visible activities are running, taking care
+					// of restarting those processes.
+					if (hasVisibleActivities) {
+						mStackSupervisor.ensureActivitiesVisibleLocked(null, 0);
+					}
+				}
+			}
+
+			if (mAppDiedOomAdjPending) {
+				mAppDiedOomAdjPending = false;
+				updateOomAdjLocked();
+			}
+
+			final int NL = mAppDiedLowMemReports.size();
+			if (NL > 0) {
+				for (int i = 0; i < NL; i++) {
+					doLowMemReportIfNeededLocked(mAppDiedLowMemReports.get(i));
+				}
+				mAppDiedLowMemReports.clear();
+			}
+
+			if (mAppDiedBackupDisconnects.size() > 0) {
+				backupPackages = mAppDiedBackupDisconnects.toArray(new String[mAppDiedBackupDisconnects.size()]);
+				mAppDiedBackupDisconnects.clear();
+			}
+
+			final long time = SystemClock.uptimeMillis() - start;
+			mNumAppDiedBatches++;
+			mAppDiedBatchTime += time;
+			if (time > mAppDiedBatchMaxTime) {
+				mAppDiedBatchMaxTime = time;
+			}
+		}
+
+		if (backupPackages != null) {
+			IBackupManager bm = IBackupManager.Stub.asInterface(ServiceManager.getService(Context.BACKUP_SERVICE));
+			for (String pkg : backupPackages) {
+				try {
+					bm.agentDisconnected(pkg);
+				} catch (RemoteException e) {
+					// can't happen; backup manager is local
 				}
 			}
 		}
@@ -4429,12 +4766,15 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 			if (DEBUG_CLEANUP) Slog.v(TAG, "Dying app: " + app + ", pid: " + pid + ", thread: " + thread.asBinder());
 			handleAppDiedLocked(app, false, true);
 
+			// Both look at every process, so leave them to the deferred phase
+			// where they are done once however many processes died.
 			if (doOomAdj) {
-				updateOomAdjLocked();
+				mAppDiedOomAdjPending = true;
 			}
 			if (doLowMem) {
-				doLowMemReportIfNeededLocked(app);
+				mAppDiedLowMemReports.add(app);
 			}
+			scheduleAppDiedCleanupLocked();
 		} else if (app.pid != pid) {
 			// A new process has already been started.
 			Slog.i(TAG, "Process " + app.processName + " (pid " + pid + ") has died and restarted (pid " + app.pid + ").");
@@ -5320,7 +5660,7 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 
 		if (name == null) {
 			// Remove all sticky broadcasts from this user.
-			mStickyBroadcasts.remove(userId);
+			mStickyBroadcasts.removeUserLocked(userId);
 		}
 
 		ArrayList<ContentProviderRecord> providers = new ArrayList<ContentProviderRecord>();
@@ -5827,9 +6167,14 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 			final int NP = mProcessesOnHold.size();
 			if (NP > 0) {
 				ArrayList<ProcessRecord> procs = new ArrayList<ProcessRecord>(mProcessesOnHold);
-				for (int ip = 0; ip < NP; ip++) {
-					if (DEBUG_PROCESSES) Slog.v(TAG, "Starting process on hold: " + procs.get(ip));
-					startProcessLocked(procs.get(ip), "on-hold", null);
+				startProcessStartBatchLocked();
+				try {
+					for (int ip = 0; ip < NP; ip++) {
+						if (DEBUG_PROCESSES) Slog.v(TAG, "Starting process on hold: " + procs.get(ip));
+						startProcessLocked(procs.get(ip), "on-hold", null);
+					}
+				} finally {
+					finishProcessStartBatchLocked();
 				}
 			}
 
@@ -5865,6 +6210,10 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 				scheduleStartProfilesLocked();
 			}
 		}
+
+		if (mProcSampleInterval > 0) {
+			mBgHandler.sendEmptyMessageDelayed(PROC_SAMPLE_BG_MSG, mProcSampleInterval);
+		}
 	}
 
 	@Override
@@ -6570,27 +6919,11 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 	}
 
 	private UriPermission findUriPermissionLocked(int targetUid, GrantUri grantUri) {
-		final ArrayMap<GrantUri, UriPermission> targetUris = mGrantedUriPermissions.get(targetUid);
-		if (targetUris != null) {
-			return targetUris.get(grantUri);
-		}
-		return null;
+		return mGrantedUriPermissions.find(targetUid, grantUri);
 	}
 
 	private UriPermission findOrCreateUriPermissionLocked(String sourcePkg, String targetPkg, int targetUid, GrantUri grantUri) {
-		ArrayMap<GrantUri, UriPermission> targetUris = mGrantedUriPermissions.get(targetUid);
-		if (targetUris == null) {
-			targetUris = Maps.newArrayMap();
-			mGrantedUriPermissions.put(targetUid, targetUris);
-		}
-
-		UriPermission perm = targetUris.get(grantUri);
-		if (perm == null) {
-			perm = new UriPermission(sourcePkg, targetPkg, targetUid, grantUri);
-			targetUris.put(grantUri, perm);
-		}
-
-		return perm;
+		return mGrantedUriPermissions.findOrCreate(sourcePkg, targetPkg, targetUid, grantUri);
 	}
 
 	private final boolean checkUriPermissionLocked(GrantUri grantUri, int uid, final int modeFlags) {
@@ -6611,16 +6944,8 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 			return true;
 		}
 
-		// No exact match, look for prefixes
-		final int N = perms.size();
-		for (int i = 0; i < N; i++) {
-			final UriPermission perm = perms.valueAt(i);
-			if (perm.uri.prefix && grantUri.uri.isPathPrefixMatch(perm.uri.uri) && perm.getStrength(modeFlags) >= minStrength) {
-				return true;
-			}
-		}
-
-		return false;
+		// No exact match, look for prefixes along the Uri's path
+		return mGrantedUriPermissions.hasPrefixGrant(uid, grantUri, modeFlags, minStrength);
 	}
 
 	/**
@@ -6956,15 +7281,8 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 
 	void removeUriPermissionIfNeededLocked(UriPermission perm) {
 		if (perm.modeFlags == 0) {
-			final ArrayMap<GrantUri, UriPermission> perms = mGrantedUriPermissions.get(perm.targetUid);
-			if (perms != null) {
-				if (DEBUG_URI_PERMISSION) Slog.v(TAG, "Removing " + perm.targetUid + " permission to " + perm.uri);
-
-				perms.remove(perm.uri);
-				if (perms.isEmpty()) {
-					mGrantedUriPermissions.remove(perm.targetUid);
-				}
-			}
+			if (DEBUG_URI_PERMISSION) Slog.v(TAG, "Removing " + perm.targetUid + " permission to " + perm.uri);
+			mGrantedUriPermissions.remove(perm);
 		}
 	}
 
@@ -6979,58 +7297,42 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 			return;
 		}
 
+		// Only grants for this Uri or below it can match; the store hands
+		// us exactly those.
+		final ArrayList<UriPermission> matching = mTmpUriPermissions;
+		matching.clear();
+		mGrantedUriPermissions.collectUnder(grantUri, matching);
+
 		// Does the caller have this permission on the URI?
 		if (!checkHoldingPermissionsLocked(pm, pi, grantUri, callingUid, modeFlags)) {
 			// If they don't have direct access to the URI, then revoke any
 			// ownerless URI permissions that have been granted to them.
-			final ArrayMap<GrantUri, UriPermission> perms = mGrantedUriPermissions.get(callingUid);
-			if (perms != null) {
-				boolean persistChanged = false;
-				for (Iterator<UriPermission> it = perms.values().iterator(); it.hasNext(); ) {
-					final UriPermission perm = it.next();
-					if (perm.uri.sourceUserId == grantUri.sourceUserId && perm.uri.uri.isPathPrefixMatch(grantUri.uri)) {
-						if (DEBUG_URI_PERMISSION) Slog.v(TAG, "Revoking non-owned " + perm.targetUid + " permission to " + perm.uri);
-						persistChanged |= perm.revokeModes(modeFlags | Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION, false);
-						if (perm.modeFlags == 0) {
-							it.remove();
-						}
-					}
-				}
-				if (perms.isEmpty()) {
-					mGrantedUriPermissions.remove(callingUid);
-				}
-				if (persistChanged) {
-					schedulePersistUriGrants();
+			boolean persistChanged = false;
+			for (int i = matching.size() - 1; i >= 0; i--) {
+				final UriPermission perm = matching.get(i);
+				if (perm.targetUid == callingUid) {
+					if (DEBUG_URI_PERMISSION) Slog.v(TAG, "Revoking non-owned " + perm.targetUid + " permission to " + perm.uri);
+					persistChanged |= perm.revokeModes(modeFlags | Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION, false);
+					removeUriPermissionIfNeededLocked(perm);
 				}
 			}
+			matching.clear();
+			if (persistChanged) {
+				schedulePersistUriGrants();
+			}
 			return;
 		}
 
 		boolean persistChanged = false;
 
-		// Go through all of the permissions and remove any that match.
-		int N = mGrantedUriPermissions.size();
-		for (int i = 0; i < N; i++) {
-			final int targetUid = mGrantedUriPermissions.keyAt(i);
-			final ArrayMap<GrantUri, UriPermission> perms = mGrantedUriPermissions.valueAt(i);
-
-			for (Iterator<UriPermission> it = perms.values().iterator(); it.hasNext(); ) {
-				final UriPermission perm = it.next();
-				if (perm.uri.sourceUserId == grantUri.sourceUserId && perm.uri.uri.isPathPrefixMatch(grantUri.uri)) {
-					if (DEBUG_URI_PERMISSION) Slog.v(TAG, "Revoking " + perm.targetUid + " permission to " + perm.uri);
-					persistChanged |= perm.revokeModes(modeFlags | Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION, true);
-					if (perm.modeFlags == 0) {
-						it.remove();
-					}
-				}
-			}
-
-			if (perms.isEmpty()) {
-				mGrantedUriPermissions.remove(targetUid);
-				N--;
-				i--;
-			}
+		// Go through all of the matching permissions and remove them.
+		for (int i = matching.size() - 1; i >= 0; i--) {
+			final UriPermission perm = matching.get(i);
+			if (DEBUG_URI_PERMISSION) Slog.v(TAG, "Revoking " + perm.targetUid + " permission to " + perm.uri);
+			persistChanged |= perm.revokeModes(modeFlags | Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION, true);
+			removeUriPermissionIfNeededLocked(perm);
 		}
+		matching.clear();
 
 		if (persistChanged) {
 			schedulePersistUriGrants();
@@ -7087,35 +7389,33 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 
 		boolean persistChanged = false;
 
-		int N = mGrantedUriPermissions.size();
-		for (int i = 0; i < N; i++) {
-			final int targetUid = mGrantedUriPermissions.keyAt(i);
-			final ArrayMap<GrantUri, UriPermission> perms = mGrantedUriPermissions.valueAt(i);
+		// Only inspect grants matching package, straight from the package
+		// index when we have one.
+		final ArrayList<UriPermission> matching = mTmpUriPermissions;
+		matching.clear();
+		if (packageName != null) {
+			mGrantedUriPermissions.collectForPackage(packageName, matching);
+		} else {
+			for (int i = mGrantedUriPermissions.size() - 1; i >= 0; i--) {
+				if (userHandle == UserHandle.USER_ALL || userHandle == UserHandle.getUserId(mGrantedUriPermissions.keyAt(i))) {
+					matching.addAll(mGrantedUriPermissions.valueAt(i).values());
+				}
+			}
+		}
+
+		for (int i = matching.size() - 1; i >= 0; i--) {
+			final UriPermission perm = matching.get(i);
 
 			// Only inspect grants matching user
-			if (userHandle == UserHandle.USER_ALL || userHandle == UserHandle.getUserId(targetUid)) {
-				for (Iterator<UriPermission> it = perms.values().iterator(); it.hasNext(); ) {
-					final UriPermission perm = it.next();
-
-					// Only inspect grants matching package
-					if (packageName == null || perm.sourcePkg.equals(packageName) || perm.targetPkg.equals(packageName)) {
-						persistChanged |= perm.revokeModes(persistable ? ~0 : ~Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION, true);
-
-						// Only remove when no modes remain; any persisted grants
-						// will keep this alive.
-						if (perm.modeFlags == 0) {
-							it.remove();
-						}
-					}
-				}
+			if (userHandle == UserHandle.USER_ALL || userHandle == UserHandle.getUserId(perm.targetUid)) {
+				persistChanged |= perm.revokeModes(persistable ? ~0 : ~Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION, true);
 
-				if (perms.isEmpty()) {
-					mGrantedUriPermissions.remove(targetUid);
-					N--;
-					i--;
-				}
+				// Only remove when no modes remain; any persisted grants
+				// will keep this alive.
+				removeUriPermissionIfNeededLocked(perm);
 			}
 		}
+		matching.clear();
 
 		if (persistChanged) {
 			schedulePersistUriGrants();
@@ -7192,110 +7492,46 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 		if (DEBUG_URI_PERMISSION) Slog.v(TAG, "writeGrantedUriPermissions()");
 
 		// Snapshot permissions so we can persist without lock
-		ArrayList<UriPermission.Snapshot> persist = Lists.newArrayList();
+		final ArrayMap<String, UriGrantsJournal.Entry> persist = new ArrayMap<String, UriGrantsJournal.Entry>();
 		synchronized (this) {
 			final int size = mGrantedUriPermissions.size();
 			for (int i = 0; i < size; i++) {
 				final ArrayMap<GrantUri, UriPermission> perms = mGrantedUriPermissions.valueAt(i);
 				for (UriPermission perm : perms.values()) {
 					if (perm.persistedModeFlags != 0) {
-						persist.add(perm.snapshot());
+						final UriGrantsJournal.Entry entry = UriGrantsJournal.Entry.fromSnapshot(perm.snapshot());
+						persist.put(entry.key, entry);
 					}
 				}
 			}
 		}
 
-		FileOutputStream fos = null;
-		try {
-			fos = mGrantFile.startWrite();
-
-			XmlSerializer out = new FastXmlSerializer();
-			out.setOutput(fos, "utf-8");
-			out.startDocument(null, true);
-			out.startTag(null, TAG_URI_GRANTS);
-			for (UriPermission.Snapshot perm : persist) {
-				out.startTag(null, TAG_URI_GRANT);
-				writeIntAttribute(out, ATTR_SOURCE_USER_ID, perm.uri.sourceUserId);
-				writeIntAttribute(out, ATTR_TARGET_USER_ID, perm.targetUserId);
-				out.attribute(null, ATTR_SOURCE_PKG, perm.sourcePkg);
-				out.attribute(null, ATTR_TARGET_PKG, perm.targetPkg);
-				out.attribute(null, ATTR_URI, String.valueOf(perm.uri.uri));
-				writeBooleanAttribute(out, ATTR_PREFIX, perm.uri.prefix);
-				writeIntAttribute(out, ATTR_MODE_FLAGS, perm.persistedModeFlags);
-				writeLongAttribute(out, ATTR_CREATED_TIME, perm.persistedCreateTime);
-				out.endTag(null, TAG_URI_GRANT);
-			}
-			out.endTag(null, TAG_URI_GRANTS);
-			out.endDocument();
-
-			mGrantFile.finishWrite(fos);
-		} catch (IOException e) {
-			if (fos != null) {
-				mGrantFile.failWrite(fos);
-			}
-		}
+		// Only the grants that changed since the last write hit the disk.
+		mGrantFile.write(persist);
 	}
 
 	private void readGrantedUriPermissionsLocked() {
 		if (DEBUG_URI_PERMISSION) Slog.v(TAG, "readGrantedUriPermissions()");
 
-		final long now = System.currentTimeMillis();
+		final ArrayMap<String, UriGrantsJournal.Entry> persisted = mGrantFile.read();
+		for (int i = 0, N = persisted.size(); i < N; i++) {
+			final UriGrantsJournal.Entry entry = persisted.valueAt(i);
 
-		FileInputStream fis = null;
-		try {
-			fis = mGrantFile.openRead();
-			final XmlPullParser in = Xml.newPullParser();
-			in.setInput(fis, null);
-
-			int type;
-			while ((type = in.next()) != END_DOCUMENT) {
-				final String tag = in.getName();
-				if (type == START_TAG) {
-					if (TAG_URI_GRANT.equals(tag)) {
-						final int sourceUserId;
-						final int targetUserId;
-						final int userHandle = readIntAttribute(in, ATTR_USER_HANDLE, UserHandle.USER_NULL);
-						if (userHandle != UserHandle.USER_NULL) {
-							// For backwards compatibility.
-							sourceUserId = userHandle;
-							targetUserId = userHandle;
-						} else {
-							sourceUserId = readIntAttribute(in, ATTR_SOURCE_USER_ID);
-							targetUserId = readIntAttribute(in, ATTR_TARGET_USER_ID);
-						}
-						final String sourcePkg = in.getAttributeValue(null, ATTR_SOURCE_PKG);
-						final String targetPkg = in.getAttributeValue(null, ATTR_TARGET_PKG);
-						final Uri uri = Uri.parse(in.getAttributeValue(null, ATTR_URI));
-						final boolean prefix = readBooleanAttribute(in, ATTR_PREFIX);
-						final int modeFlags = readIntAttribute(in, ATTR_MODE_FLAGS);
-						final long createdTime = readLongAttribute(in, ATTR_CREATED_TIME, now);
-
-						// Sanity check that provider still belongs to source package
-						final ProviderInfo pi = getProviderInfoLocked(uri.getAuthority(), sourceUserId);
-						if (pi != null && sourcePkg.equals(pi.packageName)) {
-							int targetUid = -1;
-							try {
-								targetUid = AppGlobals.getPackageManager().getPackageUid(targetPkg, targetUserId);
-							} catch (RemoteException e) {
-							}
-							if (targetUid != -1) {
-								final UriPermission perm = findOrCreateUriPermissionLocked(sourcePkg, targetPkg, targetUid, new GrantUri(sourceUserId, uri, prefix));
-								perm.initPersistedModes(modeFlags, createdTime);
-							}
-						} else {
-							Slog.w(TAG, "Persisted grant for " + uri + " had source " + sourcePkg + " but instead found " + pi);
-						}
-					}
+			// Sanity check that provider still belongs to source package
+			final ProviderInfo pi = getProviderInfoLocked(entry.uri.getAuthority(), entry.sourceUserId);
+			if (pi != null && entry.sourcePkg.equals(pi.packageName)) {
+				int targetUid = -1;
+				try {
+					targetUid = AppGlobals.getPackageManager().getPackageUid(entry.targetPkg, entry.targetUserId);
+				} catch (RemoteException e) {
+				}
+				if (targetUid != -1) {
+					final UriPermission perm = findOrCreateUriPermissionLocked(entry.sourcePkg, entry.targetPkg, targetUid, new GrantUri(entry.sourceUserId, entry.uri, entry.prefix));
+					perm.initPersistedModes(entry.modeFlags, entry.createdTime);
 				}
+			} else {
+				Slog.w(TAG, "Persisted grant for " + entry.uri + " had source " + entry.sourcePkg + " but instead found " + pi);
 			}
-		} catch (FileNotFoundException e) {
-			// Missing grants is okay
-		} catch (IOException e) {
-			Slog.wtf(TAG, "Failed reading Uri grants", e);
-		} catch (XmlPullParserException e) {
-			Slog.wtf(TAG, "Failed reading Uri grants", e);
-		} finally {
-			IoUtils.closeQuietly(fis);
 		}
 	}
 
@@ -7440,15 +7676,16 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 					}
 				}
 			} else {
-				final int size = mGrantedUriPermissions.size();
-				for (int i = 0; i < size; i++) {
-					final ArrayMap<GrantUri, UriPermission> perms = mGrantedUriPermissions.valueAt(i);
-					for (UriPermission perm : perms.values()) {
-						if (packageName.equals(perm.sourcePkg) && perm.persistedModeFlags != 0) {
-							result.add(perm.buildPersistedPublicApiObject());
-						}
+				final ArrayList<UriPermission> perms = mTmpUriPermissions;
+				perms.clear();
+				mGrantedUriPermissions.collectForPackage(packageName, perms);
+				for (int i = perms.size() - 1; i >= 0; i--) {
+					final UriPermission perm = perms.get(i);
+					if (packageName.equals(perm.sourcePkg) && perm.persistedModeFlags != 0) {
+						result.add(perm.buildPersistedPublicApiObject());
 					}
 				}
+				perms.clear();
 			}
 		}
 		return new ParceledListSlice<android.content.UriPermission>(result);
@@ -7595,9 +7832,6 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 			final boolean allowed = isGetTasksAllowed("getRecentTasks", Binder.getCallingPid(), callingUid);
 			final boolean detailed = checkCallingPermission(Manifest.permission.GET_DETAILED_TASKS) == PackageManager.PERMISSION_GRANTED;
 
-			final int N = mRecentTasks.size();
-			ArrayList<ActivityManager.RecentTaskInfo> res = new ArrayList<ActivityManager.RecentTaskInfo>(maxNum < N ? maxNum : N);
-
 			final Set<Integer> includedUsers;
 			if (includeProfiles) {
 				includedUsers = getProfileIdsLocked(userId);
@@ -7606,8 +7840,22 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 			}
 			includedUsers.add(Integer.valueOf(userId));
 
-			for (int i = 0; i < N && maxNum > 0; i++) {
-				TaskRecord tr = mRecentTasks.get(i);
+			// Callers that see every task share the result; the others only see their own.
+			// The users are part of the key, since profiles come and go.
+			final int cacheUid = allowed ? -1 : callingUid;
+			final int requestedNum = maxNum;
+			final ArrayList<ActivityManager.RecentTaskInfo> cached = mRecentTasks.getCachedInfos(userId, includedUsers, flags, requestedNum, cacheUid, detailed);
+			if (cached != null) {
+				return copyRecentTaskInfos(cached);
+			}
+
+			final int N = mRecentTasks.size();
+			ArrayList<ActivityManager.RecentTaskInfo> res = new ArrayList<ActivityManager.RecentTaskInfo>(maxNum < N ? maxNum : N);
+
+			// With a single user only walk that user's tasks.
+			final boolean singleUser = includedUsers.size() == 1;
+			final TaskRecord first = mRecentTasks.first();
+			for (TaskRecord tr = singleUser ? mRecentTasks.firstForUser(userId) : first; tr != null && maxNum > 0; tr = singleUser ? mRecentTasks.nextForUser(tr) : mRecentTasks.next(tr)) {
 				// Only add calling user or related users recent tasks
 				if (!includedUsers.contains(Integer.valueOf(tr.userId))) {
 					if (DEBUG_RECENTS) Slog.d(TAG, "Skipping, not user: " + tr);
@@ -7620,7 +7868,7 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 				// not supplied RECENT_WITH_EXCLUDED and there is some reason
 				// we should exclude the entry.
 
-				if (i == 0 || withExcluded || (tr.intent == null) || ((tr.intent.getFlags() & Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS) == 0)) {
+				if (tr == first || withExcluded || (tr.intent == null) || ((tr.intent.getFlags() & Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS) == 0)) {
 					if (!allowed) {
 						// If the caller doesn't have the GET_TASKS permission, then only
 						// allow them to see a small subset of tasks -- their own and home.
@@ -7654,19 +7902,34 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 					maxNum--;
 				}
 			}
+			mRecentTasks.setCachedInfos(copyRecentTaskInfos(res), userId, includedUsers, flags, requestedNum, cacheUid, detailed);
 			return res;
 		}
 	}
 
-	TaskRecord recentTaskForIdLocked(int id) {
-		final int N = mRecentTasks.size();
-		for (int i = 0; i < N; i++) {
-			TaskRecord tr = mRecentTasks.get(i);
-			if (tr.taskId == id) {
-				return tr;
+	/**
+	 * Deep copies of the infos, so that callers in this process can not
+	 * change the cached getRecentTasks() result, or each other's.
+	 */
+	private static ArrayList<ActivityManager.RecentTaskInfo> copyRecentTaskInfos(ArrayList<ActivityManager.RecentTaskInfo> infos) {
+		final int N = infos.size();
+		final ArrayList<ActivityManager.RecentTaskInfo> copies = new ArrayList<ActivityManager.RecentTaskInfo>(N);
+		final Parcel parcel = Parcel.obtain();
+		try {
+			for (int i = 0; i < N; i++) {
+				parcel.setDataPosition(0);
+				infos.get(i).writeToParcel(parcel, 0);
+				parcel.setDataPosition(0);
+				copies.add(ActivityManager.RecentTaskInfo.CREATOR.createFromParcel(parcel));
 			}
+		} finally {
+			parcel.recycle();
 		}
-		return null;
+		return copies;
+	}
+
+	TaskRecord recentTaskForIdLocked(int id) {
+		return mRecentTasks.taskForId(id);
 	}
 
 	@Override
@@ -7735,9 +7998,8 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 					return INVALID_TASK_ID;
 				}
 
-				final int N = mRecentTasks.size();
-				if (N >= (ActivityManager.getMaxRecentTasksStatic() - 1)) {
-					final TaskRecord tr = mRecentTasks.remove(N - 1);
+				if (mRecentTasks.size() >= (ActivityManager.getMaxRecentTasksStatic() - 1)) {
+					final TaskRecord tr = mRecentTasks.removeLast();
 					tr.removedFromRecents();
 				}
 
@@ -7769,6 +8031,7 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 			if (r != null) {
 				r.setTaskDescription(td);
 				r.task.updateTaskDescription();
+				recentTaskChangedLocked(r.task);
 			}
 		}
 	}
@@ -8460,6 +8723,7 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 			for (int i = 0; i < r.conProviders.size(); i++) {
 				ContentProviderConnection conn = r.conProviders.get(i);
 				if (conn.provider == cpr) {
+					mProviderFastPath.foldLocked(conn);
 					if (DEBUG_PROVIDER)
 						Slog.v(TAG, "Adding provider requested by " + r.processName + " from process " + cpr.info.processName + ": " + cpr.name.flattenToShortString() + " scnt=" + conn.stableCount + " uscnt=" + conn.unstableCount);
 					if (stable) {
@@ -8492,6 +8756,7 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 	boolean decProviderCountLocked(ContentProviderConnection conn, ContentProviderRecord cpr, IBinder externalProcessToken, boolean stable) {
 		if (conn != null) {
 			cpr = conn.provider;
+			mProviderFastPath.foldLocked(conn);
 			if (DEBUG_PROVIDER)
 				Slog.v(TAG, "Removing provider requested by " + conn.client.processName + " from process " + cpr.info.processName + ": " + cpr.name.flattenToShortString() + " scnt=" + conn.stableCount + " uscnt=" + conn.unstableCount);
 			if (stable) {
@@ -8499,7 +8764,10 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 			} else {
 				conn.unstableCount--;
 			}
-			if (conn.stableCount == 0 && conn.unstableCount == 0) {
+			// If the client took a new reference through the fast path in
+			// the meantime, closing it brings the counts back up and the
+			// connection stays.
+			if (conn.stableCount == 0 && conn.unstableCount == 0 && !mProviderFastPath.closeLocked(conn)) {
 				cpr.connections.remove(conn);
 				conn.client.conProviders.remove(conn);
 				stopAssociationLocked(conn.client.uid, conn.client.processName, cpr.uid, cpr.name);
@@ -8524,6 +8792,16 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 		ContentProviderConnection conn = null;
 		ProviderInfo cpi = null;
 
+		// If the caller already holds a connection to this published
+		// provider, just take another reference on it.
+		if (caller != null && name != null) {
+			final ContentProviderHolder holder = mProviderFastPath.acquire(caller.asBinder(), name, userId, stable);
+			if (holder != null) {
+				return holder;
+			}
+		}
+		final int requestedUserId = userId;
+
 		synchronized (this) {
 			long startTime = SystemClock.elapsedRealtime();
 
@@ -8633,6 +8911,10 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 					}
 				}
 
+				if (conn != null && cpr.provider != null) {
+					mProviderFastPath.putLocked(caller.asBinder(), name, requestedUserId, cpr, conn);
+				}
+
 				Binder.restoreCallingIdentity(origId);
 			}
 
@@ -8973,6 +9255,7 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 		}
 
 		synchronized (this) {
+			mProviderFastPath.foldLocked(conn);
 			if (stable > 0) {
 				conn.numStableIncs += stable;
 			}
@@ -9347,14 +9630,27 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 	}
 
 	/**
-	 * Pokes the task persister.
+	 * Pokes the task store, and the task persister for the images.
 	 */
 	void notifyTaskPersisterLocked(TaskRecord task, boolean flush) {
+		// Anything worth persisting is also reported by getRecentTasks().
+		recentTaskChangedLocked(task);
 		if (task != null && task.stack != null && task.stack.isHomeStack()) {
 			// Never persist the home stack.
 			return;
 		}
-		mTaskPersister.wakeup(task, flush);
+		mTaskStore.noteTaskLocked(task, flush);
+		mTaskPersister.wakeup(null, flush);
+	}
+
+	/**
+	 * Drops the cached getRecentTasks() result if the task, or any task if null,
+	 * is in recents.
+	 */
+	void recentTaskChangedLocked(TaskRecord task) {
+		if (mRecentTasks != null && (task == null || task.inRecents)) {
+			mRecentTasks.invalidate();
+		}
 	}
 
 	/**
@@ -9809,6 +10105,21 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 		}
 	}
 
+	@Override
+	public void registerBatchedProcessObserver(IBatchedProcessObserver observer) {
+		enforceCallingPermission(Manifest.permission.SET_ACTIVITY_WATCHER, "registerBatchedProcessObserver()");
+		synchronized (this) {
+			mBatchedProcessObservers.register(observer);
+		}
+	}
+
+	@Override
+	public void unregisterBatchedProcessObserver(IBatchedProcessObserver observer) {
+		synchronized (this) {
+			mBatchedProcessObservers.unregister(observer);
+		}
+	}
+
 	@Override
 	public boolean convertFromTranslucent(IBinder token) {
 		final long origId = Binder.clearCallingIdentity();
@@ -10425,7 +10736,7 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 			updateCurrentProfileIdsLocked();
 
 			if (mRecentTasks == null) {
-				mRecentTasks = mTaskPersister.restoreTasksLocked();
+				mRecentTasks = new RecentTaskList(mTaskStore.restoreTasksLocked(mStackSupervisor, mTaskPersister));
 				mTaskPersister.restoreTasksFromOtherDeviceLocked();
 				cleanupRecentTasksLocked(UserHandle.USER_ALL);
 				mTaskPersister.startPersisting();
@@ -10541,11 +10852,16 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 					if (apps != null) {
 						int N = apps.size();
 						int i;
-						for (i = 0; i < N; i++) {
-							ApplicationInfo info = (ApplicationInfo) apps.get(i);
-							if (info != null && !info.packageName.equals("android")) {
-								addAppLocked(info, false, null /* ABI override */);
+						startProcessStartBatchLocked();
+						try {
+							for (i = 0; i < N; i++) {
+								ApplicationInfo info = (ApplicationInfo) apps.get(i);
+								if (info != null && !info.packageName.equals("android")) {
+									addAppLocked(info, false, null /* ABI override */);
+								}
 							}
+						} finally {
+							finishProcessStartBatchLocked();
 						}
 					}
 				} catch (RemoteException ex) {
@@ -11663,6 +11979,7 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 					mServices.dumpServicesLocked(fd, pw, args, opti, true, dumpClient, dumpPackage);
 				}
 			} else if ("write".equals(cmd)) {
+				mTaskStore.flush();
 				mTaskPersister.flush();
 				pw.println("All tasks persisted.");
 				return;
@@ -11799,6 +12116,11 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 					mRecentTasks.get(i).dump(pw, "    ");
 				}
 			}
+			if (dumpAll) {
+				pw.print("  ");
+				pw.println(mRecentTasks.getStatsString());
+				mTaskStore.dump(pw, "  ");
+			}
 		}
 
 		if (!printedAnything) {
@@ -11936,9 +12258,9 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 			pw.print("  Process LRU list (sorted by oom_adj, ");
 			pw.print(mLruProcesses.size());
 			pw.print(" total, non-act at ");
-			pw.print(mLruProcesses.size() - mLruProcessActivityStart);
+			pw.print(mLruProcesses.size() - mLruProcesses.getActivityStart());
 			pw.print(", non-svc at ");
-			pw.print(mLruProcesses.size() - mLruProcessServiceStart);
+			pw.print(mLruProcesses.size() - mLruProcesses.getServiceStart());
 			pw.println("):");
 			dumpProcessOomList(pw, this, mLruProcesses, "    ", "Proc", "PERS", false, dumpPackage);
 			needSep = true;
@@ -12017,6 +12339,25 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 
 		needSep = dumpProcessesToGc(fd, pw, args, opti, needSep, dumpAll, dumpPackage);
 
+		if (dumpAll && dumpPackage == null) {
+			if (needSep) pw.println();
+			needSep = true;
+			mProcStatsSampler.dump(pw, "  ");
+			pw.print("  Process death cleanup: ");
+			pw.print(mNumAppDiedCleanups);
+			pw.print(" locked in ");
+			pw.print(mAppDiedCleanupTime);
+			pw.print("ms (max ");
+			pw.print(mAppDiedCleanupMaxTime);
+			pw.print("ms), ");
+			pw.print(mNumAppDiedBatches);
+			pw.print(" deferred batches in ");
+			pw.print(mAppDiedBatchTime);
+			pw.print("ms (max ");
+			pw.print(mAppDiedBatchMaxTime);
+			pw.println("ms)");
+		}
+
 		if (mProcessCrashTimes.getMap().size() > 0) {
 			boolean printed = false;
 			long now = SystemClock.uptimeMillis();
@@ -12249,6 +12590,8 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 				pw.println("  mGoingToSleep=" + mStackSupervisor.mGoingToSleep);
 				pw.println("  mLaunchingActivity=" + mStackSupervisor.mLaunchingActivity);
 				pw.println("  mAdjSeq=" + mAdjSeq + " mLruSeq=" + mLruSeq);
+				pw.println("  mNumOomAdjIncremental=" + mNumOomAdjIncremental + " (" + mNumOomAdjIncrementalProcs + " procs)" + " mNumOomAdjIncrementalFallbacks=" + mNumOomAdjIncrementalFallbacks);
+				pw.println("  mProcessObserverCallbacksSaved=" + mProcessObserverCallbacksSaved + " mBatchedProcessObserverCallbacksSaved=" + mBatchedProcessObserverCallbacksSaved);
 				pw.println("  mNumNonCachedProcs=" + mNumNonCachedProcs + " (" + mLruProcesses.size() + " total)" + " mNumCachedHiddenProcs=" + mNumCachedHiddenProcs + " mNumServiceProcs=" + mNumServiceProcs + " mNewNumServiceProcs=" + mNewNumServiceProcs);
 				pw.println("  mAllowLowerMemLevel=" + mAllowLowerMemLevel + " mLastMemoryLevel" + mLastMemoryLevel + " mLastNumProcesses" + mLastNumProcesses);
 				long now = SystemClock.uptimeMillis();
@@ -12337,9 +12680,9 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 			pw.print("  Process OOM control (");
 			pw.print(mLruProcesses.size());
 			pw.print(" total, non-act at ");
-			pw.print(mLruProcesses.size() - mLruProcessActivityStart);
+			pw.print(mLruProcesses.size() - mLruProcesses.getActivityStart());
 			pw.print(", non-svc at ");
-			pw.print(mLruProcesses.size() - mLruProcessServiceStart);
+			pw.print(mLruProcesses.size() - mLruProcesses.getServiceStart());
 			pw.println("):");
 			dumpProcessOomList(pw, this, mLruProcesses, "    ", "Proc", "PERS", true, null);
 			needSep = true;
@@ -12582,39 +12925,10 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 
 		needSep = true;
 
-		if (!onlyHistory && mStickyBroadcasts != null && dumpPackage == null) {
-			for (int user = 0; user < mStickyBroadcasts.size(); user++) {
-				if (needSep) {
-					pw.println();
-				}
+		if (!onlyHistory && dumpPackage == null) {
+			if (mStickyBroadcasts.dump(pw, dumpAll, needSep)) {
 				needSep = true;
 				printedAnything = true;
-				pw.print("  Sticky broadcasts for user ");
-				pw.print(mStickyBroadcasts.keyAt(user));
-				pw.println(":");
-				StringBuilder sb = new StringBuilder(128);
-				for (Map.Entry<String, ArrayList<Intent>> ent : mStickyBroadcasts.valueAt(user).entrySet()) {
-					pw.print("  * Sticky action ");
-					pw.print(ent.getKey());
-					if (dumpAll) {
-						pw.println(":");
-						ArrayList<Intent> intents = ent.getValue();
-						final int N = intents.size();
-						for (int i = 0; i < N; i++) {
-							sb.setLength(0);
-							sb.append("    Intent: ");
-							intents.get(i).toShortString(sb, false, true, false, false);
-							pw.println(sb.toString());
-							Bundle bundle = intents.get(i).getExtras();
-							if (bundle != null) {
-								pw.print("      ");
-								pw.println(bundle.toString());
-							}
-						}
-					} else {
-						pw.println("");
-					}
-				}
 			}
 		}
 
@@ -12646,6 +12960,13 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 		needSep = mProviderMap.dumpProvidersLocked(pw, dumpAll, dumpPackage);
 		printedAnything |= needSep;
 
+		if (dumpAll && dumpPackage == null) {
+			if (needSep) pw.println();
+			needSep = true;
+			mProviderFastPath.dumpLocked(pw, "  ");
+			printedAnything = true;
+		}
+
 		if (mLaunchingProviders.size() > 0) {
 			boolean printed = false;
 			for (int i = mLaunchingProviders.size() - 1; i >= 0; i--) {
@@ -13900,6 +14221,7 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 
 		for (int i = 0; i < cpr.connections.size(); i++) {
 			ContentProviderConnection conn = cpr.connections.get(i);
+			mProviderFastPath.closeLocked(conn);
 			if (conn.waiting) {
 				// If this connection is waiting for the provider, then we don't
 				// need to mess with its process unless we are always removing
@@ -13951,17 +14273,17 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 		mProcessesToGc.remove(app);
 		mPendingPssProcesses.remove(app);
 
-		// Dismiss any open dialogs.
+		// Dismiss any open dialogs; that happens on the UI thread anyway.
 		if (app.crashDialog != null && !app.forceCrashReport) {
-			app.crashDialog.dismiss();
+			mHandler.obtainMessage(DISMISS_DIALOG_MSG, app.crashDialog).sendToTarget();
 			app.crashDialog = null;
 		}
 		if (app.anrDialog != null) {
-			app.anrDialog.dismiss();
+			mHandler.obtainMessage(DISMISS_DIALOG_MSG, app.anrDialog).sendToTarget();
 			app.anrDialog = null;
 		}
 		if (app.waitDialog != null) {
-			app.waitDialog.dismiss();
+			mHandler.obtainMessage(DISMISS_DIALOG_MSG, app.waitDialog).sendToTarget();
 			app.waitDialog = null;
 		}
 
@@ -14008,6 +14330,7 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 		if (!app.conProviders.isEmpty()) {
 			for (int i = 0; i < app.conProviders.size(); i++) {
 				ContentProviderConnection conn = app.conProviders.get(i);
+				mProviderFastPath.closeLocked(conn);
 				conn.provider.connections.remove(conn);
 				stopAssociationLocked(app.uid, app.processName, conn.provider.uid, conn.provider.name);
 			}
@@ -14039,15 +14362,12 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 		}
 		app.receivers.clear();
 
-		// If the app is undergoing backup, tell the backup manager about it
+		// If the app is undergoing backup, tell the backup manager about it;
+		// that is done without the lock in the deferred phase.
 		if (mBackupTarget != null && app.pid == mBackupTarget.app.pid) {
 			if (DEBUG_BACKUP || DEBUG_CLEANUP) Slog.d(TAG, "App " + mBackupTarget.appInfo + " died during backup");
-			try {
-				IBackupManager bm = IBackupManager.Stub.asInterface(ServiceManager.getService(Context.BACKUP_SERVICE));
-				bm.agentDisconnected(app.info.packageName);
-			} catch (RemoteException e) {
-				// can't happen; backup manager is local
-			}
+			mAppDiedBackupDisconnects.add(app.info.packageName);
+			scheduleAppDiedCleanupLocked();
 		}
 
 		for (int i = mPendingProcessChanges.size() - 1; i >= 0; i--) {
@@ -14552,27 +14872,25 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 	// BROADCASTS
 	// =========================================================
 
-	private final List getStickiesLocked(String action, IntentFilter filter, List cur, int userId) {
-		final ContentResolver resolver = mContext.getContentResolver();
-		ArrayMap<String, ArrayList<Intent>> stickies = mStickyBroadcasts.get(userId);
-		if (stickies == null) {
-			return cur;
-		}
-		final ArrayList<Intent> list = stickies.get(action);
-		if (list == null) {
-			return cur;
-		}
-		int N = list.size();
-		for (int i = 0; i < N; i++) {
-			Intent intent = list.get(i);
-			if (filter.match(resolver, intent, true, TAG) >= 0) {
-				if (cur == null) {
-					cur = new ArrayList<Intent>();
-				}
-				cur.add(intent);
+	/**
+	 * The sticky intents of the user and of all users that the filter
+	 * matches, or null.  Reads a snapshot, so the lock is not needed.
+	 */
+	private final List<Intent> getStickies(IntentFilter filter, int callingUid) {
+		List<Intent> allSticky = null;
+		final int userId = UserHandle.getUserId(callingUid);
+		Iterator<String> actions = filter.actionsIterator();
+		if (actions != null) {
+			while (actions.hasNext()) {
+				String action = actions.next();
+				allSticky = mStickyBroadcasts.collect(UserHandle.USER_ALL, action, filter, allSticky);
+				allSticky = mStickyBroadcasts.collect(userId, action, filter, allSticky);
 			}
+		} else {
+			allSticky = mStickyBroadcasts.collect(UserHandle.USER_ALL, null, filter, allSticky);
+			allSticky = mStickyBroadcasts.collect(userId, null, filter, allSticky);
 		}
-		return cur;
+		return allSticky;
 	}
 
 	boolean isPendingBroadcastProcessLocked(int pid) {
@@ -14619,78 +14937,77 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 
 			userId = this.handleIncomingUser(callingPid, callingUid, userId, true, ALLOW_FULL_ONLY, "registerReceiver", callerPackage);
 
-			List allSticky = null;
-
-			// Look for any matching sticky broadcasts...
-			Iterator actions = filter.actionsIterator();
-			if (actions != null) {
-				while (actions.hasNext()) {
-					String action = (String) actions.next();
-					allSticky = getStickiesLocked(action, filter, allSticky, UserHandle.USER_ALL);
-					allSticky = getStickiesLocked(action, filter, allSticky, UserHandle.getUserId(callingUid));
-				}
-			} else {
-				allSticky = getStickiesLocked(null, filter, allSticky, UserHandle.USER_ALL);
-				allSticky = getStickiesLocked(null, filter, allSticky, UserHandle.getUserId(callingUid));
+			if (receiver != null) {
+				// The stickies are read and the filter added under one
+				// hold of the lock, so no sticky broadcast is missed.
+				return registerReceiverLocked(callerApp, callerPackage, callingUid, callingPid, userId, receiver, filter, permission);
 			}
+		}
 
-			// The first sticky in the list is returned directly back to
-			// the client.
-			Intent sticky = allSticky != null ? (Intent) allSticky.get(0) : null;
+		// Only asking for the current value of a sticky broadcast, which is
+		// read from the sticky snapshot without the lock.
+		List<Intent> allSticky = getStickies(filter, callingUid);
+		Intent sticky = allSticky != null ? allSticky.get(0) : null;
+		if (DEBUG_BROADCAST) Slog.v(TAG, "Register receiver " + filter + ": " + sticky);
+		return sticky;
+	}
 
-			if (DEBUG_BROADCAST) Slog.v(TAG, "Register receiver " + filter + ": " + sticky);
+	private Intent registerReceiverLocked(ProcessRecord callerApp, String callerPackage, int callingUid, int callingPid, int userId, IIntentReceiver receiver, IntentFilter filter, String permission) {
+		// Look for any matching sticky broadcasts...
+		List allSticky = getStickies(filter, callingUid);
 
-			if (receiver == null) {
-				return sticky;
-			}
+		// The first sticky in the list is returned directly back to
+		// the client.
+		Intent sticky = allSticky != null ? (Intent) allSticky.get(0) : null;
 
-			ReceiverList rl = (ReceiverList) mRegisteredReceivers.get(receiver.asBinder());
-			if (rl == null) {
-				rl = new ReceiverList(this, callerApp, callingPid, callingUid, userId, receiver);
-				if (rl.app != null) {
-					rl.app.receivers.add(rl);
-				} else {
-					try {
-						receiver.asBinder().linkToDeath(rl, 0);
-					} catch (RemoteException e) {
-						return sticky;
-					}
-					rl.linkedToDeath = true;
+		if (DEBUG_BROADCAST) Slog.v(TAG, "Register receiver " + filter + ": " + sticky);
+
+		ReceiverList rl = (ReceiverList) mRegisteredReceivers.get(receiver.asBinder());
+		if (rl == null) {
+			rl = new ReceiverList(this, callerApp, callingPid, callingUid, userId, receiver);
+			if (rl.app != null) {
+				rl.app.receivers.add(rl);
+			} else {
+				try {
+					receiver.asBinder().linkToDeath(rl, 0);
+				} catch (RemoteException e) {
+					return sticky;
 				}
-				//把远程的InnerReciver和IntentFilter对象存储起来
-				mRegisteredReceivers.put(receiver.asBinder(), rl);
-			} else if (rl.uid != callingUid) {
-				throw new IllegalArgumentException("Receiver requested to register for uid " + callingUid + " was previously registered for uid " + rl.uid);
-			} else if (rl.pid != callingPid) {
-				throw new IllegalArgumentException("Receiver requested to register for pid " + callingPid + " was previously registered for pid " + rl.pid);
-			} else if (rl.userId != userId) {
-				throw new IllegalArgumentException("Receiver requested to register for user " + userId + " was previously registered for user " + rl.userId);
-			}
-			BroadcastFilter bf = new BroadcastFilter(filter, rl, callerPackage, permission, callingUid, userId);
-			rl.add(bf);
-			if (!bf.debugCheck()) {
-				Slog.w(TAG, "==> For Dynamic broadast");
+				rl.linkedToDeath = true;
 			}
-			mReceiverResolver.addFilter(bf);
+			//把远程的InnerReciver和IntentFilter对象存储起来
+			mRegisteredReceivers.put(receiver.asBinder(), rl);
+		} else if (rl.uid != callingUid) {
+			throw new IllegalArgumentException("Receiver requested to register for uid " + callingUid + " was previously registered for uid " + rl.uid);
+		} else if (rl.pid != callingPid) {
+			throw new IllegalArgumentException("Receiver requested to register for pid " + callingPid + " was previously registered for pid " + rl.pid);
+		} else if (rl.userId != userId) {
+			throw new IllegalArgumentException("Receiver requested to register for user " + userId + " was previously registered for user " + rl.userId);
+		}
+		BroadcastFilter bf = new BroadcastFilter(filter, rl, callerPackage, permission, callingUid, userId);
+		rl.add(bf);
+		if (!bf.debugCheck()) {
+			Slog.w(TAG, "==> For Dynamic broadast");
+		}
+		mReceiverResolver.addFilter(bf);
 
-			// Enqueue broadcasts for all existing stickies that match
-			// this filter.
-			if (allSticky != null) {
-				ArrayList receivers = new ArrayList();
-				receivers.add(bf);
+		// Enqueue broadcasts for all existing stickies that match
+		// this filter.
+		if (allSticky != null) {
+			ArrayList receivers = new ArrayList();
+			receivers.add(bf);
 
-				int N = allSticky.size();
-				for (int i = 0; i < N; i++) {
-					Intent intent = (Intent) allSticky.get(i);
-					BroadcastQueue queue = broadcastQueueForIntent(intent);
-					BroadcastRecord r = new BroadcastRecord(queue, intent, null, null, -1, -1, null, null, AppOpsManager.OP_NONE, receivers, null, 0, null, null, false, true, true, -1);
-					queue.enqueueParallelBroadcastLocked(r);
-					queue.scheduleBroadcastsLocked();
-				}
+			int N = allSticky.size();
+			for (int i = 0; i < N; i++) {
+				Intent intent = (Intent) allSticky.get(i);
+				BroadcastQueue queue = broadcastQueueForIntent(intent);
+				BroadcastRecord r = new BroadcastRecord(queue, intent, null, null, -1, -1, null, null, AppOpsManager.OP_NONE, receivers, null, 0, null, null, false, true, true, -1);
+				queue.enqueueParallelBroadcastLocked(r);
+				queue.scheduleBroadcastsLocked();
 			}
-
-			return sticky;
 		}
+
+		return sticky;
 	}
 
 	public void unregisterReceiver(IIntentReceiver receiver) {
@@ -15033,42 +15350,19 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 				// But first, if this is not a broadcast to all users, then
 				// make sure it doesn't conflict with an existing broadcast to
 				// all users.
-				ArrayMap<String, ArrayList<Intent>> stickies = mStickyBroadcasts.get(UserHandle.USER_ALL);
-				if (stickies != null) {
-					ArrayList<Intent> list = stickies.get(intent.getAction());
-					if (list != null) {
-						int N = list.size();
-						int i;
-						for (i = 0; i < N; i++) {
-							if (intent.filterEquals(list.get(i))) {
-								throw new IllegalArgumentException("Sticky broadcast " + intent + " for user " + userId + " conflicts with existing global broadcast");
-							}
-						}
-					}
+				if (mStickyBroadcasts.conflictsWithGlobal(intent)) {
+					throw new IllegalArgumentException("Sticky broadcast " + intent + " for user " + userId + " conflicts with existing global broadcast");
 				}
 			}
-			ArrayMap<String, ArrayList<Intent>> stickies = mStickyBroadcasts.get(userId);
-			if (stickies == null) {
-				stickies = new ArrayMap<String, ArrayList<Intent>>();
-				mStickyBroadcasts.put(userId, stickies);
-			}
-			ArrayList<Intent> list = stickies.get(intent.getAction());
-			if (list == null) {
-				list = new ArrayList<Intent>();
-				stickies.put(intent.getAction(), list);
-			}
-			int N = list.size();
-			int i;
-			for (i = 0; i < N; i++) {
-				if (intent.filterEquals(list.get(i))) {
-					// This sticky already exists, replace it.
-					list.set(i, new Intent(intent));
-					break;
-				}
-			}
-			if (i >= N) {
-				list.add(new Intent(intent));
-			}
+			// Stickies are matched against the type stored with them.  An
+			// explicit type is the intent's own and only a content: uri has
+			// a type to resolve, so the broadcaster's resolvedType is only
+			// taken for that case; asking the provider here would call out
+			// with the lock held.  It is the same type the registered
+			// receivers of this broadcast are matched against below.
+			final String stickyType = intent.getType() != null || !"content".equals(intent.getScheme()) ? intent.getType() : resolvedType;
+			// Replaces the sticky this is filterEquals() to, if there is one.
+			mStickyBroadcasts.putLocked(userId, new Intent(intent), stickyType);
 		}
 
 		int[] users;
@@ -15288,26 +15582,7 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 				Slog.w(TAG, msg);
 				throw new SecurityException(msg);
 			}
-			ArrayMap<String, ArrayList<Intent>> stickies = mStickyBroadcasts.get(userId);
-			if (stickies != null) {
-				ArrayList<Intent> list = stickies.get(intent.getAction());
-				if (list != null) {
-					int N = list.size();
-					int i;
-					for (i = 0; i < N; i++) {
-						if (intent.filterEquals(list.get(i))) {
-							list.remove(i);
-							break;
-						}
-					}
-					if (list.size() <= 0) {
-						stickies.remove(intent.getAction());
-					}
-				}
-				if (stickies.size() <= 0) {
-					mStickyBroadcasts.remove(userId);
-				}
-			}
+			mStickyBroadcasts.removeLocked(userId, intent);
 		}
 	}
 
@@ -16419,6 +16694,41 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 		}
 	}
 
+	/**
+	 * Read /proc/<pid>/stat of all our processes in one pass and store the
+	 * results in their records.  Only called on the background thread.
+	 */
+	final void sampleProcessStats() {
+		int[] pids = mProcSamplePids;
+		int N;
+		synchronized (mPidsSelfLocked) {
+			N = mPidsSelfLocked.size();
+			if (pids.length < N) {
+				pids = mProcSamplePids = new int[N + 16];
+			}
+			for (int i = 0; i < N; i++) {
+				pids[i] = mPidsSelfLocked.keyAt(i);
+			}
+		}
+		mProcStatsSampler.sampleStats(pids, N);
+		synchronized (this) {
+			final long now = SystemClock.uptimeMillis();
+			synchronized (mPidsSelfLocked) {
+				for (int i = 0; i < N; i++) {
+					final ProcessRecord app = mPidsSelfLocked.get(pids[i]);
+					final ProcStatsSampler.PidStats st = mProcStatsSampler.getStats(pids[i]);
+					if (app == null || st == null) {
+						continue;
+					}
+					app.lastStatTime = now;
+					app.statCpuTime = st.utime + st.stime;
+					app.statRss = st.rss;
+					app.statMajorFaults = st.majorFaults;
+				}
+			}
+		}
+	}
+
 	/**
 	 * Schedule PSS collection of a process.
 	 */
@@ -16821,15 +17131,17 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 					if (DEBUG_PROCESS_OBSERVERS) Slog.i(TAG, "Allocating new item: " + item);
 				}
 				item.changes = 0;
+				item.numEvents = 0;
 				item.pid = app.pid;
 				item.uid = app.info.uid;
-				if (mPendingProcessChanges.size() == 0) {
+				if (mPendingProcessChanges.size() == 0 && !mDeferProcessChangesDispatch) {
 					if (DEBUG_PROCESS_OBSERVERS) Slog.i(TAG, "*** Enqueueing dispatch processes changed!");
 					mHandler.obtainMessage(DISPATCH_PROCESSES_CHANGED).sendToTarget();
 				}
 				mPendingProcessChanges.add(item);
 			}
 			item.changes |= changes;
+			item.numEvents += Integer.bitCount(changes);
 			item.processState = app.repProcState;
 			item.foregroundActivities = app.repForegroundActivities;
 			if (DEBUG_PROCESS_OBSERVERS)
@@ -16914,24 +17226,102 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 		return act;
 	}
 
+	/**
+	 * Collect app and every process whose oom adj is derived from it: the
+	 * processes hosting services it is bound to and providers it holds,
+	 * followed transitively.  These are exactly the processes that
+	 * computeOomAdjLocked() visits app from as a client, so nothing outside
+	 * this set can change when only app's state has changed.
+	 */
+	private void collectOomAdjDependentsLocked(ProcessRecord app, ArrayList<ProcessRecord> outProcs) {
+		final ArraySet<ProcessRecord> seen = mTmpOomAdjSeen;
+		outProcs.clear();
+		seen.clear();
+		outProcs.add(app);
+		seen.add(app);
+		final ArrayList<ProcessRecord> hosts = mTmpOomAdjHosts;
+		for (int i = 0; i < outProcs.size(); i++) {
+			final ProcessRecord proc = outProcs.get(i);
+			hosts.clear();
+			mServices.mConnectionGraph.collectServiceHosts(proc, true, hosts);
+			for (int j = hosts.size() - 1; j >= 0; j--) {
+				final ProcessRecord host = hosts.get(j);
+				if (seen.add(host)) {
+					outProcs.add(host);
+				}
+			}
+			for (int j = proc.conProviders.size() - 1; j >= 0; j--) {
+				final ProcessRecord host = proc.conProviders.get(j).provider.proc;
+				if (host != null && seen.add(host)) {
+					outProcs.add(host);
+				}
+			}
+		}
+		hosts.clear();
+		seen.clear();
+	}
+
+	/**
+	 * Incremental oom adj update after something about app changed.  Only
+	 * app and the processes reachable from it as a client are recomputed; if
+	 * any of them moves in to or out of the cached range we fall back to a
+	 * full update, since cached levels depend on the order of the whole LRU
+	 * list.
+	 */
 	final boolean updateOomAdjLocked(ProcessRecord app) {
 		final ActivityRecord TOP_ACT = resumedAppLocked();
 		final ProcessRecord TOP_APP = TOP_ACT != null ? TOP_ACT.app : null;
-		final boolean wasCached = app.cached;
+		final long now = SystemClock.uptimeMillis();
+
+		final ArrayList<ProcessRecord> procs = mTmpOomAdjProcs;
+		collectOomAdjDependentsLocked(app, procs);
+		final int N = procs.size();
+		if (mTmpOomAdjWasCached.length < N) {
+			mTmpOomAdjWasCached = new boolean[N * 2];
+		}
+		// Capture this before computing anything, since computing one process
+		// may compute others along the way as its clients.
+		for (int i = 0; i < N; i++) {
+			mTmpOomAdjWasCached[i] = procs.get(i).cached;
+		}
 
 		mAdjSeq++;
+		mNumOomAdjIncremental++;
+		mNumOomAdjIncrementalProcs += N;
+		final boolean wasDeferring = mDeferProcessChangesDispatch;
+		mDeferProcessChangesDispatch = true;
+
+		boolean success = true;
+		boolean needFullUpdate = false;
+		for (int i = 0; i < N; i++) {
+			final ProcessRecord proc = procs.get(i);
+			// This is the desired cached adjusment we want to tell it to use.
+			// If our app is currently cached, we know it, and that is it.  Otherwise,
+			// we don't know it yet, and it needs to now be cached we will then
+			// need to do a complete oom adj.
+			final int cachedAdj = proc.curRawAdj >= ProcessList.CACHED_APP_MIN_ADJ ? proc.curRawAdj : ProcessList.UNKNOWN_ADJ;
+			final boolean procSuccess = updateOomAdjLocked(proc, cachedAdj, TOP_APP, false, now);
+			if (proc == app) {
+				success = procSuccess;
+			} else if (proc.thread == null) {
+				continue;
+			}
+			if (mTmpOomAdjWasCached[i] != proc.cached || proc.curRawAdj == ProcessList.UNKNOWN_ADJ) {
+				// Changed to/from cached state, so apps after it in the LRU
+				// list may also be changed.
+				needFullUpdate = true;
+			}
+		}
+		procs.clear();
 
-		// This is the desired cached adjusment we want to tell it to use.
-		// If our app is currently cached, we know it, and that is it.  Otherwise,
-		// we don't know it yet, and it needs to now be cached we will then
-		// need to do a complete oom adj.
-		final int cachedAdj = app.curRawAdj >= ProcessList.CACHED_APP_MIN_ADJ ? app.curRawAdj : ProcessList.UNKNOWN_ADJ;
-		boolean success = updateOomAdjLocked(app, cachedAdj, TOP_APP, false, SystemClock.uptimeMillis());
-		if (wasCached != app.cached || app.curRawAdj == ProcessList.UNKNOWN_ADJ) {
-			// Changed to/from cached state, so apps after it in the LRU
-			// list may also be changed.
+		if (needFullUpdate) {
+			mNumOomAdjIncrementalFallbacks++;
 			updateOomAdjLocked();
 		}
+		mDeferProcessChangesDispatch = wasDeferring;
+		if (!wasDeferring) {
+			scheduleProcessChangesDispatchLocked();
+		}
 		return success;
 	}
 
@@ -16952,6 +17342,10 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 		mNewNumServiceProcs = 0;
 		mNewNumAServiceProcs = 0;
 
+		// Hold back observer dispatch so the whole pass goes out as one delta.
+		final boolean wasDeferring = mDeferProcessChangesDispatch;
+		mDeferProcessChangesDispatch = true;
+
 		final int emptyProcessLimit;
 		final int cachedProcessLimit;
 		if (mProcessLimit <= 0) {
@@ -17276,6 +17670,11 @@ public final class ActivityManagerService extends ActivityManagerNative implemen
 			});
 		}
 
+		mDeferProcessChangesDispatch = wasDeferring;
+		if (!wasDeferring) {
+			scheduleProcessChangesDispatchLocked();
+		}
+
 		if (DEBUG_OOM_ADJ) {
 			if (false) {
 				RuntimeException here = new RuntimeException("here");
@@ -56,9 +56,11 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Objects;
@@ -661,6 +663,7 @@ final class ActivityRecord {
 			if (stopped) {
 				clearOptionsLocked();
 			}
+			mStackSupervisor.mService.recentTaskChangedLocked(task);
 		}
 	}
 
@@ -835,6 +838,7 @@ final class ActivityRecord {
 			}
 		}
 		task.lastDescription = description;
+		mStackSupervisor.mService.recentTaskChangedLocked(task);
 	}
 
 	void startLaunchTickingLocked() {
@@ -1230,6 +1234,56 @@ final class ActivityRecord {
 		return r;
 	}
 
+	/**
+	 * Binary counterpart of {@link #saveToXml} used by {@link TaskStore}.
+	 */
+	void saveToBinary(DataOutputStream out) throws IOException {
+		out.writeLong(createTime);
+		out.writeInt(launchedFromUid);
+		TaskStore.writeString(out, launchedFromPackage);
+		TaskStore.writeString(out, resolvedType);
+		out.writeBoolean(componentSpecified);
+		out.writeInt(userId);
+		TaskStore.writeTaskDescription(out, taskDescription);
+		TaskStore.writeIntent(out, intent);
+		TaskStore.writeBundle(out, isPersistable() ? persistentState : null);
+	}
+
+	/**
+	 * Binary counterpart of {@link #restoreFromXml}.  The whole record is
+	 * consumed from the buffer even if the activity can no longer be resolved,
+	 * in which case null is returned.
+	 */
+	static ActivityRecord restoreFromBinary(ByteBuffer in, ActivityStackSupervisor stackSupervisor) throws IOException {
+		final long createTime = in.getLong();
+		final int launchedFromUid = in.getInt();
+		final String launchedFromPackage = TaskStore.readString(in);
+		final String resolvedType = TaskStore.readString(in);
+		final boolean componentSpecified = in.get() != 0;
+		final int userId = in.getInt();
+		final TaskDescription taskDescription = TaskStore.readTaskDescription(in);
+		final Intent intent = TaskStore.readIntent(in);
+		final PersistableBundle persistentState = TaskStore.readBundle(in);
+
+		if (intent == null) {
+			throw new IOException("restoreActivity error intent=" + intent);
+		}
+
+		final ActivityManagerService service = stackSupervisor.mService;
+		final ActivityInfo aInfo = stackSupervisor.resolveActivity(intent, resolvedType, 0, null, userId);
+		if (aInfo == null) {
+			Slog.w(TAG, "restoreActivity resolver error. Intent=" + intent + " resolvedType=" + resolvedType);
+			return null;
+		}
+		final ActivityRecord r = new ActivityRecord(service, /*caller*/null, launchedFromUid, launchedFromPackage, intent, resolvedType, aInfo, service.getConfiguration(), null, null, 0, componentSpecified, stackSupervisor, null, null);
+
+		r.persistentState = persistentState;
+		r.taskDescription = taskDescription;
+		r.createTime = createTime;
+
+		return r;
+	}
+
 	private static String activityTypeToString(int type) {
 		switch (type) {
 			case APPLICATION_ACTIVITY_TYPE:
@@ -145,6 +145,14 @@ final class ActivityStack {
 	 */
 	private ArrayList<TaskRecord> mTaskHistory = new ArrayList<TaskRecord>();
 
+	/**
+	 * The tasks in mTaskHistory and their activities, filed by the fields
+	 * findTaskLocked and findActivityLocked match on.
+	 */
+	final StackTaskIndex mTaskIndex = new StackTaskIndex();
+
+	private final ArrayList<TaskRecord> mTmpFindTaskCandidates = new ArrayList<TaskRecord>();
+
 	/**
 	 * Used for validating app tokens with window manager.
 	 * 用于与窗口管理器验证应用令牌
@@ -449,25 +457,13 @@ final class ActivityStack {
 	}
 
 	TaskRecord taskForIdLocked(int id) {
-		for (int taskNdx = mTaskHistory.size() - 1; taskNdx >= 0; --taskNdx) {
-			final TaskRecord task = mTaskHistory.get(taskNdx);
-			if (task.taskId == id) {
-				return task;
-			}
-		}
-		return null;
+		final TaskRecord task = mStackSupervisor.taskForIdLocked(id);
+		return task != null && task.stack == this ? task : null;
 	}
 
 	ActivityRecord isInStackLocked(IBinder token) {
-		final ActivityRecord r = ActivityRecord.forToken(token);
-		if (r != null) {
-			final TaskRecord task = r.task;
-			if (task != null && task.mActivities.contains(r) && mTaskHistory.contains(task)) {
-				if (task.stack != this) Slog.w(TAG, "Illegal state! task does not point to stack it is in.");
-				return r;
-			}
-		}
-		return null;
+		final ActivityRecord r = mStackSupervisor.activityForTokenLocked(token);
+		return r != null && r.task.stack == this ? r : null;
 	}
 
 	final boolean updateLRUListLocked(ActivityRecord r) {
@@ -519,61 +515,96 @@ final class ActivityStack {
 		Uri documentData = isDocument ? intent.getData() : null;
 
 		if (DEBUG_TASKS) Slog.d(TAG, "Looking for task of " + target + " in " + this);
-		for (int taskNdx = mTaskHistory.size() - 1; taskNdx >= 0; --taskNdx) {
-			final TaskRecord task = mTaskHistory.get(taskNdx);
-			if (task.voiceSession != null) {
-				// We never match voice sessions; those always run independently.
-				if (DEBUG_TASKS) Slog.d(TAG, "Skipping " + task + ": voice session");
-				continue;
+		// Only tasks filed under the affinity or class can match; of those
+		// that do, the one nearest the top wins.
+		final ArrayList<TaskRecord> candidates = mTmpFindTaskCandidates;
+		candidates.clear();
+		mTaskIndex.collectTasks(userId, target.taskAffinity, cls, candidates);
+		ActivityRecord found = null;
+		long foundOrder = Long.MIN_VALUE;
+		for (int i = candidates.size() - 1; i >= 0; --i) {
+			final TaskRecord task = candidates.get(i);
+			final ActivityRecord r = matchTaskLocked(task, target, cls, userId, isDocument, documentData);
+			if (r != null) {
+				final long order = mTaskIndex.getTaskOrder(task);
+				if (found == null || order > foundOrder) {
+					found = r;
+					foundOrder = order;
+				}
 			}
-			if (task.userId != userId) {
-				// Looking for a different task.
-				if (DEBUG_TASKS) Slog.d(TAG, "Skipping " + task + ": different user");
-				continue;
+		}
+		candidates.clear();
+
+		if (ActivityStackSupervisor.VALIDATE_INDEXES) {
+			ActivityRecord expected = null;
+			for (int taskNdx = mTaskHistory.size() - 1; taskNdx >= 0 && expected == null; --taskNdx) {
+				expected = matchTaskLocked(mTaskHistory.get(taskNdx), target, cls, userId, isDocument, documentData);
 			}
-			final ActivityRecord r = task.getTopActivity();
-			if (r == null || r.finishing || r.userId != userId || r.launchMode == ActivityInfo.LAUNCH_SINGLE_INSTANCE) {
-				if (DEBUG_TASKS) Slog.d(TAG, "Skipping " + task + ": mismatch root " + r);
-				continue;
+			if (expected != found) {
+				Slog.wtf(TAG, "findTaskLocked(" + target + ") found " + found + ", expected " + expected);
 			}
+		}
+		return found;
+	}
 
-			final Intent taskIntent = task.intent;
-			final Intent affinityIntent = task.affinityIntent;
-			final boolean taskIsDocument;
-			final Uri taskDocumentData;
-			if (taskIntent != null && taskIntent.isDocument()) {
-				taskIsDocument = true;
-				taskDocumentData = taskIntent.getData();
-			} else if (affinityIntent != null && affinityIntent.isDocument()) {
-				taskIsDocument = true;
-				taskDocumentData = affinityIntent.getData();
-			} else {
-				taskIsDocument = false;
-				taskDocumentData = null;
-			}
+	/**
+	 * Returns the top activity of the task if a launch of target should be
+	 * brought into it, else null.
+	 */
+	private ActivityRecord matchTaskLocked(TaskRecord task, ActivityRecord target, ComponentName cls, int userId, boolean isDocument, Uri documentData) {
+		if (task.voiceSession != null) {
+			// We never match voice sessions; those always run independently.
+			if (DEBUG_TASKS) Slog.d(TAG, "Skipping " + task + ": voice session");
+			return null;
+		}
+		if (task.userId != userId) {
+			// Looking for a different task.
+			if (DEBUG_TASKS) Slog.d(TAG, "Skipping " + task + ": different user");
+			return null;
+		}
+		final ActivityRecord r = task.getTopActivity();
+		if (r == null || r.finishing || r.userId != userId || r.launchMode == ActivityInfo.LAUNCH_SINGLE_INSTANCE) {
+			if (DEBUG_TASKS) Slog.d(TAG, "Skipping " + task + ": mismatch root " + r);
+			return null;
+		}
 
-			if (DEBUG_TASKS)
-				Slog.d(TAG, "Comparing existing cls=" + taskIntent.getComponent().flattenToShortString() + "/aff=" + r.task.rootAffinity + " to new cls=" + intent.getComponent().flattenToShortString() + "/aff=" + info.taskAffinity);
-			if (!isDocument && !taskIsDocument && task.rootAffinity != null) {
-				if (task.rootAffinity.equals(target.taskAffinity)) {
-					if (DEBUG_TASKS) Slog.d(TAG, "Found matching affinity!");
-					return r;
-				}
-			} else if (taskIntent != null && taskIntent.getComponent() != null && taskIntent.getComponent().compareTo(cls) == 0 && Objects.equals(documentData, taskDocumentData)) {
-				if (DEBUG_TASKS) Slog.d(TAG, "Found matching class!");
-				//dump();
-				if (DEBUG_TASKS) Slog.d(TAG, "For Intent " + intent + " bringing to top: " + r.intent);
-				return r;
-			} else if (affinityIntent != null && affinityIntent.getComponent() != null && affinityIntent.getComponent().compareTo(cls) == 0 && Objects.equals(documentData, taskDocumentData)) {
-				if (DEBUG_TASKS) Slog.d(TAG, "Found matching class!");
-				//dump();
-				if (DEBUG_TASKS) Slog.d(TAG, "For Intent " + intent + " bringing to top: " + r.intent);
+		final Intent intent = target.intent;
+		final ActivityInfo info = target.info;
+		final Intent taskIntent = task.intent;
+		final Intent affinityIntent = task.affinityIntent;
+		final boolean taskIsDocument;
+		final Uri taskDocumentData;
+		if (taskIntent != null && taskIntent.isDocument()) {
+			taskIsDocument = true;
+			taskDocumentData = taskIntent.getData();
+		} else if (affinityIntent != null && affinityIntent.isDocument()) {
+			taskIsDocument = true;
+			taskDocumentData = affinityIntent.getData();
+		} else {
+			taskIsDocument = false;
+			taskDocumentData = null;
+		}
+
+		if (DEBUG_TASKS)
+			Slog.d(TAG, "Comparing existing cls=" + taskIntent.getComponent().flattenToShortString() + "/aff=" + r.task.rootAffinity + " to new cls=" + intent.getComponent().flattenToShortString() + "/aff=" + info.taskAffinity);
+		if (!isDocument && !taskIsDocument && task.rootAffinity != null) {
+			if (task.rootAffinity.equals(target.taskAffinity)) {
+				if (DEBUG_TASKS) Slog.d(TAG, "Found matching affinity!");
 				return r;
-			} else if (DEBUG_TASKS) {
-				Slog.d(TAG, "Not a match: " + task);
 			}
+		} else if (taskIntent != null && taskIntent.getComponent() != null && taskIntent.getComponent().compareTo(cls) == 0 && Objects.equals(documentData, taskDocumentData)) {
+			if (DEBUG_TASKS) Slog.d(TAG, "Found matching class!");
+			//dump();
+			if (DEBUG_TASKS) Slog.d(TAG, "For Intent " + intent + " bringing to top: " + r.intent);
+			return r;
+		} else if (affinityIntent != null && affinityIntent.getComponent() != null && affinityIntent.getComponent().compareTo(cls) == 0 && Objects.equals(documentData, taskDocumentData)) {
+			if (DEBUG_TASKS) Slog.d(TAG, "Found matching class!");
+			//dump();
+			if (DEBUG_TASKS) Slog.d(TAG, "For Intent " + intent + " bringing to top: " + r.intent);
+			return r;
+		} else if (DEBUG_TASKS) {
+			Slog.d(TAG, "Not a match: " + task);
 		}
-
 		return null;
 	}
 
@@ -589,6 +620,45 @@ final class ActivityStack {
 		}
 		final int userId = UserHandle.getUserId(info.applicationInfo.uid);
 
+		ActivityRecord found = null;
+		final ArrayList<ActivityRecord> candidates = mTaskIndex.getActivities(userId, cls);
+		if (candidates != null) {
+			// Tasks of other profiles are kept below the current ones and end
+			// the search: nothing at or below the topmost of them counts.
+			long bottomOrder = Long.MIN_VALUE;
+			for (int userNdx = mTaskIndex.getUserCount() - 1; userNdx >= 0; --userNdx) {
+				if (!isCurrentProfileLocked(mTaskIndex.getUserAt(userNdx))) {
+					bottomOrder = Math.max(bottomOrder, mTaskIndex.getTopOrderAt(userNdx));
+				}
+			}
+			long foundOrder = Long.MIN_VALUE;
+			for (int i = candidates.size() - 1; i >= 0; --i) {
+				final ActivityRecord r = candidates.get(i);
+				if (r.finishing) {
+					continue;
+				}
+				final long order = mTaskIndex.getTaskOrder(r.task);
+				if (order <= bottomOrder || order < foundOrder) {
+					continue;
+				}
+				// Only candidates in the same task need their place in it.
+				if (found == null || order > foundOrder || r.task.mActivities.indexOf(r) > found.task.mActivities.indexOf(found)) {
+					found = r;
+					foundOrder = order;
+				}
+			}
+		}
+
+		if (ActivityStackSupervisor.VALIDATE_INDEXES) {
+			final ActivityRecord expected = findActivityLinearLocked(cls, userId);
+			if (expected != found) {
+				Slog.wtf(TAG, "findActivityLocked(" + cls + ") found " + found + ", expected " + expected);
+			}
+		}
+		return found;
+	}
+
+	private ActivityRecord findActivityLinearLocked(ComponentName cls, int userId) {
 		for (int taskNdx = mTaskHistory.size() - 1; taskNdx >= 0; --taskNdx) {
 			TaskRecord task = mTaskHistory.get(taskNdx);
 			if (!isCurrentProfileLocked(task.userId)) {
@@ -598,14 +668,10 @@ final class ActivityStack {
 			for (int activityNdx = activities.size() - 1; activityNdx >= 0; --activityNdx) {
 				ActivityRecord r = activities.get(activityNdx);
 				if (!r.finishing && r.intent.getComponent().equals(cls) && r.userId == userId) {
-					//Slog.i(TAG, "Found matching class!");
-					//dump();
-					//Slog.i(TAG, "For Intent " + intent + " bringing to top: " + r.intent);
 					return r;
 				}
 			}
 		}
-
 		return null;
 	}
 
@@ -626,6 +692,7 @@ final class ActivityStack {
 				if (DEBUG_TASKS) Slog.d(TAG, "switchUserLocked: stack=" + getStackId() + " moving " + task + " to top");
 				mTaskHistory.remove(i);
 				mTaskHistory.add(task);
+				mTaskIndex.taskPositioned(mTaskHistory, mTaskHistory.size() - 1);
 				--index;
 				// Use same value for i.
 			} else {
@@ -762,6 +829,40 @@ final class ActivityStack {
 		return null;
 	}
 
+	/**
+	 * Like {@link #screenshotActivities}, but the screenshot is taken on a
+	 * background thread and made the thumbnail of the activity's task once
+	 * it is there, so the lock is not held while the window manager waits
+	 * for the app to draw.
+	 */
+	final void screenshotActivitiesAsyncLocked(final ActivityRecord who) {
+		if (DEBUG_SCREENSHOTS) Slog.d(TAG, "screenshotActivitiesAsync: " + who);
+		if (who.noDisplay || isHomeStack()) {
+			return;
+		}
+
+		int w = mService.mThumbnailWidth;
+		int h = mService.mThumbnailHeight;
+		if (w <= 0) {
+			Slog.e(TAG, "Invalid thumbnail dimensions: " + w + "x" + h);
+			return;
+		}
+		final TaskRecord task = who.task;
+		mWindowManager.screenshotApplicationsAsync(who.appToken, Display.DEFAULT_DISPLAY, w, h, SCREENSHOT_FORCE_565, new WindowManagerService.ScreenshotCallback() {
+			@Override
+			public void onScreenshotTaken(Bitmap thumbnail) {
+				synchronized (mService) {
+					// The activity may have been removed or moved to
+					// another task in the meantime.
+					if (thumbnail == null || !who.isInHistory() || who.task != task) {
+						return;
+					}
+					who.updateThumbnailLocked(thumbnail, task.lastDescription);
+				}
+			}
+		}, mHandler);
+	}
+
 	/**
 	 * Start pausing the currently resumed activity.  It is an error to call this if there
 	 * is already an activity being paused or there is no resumed activity.
@@ -806,7 +907,8 @@ final class ActivityStack {
 		clearLaunchTime(prev);
 		final ActivityRecord next = mStackSupervisor.topRunningActivityLocked();
 		if (mService.mHasRecents && (next == null || next.noDisplay || next.task != prev.task || uiSleeping)) {
-			prev.updateThumbnailLocked(screenshotActivities(prev), null);
+			prev.updateThumbnailLocked(null, null);
+			screenshotActivitiesAsyncLocked(prev);
 		}
 		stopFullyDrawnTraceIfNeeded();
 
@@ -1842,6 +1944,10 @@ final class ActivityStack {
 			++taskNdx;
 		}
 		mTaskHistory.add(taskNdx, task);
+		// The task may be coming back after its last activity was removed.
+		mStackSupervisor.addTaskToIndexLocked(task);
+		mTaskIndex.addTask(task);
+		mTaskIndex.taskPositioned(mTaskHistory, taskNdx);
 		updateTaskMovement(task, true);
 	}
 
@@ -2067,6 +2173,7 @@ final class ActivityStack {
 				} else {
 					targetTask = createTaskRecord(mStackSupervisor.getNextTaskId(), target.info, null, null, null, false);
 					targetTask.affinityIntent = target.intent;
+					mTaskIndex.updateTask(targetTask);
 					if (DEBUG_TASKS) Slog.v(TAG, "Start pushing activity " + target + " out to new task " + target.task);
 				}
 
@@ -3237,6 +3344,7 @@ final class ActivityStack {
 				if (DEBUG_TASKS || DEBUG_STACK) Slog.d(TAG, "moveHomeStackTaskToTop: moving " + task);
 				mTaskHistory.remove(taskNdx);
 				mTaskHistory.add(top, task);
+				mTaskIndex.taskPositioned(mTaskHistory, top);
 				updateTaskMovement(task, true);
 				mWindowManager.moveTaskToTop(task.taskId);
 				return;
@@ -3333,6 +3441,7 @@ final class ActivityStack {
 
 		mTaskHistory.remove(tr);
 		mTaskHistory.add(0, tr);
+		mTaskIndex.taskPositioned(mTaskHistory, 0);
 		updateTaskMovement(tr, false);
 
 		// There is an assumption that moving a task to the back moves it behind the home activity.
@@ -3782,6 +3891,8 @@ final class ActivityStack {
 			}
 		}
 		mTaskHistory.remove(task);
+		mStackSupervisor.removeTaskFromIndexLocked(task);
+		mTaskIndex.removeTask(task);
 		updateTaskMovement(task, true);
 
 		if (task.mActivities.isEmpty()) {
@@ -3826,10 +3937,14 @@ final class ActivityStack {
 
 	void addTask(final TaskRecord task, final boolean toTop, boolean moving) {
 		task.stack = this;
+		mService.recentTaskChangedLocked(task);
 		if (toTop) {
 			insertTaskAtTop(task);
 		} else {
 			mTaskHistory.add(0, task);
+			mStackSupervisor.addTaskToIndexLocked(task);
+			mTaskIndex.addTask(task);
+			mTaskIndex.taskPositioned(mTaskHistory, 0);
 			updateTaskMovement(task, false);
 		}
 		if (!moving && task.voiceSession != null) {
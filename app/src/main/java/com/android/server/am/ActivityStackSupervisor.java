@@ -91,6 +91,7 @@ import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 
 import static android.Manifest.permission.START_ANY_ACTIVITY;
@@ -170,6 +171,10 @@ public final class ActivityStackSupervisor implements DisplayListener {
     // wake lock is the system process.
     static final boolean VALIDATE_WAKE_LOCK_CALLER = false;
 
+    // Set to cross check mTasksById and mActivitiesByToken against the
+    // stacks after every change to them.
+    static final boolean VALIDATE_INDEXES = false;
+
     final ActivityManagerService mService;
 
     final ActivityStackSupervisorHandler mHandler;
@@ -196,6 +201,15 @@ public final class ActivityStackSupervisor implements DisplayListener {
      */
     private int mCurrentUser;
 
+    /**
+     * Every task in the history of a stack, by task id, and every activity
+     * in those tasks, by token.  ActivityStack and TaskRecord keep these up
+     * to date as tasks and activities come and go so that looking one up
+     * does not have to walk every display, stack and task.
+     */
+    private final SparseArray<TaskRecord> mTasksById = new SparseArray<TaskRecord>();
+    private final HashMap<IBinder, ActivityRecord> mActivitiesByToken = new HashMap<IBinder, ActivityRecord>();
+
     /**
      * The stack containing the launcher app. Assumed to always be attached to
      * Display.DEFAULT_DISPLAY.
@@ -506,21 +520,14 @@ public final class ActivityStackSupervisor implements DisplayListener {
     }
 
     TaskRecord anyTaskForIdLocked(int id) {
-        int numDisplays = mActivityDisplays.size();
-        for (int displayNdx = 0; displayNdx < numDisplays; ++displayNdx) {
-            ArrayList<ActivityStack> stacks = mActivityDisplays.valueAt(displayNdx).mStacks;
-            for (int stackNdx = stacks.size() - 1; stackNdx >= 0; --stackNdx) {
-                ActivityStack stack = stacks.get(stackNdx);
-                TaskRecord task = stack.taskForIdLocked(id);
-                if (task != null) {
-                    return task;
-                }
-            }
+        TaskRecord task = taskForIdLocked(id);
+        if (task != null && task.stack.isAttached()) {
+            return task;
         }
 
         // Don't give up! Look in recents.
         if (DEBUG_RECENTS) Slog.v(TAG, "Looking for task id=" + id + " in recents");
-        TaskRecord task = mService.recentTaskForIdLocked(id);
+        task = mService.recentTaskForIdLocked(id);
         if (task == null) {
             if (DEBUG_RECENTS) Slog.d(TAG, "\tDidn't find task id=" + id + " in recents");
             return null;
@@ -535,17 +542,120 @@ public final class ActivityStackSupervisor implements DisplayListener {
     }
 
     ActivityRecord isInAnyStackLocked(IBinder token) {
-        int numDisplays = mActivityDisplays.size();
-        for (int displayNdx = 0; displayNdx < numDisplays; ++displayNdx) {
-            ArrayList<ActivityStack> stacks = mActivityDisplays.valueAt(displayNdx).mStacks;
+        final ActivityRecord r = activityForTokenLocked(token);
+        if (r != null && r.task.stack.isAttached()) {
+            return r;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the task with the given id if it is in the history of any
+     * stack, attached or not.
+     */
+    TaskRecord taskForIdLocked(int id) {
+        if (VALIDATE_INDEXES) validateIndexesLocked();
+        return mTasksById.get(id);
+    }
+
+    /**
+     * Returns the activity for the token if it is in a task that is in the
+     * history of any stack, attached or not.
+     */
+    ActivityRecord activityForTokenLocked(IBinder token) {
+        if (VALIDATE_INDEXES) validateIndexesLocked();
+        return token != null ? mActivitiesByToken.get(token) : null;
+    }
+
+    /**
+     * Called by ActivityStack once the task has been added to its history.
+     */
+    void addTaskToIndexLocked(TaskRecord task) {
+        final TaskRecord old = mTasksById.get(task.taskId);
+        if (old != null && old != task) {
+            Slog.wtf(TAG, "Task " + task + " has the same id as " + old);
+            removeTaskFromIndexLocked(old);
+        }
+        mTasksById.put(task.taskId, task);
+        final ArrayList<ActivityRecord> activities = task.mActivities;
+        for (int activityNdx = activities.size() - 1; activityNdx >= 0; --activityNdx) {
+            final ActivityRecord r = activities.get(activityNdx);
+            mActivitiesByToken.put(r.appToken, r);
+        }
+    }
+
+    /**
+     * Called by ActivityStack once the task has been removed from its
+     * history.
+     */
+    void removeTaskFromIndexLocked(TaskRecord task) {
+        if (mTasksById.get(task.taskId) != task) {
+            return;
+        }
+        mTasksById.remove(task.taskId);
+        final ArrayList<ActivityRecord> activities = task.mActivities;
+        for (int activityNdx = activities.size() - 1; activityNdx >= 0; --activityNdx) {
+            final ActivityRecord r = activities.get(activityNdx);
+            if (mActivitiesByToken.get(r.appToken) == r) {
+                mActivitiesByToken.remove(r.appToken);
+            }
+        }
+    }
+
+    /**
+     * Called by TaskRecord once the activity has been added to it.
+     */
+    void addActivityToIndexLocked(TaskRecord task, ActivityRecord r) {
+        if (mTasksById.get(task.taskId) == task) {
+            mActivitiesByToken.put(r.appToken, r);
+        }
+    }
+
+    /**
+     * Called by TaskRecord once the activity has been removed from it.
+     */
+    void removeActivityFromIndexLocked(TaskRecord task, ActivityRecord r) {
+        if (mTasksById.get(task.taskId) == task && mActivitiesByToken.get(r.appToken) == r) {
+            mActivitiesByToken.remove(r.appToken);
+        }
+    }
+
+    /**
+     * Debugging aid: check the task and activity indexes against the
+     * stacks on every display.  Stacks that are not attached to a display
+     * cannot be reached from here, so entries for them are only checked
+     * for being self-consistent.
+     */
+    void validateIndexesLocked() {
+        int numActivities = 0;
+        for (int i = mTasksById.size() - 1; i >= 0; --i) {
+            final TaskRecord task = mTasksById.valueAt(i);
+            if (task.taskId != mTasksById.keyAt(i) || task.stack == null || !task.stack.getAllTasks().contains(task)) {
+                Slog.wtf(TAG, "Stale task index entry " + mTasksById.keyAt(i) + ": " + task);
+            }
+            for (int activityNdx = task.mActivities.size() - 1; activityNdx >= 0; --activityNdx) {
+                final ActivityRecord r = task.mActivities.get(activityNdx);
+                if (mActivitiesByToken.get(r.appToken) != r) {
+                    Slog.wtf(TAG, "Activity " + r + " in " + task + " missing from token index");
+                }
+                ++numActivities;
+            }
+        }
+        if (numActivities != mActivitiesByToken.size()) {
+            Slog.wtf(TAG, "Token index has " + mActivitiesByToken.size() + " activities, tasks have " + numActivities);
+        }
+        for (int displayNdx = mActivityDisplays.size() - 1; displayNdx >= 0; --displayNdx) {
+            final ArrayList<ActivityStack> stacks = mActivityDisplays.valueAt(displayNdx).mStacks;
             for (int stackNdx = stacks.size() - 1; stackNdx >= 0; --stackNdx) {
-                final ActivityRecord r = stacks.get(stackNdx).isInStackLocked(token);
-                if (r != null) {
-                    return r;
+                final ArrayList<TaskRecord> tasks = stacks.get(stackNdx).getAllTasks();
+                for (int taskNdx = tasks.size() - 1; taskNdx >= 0; --taskNdx) {
+                    final TaskRecord task = tasks.get(taskNdx);
+                    if (mTasksById.get(task.taskId) != task) {
+                        Slog.wtf(TAG, "Task " + task + " missing from task index");
+                    }
                 }
             }
         }
-        return null;
     }
 
     void setNextTaskId(int taskId) {
@@ -0,0 +1,392 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import java.util.AbstractList;
+import java.util.HashMap;
+import java.util.RandomAccess;
+
+/**
+ * The process LRU list used by the activity manager.  Processes are kept in
+ * three contiguous segments -- processes not otherwise of interest at the
+ * bottom, then processes hosting services, then processes hosting activities
+ * at the top -- and the first entry is the least recently used.
+ *
+ * <p>Internally this is a doubly linked list with a boundary node between
+ * each segment and a hash from process to node, so moving a process to the
+ * top of a segment, inserting it next to another process and removing it
+ * are all O(1).  Every node also carries an order label so that relative
+ * positions can be compared without walking the list.</p>
+ *
+ * <p>For the benefit of the many existing index-based loops the structure is
+ * also a read-only {@link java.util.List}; {@link #get} is served from an
+ * array snapshot that is rebuilt lazily after a mutation.</p>
+ */
+final class LruProcessList extends AbstractList<ProcessRecord> implements RandomAccess {
+    static final int SEGMENT_OTHER = 0;
+    static final int SEGMENT_SERVICE = 1;
+    static final int SEGMENT_ACTIVITY = 2;
+
+    private static final long ORDER_GAP = 1L << 20;
+
+    private static final class Node {
+        ProcessRecord app;      // null for the head and boundary nodes
+        int segment;            // segment this node belongs to (boundary: segment it opens)
+        long order;             // monotonically increasing from the head
+        Node prev;
+        Node next;
+    }
+
+    private final HashMap<ProcessRecord, Node> mNodes = new HashMap<ProcessRecord, Node>();
+
+    // Circular list: mHead, other..., mServiceBoundary, service..., mActivityBoundary,
+    // activity..., back to mHead.
+    private final Node mHead = new Node();
+    private final Node mServiceBoundary = new Node();
+    private final Node mActivityBoundary = new Node();
+
+    private int mServiceCount;
+    private int mActivityCount;
+
+    private ProcessRecord[] mSnapshot;
+
+    LruProcessList() {
+        mHead.segment = SEGMENT_OTHER;
+        mServiceBoundary.segment = SEGMENT_SERVICE;
+        mActivityBoundary.segment = SEGMENT_ACTIVITY;
+        mHead.next = mServiceBoundary;
+        mServiceBoundary.prev = mHead;
+        mServiceBoundary.next = mActivityBoundary;
+        mActivityBoundary.prev = mServiceBoundary;
+        mActivityBoundary.next = mHead;
+        mHead.prev = mActivityBoundary;
+        relabel();
+    }
+
+    @Override
+    public ProcessRecord get(int index) {
+        return snapshot()[index];
+    }
+
+    @Override
+    public int size() {
+        return mNodes.size();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return mNodes.containsKey(o);
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        if (!mNodes.containsKey(o)) {
+            return -1;
+        }
+        final ProcessRecord[] snapshot = snapshot();
+        for (int i = snapshot.length - 1; i >= 0; i--) {
+            if (snapshot[i] == o) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        // A process is never on the list twice.
+        return indexOf(o);
+    }
+
+    /**
+     * Index of the first process hosting activities; equal to {@link #size}
+     * if there are none.
+     */
+    int getActivityStart() {
+        return size() - mActivityCount;
+    }
+
+    /**
+     * Index of the first process hosting services (or activities, if there
+     * are no service processes).
+     */
+    int getServiceStart() {
+        return size() - mServiceCount - mActivityCount;
+    }
+
+    /**
+     * Returns the segment the process is in, or -1 if it is not on the list.
+     */
+    int getSegment(ProcessRecord app) {
+        final Node node = mNodes.get(app);
+        return node != null ? node.segment : -1;
+    }
+
+    /**
+     * The most recently used process on the whole list.
+     */
+    ProcessRecord getTop() {
+        return skipBoundariesDown(mHead.prev).app;
+    }
+
+    /**
+     * The most recently used process in the given segment, or null if empty.
+     */
+    ProcessRecord getSegmentTop(int segment) {
+        return segmentEnd(segment).prev.app;
+    }
+
+    /**
+     * The least recently used process in the given segment, or null if empty.
+     */
+    ProcessRecord getSegmentBottom(int segment) {
+        return segmentStart(segment).next.app;
+    }
+
+    /**
+     * The process immediately below the given one, regardless of segment.
+     */
+    ProcessRecord getPrev(ProcessRecord app) {
+        return skipBoundariesDown(mNodes.get(app).prev).app;
+    }
+
+    /**
+     * The process immediately above the given one, regardless of segment.
+     */
+    ProcessRecord getNext(ProcessRecord app) {
+        return skipBoundariesUp(mNodes.get(app).next).app;
+    }
+
+    /**
+     * Returns true if process a is less recently used (has a lower index)
+     * than process b.  Both must be on the list.
+     */
+    boolean isBefore(ProcessRecord a, ProcessRecord b) {
+        return mNodes.get(a).order < mNodes.get(b).order;
+    }
+
+    /**
+     * Adds the process as the most recently used entry of the segment.
+     */
+    void addToSegmentTop(ProcessRecord app, int segment) {
+        insertAfter(newNode(app, segment), segmentEnd(segment).prev);
+    }
+
+    /**
+     * Adds the process immediately below the anchor, in the anchor's segment.
+     */
+    void addBefore(ProcessRecord app, ProcessRecord anchor) {
+        final Node anchorNode = mNodes.get(anchor);
+        insertAfter(newNode(app, anchorNode.segment), anchorNode.prev);
+    }
+
+    /**
+     * Moves a process already on the list to immediately below the anchor,
+     * in the anchor's segment.
+     */
+    void moveBefore(ProcessRecord app, ProcessRecord anchor) {
+        unlinkProcess(app);
+        addBefore(app, anchor);
+    }
+
+    /**
+     * Exchanges the process with the one immediately below it.  Both must be
+     * in the same segment.
+     */
+    void swapWithPrev(ProcessRecord app) {
+        final Node node = mNodes.get(app);
+        final Node prev = node.prev;
+        final ProcessRecord other = prev.app;
+        prev.app = app;
+        node.app = other;
+        mNodes.put(app, prev);
+        mNodes.put(other, node);
+        mSnapshot = null;
+    }
+
+    /**
+     * Takes the process off the list without affecting any other process.
+     */
+    void unlinkProcess(ProcessRecord app) {
+        final Node node = mNodes.remove(app);
+        if (node == null) {
+            return;
+        }
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        adjustCount(node.segment, -1);
+        mSnapshot = null;
+    }
+
+    /**
+     * Takes the process off the list the way ActivityManagerService has
+     * always done it when a process goes away: if the process opened the
+     * activity (or service) section, the process just below it is pulled
+     * up into that section, so the section keeps its size.  The iteration
+     * order of the remaining processes is unaffected.
+     */
+    void removeProcess(ProcessRecord app) {
+        final Node node = mNodes.get(app);
+        if (node == null) {
+            return;
+        }
+        final Node activityStart = skipBoundariesUp(mActivityBoundary.next);
+        final Node serviceStart = skipBoundariesUp(mServiceBoundary.next);
+        if (node == activityStart) {
+            pullBelowInto(mActivityBoundary);
+        } else if (node == serviceStart) {
+            pullBelowInto(mServiceBoundary);
+        }
+        unlinkProcess(app);
+    }
+
+    private void pullBelowInto(Node boundary) {
+        // Walk past an empty service section so the boundaries stay stacked.
+        Node below = boundary.prev;
+        while (below.app == null && below != mHead) {
+            below = below.prev;
+        }
+        if (below == mHead) {
+            // Nothing below to pull up; the old index arithmetic would have
+            // gone negative here.
+            return;
+        }
+        final int segment = boundary.segment;
+        while (below.next != boundary) {
+            // Move every boundary between below and the target down past it.
+            swapWithNextBoundary(below);
+        }
+        swapWithNextBoundary(below);
+        adjustCount(below.segment, -1);
+        below.segment = segment;
+        adjustCount(segment, 1);
+        mSnapshot = null;
+    }
+
+    private void swapWithNextBoundary(Node node) {
+        final Node boundary = node.next;
+        final long order = node.order;
+        node.order = boundary.order;
+        boundary.order = order;
+        node.prev.next = boundary;
+        boundary.prev = node.prev;
+        node.next = boundary.next;
+        boundary.next.prev = node;
+        boundary.next = node;
+        node.prev = boundary;
+    }
+
+    private Node newNode(ProcessRecord app, int segment) {
+        final Node node = new Node();
+        node.app = app;
+        node.segment = segment;
+        mNodes.put(app, node);
+        adjustCount(segment, 1);
+        mSnapshot = null;
+        return node;
+    }
+
+    private void insertAfter(Node node, Node after) {
+        node.prev = after;
+        node.next = after.next;
+        after.next.prev = node;
+        after.next = node;
+        if (!assignOrder(node)) {
+            relabel();
+        }
+    }
+
+    private boolean assignOrder(Node node) {
+        final long low = node.prev.order;
+        if (node.next == mHead) {
+            if (low > Long.MAX_VALUE - ORDER_GAP) {
+                return false;
+            }
+            node.order = low + ORDER_GAP;
+            return true;
+        }
+        final long high = node.next.order;
+        if (high - low < 2) {
+            return false;
+        }
+        node.order = low + (high - low) / 2;
+        return true;
+    }
+
+    private void relabel() {
+        long order = 0;
+        Node node = mHead;
+        do {
+            node.order = order;
+            order += ORDER_GAP;
+            node = node.next;
+        } while (node != mHead);
+    }
+
+    private void adjustCount(int segment, int delta) {
+        if (segment == SEGMENT_ACTIVITY) {
+            mActivityCount += delta;
+        } else if (segment == SEGMENT_SERVICE) {
+            mServiceCount += delta;
+        }
+    }
+
+    private Node segmentStart(int segment) {
+        switch (segment) {
+            case SEGMENT_ACTIVITY: return mActivityBoundary;
+            case SEGMENT_SERVICE: return mServiceBoundary;
+            default: return mHead;
+        }
+    }
+
+    private Node segmentEnd(int segment) {
+        switch (segment) {
+            case SEGMENT_OTHER: return mServiceBoundary;
+            case SEGMENT_SERVICE: return mActivityBoundary;
+            default: return mHead;
+        }
+    }
+
+    private Node skipBoundariesDown(Node node) {
+        while (node.app == null && node != mHead) {
+            node = node.prev;
+        }
+        return node;
+    }
+
+    private Node skipBoundariesUp(Node node) {
+        while (node.app == null && node != mHead) {
+            node = node.next;
+        }
+        return node;
+    }
+
+    private ProcessRecord[] snapshot() {
+        ProcessRecord[] snapshot = mSnapshot;
+        if (snapshot == null) {
+            snapshot = new ProcessRecord[mNodes.size()];
+            int i = 0;
+            for (Node node = mHead.next; node != mHead; node = node.next) {
+                if (node.app != null) {
+                    snapshot[i++] = node.app;
+                }
+            }
+            mSnapshot = snapshot;
+        }
+        return snapshot;
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.SparseArray;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
+/**
+ * Reads per-process statistics from /proc for many pids in one pass.
+ *
+ * <p>The stat file of each pid is opened once and re-read from offset zero
+ * on every pass, which procfs regenerates, so a sample costs one pread()
+ * rather than an open, read and close.  At most {@link #DEFAULT_MAX_OPEN_FDS}
+ * files are kept open that way; the stat files of any further pids are
+ * opened and closed again on every pass.  All parsing is done in place in a
+ * buffer allocated once, without creating strings.  A descriptor is closed
+ * as soon as a read fails, which is what happens once its process has died,
+ * and on the next pass that no longer lists the pid; it never follows the
+ * pid to a new process.  PSS is not read here: {@link android.os.Debug#getPss}
+ * also counts the graphics memory that memtrack reports, which smaps does
+ * not show.</p>
+ *
+ * <p>The activity manager samples from the background thread and dumps from
+ * binder threads, so everything is synchronized on the sampler.</p>
+ */
+final class ProcStatsSampler {
+    private static final int STAT_BUFFER_SIZE = 1024;
+
+    // How many stat files are kept open between passes.
+    static final int DEFAULT_MAX_OPEN_FDS = 32;
+
+    // Fields of /proc/<pid>/stat, counted from 1 as in proc(5).
+    private static final int STAT_MINFLT = 10;
+    private static final int STAT_MAJFLT = 12;
+    private static final int STAT_UTIME = 14;
+    private static final int STAT_STIME = 15;
+    private static final int STAT_VSIZE = 23;
+    private static final int STAT_RSS = 24;
+
+    /**
+     * What was last read for one pid.  CPU times are in milliseconds, vsize
+     * in bytes, everything else that is a size in kB.
+     */
+    static final class PidStats {
+        final int pid;
+        FileDescriptor statFd;
+        int lastPass;
+        boolean haveStat;
+        long utime;
+        long stime;
+        long relUtime;
+        long relStime;
+        long minorFaults;
+        long majorFaults;
+        long vsize;
+        long rss;
+
+        PidStats(int _pid) {
+            pid = _pid;
+        }
+    }
+
+    private final String mProcRoot;
+    private final int mMaxOpenFds;
+    private final long mMsPerTick;
+    private final long mPageSizeKb;
+    private final SparseArray<PidStats> mStats = new SparseArray<PidStats>();
+    private final byte[] mStatBuffer = new byte[STAT_BUFFER_SIZE];
+    private int mPass;
+    private int mOpenFds;
+
+    private long mNumOpens;
+    private long mNumReads;
+    private long mNumFailures;
+    private long mLastPassTime;
+    private int mLastPassCount;
+
+    ProcStatsSampler() {
+        this("/proc", DEFAULT_MAX_OPEN_FDS);
+    }
+
+    /**
+     * @param procRoot   where procfs is mounted; anything laid out the same
+     *                   way will do.
+     * @param maxOpenFds how many stat files to keep open between passes.
+     */
+    ProcStatsSampler(String procRoot, int maxOpenFds) {
+        mProcRoot = procRoot;
+        mMaxOpenFds = maxOpenFds;
+        mMsPerTick = 1000 / Os.sysconf(OsConstants._SC_CLK_TCK);
+        mPageSizeKb = Os.sysconf(OsConstants._SC_PAGESIZE) / 1024;
+    }
+
+    /**
+     * Reads /proc/&lt;pid&gt;/stat for the first count pids.  Pids that are not
+     * in the list are forgotten and their files closed.
+     *
+     * @return the number of pids that could be read.
+     */
+    synchronized int sampleStats(int[] pids, int count) {
+        final long start = System.nanoTime();
+        final int pass = ++mPass;
+        for (int i = 0; i < count; i++) {
+            final int pid = pids[i];
+            PidStats st = mStats.get(pid);
+            if (st == null) {
+                st = new PidStats(pid);
+                mStats.put(pid, st);
+            }
+            st.lastPass = pass;
+        }
+        // Forget the pids that are gone first, so the files they free can
+        // be kept open for the others.
+        for (int i = mStats.size() - 1; i >= 0; i--) {
+            final PidStats st = mStats.valueAt(i);
+            if (st.lastPass != pass) {
+                closeFiles(st);
+                mStats.removeAt(i);
+            }
+        }
+        int numRead = 0;
+        for (int i = 0; i < count; i++) {
+            if (readStat(mStats.get(pids[i]))) {
+                numRead++;
+            }
+        }
+        mLastPassTime = System.nanoTime() - start;
+        mLastPassCount = count;
+        return numRead;
+    }
+
+    /**
+     * What the last pass read for the pid, or null.  Only valid until the
+     * next pass.
+     */
+    synchronized PidStats getStats(int pid) {
+        final PidStats st = mStats.get(pid);
+        return st != null && st.haveStat ? st : null;
+    }
+
+    /**
+     * How many stat files are open between passes.
+     */
+    synchronized int getOpenFdCount() {
+        return mOpenFds;
+    }
+
+    /**
+     * Closes every file that is still open.
+     */
+    synchronized void close() {
+        for (int i = mStats.size() - 1; i >= 0; i--) {
+            closeFiles(mStats.valueAt(i));
+        }
+        mStats.clear();
+    }
+
+    private boolean readStat(PidStats st) {
+        if (st.statFd == null) {
+            st.statFd = open(st.pid, "stat");
+            if (st.statFd == null) {
+                st.haveStat = false;
+                return false;
+            }
+            mOpenFds++;
+        }
+        final byte[] buf = mStatBuffer;
+        final int len = pread(st.statFd, buf, 0, buf.length, 0);
+        if (len <= 0) {
+            closeFiles(st);
+            return false;
+        }
+        if (mOpenFds > mMaxOpenFds) {
+            // Over the limit: read it, but don't keep it.
+            closeFd(st);
+        }
+
+        // The command name is in parentheses and may itself contain spaces
+        // and parentheses, so start after the last ')'.
+        int pos = len - 1;
+        while (pos >= 0 && buf[pos] != ')') {
+            pos--;
+        }
+        if (pos < 0) {
+            mNumFailures++;
+            return false;
+        }
+        pos += 2;
+
+        long utime = 0, stime = 0, minflt = 0, majflt = 0, vsize = 0, rss = 0;
+        for (int field = 3; field <= STAT_RSS && pos < len; field++) {
+            final int end = skipToSpace(buf, pos, len);
+            switch (field) {
+                case STAT_MINFLT:
+                    minflt = parseLong(buf, pos, end);
+                    break;
+                case STAT_MAJFLT:
+                    majflt = parseLong(buf, pos, end);
+                    break;
+                case STAT_UTIME:
+                    utime = parseLong(buf, pos, end);
+                    break;
+                case STAT_STIME:
+                    stime = parseLong(buf, pos, end);
+                    break;
+                case STAT_VSIZE:
+                    vsize = parseLong(buf, pos, end);
+                    break;
+                case STAT_RSS:
+                    rss = parseLong(buf, pos, end);
+                    break;
+            }
+            pos = end + 1;
+        }
+
+        utime *= mMsPerTick;
+        stime *= mMsPerTick;
+        if (st.haveStat) {
+            st.relUtime = utime - st.utime;
+            st.relStime = stime - st.stime;
+        }
+        st.utime = utime;
+        st.stime = stime;
+        st.minorFaults = minflt;
+        st.majorFaults = majflt;
+        st.vsize = vsize;
+        st.rss = rss * mPageSizeKb;
+        st.haveStat = true;
+        return true;
+    }
+
+    private FileDescriptor open(int pid, String file) {
+        final String path = mProcRoot + "/" + pid + "/" + file;
+        try {
+            mNumOpens++;
+            return Os.open(path, OsConstants.O_RDONLY, 0);
+        } catch (ErrnoException e) {
+            // Most likely the process is gone.
+            mNumFailures++;
+            return null;
+        }
+    }
+
+    private int pread(FileDescriptor fd, byte[] buf, int byteOffset, int byteCount, long offset) {
+        try {
+            mNumReads++;
+            return Os.pread(fd, buf, byteOffset, byteCount, offset);
+        } catch (ErrnoException e) {
+            mNumFailures++;
+            return -1;
+        }
+    }
+
+    private void closeFiles(PidStats st) {
+        closeFd(st);
+        st.haveStat = false;
+    }
+
+    private void closeFd(PidStats st) {
+        if (st.statFd != null) {
+            st.statFd = closeQuietly(st.statFd);
+            mOpenFds--;
+        }
+    }
+
+    private static FileDescriptor closeQuietly(FileDescriptor fd) {
+        if (fd != null) {
+            try {
+                Os.close(fd);
+            } catch (ErrnoException e) {
+            }
+        }
+        return null;
+    }
+
+    private static int skipToSpace(byte[] buf, int pos, int end) {
+        while (pos < end && buf[pos] != ' ' && buf[pos] != '\n') {
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * Parses the decimal number at the start of buf[pos..end), stopping at the
+     * first character that is not a digit.
+     */
+    private static long parseLong(byte[] buf, int pos, int end) {
+        boolean negative = false;
+        if (pos < end && buf[pos] == '-') {
+            negative = true;
+            pos++;
+        }
+        long value = 0;
+        while (pos < end) {
+            final int digit = buf[pos] - '0';
+            if (digit < 0 || digit > 9) {
+                break;
+            }
+            value = value * 10 + digit;
+            pos++;
+        }
+        return negative ? -value : value;
+    }
+
+    synchronized void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix);
+        pw.print("Proc sampler: ");
+        pw.print(mStats.size());
+        pw.print(" pids, ");
+        pw.print(mOpenFds);
+        pw.print(" open, opens=");
+        pw.print(mNumOpens);
+        pw.print(" reads=");
+        pw.print(mNumReads);
+        pw.print(" failures=");
+        pw.println(mNumFailures);
+        pw.print(prefix);
+        pw.print("  last pass: ");
+        pw.print(mLastPassCount);
+        pw.print(" pids in ");
+        pw.print(mLastPassTime / 1000);
+        pw.println("us");
+    }
+}
@@ -124,6 +124,10 @@ final class ProcessRecord {
 	long lastWakeTime;          // How long proc held wake lock at last check
 	long lastCpuTime;           // How long proc has run CPU at last check
 	long curCpuTime;            // How long proc has run CPU most recently
+	long lastStatTime;          // When /proc/<pid>/stat was last sampled
+	long statCpuTime;           // User + system CPU time at that sample, in ms
+	long statRss;               // Resident set size at that sample, in kB
+	long statMajorFaults;       // Major page faults at that sample
 	long lastRequestedGc;       // When we last asked the app to do a gc
 	long lastLowMemory;         // When we last told the app that memory is low
 	boolean reportLowMemory;    // Set to true when waiting to report low mem
@@ -278,6 +282,17 @@ final class ProcessRecord {
 		pw.print(lastPss);
 		pw.print(" lastCachedPss=");
 		pw.println(lastCachedPss);
+		if (lastStatTime != 0) {
+			pw.print(prefix);
+			pw.print("lastStatTime=");
+			TimeUtils.formatDuration(lastStatTime, now, pw);
+			pw.print(" statCpuTime=");
+			pw.print(statCpuTime);
+			pw.print(" statRss=");
+			pw.print(statRss);
+			pw.print(" statMajorFaults=");
+			pw.println(statMajorFaults);
+		}
 		pw.print(prefix);
 		pw.print("cached=");
 		pw.print(cached);
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.app.IActivityManager.ContentProviderHolder;
+import android.content.IContentProvider;
+import android.content.pm.ProviderInfo;
+import android.os.IBinder;
+
+import java.io.PrintWriter;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free lookup of content providers that are already published and that
+ * the calling process already holds a connection to.
+ *
+ * <p>Entries are keyed by (authority, userId) and then by the binder of the
+ * client's application thread.  Each entry carries the references taken
+ * through the fast path that have not yet been folded into its
+ * {@link ContentProviderConnection}; they are packed into one AtomicLong
+ * (stable count in the high word, unstable count in the low word) so a
+ * lookup is a single compare-and-set.  A negative value means the entry was
+ * closed and the caller has to take the slow path.</p>
+ *
+ * <p>Entries are only ever added, folded and closed with the activity
+ * manager lock held, so the connection's own counts stay guarded by that
+ * lock; any code that reads or changes those counts must call
+ * {@link #foldLocked} first.  The provider binder handed out is the one
+ * published when the entry was added, never read from the
+ * {@link ContentProviderRecord}, which the dying process cleanup changes
+ * under the lock; the cleanup closes the entry first.</p>
+ *
+ * <p>Only a client that already holds a reference is served, so the slow
+ * path's extra work for a first reference, bumping the provider process on
+ * the LRU list and raising its oom adj, is never due here.  Its check that
+ * the provider process is still alive comes down to the provider binder
+ * not having died; if it has, the reference is given back where possible
+ * and the caller takes the slow path, which handles the death.</p>
+ */
+final class ProviderFastPath {
+    private static final long CLOSED = -1;
+    private static final long STABLE_ONE = 1L << 32;
+    private static final long UNSTABLE_MASK = 0xffffffffL;
+
+    // Stop taking references lock-free well before either half could
+    // overflow; the next slow path lookup folds them.
+    private static final long MAX_PENDING = 1 << 20;
+
+    private static final class Key {
+        final String authority;
+        final int userId;
+        final int hashCode;
+
+        Key(String _authority, int _userId) {
+            authority = _authority;
+            userId = _userId;
+            hashCode = 31 * _authority.hashCode() + _userId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return userId == other.userId && authority.equals(other.authority);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private static final class Entry {
+        final Key key;
+        final IBinder client;
+        final ContentProviderRecord cpr;
+        final ContentProviderConnection conn;
+        // What cpr held when the entry was added.
+        final ProviderInfo info;
+        final IContentProvider provider;
+        final boolean noReleaseNeeded;
+        final AtomicLong pending = new AtomicLong();
+
+        Entry(Key _key, IBinder _client, ContentProviderRecord _cpr, ContentProviderConnection _conn) {
+            key = _key;
+            client = _client;
+            cpr = _cpr;
+            conn = _conn;
+            info = _cpr.info;
+            provider = _cpr.provider;
+            noReleaseNeeded = _cpr.noReleaseNeeded;
+        }
+
+        ContentProviderHolder newHolder() {
+            final ContentProviderHolder holder = new ContentProviderHolder(info);
+            holder.provider = provider;
+            holder.noReleaseNeeded = noReleaseNeeded;
+            holder.connection = conn;
+            return holder;
+        }
+
+        boolean acquire(boolean stable) {
+            for (;;) {
+                final long cur = pending.get();
+                if (cur < 0) {
+                    return false;
+                }
+                final long next;
+                if (stable) {
+                    if ((cur >>> 32) >= MAX_PENDING) {
+                        return false;
+                    }
+                    next = cur + STABLE_ONE;
+                } else {
+                    if ((cur & UNSTABLE_MASK) >= MAX_PENDING) {
+                        return false;
+                    }
+                    next = cur + 1;
+                }
+                if (pending.compareAndSet(cur, next)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Give back a reference taken by acquire.  Returns false if it was
+         * folded into the connection in the meantime, so it now counts
+         * there and can only be released by the client.
+         */
+        boolean release(boolean stable) {
+            for (;;) {
+                final long cur = pending.get();
+                if (cur < 0 || (stable ? (cur >>> 32) == 0 : (cur & UNSTABLE_MASK) == 0)) {
+                    return false;
+                }
+                if (pending.compareAndSet(cur, stable ? cur - STABLE_ONE : cur - 1)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    private final ConcurrentHashMap<Key, ConcurrentHashMap<IBinder, Entry>> mPublished
+            = new ConcurrentHashMap<Key, ConcurrentHashMap<IBinder, Entry>>();
+
+    // Same entries, by connection, for the owner of the lock.
+    private final IdentityHashMap<ContentProviderConnection, Entry> mByConnection
+            = new IdentityHashMap<ContentProviderConnection, Entry>();
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /**
+     * Try to hand out a provider without the activity manager lock.  Returns
+     * null if the caller must go through the slow path.
+     */
+    ContentProviderHolder acquire(IBinder client, String authority, int userId, boolean stable) {
+        final ConcurrentHashMap<IBinder, Entry> clients = mPublished.get(new Key(authority, userId));
+        final Entry entry = clients != null ? clients.get(client) : null;
+        if (entry == null || entry.provider == null || entry.conn.dead || !entry.acquire(stable)) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+        if (!entry.provider.asBinder().isBinderAlive() && entry.release(stable)) {
+            // Let the slow path deal with the dead provider.  If the
+            // reference was folded already the client owns it, and learns
+            // of the death from the provider like any other client.
+            mMisses.incrementAndGet();
+            return null;
+        }
+        mHits.incrementAndGet();
+        return entry.newHolder();
+    }
+
+    /**
+     * Make the connection available to future lookups of the authority by
+     * the same client.
+     */
+    void putLocked(IBinder client, String authority, int userId, ContentProviderRecord cpr, ContentProviderConnection conn) {
+        if (mByConnection.containsKey(conn)) {
+            return;
+        }
+        final Key key = new Key(authority, userId);
+        ConcurrentHashMap<IBinder, Entry> clients = mPublished.get(key);
+        if (clients == null) {
+            clients = new ConcurrentHashMap<IBinder, Entry>(4);
+            mPublished.put(key, clients);
+        }
+        final Entry entry = new Entry(key, client, cpr, conn);
+        final Entry old = clients.put(client, entry);
+        if (old != null) {
+            // The client now uses another connection under this name.
+            mByConnection.remove(old.conn);
+            fold(old.conn, old.pending.getAndSet(CLOSED));
+        }
+        mByConnection.put(conn, entry);
+    }
+
+    /**
+     * Move references taken through the fast path into the connection's
+     * counts.
+     */
+    void foldLocked(ContentProviderConnection conn) {
+        final Entry entry = mByConnection.get(conn);
+        if (entry != null) {
+            final long pending = entry.pending.getAndSet(0);
+            if (pending > 0) {
+                fold(conn, pending);
+            }
+        }
+    }
+
+    /**
+     * Stop handing out the connection and fold whatever was taken through
+     * the fast path up to now.  Returns true if that changed its counts.
+     */
+    boolean closeLocked(ContentProviderConnection conn) {
+        final Entry entry = mByConnection.remove(conn);
+        if (entry == null) {
+            return false;
+        }
+        final ConcurrentHashMap<IBinder, Entry> clients = mPublished.get(entry.key);
+        if (clients != null) {
+            clients.remove(entry.client, entry);
+            if (clients.isEmpty()) {
+                mPublished.remove(entry.key, clients);
+            }
+        }
+        final long pending = entry.pending.getAndSet(CLOSED);
+        if (pending > 0) {
+            fold(conn, pending);
+            return true;
+        }
+        return false;
+    }
+
+    private static void fold(ContentProviderConnection conn, long pending) {
+        final int stable = (int) (pending >>> 32);
+        final int unstable = (int) (pending & UNSTABLE_MASK);
+        conn.stableCount += stable;
+        conn.numStableIncs += stable;
+        conn.unstableCount += unstable;
+        conn.numUnstableIncs += unstable;
+    }
+
+    void dumpLocked(PrintWriter pw, String prefix) {
+        pw.print(prefix);
+        pw.print("Provider fast path: ");
+        pw.print(mByConnection.size());
+        pw.print(" connections, hits=");
+        pw.print(mHits.get());
+        pw.print(" misses=");
+        pw.println(mMisses.get());
+    }
+}
@@ -0,0 +1,465 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.app.ActivityManager.RecentTaskInfo;
+import android.util.SparseArray;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * The recent tasks, most recent first.
+ *
+ * <p>Tasks are kept in a doubly linked list, indexed by record and by task
+ * id, so moving a task to the front and removing one are constant time, and
+ * moving a run of affiliated tasks to the front is linear in the length of
+ * the run.  Each user's tasks are also linked in the same order so that
+ * per-user walks only visit that user's tasks; a task stays filed under the
+ * user it had when it was added.  Inserting anywhere but the front walks
+ * back to the closest task of the same user to link it there, and
+ * inserting by position may first have to rebuild the position array.</p>
+ *
+ * <p>Positional access still works, through an array of the list that is
+ * rebuilt lazily after the order changes.  Removing tasks, including while
+ * walking the list backwards by index, keeps the array usable.</p>
+ *
+ * <p>The list also holds the last result built for
+ * {@link ActivityManagerService#getRecentTasks}, keyed by its arguments and
+ * the set of users it covered.  It is dropped whenever the list changes or
+ * {@link #invalidate} is called, which the activity manager does whenever a
+ * task in recents changes in a way callers can see.  The infos in it are
+ * never handed out themselves, only copies.</p>
+ *
+ * <p>All access is with the activity manager lock held.</p>
+ */
+final class RecentTaskList extends AbstractList<TaskRecord> {
+    private static final class Node {
+        final TaskRecord task;
+        final int userId;
+        Node prev;
+        Node next;
+        Node userPrev;
+        Node userNext;
+        // Position in mArray, valid if below mNumValidPositions.
+        int index;
+
+        Node(TaskRecord _task) {
+            task = _task;
+            userId = _task.userId;
+        }
+    }
+
+    private final IdentityHashMap<TaskRecord, Node> mNodes = new IdentityHashMap<TaskRecord, Node>();
+    private final SparseArray<Node> mById = new SparseArray<Node>();
+    private final SparseArray<Node> mUserHeads = new SparseArray<Node>();
+    private Node mHead;
+    private Node mTail;
+
+    private final ArrayList<Node> mArray = new ArrayList<Node>();
+    private boolean mArrayValid = true;
+    private int mNumValidPositions;
+    private int mNumArrayRebuilds;
+
+    // Last getRecentTasks() result and the arguments it was built for.
+    private ArrayList<RecentTaskInfo> mCachedInfos;
+    private int mCachedUserId;
+    private int mCachedFlags;
+    private int mCachedMaxNum;
+    private Set<Integer> mCachedUsers;
+    private int mCachedCallingUid;
+    private boolean mCachedDetailed;
+    private int mNumCacheHits;
+    private int mNumCacheMisses;
+
+    RecentTaskList() {
+    }
+
+    RecentTaskList(Collection<TaskRecord> tasks) {
+        for (TaskRecord task : tasks) {
+            add(task);
+        }
+    }
+
+    @Override
+    public int size() {
+        return mNodes.size();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return mNodes.containsKey(o);
+    }
+
+    @Override
+    public TaskRecord get(int index) {
+        if (index < 0 || index >= mNodes.size()) {
+            throw new IndexOutOfBoundsException("index=" + index + " size=" + mNodes.size());
+        }
+        if (index == 0) {
+            return mHead.task;
+        }
+        ensureArray();
+        return mArray.get(index).task;
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        final Node node = mNodes.get(o);
+        if (node == null) {
+            return -1;
+        }
+        if (!mArrayValid || node.index >= mNumValidPositions || mArray.get(node.index) != node) {
+            rebuildArray();
+        }
+        return node.index;
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        return indexOf(o);
+    }
+
+    @Override
+    public boolean add(TaskRecord task) {
+        insertBefore(null, task);
+        return true;
+    }
+
+    @Override
+    public void add(int index, TaskRecord task) {
+        if (index < 0 || index > mNodes.size()) {
+            throw new IndexOutOfBoundsException("index=" + index + " size=" + mNodes.size());
+        }
+        if (index == mNodes.size()) {
+            insertBefore(null, task);
+        } else if (index == 0) {
+            insertBefore(mHead, task);
+        } else {
+            ensureArray();
+            insertBefore(mArray.get(index), task);
+        }
+    }
+
+    @Override
+    public TaskRecord remove(int index) {
+        final TaskRecord task = get(index);
+        remove(task);
+        return task;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        final Node node = mNodes.remove(o);
+        if (node == null) {
+            return false;
+        }
+        if (mById.get(node.task.taskId) == node) {
+            mById.remove(node.task.taskId);
+        }
+        unlink(node);
+        unlinkUser(node);
+        if (mArrayValid) {
+            final int index;
+            if (node.index < mNumValidPositions && mArray.get(node.index) == node) {
+                index = node.index;
+            } else {
+                index = mArray.indexOf(node);
+            }
+            mArray.remove(index);
+            // Everything before the removed task keeps its position.
+            mNumValidPositions = Math.min(mNumValidPositions, index);
+        }
+        changed();
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        mNodes.clear();
+        mById.clear();
+        mUserHeads.clear();
+        mHead = mTail = null;
+        mArray.clear();
+        mArrayValid = true;
+        mNumValidPositions = 0;
+        changed();
+    }
+
+    TaskRecord first() {
+        return mHead != null ? mHead.task : null;
+    }
+
+    TaskRecord last() {
+        return mTail != null ? mTail.task : null;
+    }
+
+    TaskRecord removeLast() {
+        final TaskRecord task = last();
+        if (task != null) {
+            remove(task);
+        }
+        return task;
+    }
+
+    /**
+     * The task after the given one, or null.
+     */
+    TaskRecord next(TaskRecord task) {
+        final Node node = mNodes.get(task);
+        return node != null && node.next != null ? node.next.task : null;
+    }
+
+    /**
+     * The task before the given one, or null.
+     */
+    TaskRecord prev(TaskRecord task) {
+        final Node node = mNodes.get(task);
+        return node != null && node.prev != null ? node.prev.task : null;
+    }
+
+    /**
+     * The user's most recent task, or null.
+     */
+    TaskRecord firstForUser(int userId) {
+        final Node node = mUserHeads.get(userId);
+        return node != null ? node.task : null;
+    }
+
+    /**
+     * The next task of the same user as the given one, or null.
+     */
+    TaskRecord nextForUser(TaskRecord task) {
+        final Node node = mNodes.get(task);
+        return node != null && node.userNext != null ? node.userNext.task : null;
+    }
+
+    TaskRecord taskForId(int taskId) {
+        final Node node = mById.get(taskId);
+        return node != null ? node.task : null;
+    }
+
+    void addFirst(TaskRecord task) {
+        insertBefore(mHead, task);
+    }
+
+    /**
+     * Insert the task right after other, which must be in the list.
+     */
+    void addAfter(TaskRecord other, TaskRecord task) {
+        insertBefore(mNodes.get(other).next, task);
+    }
+
+    /**
+     * Insert the task right before other, or at the end if other is null.
+     */
+    void addBefore(TaskRecord other, TaskRecord task) {
+        insertBefore(other != null ? mNodes.get(other) : null, task);
+    }
+
+    void moveToFront(TaskRecord task) {
+        moveRangeToFront(task, task);
+    }
+
+    /**
+     * Move the run of tasks from first through last, in their current
+     * order, to the front.  last must not be before first.
+     */
+    void moveRangeToFront(TaskRecord first, TaskRecord last) {
+        final Node firstNode = mNodes.get(first);
+        final Node lastNode = mNodes.get(last);
+        if (firstNode == mHead) {
+            return;
+        }
+        // Within each user the run is contiguous as well, so moving its
+        // tasks to the front of their user from the back keeps their order.
+        for (Node node = lastNode; ; node = node.prev) {
+            unlinkUser(node);
+            linkUserFirst(node);
+            if (node == firstNode) {
+                break;
+            }
+        }
+        firstNode.prev.next = lastNode.next;
+        if (lastNode.next != null) {
+            lastNode.next.prev = firstNode.prev;
+        } else {
+            mTail = firstNode.prev;
+        }
+        firstNode.prev = null;
+        lastNode.next = mHead;
+        mHead.prev = lastNode;
+        mHead = firstNode;
+        mArrayValid = false;
+        changed();
+    }
+
+    /**
+     * Forget the cached getRecentTasks() result.
+     */
+    void invalidate() {
+        mCachedInfos = null;
+    }
+
+    /**
+     * Returns the cached getRecentTasks() result if it was built for the
+     * same arguments and users, otherwise null.  callingUid is only
+     * compared for callers that do not see every task.  The result must
+     * not be modified or handed out; callers get copies.
+     */
+    ArrayList<RecentTaskInfo> getCachedInfos(int userId, Set<Integer> users, int flags, int maxNum, int callingUid, boolean detailed) {
+        final ArrayList<RecentTaskInfo> infos = mCachedInfos;
+        if (infos != null && mCachedUserId == userId && mCachedUsers.equals(users) && mCachedFlags == flags && mCachedMaxNum == maxNum && mCachedCallingUid == callingUid && mCachedDetailed == detailed) {
+            mNumCacheHits++;
+            return infos;
+        }
+        mNumCacheMisses++;
+        return null;
+    }
+
+    void setCachedInfos(ArrayList<RecentTaskInfo> infos, int userId, Set<Integer> users, int flags, int maxNum, int callingUid, boolean detailed) {
+        mCachedInfos = infos;
+        mCachedUserId = userId;
+        mCachedUsers = users;
+        mCachedFlags = flags;
+        mCachedMaxNum = maxNum;
+        mCachedCallingUid = callingUid;
+        mCachedDetailed = detailed;
+    }
+
+    String getStatsString() {
+        return "infoCacheHits=" + mNumCacheHits + " infoCacheMisses=" + mNumCacheMisses + " arrayRebuilds=" + mNumArrayRebuilds;
+    }
+
+    private void insertBefore(Node before, TaskRecord task) {
+        if (mNodes.containsKey(task)) {
+            throw new IllegalStateException("Task already in recents: " + task);
+        }
+        final Node node = new Node(task);
+        mNodes.put(task, node);
+        mById.put(task.taskId, node);
+
+        if (before == null) {
+            node.prev = mTail;
+            if (mTail != null) {
+                mTail.next = node;
+            } else {
+                mHead = node;
+            }
+            mTail = node;
+            if (mArrayValid) {
+                node.index = mArray.size();
+                mArray.add(node);
+                if (mNumValidPositions == node.index) {
+                    mNumValidPositions++;
+                }
+            }
+        } else {
+            node.next = before;
+            node.prev = before.prev;
+            if (before.prev != null) {
+                before.prev.next = node;
+            } else {
+                mHead = node;
+            }
+            before.prev = node;
+            mArrayValid = false;
+        }
+
+        // The user's previous task is the closest one before this with the
+        // same user.
+        Node userPrev = node.prev;
+        while (userPrev != null && userPrev.userId != node.userId) {
+            userPrev = userPrev.prev;
+        }
+        if (userPrev == null) {
+            linkUserFirst(node);
+        } else {
+            node.userPrev = userPrev;
+            node.userNext = userPrev.userNext;
+            if (userPrev.userNext != null) {
+                userPrev.userNext.userPrev = node;
+            }
+            userPrev.userNext = node;
+        }
+        changed();
+    }
+
+    private void unlink(Node node) {
+        if (node.prev != null) {
+            node.prev.next = node.next;
+        } else {
+            mHead = node.next;
+        }
+        if (node.next != null) {
+            node.next.prev = node.prev;
+        } else {
+            mTail = node.prev;
+        }
+        node.prev = node.next = null;
+    }
+
+    private void unlinkUser(Node node) {
+        if (node.userPrev != null) {
+            node.userPrev.userNext = node.userNext;
+        } else if (node.userNext != null) {
+            mUserHeads.put(node.userId, node.userNext);
+        } else {
+            mUserHeads.remove(node.userId);
+        }
+        if (node.userNext != null) {
+            node.userNext.userPrev = node.userPrev;
+        }
+        node.userPrev = node.userNext = null;
+    }
+
+    private void linkUserFirst(Node node) {
+        final Node head = mUserHeads.get(node.userId);
+        node.userPrev = null;
+        node.userNext = head;
+        if (head != null) {
+            head.userPrev = node;
+        }
+        mUserHeads.put(node.userId, node);
+    }
+
+    private void ensureArray() {
+        if (!mArrayValid) {
+            rebuildArray();
+        }
+    }
+
+    private void rebuildArray() {
+        mArray.clear();
+        int index = 0;
+        for (Node node = mHead; node != null; node = node.next) {
+            node.index = index++;
+            mArray.add(node);
+        }
+        mArrayValid = true;
+        mNumValidPositions = index;
+        mNumArrayRebuilds++;
+    }
+
+    private void changed() {
+        modCount++;
+        mCachedInfos = null;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.content.Context;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Which client processes are bound to which services, indexed in both
+ * directions.
+ *
+ * <p>However many connections a client has to a service, the pair is one
+ * edge that counts them, so connecting and disconnecting are a couple of
+ * hash lookups and the queries below visit each client or service once
+ * rather than every connection.  An edge also counts the connections that
+ * can raise the service's importance, that is those not bound with
+ * {@link Context#BIND_WAIVE_PRIORITY} and not yet marked
+ * {@link ConnectionRecord#serviceDead}, which is what the oom adj code
+ * follows.</p>
+ *
+ * <p>Guarded by the activity manager lock.</p>
+ */
+final class ServiceConnectionGraph {
+    private static final class Edge {
+        final ProcessRecord client;
+        final ServiceRecord service;
+        int count;
+        int priorityCount;
+
+        Edge(ProcessRecord _client, ServiceRecord _service) {
+            client = _client;
+            service = _service;
+        }
+    }
+
+    // Every connection counted, so removing one twice is harmless.
+    private final HashSet<ConnectionRecord> mConnections = new HashSet<ConnectionRecord>();
+    private final HashMap<ProcessRecord, HashMap<ServiceRecord, Edge>> mByClient = new HashMap<ProcessRecord, HashMap<ServiceRecord, Edge>>();
+    private final HashMap<ServiceRecord, HashMap<ProcessRecord, Edge>> mByService = new HashMap<ServiceRecord, HashMap<ProcessRecord, Edge>>();
+
+    private int mNumEdges;
+    private long mNumConnects;
+    private long mNumDisconnects;
+
+    private static boolean raisesPriority(ConnectionRecord c) {
+        return (c.flags & Context.BIND_WAIVE_PRIORITY) == 0 && !c.serviceDead;
+    }
+
+    /**
+     * Count a connection that was just made.
+     */
+    void connect(ConnectionRecord c) {
+        final ProcessRecord client = c.binding.client;
+        final ServiceRecord service = c.binding.service;
+        if (client == null || service == null || !mConnections.add(c)) {
+            return;
+        }
+        HashMap<ServiceRecord, Edge> services = mByClient.get(client);
+        if (services == null) {
+            services = new HashMap<ServiceRecord, Edge>();
+            mByClient.put(client, services);
+        }
+        Edge edge = services.get(service);
+        if (edge == null) {
+            edge = new Edge(client, service);
+            services.put(service, edge);
+            HashMap<ProcessRecord, Edge> clients = mByService.get(service);
+            if (clients == null) {
+                clients = new HashMap<ProcessRecord, Edge>();
+                mByService.put(service, clients);
+            }
+            clients.put(client, edge);
+            mNumEdges++;
+        }
+        edge.count++;
+        if (raisesPriority(c)) {
+            edge.priorityCount++;
+        }
+        mNumConnects++;
+    }
+
+    /**
+     * Stop counting a connection that is being removed.
+     */
+    void disconnect(ConnectionRecord c) {
+        if (!mConnections.remove(c)) {
+            return;
+        }
+        final ProcessRecord client = c.binding.client;
+        final ServiceRecord service = c.binding.service;
+        final HashMap<ServiceRecord, Edge> services = client != null ? mByClient.get(client) : null;
+        final Edge edge = services != null ? services.get(service) : null;
+        if (edge == null) {
+            return;
+        }
+        if (raisesPriority(c)) {
+            edge.priorityCount--;
+        }
+        mNumDisconnects++;
+        if (--edge.count > 0) {
+            return;
+        }
+        services.remove(service);
+        if (services.isEmpty()) {
+            mByClient.remove(client);
+        }
+        final HashMap<ProcessRecord, Edge> clients = mByService.get(service);
+        if (clients != null) {
+            clients.remove(client);
+            if (clients.isEmpty()) {
+                mByService.remove(service);
+            }
+        }
+        mNumEdges--;
+    }
+
+    /**
+     * Called just before the connection is marked
+     * {@link ConnectionRecord#serviceDead}.
+     */
+    void serviceDead(ConnectionRecord c) {
+        if (!raisesPriority(c) || !mConnections.contains(c)) {
+            return;
+        }
+        final HashMap<ServiceRecord, Edge> services = c.binding.client != null ? mByClient.get(c.binding.client) : null;
+        final Edge edge = services != null ? services.get(c.binding.service) : null;
+        if (edge != null) {
+            edge.priorityCount--;
+        }
+    }
+
+    /**
+     * Add the processes hosting services the client is bound to to outHosts,
+     * without the client itself; if forOomAdj, only through connections
+     * that can raise the host's importance.  May add a process more than
+     * once.
+     */
+    void collectServiceHosts(ProcessRecord client, boolean forOomAdj, ArrayList<ProcessRecord> outHosts) {
+        final HashMap<ServiceRecord, Edge> services = mByClient.get(client);
+        if (services == null) {
+            return;
+        }
+        for (Edge edge : services.values()) {
+            final ProcessRecord host = edge.service.app;
+            if (host == null || host == client || (forOomAdj && edge.priorityCount <= 0)) {
+                continue;
+            }
+            outHosts.add(host);
+        }
+    }
+
+    /**
+     * Whether any process other than host that is bound to one of its
+     * services has activities.
+     */
+    boolean hasClientWithActivities(ProcessRecord host) {
+        for (int i = host.services.size() - 1; i >= 0; i--) {
+            final HashMap<ProcessRecord, Edge> clients = mByService.get(host.services.valueAt(i));
+            if (clients == null) {
+                continue;
+            }
+            for (ProcessRecord client : clients.keySet()) {
+                if (client != host && client.activities.size() > 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix);
+        pw.print("Connection graph: ");
+        pw.print(mByClient.size());
+        pw.print(" clients, ");
+        pw.print(mByService.size());
+        pw.print(" services, ");
+        pw.print(mNumEdges);
+        pw.print(" edges, connects=");
+        pw.print(mNumConnects);
+        pw.print(" disconnects=");
+        pw.println(mNumDisconnects);
+    }
+}
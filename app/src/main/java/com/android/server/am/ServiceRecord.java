@@ -104,6 +104,7 @@ final class ServiceRecord extends Binder {
     long restartDelay;      // delay until next restart attempt.
     long restartTime;       // time of last restart.
     long nextRestartTime;   // time when restartDelay will expire.
+    ServiceRestartQueue.Entry restartEntry; // where this is in the restart queue, or null
     boolean destroying;     // set when we have started destroying the service
     long destroyTime;       // time at which destory was initiated.
 
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.util.ArrayMap;
+
+import com.android.internal.app.ProcessStats;
+
+import java.io.PrintWriter;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * Services that are scheduled to restart following a crash, ordered by the
+ * time they are due.
+ *
+ * <p>Each queued service points at its entry, so membership is a field test
+ * and scheduling, rescheduling and removal are O(log n).  The queue is a
+ * sorted tree rather than a heap so that {@link #findFreeTime} can look at
+ * the neighbours of a proposed time when spacing restarts apart.  It also
+ * counts the queued services per restart tracker, so finding out whether a
+ * tracker is still restarting does not need a scan.</p>
+ *
+ * <p>Guarded by the activity manager lock.</p>
+ */
+final class ServiceRestartQueue implements Iterable<ServiceRecord> {
+    static final class Entry {
+        final long time;
+        final long seq;
+        final ServiceRecord service;
+
+        Entry(long _time, long _seq, ServiceRecord _service) {
+            time = _time;
+            seq = _seq;
+            service = _service;
+        }
+    }
+
+    private static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            if (lhs.time != rhs.time) {
+                return lhs.time < rhs.time ? -1 : 1;
+            }
+            return lhs.seq < rhs.seq ? -1 : (lhs.seq == rhs.seq ? 0 : 1);
+        }
+    };
+
+    private final TreeSet<Entry> mEntries = new TreeSet<Entry>(ORDER);
+    private final ArrayMap<ProcessStats.ServiceState, int[]> mTrackerCounts = new ArrayMap<ProcessStats.ServiceState, int[]>();
+    private long mNextSeq = 1;
+
+    private long mNumScheduled;
+    private long mNumSpacingSteps;
+
+    int size() {
+        return mEntries.size();
+    }
+
+    boolean contains(ServiceRecord r) {
+        return r.restartEntry != null;
+    }
+
+    /**
+     * Queue the service to restart at the given time, or move it there if it
+     * is already queued.  Its restart tracker, if any, is counted as
+     * restarting until it is removed.
+     */
+    void schedule(ServiceRecord r, long time) {
+        final Entry old = r.restartEntry;
+        if (old != null) {
+            mEntries.remove(old);
+        } else if (r.restartTracker != null) {
+            int[] count = mTrackerCounts.get(r.restartTracker);
+            if (count == null) {
+                count = new int[1];
+                mTrackerCounts.put(r.restartTracker, count);
+            }
+            count[0]++;
+        }
+        final Entry entry = new Entry(time, mNextSeq++, r);
+        mEntries.add(entry);
+        r.restartEntry = entry;
+        mNumScheduled++;
+    }
+
+    /**
+     * Take the service off the queue.  Returns false if it was not queued.
+     */
+    boolean remove(ServiceRecord r) {
+        final Entry entry = r.restartEntry;
+        if (entry == null) {
+            return false;
+        }
+        mEntries.remove(entry);
+        r.restartEntry = null;
+        if (r.restartTracker != null) {
+            final int[] count = mTrackerCounts.get(r.restartTracker);
+            if (count != null && --count[0] <= 0) {
+                mTrackerCounts.remove(r.restartTracker);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether any queued service is counted against the tracker.
+     */
+    boolean isTracking(ProcessStats.ServiceState tracker) {
+        return mTrackerCounts.containsKey(tracker);
+    }
+
+    /**
+     * The earliest time at or after the given one that is not within
+     * minBetween of the restart of any other queued service.
+     */
+    long findFreeTime(ServiceRecord r, long time, long minBetween) {
+        for (;;) {
+            // A service restarting at t conflicts if time lies in
+            // [t - minBetween, t + minBetween), that is, t in
+            // (time - minBetween, time + minBetween].
+            Entry e = mEntries.higher(new Entry(time - minBetween, Long.MAX_VALUE, null));
+            while (e != null && e.service == r) {
+                e = mEntries.higher(e);
+            }
+            if (e == null || e.time > time + minBetween) {
+                return time;
+            }
+            time = e.time + minBetween;
+            mNumSpacingSteps++;
+        }
+    }
+
+    /**
+     * Queued services in the order they are due.  Must not be used to
+     * modify the queue.
+     */
+    @Override
+    public Iterator<ServiceRecord> iterator() {
+        final Iterator<Entry> it = mEntries.iterator();
+        return new Iterator<ServiceRecord>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public ServiceRecord next() {
+                return it.next().service;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix);
+        pw.print("Restart queue: ");
+        pw.print(mEntries.size());
+        pw.print(" services, ");
+        pw.print(mTrackerCounts.size());
+        pw.print(" trackers, scheduled=");
+        pw.print(mNumScheduled);
+        pw.print(" spacingSteps=");
+        pw.println(mNumSpacingSteps);
+    }
+}
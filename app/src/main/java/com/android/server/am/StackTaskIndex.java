@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.util.ArrayMap;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeMap;
+
+/**
+ * Per-stack lookup of the tasks a launch could be brought into and the
+ * activities it could be delivered to.
+ *
+ * <p>Tasks are filed by user under their root affinity and under the
+ * components of their intent and affinity intent; activities are filed by
+ * user under the component of their intent.  These are exactly the fields
+ * {@link ActivityStack#findTaskLocked} and
+ * {@link ActivityStack#findActivityLocked} compare against, so the tasks
+ * and activities returned here are a superset of the ones that can match
+ * and the callers still apply the full test to each of them.</p>
+ *
+ * <p>The stack adds and removes tasks as they enter and leave its history
+ * and re-files them when their intent changes; activities follow their
+ * task.</p>
+ *
+ * <p>Every task also has an order that grows from the bottom of the history
+ * to the top, so the callers can tell which candidate is nearest the top
+ * without looking the tasks up in the history.  The stack reports each
+ * place it puts a task with {@link #taskPositioned}, which takes an order
+ * between the task's new neighbours and only renumbers the whole history
+ * when there is no room left between them.  The tasks of each user are
+ * also kept by order, so the topmost task of a user is found without a
+ * scan.</p>
+ */
+final class StackTaskIndex {
+    private static final class Key {
+        final int userId;
+        final Object value;
+        final int hashCode;
+
+        Key(int _userId, Object _value) {
+            userId = _userId;
+            value = _value;
+            hashCode = 31 * _value.hashCode() + _userId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return userId == other.userId && value.equals(other.value);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    // Room left between neighbouring tasks when the history is numbered.
+    private static final long ORDER_GAP = 1L << 16;
+
+    // The keys a task is filed under, so it can be taken out again after
+    // its fields have changed, and where it is in the history.
+    private static final class TaskKeys {
+        Key affinity;
+        Key component;
+        Key affinityComponent;
+        boolean positioned;
+        long order;
+        int orderUserId;
+    }
+
+    private final ArrayMap<TaskRecord, TaskKeys> mTaskKeys = new ArrayMap<TaskRecord, TaskKeys>();
+    private final HashMap<Key, ArrayList<TaskRecord>> mTasks = new HashMap<Key, ArrayList<TaskRecord>>();
+    private final HashMap<Key, ArrayList<ActivityRecord>> mActivities = new HashMap<Key, ArrayList<ActivityRecord>>();
+    private final SparseArray<TreeMap<Long, TaskRecord>> mTasksByUser = new SparseArray<TreeMap<Long, TaskRecord>>();
+
+    boolean containsTask(TaskRecord task) {
+        return mTaskKeys.containsKey(task);
+    }
+
+    /**
+     * File the task and its activities, or re-file the task if it is
+     * already here.
+     */
+    void addTask(TaskRecord task) {
+        if (mTaskKeys.containsKey(task)) {
+            updateTask(task);
+            return;
+        }
+        final TaskKeys keys = new TaskKeys();
+        fileTask(task, keys);
+        mTaskKeys.put(task, keys);
+        final ArrayList<ActivityRecord> activities = task.mActivities;
+        for (int activityNdx = activities.size() - 1; activityNdx >= 0; --activityNdx) {
+            addActivity(task, activities.get(activityNdx));
+        }
+    }
+
+    /**
+     * Re-file the task after its user, root affinity or intents changed.
+     */
+    void updateTask(TaskRecord task) {
+        final TaskKeys keys = mTaskKeys.get(task);
+        if (keys == null) {
+            return;
+        }
+        unfileTask(task, keys);
+        fileTask(task, keys);
+        if (keys.positioned && keys.orderUserId != task.userId) {
+            unfileOrder(keys);
+            fileOrder(task, keys);
+        }
+    }
+
+    void removeTask(TaskRecord task) {
+        final TaskKeys keys = mTaskKeys.remove(task);
+        if (keys == null) {
+            return;
+        }
+        unfileTask(task, keys);
+        if (keys.positioned) {
+            unfileOrder(keys);
+        }
+        final ArrayList<ActivityRecord> activities = task.mActivities;
+        for (int activityNdx = activities.size() - 1; activityNdx >= 0; --activityNdx) {
+            final ActivityRecord r = activities.get(activityNdx);
+            remove(mActivities, activityKey(r), r);
+        }
+    }
+
+    void addActivity(TaskRecord task, ActivityRecord r) {
+        if (mTaskKeys.containsKey(task)) {
+            add(mActivities, activityKey(r), r);
+        }
+    }
+
+    void removeActivity(TaskRecord task, ActivityRecord r) {
+        if (mTaskKeys.containsKey(task)) {
+            remove(mActivities, activityKey(r), r);
+        }
+    }
+
+    /**
+     * The task was just put at the given index of the history, which must
+     * hold every task of the index.
+     */
+    void taskPositioned(ArrayList<TaskRecord> history, int index) {
+        final TaskKeys keys = mTaskKeys.get(history.get(index));
+        if (keys == null) {
+            return;
+        }
+        final TaskKeys below = index > 0 ? mTaskKeys.get(history.get(index - 1)) : null;
+        final TaskKeys above = index < history.size() - 1 ? mTaskKeys.get(history.get(index + 1)) : null;
+        if ((index > 0 && (below == null || !below.positioned)) || (above != null && !above.positioned) || (index < history.size() - 1 && above == null)) {
+            renumber(history);
+            return;
+        }
+        final long order;
+        if (below == null && above == null) {
+            order = 0;
+        } else if (below == null) {
+            order = above.order - ORDER_GAP;
+        } else if (above == null) {
+            order = below.order + ORDER_GAP;
+        } else if (above.order - below.order > 1) {
+            order = below.order + (above.order - below.order) / 2;
+        } else {
+            renumber(history);
+            return;
+        }
+        if (keys.positioned) {
+            unfileOrder(keys);
+        }
+        keys.order = order;
+        keys.positioned = true;
+        fileOrder(history.get(index), keys);
+    }
+
+    /**
+     * Where the task is in the history: a task nearer the top has a larger
+     * order.  Long.MIN_VALUE if the task is not here.
+     */
+    long getTaskOrder(TaskRecord task) {
+        final TaskKeys keys = mTaskKeys.get(task);
+        return keys != null && keys.positioned ? keys.order : Long.MIN_VALUE;
+    }
+
+    int getUserCount() {
+        return mTasksByUser.size();
+    }
+
+    int getUserAt(int index) {
+        return mTasksByUser.keyAt(index);
+    }
+
+    /**
+     * The order of the topmost task of the user at the given index.
+     */
+    long getTopOrderAt(int index) {
+        return mTasksByUser.valueAt(index).lastKey();
+    }
+
+    /**
+     * Add every task of the user whose root affinity is the given one, or
+     * whose intent or affinity intent is for the given component, to
+     * outTasks.
+     */
+    void collectTasks(int userId, String affinity, ComponentName cls, ArrayList<TaskRecord> outTasks) {
+        if (affinity != null) {
+            addAll(mTasks.get(new Key(userId, affinity)), outTasks);
+        }
+        if (cls != null) {
+            addAll(mTasks.get(new Key(userId, cls)), outTasks);
+        }
+    }
+
+    /**
+     * Activities of the user whose intent is for the given component, or
+     * null.  Must not be modified.
+     */
+    ArrayList<ActivityRecord> getActivities(int userId, ComponentName cls) {
+        return cls != null ? mActivities.get(new Key(userId, cls)) : null;
+    }
+
+    private void fileTask(TaskRecord task, TaskKeys keys) {
+        keys.affinity = task.rootAffinity != null ? new Key(task.userId, task.rootAffinity) : null;
+        keys.component = componentKey(task.userId, task.intent);
+        keys.affinityComponent = componentKey(task.userId, task.affinityIntent);
+        if (keys.affinityComponent != null && keys.affinityComponent.equals(keys.component)) {
+            keys.affinityComponent = null;
+        }
+        add(mTasks, keys.affinity, task);
+        add(mTasks, keys.component, task);
+        add(mTasks, keys.affinityComponent, task);
+    }
+
+    private void unfileTask(TaskRecord task, TaskKeys keys) {
+        remove(mTasks, keys.affinity, task);
+        remove(mTasks, keys.component, task);
+        remove(mTasks, keys.affinityComponent, task);
+    }
+
+    private void fileOrder(TaskRecord task, TaskKeys keys) {
+        keys.orderUserId = task.userId;
+        TreeMap<Long, TaskRecord> tasks = mTasksByUser.get(keys.orderUserId);
+        if (tasks == null) {
+            tasks = new TreeMap<Long, TaskRecord>();
+            mTasksByUser.put(keys.orderUserId, tasks);
+        }
+        tasks.put(keys.order, task);
+    }
+
+    private void unfileOrder(TaskKeys keys) {
+        final TreeMap<Long, TaskRecord> tasks = mTasksByUser.get(keys.orderUserId);
+        if (tasks != null) {
+            tasks.remove(keys.order);
+            if (tasks.isEmpty()) {
+                mTasksByUser.remove(keys.orderUserId);
+            }
+        }
+    }
+
+    private void renumber(ArrayList<TaskRecord> history) {
+        mTasksByUser.clear();
+        long order = 0;
+        for (int taskNdx = 0; taskNdx < history.size(); ++taskNdx) {
+            final TaskRecord task = history.get(taskNdx);
+            final TaskKeys keys = mTaskKeys.get(task);
+            if (keys == null) {
+                continue;
+            }
+            keys.order = order;
+            keys.positioned = true;
+            fileOrder(task, keys);
+            order += ORDER_GAP;
+        }
+    }
+
+    private static Key componentKey(int userId, Intent intent) {
+        final ComponentName component = intent != null ? intent.getComponent() : null;
+        return component != null ? new Key(userId, component) : null;
+    }
+
+    private static Key activityKey(ActivityRecord r) {
+        return componentKey(r.userId, r.intent);
+    }
+
+    private static <T> void add(HashMap<Key, ArrayList<T>> map, Key key, T value) {
+        if (key == null) {
+            return;
+        }
+        ArrayList<T> values = map.get(key);
+        if (values == null) {
+            values = new ArrayList<T>(2);
+            map.put(key, values);
+        }
+        if (!values.contains(value)) {
+            values.add(value);
+        }
+    }
+
+    private static <T> void remove(HashMap<Key, ArrayList<T>> map, Key key, T value) {
+        if (key == null) {
+            return;
+        }
+        final ArrayList<T> values = map.get(key);
+        if (values != null && values.remove(value) && values.isEmpty()) {
+            map.remove(key);
+        }
+    }
+
+    private static void addAll(ArrayList<TaskRecord> tasks, ArrayList<TaskRecord> outTasks) {
+        if (tasks != null) {
+            for (int i = tasks.size() - 1; i >= 0; --i) {
+                final TaskRecord task = tasks.get(i);
+                if (!outTasks.contains(task)) {
+                    outTasks.add(task);
+                }
+            }
+        }
+    }
+}
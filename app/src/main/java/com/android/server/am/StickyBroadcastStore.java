@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Bundle;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The sticky broadcasts of every user, indexed by action and then by the
+ * data scheme and resolved type of the intent.
+ *
+ * <p>This is the reverse of what {@link com.android.server.IntentResolver}
+ * does for receivers: here the intents are stored and a filter is the
+ * query.  A filter can only match an intent whose scheme and type it
+ * accepts, so whole groups of intents under an action are skipped with the
+ * same scheme and type rules {@link IntentFilter#matchData} applies, and
+ * only the rest are matched in full.  Matching uses the type that was
+ * resolved when the intent was broadcast, so it never has to ask a content
+ * provider for one.  For a content: uri without an explicit type that is
+ * the type the broadcaster resolved, which is not checked: a broadcaster
+ * with {@link android.Manifest.permission#BROADCAST_STICKY} can only make
+ * its own sticky match filters for that type, as it already can for the
+ * receivers of the broadcast itself.</p>
+ *
+ * <p>The store is copy-on-write: every change builds new arrays along the
+ * path to the intent it touches and publishes a new top level, so readers
+ * see a consistent snapshot without any lock.  Changes must be made with
+ * the activity manager lock held.</p>
+ */
+final class StickyBroadcastStore {
+    /**
+     * Intents under one action with the same scheme and resolved type, in
+     * the order they were first broadcast.  Never modified once published.
+     */
+    private static final class Group {
+        final String scheme;
+        final String type;
+        final Intent[] intents;
+
+        Group(String _scheme, String _type, Intent[] _intents) {
+            scheme = _scheme;
+            type = _type;
+            intents = _intents;
+        }
+
+        boolean isFor(String _scheme, String _type) {
+            return equals(scheme, _scheme) && equals(type, _type);
+        }
+
+        /**
+         * Whether the filter accepts this scheme and type; mirrors the
+         * scheme and type part of {@link IntentFilter#matchData}.
+         */
+        boolean mayMatch(IntentFilter filter) {
+            if (filter.countDataSchemes() > 0) {
+                if (!filter.hasDataScheme(scheme != null ? scheme : "")) {
+                    return false;
+                }
+            } else if (scheme != null && !"".equals(scheme) && !"content".equals(scheme) && !"file".equals(scheme)) {
+                return false;
+            }
+            if (filter.countDataTypes() > 0) {
+                return type != null && filter.hasDataType(type);
+            }
+            return type == null;
+        }
+
+        private static boolean equals(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    private static final Group[] EMPTY = new Group[0];
+
+    // userId -> action -> groups.  Replaced, never modified, once published.
+    private volatile SparseArray<ArrayMap<String, Group[]>> mUsers = new SparseArray<ArrayMap<String, Group[]>>();
+
+    /**
+     * Whether a sticky broadcast to all users is the same as the intent.
+     */
+    boolean conflictsWithGlobal(Intent intent) {
+        final Group[] groups = getGroups(mUsers, UserHandle.USER_ALL, intent.getAction());
+        return indexOf(groups, intent) != null;
+    }
+
+    /**
+     * Add the intent for the user, replacing the one it is
+     * {@link Intent#filterEquals} to if there is one.  The intent is stored
+     * as given, so it must not be changed afterwards.
+     */
+    void putLocked(int userId, Intent intent, String resolvedType) {
+        final String action = intent.getAction();
+        final String scheme = intent.getScheme();
+        final SparseArray<ArrayMap<String, Group[]>> users = mUsers;
+        final ArrayMap<String, Group[]> actions = users.get(userId);
+        Group[] groups = actions != null ? actions.get(action) : null;
+        if (groups == null) {
+            groups = EMPTY;
+        }
+
+        // The same intent may have resolved to another type last time, so
+        // it can be in any group.
+        final int[] pos = indexOf(groups, intent);
+        if (pos != null) {
+            final Group old = groups[pos[0]];
+            if (old.isFor(scheme, resolvedType)) {
+                final Intent[] intents = old.intents.clone();
+                intents[pos[1]] = intent;
+                groups = replace(groups, pos[0], new Group(old.scheme, old.type, intents));
+                publish(users, userId, actions, action, groups);
+                return;
+            }
+            groups = removeAt(groups, pos[0], pos[1]);
+        }
+
+        int gi = 0;
+        while (gi < groups.length && !groups[gi].isFor(scheme, resolvedType)) {
+            gi++;
+        }
+        if (gi < groups.length) {
+            final Group old = groups[gi];
+            final Intent[] intents = new Intent[old.intents.length + 1];
+            System.arraycopy(old.intents, 0, intents, 0, old.intents.length);
+            intents[old.intents.length] = intent;
+            groups = replace(groups, gi, new Group(old.scheme, old.type, intents));
+        } else {
+            final Group[] newGroups = new Group[groups.length + 1];
+            System.arraycopy(groups, 0, newGroups, 0, groups.length);
+            newGroups[groups.length] = new Group(scheme, resolvedType, new Intent[] { intent });
+            groups = newGroups;
+        }
+        publish(users, userId, actions, action, groups);
+    }
+
+    /**
+     * Remove the user's sticky intent that is {@link Intent#filterEquals} to
+     * the given one.
+     */
+    void removeLocked(int userId, Intent intent) {
+        final String action = intent.getAction();
+        final SparseArray<ArrayMap<String, Group[]>> users = mUsers;
+        final ArrayMap<String, Group[]> actions = users.get(userId);
+        final Group[] groups = actions != null ? actions.get(action) : null;
+        final int[] pos = indexOf(groups, intent);
+        if (pos != null) {
+            publish(users, userId, actions, action, removeAt(groups, pos[0], pos[1]));
+        }
+    }
+
+    /**
+     * Remove all sticky intents of the user.
+     */
+    void removeUserLocked(int userId) {
+        final SparseArray<ArrayMap<String, Group[]>> users = mUsers;
+        if (users.indexOfKey(userId) >= 0) {
+            final SparseArray<ArrayMap<String, Group[]>> newUsers = users.clone();
+            newUsers.remove(userId);
+            mUsers = newUsers;
+        }
+    }
+
+    /**
+     * Add the user's sticky intents for the action that the filter matches
+     * to cur, creating it if needed, and return it.  Does not need the
+     * lock.
+     */
+    List<Intent> collect(int userId, String action, IntentFilter filter, List<Intent> cur) {
+        final Group[] groups = getGroups(mUsers, userId, action);
+        if (groups == null) {
+            return cur;
+        }
+        for (Group group : groups) {
+            if (!group.mayMatch(filter)) {
+                continue;
+            }
+            for (Intent intent : group.intents) {
+                if (filter.match(intent.getAction(), group.type, group.scheme, intent.getData(), intent.getCategories(), ActivityManagerService.TAG) >= 0) {
+                    if (cur == null) {
+                        cur = new ArrayList<Intent>();
+                    }
+                    cur.add(intent);
+                }
+            }
+        }
+        return cur;
+    }
+
+    private void publish(SparseArray<ArrayMap<String, Group[]>> users, int userId, ArrayMap<String, Group[]> actions, String action, Group[] groups) {
+        final ArrayMap<String, Group[]> newActions = actions != null ? new ArrayMap<String, Group[]>(actions) : new ArrayMap<String, Group[]>();
+        if (groups.length > 0) {
+            newActions.put(action, groups);
+        } else {
+            newActions.remove(action);
+        }
+        final SparseArray<ArrayMap<String, Group[]>> newUsers = users.clone();
+        if (newActions.size() > 0) {
+            newUsers.put(userId, newActions);
+        } else {
+            newUsers.remove(userId);
+        }
+        mUsers = newUsers;
+    }
+
+    private static Group[] getGroups(SparseArray<ArrayMap<String, Group[]>> users, int userId, String action) {
+        final ArrayMap<String, Group[]> actions = users.get(userId);
+        return actions != null ? actions.get(action) : null;
+    }
+
+    /**
+     * Group and position within it of the intent that filterEquals the given
+     * one, or null.
+     */
+    private static int[] indexOf(Group[] groups, Intent intent) {
+        if (groups == null) {
+            return null;
+        }
+        for (int gi = 0; gi < groups.length; gi++) {
+            final Intent[] intents = groups[gi].intents;
+            for (int i = 0; i < intents.length; i++) {
+                if (intent.filterEquals(intents[i])) {
+                    return new int[] { gi, i };
+                }
+            }
+        }
+        return null;
+    }
+
+    private static Group[] replace(Group[] groups, int index, Group group) {
+        final Group[] newGroups = groups.clone();
+        newGroups[index] = group;
+        return newGroups;
+    }
+
+    private static Group[] removeAt(Group[] groups, int gi, int i) {
+        final Group old = groups[gi];
+        if (old.intents.length > 1) {
+            final Intent[] intents = new Intent[old.intents.length - 1];
+            System.arraycopy(old.intents, 0, intents, 0, i);
+            System.arraycopy(old.intents, i + 1, intents, i, intents.length - i);
+            return replace(groups, gi, new Group(old.scheme, old.type, intents));
+        }
+        final Group[] newGroups = new Group[groups.length - 1];
+        System.arraycopy(groups, 0, newGroups, 0, gi);
+        System.arraycopy(groups, gi + 1, newGroups, gi, newGroups.length - gi);
+        return newGroups;
+    }
+
+    /**
+     * Returns true if anything was printed.
+     */
+    boolean dump(PrintWriter pw, boolean dumpAll, boolean needSep) {
+        final SparseArray<ArrayMap<String, Group[]>> users = mUsers;
+        final StringBuilder sb = new StringBuilder(128);
+        for (int user = 0; user < users.size(); user++) {
+            if (needSep) {
+                pw.println();
+            }
+            needSep = true;
+            pw.print("  Sticky broadcasts for user ");
+            pw.print(users.keyAt(user));
+            pw.println(":");
+            final ArrayMap<String, Group[]> actions = users.valueAt(user);
+            for (int ai = 0; ai < actions.size(); ai++) {
+                pw.print("  * Sticky action ");
+                pw.print(actions.keyAt(ai));
+                if (!dumpAll) {
+                    pw.println("");
+                    continue;
+                }
+                pw.println(":");
+                for (Group group : actions.valueAt(ai)) {
+                    for (Intent intent : group.intents) {
+                        sb.setLength(0);
+                        sb.append("    Intent: ");
+                        intent.toShortString(sb, false, true, false, false);
+                        pw.println(sb.toString());
+                        Bundle bundle = intent.getExtras();
+                        if (bundle != null) {
+                            pw.print("      ");
+                            pw.println(bundle.toString());
+                        }
+                    }
+                }
+            }
+        }
+        return users.size() > 0;
+    }
+}
@@ -50,9 +50,11 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 final class TaskRecord {
@@ -265,6 +267,7 @@ final class TaskRecord {
 		if (firstActiveTime == 0) {
 			firstActiveTime = lastActiveTime;
 		}
+		mService.recentTaskChangedLocked(this);
 	}
 
 	long getInactiveDuration() {
@@ -278,6 +281,11 @@ final class TaskRecord {
 		setIntent(r.intent, r.info);
 		mCallingUid = r.launchedFromUid;
 		mCallingPackage = r.launchedFromPackage;
+		if (stack != null) {
+			// Keep the stack's lookup of this task by affinity and class current.
+			stack.mTaskIndex.updateTask(this);
+		}
+		mService.recentTaskChangedLocked(this);
 	}
 
 	/**
@@ -464,6 +472,7 @@ final class TaskRecord {
 	void disposeThumbnail() {
 		mLastThumbnail = null;
 		lastDescription = null;
+		mService.recentTaskChangedLocked(this);
 	}
 
 	/**
@@ -571,6 +580,11 @@ final class TaskRecord {
 			r.mActivityType = taskType;
 		}
 		mActivities.add(index, r);
+		mService.mStackSupervisor.addActivityToIndexLocked(this, r);
+		if (stack != null) {
+			stack.mTaskIndex.addActivity(this, r);
+		}
+		mService.recentTaskChangedLocked(this);
 		updateEffectiveIntent();
 		if (r.isPersistable()) {
 			mService.notifyTaskPersisterLocked(this, false);
@@ -585,6 +599,11 @@ final class TaskRecord {
 			// Was previously in list.
 			numFullscreen--;
 		}
+		mService.mStackSupervisor.removeActivityFromIndexLocked(this, r);
+		if (stack != null) {
+			stack.mTaskIndex.removeActivity(this, r);
+		}
+		mService.recentTaskChangedLocked(this);
 		if (r.isPersistable()) {
 			mService.notifyTaskPersisterLocked(this, false);
 		}
@@ -865,17 +884,68 @@ final class TaskRecord {
 		intent.saveToXml(out);
 		out.endTag(null, TAG_INTENT);
 
+		final ArrayList<ActivityRecord> activities = mActivities;
+		final int numActivities = numPersistableActivities();
+		for (int activityNdx = 0; activityNdx < numActivities; ++activityNdx) {
+			out.startTag(null, TAG_ACTIVITY);
+			activities.get(activityNdx).saveToXml(out);
+			out.endTag(null, TAG_ACTIVITY);
+		}
+	}
+
+	/**
+	 * Number of activities from the root up that are saved with the task.
+	 */
+	private int numPersistableActivities() {
 		final ArrayList<ActivityRecord> activities = mActivities;
 		final int numActivities = activities.size();
 		for (int activityNdx = 0; activityNdx < numActivities; ++activityNdx) {
 			final ActivityRecord r = activities.get(activityNdx);
 			if (r.info.persistableMode == ActivityInfo.PERSIST_ROOT_ONLY || !r.isPersistable() || ((r.intent.getFlags() & Intent.FLAG_ACTIVITY_CLEAR_WHEN_TASK_RESET) != 0) && activityNdx > 0) {
 				// Stop at first non-persistable or first break in task (CLEAR_WHEN_TASK_RESET).
-				break;
+				return activityNdx;
 			}
-			out.startTag(null, TAG_ACTIVITY);
-			r.saveToXml(out);
-			out.endTag(null, TAG_ACTIVITY);
+		}
+		return numActivities;
+	}
+
+	/**
+	 * Binary counterpart of {@link #saveToXml} used by {@link TaskStore}.  The
+	 * task id is stored by the caller.
+	 */
+	void saveToBinary(DataOutputStream out) throws IOException {
+		if (ActivityManagerService.DEBUG_RECENTS) Slog.i(TAG, "Saving task=" + this);
+
+		TaskStore.writeComponent(out, realActivity);
+		TaskStore.writeComponent(out, origActivity);
+		TaskStore.writeString(out, affinity);
+		TaskStore.writeString(out, rootAffinity);
+		out.writeBoolean(rootWasReset);
+		out.writeBoolean(autoRemoveRecents);
+		out.writeBoolean(askedCompatMode);
+		out.writeInt(userId);
+		out.writeInt(effectiveUid);
+		out.writeInt(taskType);
+		out.writeLong(firstActiveTime);
+		out.writeLong(lastActiveTime);
+		out.writeLong(mLastTimeMoved);
+		out.writeBoolean(mNeverRelinquishIdentity);
+		TaskStore.writeString(out, lastDescription != null ? lastDescription.toString() : null);
+		TaskStore.writeTaskDescription(out, lastTaskDescription);
+		out.writeInt(mAffiliatedTaskColor);
+		out.writeInt(mAffiliatedTaskId);
+		out.writeInt(mPrevAffiliateTaskId);
+		out.writeInt(mNextAffiliateTaskId);
+		out.writeInt(mCallingUid);
+		TaskStore.writeString(out, mCallingPackage == null ? "" : mCallingPackage);
+		TaskStore.writeIntent(out, affinityIntent);
+		TaskStore.writeIntent(out, intent);
+
+		final ArrayList<ActivityRecord> activities = mActivities;
+		final int numActivities = numPersistableActivities();
+		out.writeInt(numActivities);
+		for (int activityNdx = 0; activityNdx < numActivities; ++activityNdx) {
+			activities.get(activityNdx).saveToBinary(out);
 		}
 	}
 
@@ -998,19 +1068,61 @@ final class TaskRecord {
 		}
 
 		if (effectiveUid <= 0) {
-			Intent checkIntent = intent != null ? intent : affinityIntent;
-			effectiveUid = 0;
-			if (checkIntent != null) {
-				IPackageManager pm = AppGlobals.getPackageManager();
-				try {
-					ApplicationInfo ai = pm.getApplicationInfo(checkIntent.getComponent().getPackageName(), PackageManager.GET_UNINSTALLED_PACKAGES | PackageManager.GET_DISABLED_COMPONENTS, userId);
-					if (ai != null) {
-						effectiveUid = ai.uid;
-					}
-				} catch (RemoteException e) {
-				}
+			effectiveUid = resolveEffectiveUid(taskId, intent, affinityIntent, userId);
+		}
+
+		final TaskRecord task = new TaskRecord(stackSupervisor.mService, taskId, intent, affinityIntent, affinity, rootAffinity, realActivity, origActivity, rootHasReset, autoRemoveRecents, askedCompatMode, taskType, userId, effectiveUid, lastDescription, activities, firstActiveTime, lastActiveTime, lastTimeOnTop, neverRelinquishIdentity, taskDescription, taskAffiliation, prevTaskId, nextTaskId, taskAffiliationColor, callingUid, callingPackage);
+
+		for (int activityNdx = activities.size() - 1; activityNdx >= 0; --activityNdx) {
+			activities.get(activityNdx).task = task;
+		}
+
+		if (ActivityManagerService.DEBUG_RECENTS) Slog.d(TAG, "Restored task=" + task);
+		return task;
+	}
+
+	/**
+	 * Binary counterpart of {@link #restoreFromXml}.  Reads one task written by
+	 * {@link #saveToBinary} from the buffer, which may be memory mapped.
+	 */
+	static TaskRecord restoreFromBinary(ByteBuffer in, ActivityStackSupervisor stackSupervisor, int taskId) throws IOException {
+		final ComponentName realActivity = TaskStore.readComponent(in);
+		final ComponentName origActivity = TaskStore.readComponent(in);
+		final String affinity = TaskStore.readString(in);
+		final String rootAffinity = TaskStore.readString(in);
+		final boolean rootHasReset = in.get() != 0;
+		final boolean autoRemoveRecents = in.get() != 0;
+		final boolean askedCompatMode = in.get() != 0;
+		final int userId = in.getInt();
+		int effectiveUid = in.getInt();
+		final int taskType = in.getInt();
+		final long firstActiveTime = in.getLong();
+		final long lastActiveTime = in.getLong();
+		final long lastTimeOnTop = in.getLong();
+		final boolean neverRelinquishIdentity = in.get() != 0;
+		final String lastDescription = TaskStore.readString(in);
+		final TaskDescription taskDescription = TaskStore.readTaskDescription(in);
+		final int taskAffiliationColor = in.getInt();
+		final int taskAffiliation = in.getInt();
+		final int prevTaskId = in.getInt();
+		final int nextTaskId = in.getInt();
+		final int callingUid = in.getInt();
+		final String callingPackage = TaskStore.readString(in);
+		final Intent affinityIntent = TaskStore.readIntent(in);
+		final Intent intent = TaskStore.readIntent(in);
+
+		final int numActivities = in.getInt();
+		final ArrayList<ActivityRecord> activities = new ArrayList<ActivityRecord>(Math.max(0, Math.min(numActivities, 64)));
+		for (int activityNdx = 0; activityNdx < numActivities; ++activityNdx) {
+			ActivityRecord activity = ActivityRecord.restoreFromBinary(in, stackSupervisor);
+			if (DEBUG_PERSISTER || DEBUG_RESTORER) Slog.d(TaskPersister.TAG, "TaskRecord: activity=" + activity);
+			if (activity != null) {
+				activities.add(activity);
 			}
-			Slog.w(TAG, "Updating task #" + taskId + " for " + checkIntent + ": effectiveUid=" + effectiveUid);
+		}
+
+		if (effectiveUid <= 0) {
+			effectiveUid = resolveEffectiveUid(taskId, intent, affinityIntent, userId);
 		}
 
 		final TaskRecord task = new TaskRecord(stackSupervisor.mService, taskId, intent, affinityIntent, affinity, rootAffinity, realActivity, origActivity, rootHasReset, autoRemoveRecents, askedCompatMode, taskType, userId, effectiveUid, lastDescription, activities, firstActiveTime, lastActiveTime, lastTimeOnTop, neverRelinquishIdentity, taskDescription, taskAffiliation, prevTaskId, nextTaskId, taskAffiliationColor, callingUid, callingPackage);
@@ -1023,6 +1135,26 @@ final class TaskRecord {
 		return task;
 	}
 
+	/**
+	 * Look up the uid of a task saved before the effective uid was recorded.
+	 */
+	private static int resolveEffectiveUid(int taskId, Intent intent, Intent affinityIntent, int userId) {
+		Intent checkIntent = intent != null ? intent : affinityIntent;
+		int effectiveUid = 0;
+		if (checkIntent != null) {
+			IPackageManager pm = AppGlobals.getPackageManager();
+			try {
+				ApplicationInfo ai = pm.getApplicationInfo(checkIntent.getComponent().getPackageName(), PackageManager.GET_UNINSTALLED_PACKAGES | PackageManager.GET_DISABLED_COMPONENTS, userId);
+				if (ai != null) {
+					effectiveUid = ai.uid;
+				}
+			} catch (RemoteException e) {
+			}
+		}
+		Slog.w(TAG, "Updating task #" + taskId + " for " + checkIntent + ": effectiveUid=" + effectiveUid);
+		return effectiveUid;
+	}
+
 	void dump(PrintWriter pw, String prefix) {
 		pw.print(prefix);
 		pw.print("userId=");
@@ -0,0 +1,795 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.app.ActivityManager.TaskDescription;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.FileUtils;
+import android.os.Handler;
+import android.os.PersistableBundle;
+import android.os.SystemClock;
+import android.util.ArraySet;
+import android.util.AtomicFile;
+import android.util.Slog;
+import android.util.SparseArray;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Set;
+
+import static com.android.server.am.TaskPersister.DEBUG_RESTORER;
+
+/**
+ * Binary store for persisted recent tasks.
+ *
+ * <p>The store is a base file holding one record per task plus an
+ * append-only journal of the tasks written or removed since.  Each record
+ * is the task as encoded by {@link TaskRecord#saveToBinary}; a task whose
+ * encoding has not changed since it was last written is not written again.
+ * Once the journal outgrows the live data it is folded into a new base
+ * file.  Both files carry a generation number so a journal left behind by
+ * an interrupted compaction is ignored.</p>
+ *
+ * <p>At boot the files are memory mapped and decoded in place.  If there is
+ * no binary store yet, the tasks are restored from the per-task XML files
+ * by {@link TaskPersister} and the result becomes the first base file.
+ * From then on the store holds the tasks and the persister only writes
+ * their images.</p>
+ *
+ * <p>The activity manager reports every task change with
+ * {@link #noteTaskLocked}.  The changed tasks are collected and written a
+ * few seconds later on the given handler's thread, which takes the
+ * activity manager lock only to encode them; everything that touches the
+ * files runs on that thread, apart from the restore at boot.</p>
+ */
+final class TaskStore {
+    static final String TAG = "TaskStore";
+
+    private static final String STORE_FILENAME = "recent_tasks.bin";
+    private static final String JOURNAL_FILENAME = "recent_tasks.journal";
+
+    // How long changes are collected before they are written, as the
+    // persister does for the XML files.
+    private static final long WRITE_DELAY_MS = 3000;
+
+    private static final int STORE_MAGIC = 0x54534231; // "TSB1"
+    private static final int JOURNAL_MAGIC = 0x54534a31; // "TSJ1"
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int OP_PUT = 1;
+    private static final int OP_REMOVE = 2;
+
+    // Don't bother compacting a journal smaller than this.
+    private static final long MIN_COMPACT_BYTES = 64 * 1024;
+
+    // PersistableBundle value types.
+    private static final int TYPE_NULL = 0;
+    private static final int TYPE_INT = 1;
+    private static final int TYPE_LONG = 2;
+    private static final int TYPE_DOUBLE = 3;
+    private static final int TYPE_STRING = 4;
+    private static final int TYPE_BOOLEAN = 5;
+    private static final int TYPE_INT_ARRAY = 6;
+    private static final int TYPE_LONG_ARRAY = 7;
+    private static final int TYPE_DOUBLE_ARRAY = 8;
+    private static final int TYPE_STRING_ARRAY = 9;
+    private static final int TYPE_BOOLEAN_ARRAY = 10;
+    private static final int TYPE_BUNDLE = 11;
+
+    private final ActivityManagerService mService;
+    private final Handler mHandler;
+    private final AtomicFile mStoreFile;
+    private final File mJournalFile;
+
+    // Tasks changed since the last write.  Guarded by the activity manager
+    // lock.
+    private final ArraySet<TaskRecord> mDirtyTasks = new ArraySet<TaskRecord>();
+    private boolean mWriteScheduled;
+
+    // What the files currently hold, by task id.
+    private final SparseArray<byte[]> mWritten = new SparseArray<byte[]>();
+    private int mGeneration;
+    private long mLiveBytes;
+    private long mJournalBytes;
+    private boolean mJournalValid;
+
+    // Stats from the last restore, for dumpsys.
+    private long mRestoreTime = -1;
+    private int mRestoreCount;
+    private boolean mRestoredFromXml;
+    private int mNumWrites;
+    private int mNumSkippedWrites;
+    private int mNumCompactions;
+
+    private final Runnable mWriteRunnable = new Runnable() {
+        @Override
+        public void run() {
+            writeDirtyTasks();
+        }
+    };
+
+    TaskStore(ActivityManagerService service, File systemDir, Handler handler) {
+        mService = service;
+        mHandler = handler;
+        mStoreFile = new AtomicFile(new File(systemDir, STORE_FILENAME));
+        mJournalFile = new File(systemDir, JOURNAL_FILENAME);
+    }
+
+    /**
+     * The task was changed, added to or removed from recents.  With flush,
+     * everything pending is written right away.
+     */
+    void noteTaskLocked(TaskRecord task, boolean flush) {
+        if (task != null) {
+            mDirtyTasks.add(task);
+        }
+        if (flush) {
+            mHandler.removeCallbacks(mWriteRunnable);
+            mHandler.post(mWriteRunnable);
+            mWriteScheduled = true;
+        } else if (!mWriteScheduled && !mDirtyTasks.isEmpty()) {
+            mHandler.postDelayed(mWriteRunnable, WRITE_DELAY_MS);
+            mWriteScheduled = true;
+        }
+    }
+
+    /**
+     * Write everything pending and wait for it; must be called without the
+     * activity manager lock.
+     */
+    void flush() {
+        synchronized (mService) {
+            mHandler.removeCallbacks(mWriteRunnable);
+            mWriteScheduled = false;
+        }
+        mHandler.runWithScissors(mWriteRunnable, 0);
+    }
+
+    private void writeDirtyTasks() {
+        final int[] taskIds;
+        final byte[][] payloads;
+        synchronized (mService) {
+            mWriteScheduled = false;
+            final int N = mDirtyTasks.size();
+            taskIds = new int[N];
+            payloads = new byte[N][];
+            for (int i = 0; i < N; i++) {
+                final TaskRecord task = mDirtyTasks.valueAt(i);
+                taskIds[i] = task.taskId;
+                // Only what is in recents is kept; the home stack never is.
+                if (task.inRecents && task.isPersistable && (task.stack == null || !task.stack.isHomeStack())) {
+                    try {
+                        payloads[i] = encodeTaskLocked(task);
+                    } catch (IOException e) {
+                        Slog.e(TAG, "Unable to encode " + task, e);
+                    }
+                }
+            }
+            mDirtyTasks.clear();
+        }
+        for (int i = 0; i < taskIds.length; i++) {
+            if (payloads[i] != null) {
+                putTask(taskIds[i], payloads[i]);
+            } else {
+                removeTask(taskIds[i]);
+            }
+        }
+    }
+
+    /**
+     * Encode the task for {@link #putTask}.
+     */
+    private static byte[] encodeTaskLocked(TaskRecord task) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        task.saveToBinary(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Record the current encoding of a task.  Nothing is written if the
+     * task is already stored with the same encoding.
+     */
+    private void putTask(int taskId, byte[] payload) {
+        final byte[] old = mWritten.get(taskId);
+        if (old != null && Arrays.equals(old, payload)) {
+            mNumSkippedWrites++;
+            return;
+        }
+        mWritten.put(taskId, payload);
+        mLiveBytes += payload.length - (old != null ? old.length : 0);
+        if (!appendRecord(OP_PUT, taskId, payload)) {
+            // Start over from a fresh base file.
+            compact();
+        }
+        maybeCompact();
+    }
+
+    private void removeTask(int taskId) {
+        final byte[] old = mWritten.get(taskId);
+        if (old == null) {
+            return;
+        }
+        mWritten.remove(taskId);
+        mLiveBytes -= old.length;
+        if (!appendRecord(OP_REMOVE, taskId, null)) {
+            compact();
+        }
+        maybeCompact();
+    }
+
+    private void maybeCompact() {
+        if (mJournalBytes > MIN_COMPACT_BYTES && mJournalBytes > mLiveBytes) {
+            compact();
+        }
+    }
+
+    private boolean appendRecord(int op, int taskId, byte[] payload) {
+        FileOutputStream fos = null;
+        try {
+            final boolean start = !mJournalValid;
+            fos = new FileOutputStream(mJournalFile, !start);
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            if (start) {
+                out.writeInt(JOURNAL_MAGIC);
+                out.writeInt(mGeneration);
+                mJournalBytes = 0;
+            }
+            out.writeInt(op);
+            out.writeInt(taskId);
+            if (op == OP_PUT) {
+                out.writeInt(payload.length);
+                out.write(payload);
+            }
+            out.flush();
+            FileUtils.sync(fos);
+            mJournalValid = true;
+            mJournalBytes += 8 + (payload != null ? 4 + payload.length : 0);
+            mNumWrites++;
+            return true;
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed appending to " + mJournalFile, e);
+            mJournalValid = false;
+            return false;
+        } finally {
+            IoUtils.closeQuietly(fos);
+        }
+    }
+
+    /**
+     * Write everything in mWritten to a new base file and start an empty
+     * journal for it.
+     */
+    private void compact() {
+        final int generation = mGeneration + 1;
+        FileOutputStream fos = null;
+        try {
+            fos = mStoreFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(STORE_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(generation);
+            final int N = mWritten.size();
+            out.writeInt(N);
+            for (int i = 0; i < N; i++) {
+                final byte[] payload = mWritten.valueAt(i);
+                out.writeInt(mWritten.keyAt(i));
+                out.writeInt(payload.length);
+                out.write(payload);
+            }
+            out.flush();
+            mStoreFile.finishWrite(fos);
+        } catch (IOException e) {
+            Slog.e(TAG, "Failed writing " + mStoreFile.getBaseFile(), e);
+            if (fos != null) {
+                mStoreFile.failWrite(fos);
+            }
+            return;
+        }
+        mGeneration = generation;
+        mJournalFile.delete();
+        mJournalValid = false;
+        mJournalBytes = 0;
+        mNumCompactions++;
+    }
+
+    /**
+     * Load all stored tasks, most recently moved first, as
+     * {@link TaskPersister#restoreTasksLocked} returns them.  If there is no
+     * binary store yet, the tasks are restored by the persister from its XML
+     * files and written out as the first base file.
+     */
+    ArrayList<TaskRecord> restoreTasksLocked(ActivityStackSupervisor stackSupervisor, TaskPersister persister) {
+        final long startTime = SystemClock.elapsedRealtime();
+        final ArrayList<TaskRecord> tasks = new ArrayList<TaskRecord>();
+        mWritten.clear();
+        mLiveBytes = 0;
+
+        final boolean haveStore = mStoreFile.getBaseFile().exists() || mJournalFile.exists();
+        if (haveStore) {
+            final SparseArray<ByteBuffer> records = new SparseArray<ByteBuffer>();
+            readStore(records);
+            readJournal(records);
+            for (int i = 0, N = records.size(); i < N; i++) {
+                final int taskId = records.keyAt(i);
+                final ByteBuffer record = records.valueAt(i);
+                final byte[] payload = new byte[record.remaining()];
+                record.duplicate().get(payload);
+                mWritten.put(taskId, payload);
+                mLiveBytes += payload.length;
+                try {
+                    final TaskRecord task = TaskRecord.restoreFromBinary(record, stackSupervisor, taskId);
+                    if (task != null) {
+                        task.isPersistable = true;
+                        stackSupervisor.setNextTaskId(taskId);
+                        tasks.add(task);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    Slog.e(TAG, "Unable to restore task #" + taskId, e);
+                }
+            }
+            linkAffiliates(tasks);
+            Collections.sort(tasks, LAST_MOVED_FIRST);
+            mRestoredFromXml = false;
+        } else {
+            tasks.addAll(persister.restoreTasksLocked());
+            for (int i = tasks.size() - 1; i >= 0; i--) {
+                final TaskRecord task = tasks.get(i);
+                try {
+                    final byte[] payload = encodeTaskLocked(task);
+                    mWritten.put(task.taskId, payload);
+                    mLiveBytes += payload.length;
+                } catch (IOException e) {
+                    Slog.e(TAG, "Unable to encode imported task " + task, e);
+                }
+            }
+            if (mWritten.size() > 0) {
+                compact();
+            }
+            mRestoredFromXml = true;
+        }
+
+        mRestoreCount = tasks.size();
+        mRestoreTime = SystemClock.elapsedRealtime() - startTime;
+        Slog.i(TAG, "Restored " + mRestoreCount + " tasks in " + mRestoreTime + "ms" + (mRestoredFromXml ? " from XML" : ""));
+        return tasks;
+    }
+
+    private static final Comparator<TaskRecord> LAST_MOVED_FIRST = new Comparator<TaskRecord>() {
+        @Override
+        public int compare(TaskRecord lhs, TaskRecord rhs) {
+            final long diff = rhs.mLastTimeMoved - lhs.mLastTimeMoved;
+            return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+        }
+    };
+
+    /**
+     * Turn the saved affiliate task ids back into links, as the persister
+     * does after reading the XML files.
+     */
+    private static void linkAffiliates(ArrayList<TaskRecord> tasks) {
+        final SparseArray<TaskRecord> byId = new SparseArray<TaskRecord>(tasks.size());
+        for (int i = tasks.size() - 1; i >= 0; i--) {
+            final TaskRecord task = tasks.get(i);
+            byId.put(task.taskId, task);
+        }
+        for (int i = tasks.size() - 1; i >= 0; i--) {
+            final TaskRecord task = tasks.get(i);
+            task.setPrevAffiliate(byId.get(task.mPrevAffiliateTaskId));
+            task.setNextAffiliate(byId.get(task.mNextAffiliateTaskId));
+        }
+    }
+
+    private void readStore(SparseArray<ByteBuffer> records) {
+        final File file = mStoreFile.getBaseFile();
+        mGeneration = 0;
+        ByteBuffer in = null;
+        try {
+            // Goes through AtomicFile so an interrupted write is rolled back.
+            in = map(mStoreFile.openRead());
+        } catch (FileNotFoundException e) {
+        }
+        if (in == null) {
+            return;
+        }
+        try {
+            if (in.getInt() != STORE_MAGIC || in.getInt() != FORMAT_VERSION) {
+                Slog.w(TAG, "Ignoring " + file + ": unknown format");
+                return;
+            }
+            mGeneration = in.getInt();
+            final int N = in.getInt();
+            for (int i = 0; i < N; i++) {
+                final int taskId = in.getInt();
+                records.put(taskId, slice(in, in.getInt()));
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            Slog.w(TAG, "Truncated " + file + ", keeping " + records.size() + " tasks");
+        }
+    }
+
+    private void readJournal(SparseArray<ByteBuffer> records) {
+        mJournalValid = false;
+        mJournalBytes = 0;
+        ByteBuffer in = null;
+        try {
+            in = map(new FileInputStream(mJournalFile));
+        } catch (FileNotFoundException e) {
+        }
+        if (in == null) {
+            return;
+        }
+        if (in.remaining() < 8 || in.getInt() != JOURNAL_MAGIC || in.getInt() != mGeneration) {
+            // Left behind by a compaction that finished; its records are in
+            // the base file already.
+            if (DEBUG_RESTORER) Slog.d(TAG, "Ignoring stale " + mJournalFile);
+            return;
+        }
+        int numRecords = 0;
+        try {
+            while (in.hasRemaining()) {
+                final int start = in.position();
+                final int op = in.getInt();
+                final int taskId = in.getInt();
+                if (op == OP_PUT) {
+                    records.put(taskId, slice(in, in.getInt()));
+                } else if (op == OP_REMOVE) {
+                    records.remove(taskId);
+                } else {
+                    throw new IllegalArgumentException("Bad op " + op);
+                }
+                mJournalBytes += in.position() - start;
+                numRecords++;
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            // A record cut short by a crash; everything before it stands.
+            Slog.w(TAG, "Truncated " + mJournalFile + " after " + numRecords + " records");
+        }
+        // Compact before appending, rather than after a torn record.
+        mJournalValid = false;
+        if (DEBUG_RESTORER) Slog.d(TAG, "Replayed " + numRecords + " journal records");
+    }
+
+    private static ByteBuffer map(FileInputStream fis) {
+        try {
+            final FileChannel channel = fis.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            Slog.w(TAG, "Unable to map task store", e);
+            return null;
+        } finally {
+            // The mapping stays valid after the channel is closed.
+            IoUtils.closeQuietly(fis);
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer in, int length) {
+        if (length < 0 || length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        final ByteBuffer record = in.slice();
+        record.limit(length);
+        in.position(in.position() + length);
+        return record;
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix);
+        pw.print("Task store: generation=");
+        pw.print(mGeneration);
+        pw.print(" tasks=");
+        pw.print(mWritten.size());
+        pw.print(" liveBytes=");
+        pw.print(mLiveBytes);
+        pw.print(" journalBytes=");
+        pw.println(mJournalBytes);
+        pw.print(prefix);
+        pw.print("  restored ");
+        pw.print(mRestoreCount);
+        pw.print(" tasks in ");
+        pw.print(mRestoreTime);
+        pw.print("ms");
+        if (mRestoredFromXml) {
+            pw.print(" from XML");
+        }
+        pw.print(", writes=");
+        pw.print(mNumWrites);
+        pw.print(" unchanged=");
+        pw.print(mNumSkippedWrites);
+        pw.print(" compactions=");
+        pw.println(mNumCompactions);
+    }
+
+    // Encoding helpers shared by TaskRecord and ActivityRecord.
+
+    static void writeString(DataOutputStream out, String str) throws IOException {
+        if (str == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(ByteBuffer in) {
+        final int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        // Mapped buffers have no backing array to decode from.
+        final byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeComponent(DataOutputStream out, ComponentName component) throws IOException {
+        writeString(out, component != null ? component.flattenToShortString() : null);
+    }
+
+    static ComponentName readComponent(ByteBuffer in) {
+        final String str = readString(in);
+        return str != null ? ComponentName.unflattenFromString(str) : null;
+    }
+
+    /**
+     * Writes the same parts of the intent that {@link Intent#saveToXml}
+     * does.
+     */
+    static void writeIntent(DataOutputStream out, Intent intent) throws IOException {
+        out.writeBoolean(intent != null);
+        if (intent == null) {
+            return;
+        }
+        writeString(out, intent.getAction());
+        final Uri data = intent.getData();
+        writeString(out, data != null ? data.toString() : null);
+        writeString(out, intent.getType());
+        writeComponent(out, intent.getComponent());
+        out.writeInt(intent.getFlags());
+        final Set<String> categories = intent.getCategories();
+        out.writeInt(categories != null ? categories.size() : 0);
+        if (categories != null) {
+            for (String category : categories) {
+                writeString(out, category);
+            }
+        }
+    }
+
+    static Intent readIntent(ByteBuffer in) {
+        if (in.get() == 0) {
+            return null;
+        }
+        final Intent intent = new Intent();
+        intent.setAction(readString(in));
+        final String data = readString(in);
+        intent.setDataAndType(data != null ? Uri.parse(data) : null, readString(in));
+        intent.setComponent(readComponent(in));
+        intent.setFlags(in.getInt());
+        for (int i = in.getInt(); i > 0; i--) {
+            intent.addCategory(readString(in));
+        }
+        return intent;
+    }
+
+    /**
+     * Writes the same parts of the description that are saved to XML.
+     */
+    static void writeTaskDescription(DataOutputStream out, TaskDescription taskDescription) throws IOException {
+        out.writeBoolean(taskDescription != null);
+        if (taskDescription == null) {
+            return;
+        }
+        writeString(out, taskDescription.getLabel());
+        out.writeInt(taskDescription.getPrimaryColor());
+        writeString(out, taskDescription.getIconFilename());
+    }
+
+    static TaskDescription readTaskDescription(ByteBuffer in) {
+        if (in.get() == 0) {
+            return new TaskDescription();
+        }
+        final String label = readString(in);
+        final int primaryColor = in.getInt();
+        final TaskDescription taskDescription = new TaskDescription(label, null, primaryColor);
+        taskDescription.setIconFilename(readString(in));
+        return taskDescription;
+    }
+
+    static void writeBundle(DataOutputStream out, PersistableBundle bundle) throws IOException {
+        out.writeBoolean(bundle != null);
+        if (bundle == null) {
+            return;
+        }
+        final Set<String> keys = bundle.keySet();
+        out.writeInt(keys.size());
+        for (String key : keys) {
+            writeString(out, key);
+            writeValue(out, bundle.get(key));
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TYPE_NULL);
+        } else if (value instanceof Integer) {
+            out.writeByte(TYPE_INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof String) {
+            out.writeByte(TYPE_STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof int[]) {
+            final int[] array = (int[]) value;
+            out.writeByte(TYPE_INT_ARRAY);
+            out.writeInt(array.length);
+            for (int v : array) {
+                out.writeInt(v);
+            }
+        } else if (value instanceof long[]) {
+            final long[] array = (long[]) value;
+            out.writeByte(TYPE_LONG_ARRAY);
+            out.writeInt(array.length);
+            for (long v : array) {
+                out.writeLong(v);
+            }
+        } else if (value instanceof double[]) {
+            final double[] array = (double[]) value;
+            out.writeByte(TYPE_DOUBLE_ARRAY);
+            out.writeInt(array.length);
+            for (double v : array) {
+                out.writeDouble(v);
+            }
+        } else if (value instanceof String[]) {
+            final String[] array = (String[]) value;
+            out.writeByte(TYPE_STRING_ARRAY);
+            out.writeInt(array.length);
+            for (String v : array) {
+                writeString(out, v);
+            }
+        } else if (value instanceof boolean[]) {
+            final boolean[] array = (boolean[]) value;
+            out.writeByte(TYPE_BOOLEAN_ARRAY);
+            out.writeInt(array.length);
+            for (boolean v : array) {
+                out.writeBoolean(v);
+            }
+        } else if (value instanceof PersistableBundle) {
+            out.writeByte(TYPE_BUNDLE);
+            writeBundle(out, (PersistableBundle) value);
+        } else {
+            throw new IOException("Unable to persist " + value.getClass().getName());
+        }
+    }
+
+    static PersistableBundle readBundle(ByteBuffer in) {
+        if (in.get() == 0) {
+            return null;
+        }
+        final int N = in.getInt();
+        final PersistableBundle bundle = new PersistableBundle(N);
+        for (int i = 0; i < N; i++) {
+            final String key = readString(in);
+            final int type = in.get();
+            switch (type) {
+                case TYPE_NULL:
+                    bundle.putString(key, null);
+                    break;
+                case TYPE_INT:
+                    bundle.putInt(key, in.getInt());
+                    break;
+                case TYPE_LONG:
+                    bundle.putLong(key, in.getLong());
+                    break;
+                case TYPE_DOUBLE:
+                    bundle.putDouble(key, in.getDouble());
+                    break;
+                case TYPE_STRING:
+                    bundle.putString(key, readString(in));
+                    break;
+                case TYPE_BOOLEAN:
+                    bundle.putBoolean(key, in.get() != 0);
+                    break;
+                case TYPE_INT_ARRAY: {
+                    final int[] array = new int[checkLength(in, 4)];
+                    for (int j = 0; j < array.length; j++) {
+                        array[j] = in.getInt();
+                    }
+                    bundle.putIntArray(key, array);
+                    break;
+                }
+                case TYPE_LONG_ARRAY: {
+                    final long[] array = new long[checkLength(in, 8)];
+                    for (int j = 0; j < array.length; j++) {
+                        array[j] = in.getLong();
+                    }
+                    bundle.putLongArray(key, array);
+                    break;
+                }
+                case TYPE_DOUBLE_ARRAY: {
+                    final double[] array = new double[checkLength(in, 8)];
+                    for (int j = 0; j < array.length; j++) {
+                        array[j] = in.getDouble();
+                    }
+                    bundle.putDoubleArray(key, array);
+                    break;
+                }
+                case TYPE_STRING_ARRAY: {
+                    final String[] array = new String[checkLength(in, 4)];
+                    for (int j = 0; j < array.length; j++) {
+                        array[j] = readString(in);
+                    }
+                    bundle.putStringArray(key, array);
+                    break;
+                }
+                case TYPE_BOOLEAN_ARRAY: {
+                    final boolean[] array = new boolean[checkLength(in, 1)];
+                    for (int j = 0; j < array.length; j++) {
+                        array[j] = in.get() != 0;
+                    }
+                    bundle.putBooleanArray(key, array);
+                    break;
+                }
+                case TYPE_BUNDLE:
+                    bundle.putPersistableBundle(key, readBundle(in));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Bad bundle value type " + type);
+            }
+        }
+        return bundle;
+    }
+
+    private static int checkLength(ByteBuffer in, int elementSize) {
+        final int length = in.getInt();
+        if (length < 0 || (long) length * elementSize > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        return length;
+    }
+}
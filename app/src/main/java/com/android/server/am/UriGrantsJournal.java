@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.net.Uri;
+import android.os.FileUtils;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.Slog;
+import android.util.Xml;
+
+import com.android.internal.util.FastXmlSerializer;
+
+import libcore.io.IoUtils;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static com.android.internal.util.XmlUtils.readBooleanAttribute;
+import static com.android.internal.util.XmlUtils.readIntAttribute;
+import static com.android.internal.util.XmlUtils.readLongAttribute;
+import static com.android.internal.util.XmlUtils.writeBooleanAttribute;
+import static com.android.internal.util.XmlUtils.writeIntAttribute;
+import static com.android.internal.util.XmlUtils.writeLongAttribute;
+import static org.xmlpull.v1.XmlPullParser.END_DOCUMENT;
+import static org.xmlpull.v1.XmlPullParser.START_TAG;
+
+/**
+ * Storage for persisted {@link Uri} permission grants.
+ *
+ * <p>The full set of grants lives in the historical urigrants.xml file.
+ * Instead of rewriting that file on every change, changes since it was
+ * written are appended to a small binary journal next to it; once the
+ * journal grows to about the size of the base file the two are compacted
+ * into a new base file.  Both carry a generation number so a journal left
+ * over from before a compaction is never replayed on top of the new base.</p>
+ *
+ * <p>Only used from the activity manager's handler thread and, during boot,
+ * with the activity manager lock held.</p>
+ */
+final class UriGrantsJournal {
+    private static final String TAG = "UriGrantsJournal";
+
+    /**
+     * XML constants used in the base file.
+     */
+    private static final String TAG_URI_GRANTS = "uri-grants";
+    private static final String TAG_URI_GRANT = "uri-grant";
+    private static final String ATTR_GENERATION = "generation";
+    private static final String ATTR_USER_HANDLE = "userHandle";
+    private static final String ATTR_SOURCE_USER_ID = "sourceUserId";
+    private static final String ATTR_TARGET_USER_ID = "targetUserId";
+    private static final String ATTR_SOURCE_PKG = "sourcePkg";
+    private static final String ATTR_TARGET_PKG = "targetPkg";
+    private static final String ATTR_URI = "uri";
+    private static final String ATTR_MODE_FLAGS = "modeFlags";
+    private static final String ATTR_CREATED_TIME = "createdTime";
+    private static final String ATTR_PREFIX = "prefix";
+
+    private static final int JOURNAL_MAGIC = 0x55474a31; // "UGJ1"
+    private static final int OP_PUT = 1;
+    private static final int OP_REMOVE = 2;
+
+    /**
+     * Never compact before the journal holds this many records.
+     */
+    private static final int MIN_COMPACT_RECORDS = 64;
+
+    /**
+     * A single persisted grant.
+     */
+    static final class Entry {
+        final int sourceUserId;
+        final int targetUserId;
+        final String sourcePkg;
+        final String targetPkg;
+        final Uri uri;
+        final boolean prefix;
+        final int modeFlags;
+        final long createdTime;
+        final String key;
+
+        Entry(int _sourceUserId, int _targetUserId, String _sourcePkg, String _targetPkg, Uri _uri, boolean _prefix, int _modeFlags, long _createdTime) {
+            sourceUserId = _sourceUserId;
+            targetUserId = _targetUserId;
+            sourcePkg = _sourcePkg;
+            targetPkg = _targetPkg;
+            uri = _uri;
+            prefix = _prefix;
+            modeFlags = _modeFlags;
+            createdTime = _createdTime;
+            key = targetUserId + " " + targetPkg + " " + sourceUserId + (prefix ? " p " : " e ") + uri;
+        }
+
+        static Entry fromSnapshot(UriPermission.Snapshot perm) {
+            return new Entry(perm.uri.sourceUserId, perm.targetUserId, perm.sourcePkg, perm.targetPkg, perm.uri.uri, perm.uri.prefix, perm.persistedModeFlags, perm.persistedCreateTime);
+        }
+
+        boolean sameAs(Entry other) {
+            return modeFlags == other.modeFlags && createdTime == other.createdTime && sourcePkg.equals(other.sourcePkg);
+        }
+    }
+
+    private final AtomicFile mBaseFile;
+    private final File mJournalFile;
+
+    /**
+     * What base file plus journal currently hold, by Entry.key.
+     */
+    private final ArrayMap<String, Entry> mWritten = new ArrayMap<String, Entry>();
+    private int mGeneration;
+    private int mJournalRecords;
+
+    /**
+     * Set when the journal can not be trusted to end on a whole record, or
+     * the last compaction failed; the next write then rewrites the base
+     * file instead of appending.
+     */
+    private boolean mNeedsCompact;
+
+    UriGrantsJournal(File baseFile, File journalFile) {
+        mBaseFile = new AtomicFile(baseFile);
+        mJournalFile = journalFile;
+    }
+
+    /**
+     * Load the base file and replay the journal on top of it.
+     */
+    ArrayMap<String, Entry> read() {
+        mWritten.clear();
+        mNeedsCompact = false;
+        mGeneration = readBase();
+        mJournalRecords = replayJournal();
+        final ArrayMap<String, Entry> grants = new ArrayMap<String, Entry>(mWritten);
+        if (mNeedsCompact) {
+            // Do not leave records appended after a torn or unreadable one.
+            compact(grants);
+        }
+        return grants;
+    }
+
+    /**
+     * Bring the stored state in line with the given grants, by appending
+     * only what changed since the last write.
+     */
+    void write(ArrayMap<String, Entry> current) {
+        if (mNeedsCompact) {
+            compact(current);
+            return;
+        }
+        int changes = 0;
+        boolean failed = false;
+        DataOutputStream out = null;
+        FileOutputStream fos = null;
+        try {
+            for (int i = mWritten.size() - 1; i >= 0; i--) {
+                final Entry old = mWritten.valueAt(i);
+                if (!current.containsKey(old.key)) {
+                    if (out == null) {
+                        fos = openJournal();
+                        out = new DataOutputStream(new BufferedOutputStream(fos));
+                    }
+                    writeRecord(out, OP_REMOVE, old);
+                    mWritten.removeAt(i);
+                    changes++;
+                }
+            }
+            for (int i = 0, N = current.size(); i < N; i++) {
+                final Entry entry = current.valueAt(i);
+                final Entry old = mWritten.get(entry.key);
+                if (old == null || !old.sameAs(entry)) {
+                    if (out == null) {
+                        fos = openJournal();
+                        out = new DataOutputStream(new BufferedOutputStream(fos));
+                    }
+                    writeRecord(out, OP_PUT, entry);
+                    mWritten.put(entry.key, entry);
+                    changes++;
+                }
+            }
+            if (out != null) {
+                out.flush();
+                FileUtils.sync(fos);
+            }
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed appending Uri grants journal, rewriting", e);
+            // Whatever made it to disk, the base file below supersedes it.
+            failed = true;
+        } finally {
+            IoUtils.closeQuietly(out != null ? out : fos);
+        }
+
+        mJournalRecords += changes;
+        if (failed || mJournalRecords >= Math.max(MIN_COMPACT_RECORDS, mWritten.size())) {
+            compact(current);
+        }
+    }
+
+    private void compact(ArrayMap<String, Entry> current) {
+        final int generation = mGeneration + 1;
+        FileOutputStream fos = null;
+        try {
+            fos = mBaseFile.startWrite();
+
+            XmlSerializer out = new FastXmlSerializer();
+            out.setOutput(fos, "utf-8");
+            out.startDocument(null, true);
+            out.startTag(null, TAG_URI_GRANTS);
+            writeIntAttribute(out, ATTR_GENERATION, generation);
+            for (int i = 0, N = current.size(); i < N; i++) {
+                final Entry perm = current.valueAt(i);
+                out.startTag(null, TAG_URI_GRANT);
+                writeIntAttribute(out, ATTR_SOURCE_USER_ID, perm.sourceUserId);
+                writeIntAttribute(out, ATTR_TARGET_USER_ID, perm.targetUserId);
+                out.attribute(null, ATTR_SOURCE_PKG, perm.sourcePkg);
+                out.attribute(null, ATTR_TARGET_PKG, perm.targetPkg);
+                out.attribute(null, ATTR_URI, String.valueOf(perm.uri));
+                writeBooleanAttribute(out, ATTR_PREFIX, perm.prefix);
+                writeIntAttribute(out, ATTR_MODE_FLAGS, perm.modeFlags);
+                writeLongAttribute(out, ATTR_CREATED_TIME, perm.createdTime);
+                out.endTag(null, TAG_URI_GRANT);
+            }
+            out.endTag(null, TAG_URI_GRANTS);
+            out.endDocument();
+
+            mBaseFile.finishWrite(fos);
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed writing Uri grants", e);
+            if (fos != null) {
+                mBaseFile.failWrite(fos);
+            }
+            // mWritten may no longer match the disk; try again next time.
+            mNeedsCompact = true;
+            return;
+        }
+
+        // The journal now refers to an older generation and would be
+        // ignored anyway; drop it.
+        mWritten.clear();
+        mWritten.putAll(current);
+        mNeedsCompact = false;
+        mGeneration = generation;
+        mJournalRecords = 0;
+        mJournalFile.delete();
+    }
+
+    private FileOutputStream openJournal() throws IOException {
+        final boolean exists = mJournalFile.exists() && mJournalFile.length() > 0;
+        final FileOutputStream fos = new FileOutputStream(mJournalFile, exists);
+        if (!exists) {
+            final DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(JOURNAL_MAGIC);
+            out.writeInt(mGeneration);
+            out.flush();
+        }
+        return fos;
+    }
+
+    private static void writeRecord(DataOutputStream out, int op, Entry entry) throws IOException {
+        out.writeByte(op);
+        out.writeInt(entry.sourceUserId);
+        out.writeInt(entry.targetUserId);
+        out.writeUTF(entry.sourcePkg);
+        out.writeUTF(entry.targetPkg);
+        out.writeUTF(String.valueOf(entry.uri));
+        out.writeBoolean(entry.prefix);
+        out.writeInt(entry.modeFlags);
+        out.writeLong(entry.createdTime);
+    }
+
+    private int replayJournal() {
+        DataInputStream in = null;
+        int records = 0;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mJournalFile)));
+            if (in.readInt() != JOURNAL_MAGIC || in.readInt() != mGeneration) {
+                Slog.w(TAG, "Ignoring stale Uri grants journal");
+                mJournalFile.delete();
+                return 0;
+            }
+            while (true) {
+                final int op = in.read();
+                if (op < 0) {
+                    // End of journal, on a record boundary.
+                    break;
+                }
+                if (op != OP_PUT && op != OP_REMOVE) {
+                    // Nothing after it can be trusted either.
+                    Slog.wtf(TAG, "Unknown op " + op + " in Uri grants journal after " + records + " records");
+                    mNeedsCompact = true;
+                    break;
+                }
+                final Entry entry = new Entry(in.readInt(), in.readInt(), in.readUTF(), in.readUTF(), Uri.parse(in.readUTF()), in.readBoolean(), in.readInt(), in.readLong());
+                if (op == OP_PUT) {
+                    mWritten.put(entry.key, entry);
+                } else {
+                    mWritten.remove(entry.key);
+                }
+                records++;
+            }
+        } catch (FileNotFoundException e) {
+            // No changes since the base file was written.
+        } catch (EOFException e) {
+            // A torn final record is dropped, and the journal rewritten
+            // so nothing gets appended after it.
+            mNeedsCompact = true;
+        } catch (IOException e) {
+            Slog.wtf(TAG, "Failed reading Uri grants journal", e);
+            mNeedsCompact = true;
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+        return records;
+    }
+
+    private int readBase() {
+        final long now = System.currentTimeMillis();
+        int generation = 0;
+
+        FileInputStream fis = null;
+        try {
+            fis = mBaseFile.openRead();
+            final XmlPullParser in = Xml.newPullParser();
+            in.setInput(fis, null);
+
+            int type;
+            while ((type = in.next()) != END_DOCUMENT) {
+                final String tag = in.getName();
+                if (type == START_TAG) {
+                    if (TAG_URI_GRANTS.equals(tag)) {
+                        generation = readIntAttribute(in, ATTR_GENERATION, 0);
+                    } else if (TAG_URI_GRANT.equals(tag)) {
+                        final int sourceUserId;
+                        final int targetUserId;
+                        final int userHandle = readIntAttribute(in, ATTR_USER_HANDLE, UserHandle.USER_NULL);
+                        if (userHandle != UserHandle.USER_NULL) {
+                            // For backwards compatibility.
+                            sourceUserId = userHandle;
+                            targetUserId = userHandle;
+                        } else {
+                            sourceUserId = readIntAttribute(in, ATTR_SOURCE_USER_ID);
+                            targetUserId = readIntAttribute(in, ATTR_TARGET_USER_ID);
+                        }
+                        final String sourcePkg = in.getAttributeValue(null, ATTR_SOURCE_PKG);
+                        final String targetPkg = in.getAttributeValue(null, ATTR_TARGET_PKG);
+                        final Uri uri = Uri.parse(in.getAttributeValue(null, ATTR_URI));
+                        final boolean prefix = readBooleanAttribute(in, ATTR_PREFIX);
+                        final int modeFlags = readIntAttribute(in, ATTR_MODE_FLAGS);
+                        final long createdTime = readLongAttribute(in, ATTR_CREATED_TIME, now);
+                        final Entry entry = new Entry(sourceUserId, targetUserId, sourcePkg, targetPkg, uri, prefix, modeFlags, createdTime);
+                        mWritten.put(entry.key, entry);
+                    }
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // Missing grants is okay
+        } catch (IOException e) {
+            Slog.wtf(TAG, "Failed reading Uri grants", e);
+        } catch (XmlPullParserException e) {
+            Slog.wtf(TAG, "Failed reading Uri grants", e);
+        } finally {
+            IoUtils.closeQuietly(fis);
+        }
+        return generation;
+    }
+}
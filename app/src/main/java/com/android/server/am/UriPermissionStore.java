@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.net.Uri;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.SparseArray;
+
+import com.android.server.am.ActivityManagerService.GrantUri;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Global set of specific {@link Uri} permissions that have been granted.
+ *
+ * <p>The primary structure maps from {@link UriPermission#targetUid} to
+ * {@link UriPermission#uri} to {@link UriPermission}, as the activity
+ * manager has always kept it.  On top of that there are two secondary
+ * indexes so that revocation does not have to visit every grant:</p>
+ *
+ * <ul>
+ * <li>by package, holding every grant the package is either the source or
+ * the target of;</li>
+ * <li>a trie over scheme, authority and path segments, so that all grants
+ * at or below a Uri (the {@link Uri#isPathPrefixMatch} relation) and all
+ * prefix grants above a Uri can be found by walking a single path.  Like
+ * {@link Uri#isPathPrefixMatch} it ignores the source user; the callers that
+ * care about it check it themselves.</li>
+ * </ul>
+ *
+ * <p>All grants must be added and removed through this class so the indexes
+ * stay in step.  Callers hold the activity manager lock.</p>
+ */
+final class UriPermissionStore {
+    private final SparseArray<ArrayMap<GrantUri, UriPermission>> mByTargetUid
+            = new SparseArray<ArrayMap<GrantUri, UriPermission>>();
+
+    private final ArrayMap<String, ArraySet<UriPermission>> mByPackage
+            = new ArrayMap<String, ArraySet<UriPermission>>();
+
+    private final PathNode mRoot = new PathNode(null);
+
+    /**
+     * One level of the path trie.  The first level below the root is keyed
+     * by scheme and authority, the levels after that by path segment.
+     */
+    private static final class PathNode {
+        final PathNode parent;
+        final ArrayMap<String, PathNode> children = new ArrayMap<String, PathNode>();
+        // Grants whose Uri ends exactly at this node.
+        final ArraySet<UriPermission> perms = new ArraySet<UriPermission>();
+        String key;
+
+        PathNode(PathNode _parent) {
+            parent = _parent;
+        }
+    }
+
+    /**
+     * Number of target uids holding grants.
+     */
+    int size() {
+        return mByTargetUid.size();
+    }
+
+    int keyAt(int index) {
+        return mByTargetUid.keyAt(index);
+    }
+
+    /**
+     * Grants held by the uid at the given index.  Must not be modified.
+     */
+    ArrayMap<GrantUri, UriPermission> valueAt(int index) {
+        return mByTargetUid.valueAt(index);
+    }
+
+    /**
+     * Grants held by the given uid, or null.  Must not be modified.
+     */
+    ArrayMap<GrantUri, UriPermission> get(int targetUid) {
+        return mByTargetUid.get(targetUid);
+    }
+
+    UriPermission find(int targetUid, GrantUri grantUri) {
+        final ArrayMap<GrantUri, UriPermission> targetUris = mByTargetUid.get(targetUid);
+        return targetUris != null ? targetUris.get(grantUri) : null;
+    }
+
+    UriPermission findOrCreate(String sourcePkg, String targetPkg, int targetUid, GrantUri grantUri) {
+        ArrayMap<GrantUri, UriPermission> targetUris = mByTargetUid.get(targetUid);
+        if (targetUris == null) {
+            targetUris = new ArrayMap<GrantUri, UriPermission>();
+            mByTargetUid.put(targetUid, targetUris);
+        }
+
+        UriPermission perm = targetUris.get(grantUri);
+        if (perm == null) {
+            perm = new UriPermission(sourcePkg, targetPkg, targetUid, grantUri);
+            targetUris.put(grantUri, perm);
+            addToPackage(sourcePkg, perm);
+            addToPackage(targetPkg, perm);
+            findNode(perm.uri, true).perms.add(perm);
+        }
+
+        return perm;
+    }
+
+    /**
+     * Drop a grant from all indexes.
+     */
+    void remove(UriPermission perm) {
+        final ArrayMap<GrantUri, UriPermission> perms = mByTargetUid.get(perm.targetUid);
+        if (perms == null || perms.get(perm.uri) != perm) {
+            return;
+        }
+        perms.remove(perm.uri);
+        if (perms.isEmpty()) {
+            mByTargetUid.remove(perm.targetUid);
+        }
+        removeFromPackage(perm.sourcePkg, perm);
+        removeFromPackage(perm.targetPkg, perm);
+        PathNode node = findNode(perm.uri, false);
+        if (node != null) {
+            node.perms.remove(perm);
+            // Prune branches that no longer lead anywhere.
+            while (node != mRoot && node.perms.isEmpty() && node.children.isEmpty()) {
+                node.parent.children.remove(node.key);
+                node = node.parent;
+            }
+        }
+    }
+
+    /**
+     * Add every grant the package is the source or target of to outPerms.
+     */
+    void collectForPackage(String packageName, List<UriPermission> outPerms) {
+        final ArraySet<UriPermission> perms = mByPackage.get(packageName);
+        if (perms != null) {
+            for (int i = perms.size() - 1; i >= 0; i--) {
+                outPerms.add(perms.valueAt(i));
+            }
+        }
+    }
+
+    /**
+     * Add every grant from the same source user for a Uri that is a path
+     * prefix match of the given one (that is, the same Uri or one below it)
+     * to outPerms.
+     */
+    void collectUnder(GrantUri grantUri, List<UriPermission> outPerms) {
+        final PathNode start = findNode(grantUri, false);
+        if (start == null) {
+            return;
+        }
+        final ArrayList<PathNode> pending = new ArrayList<PathNode>();
+        pending.add(start);
+        while (!pending.isEmpty()) {
+            final PathNode node = pending.remove(pending.size() - 1);
+            for (int i = node.perms.size() - 1; i >= 0; i--) {
+                final UriPermission perm = node.perms.valueAt(i);
+                if (perm.uri.sourceUserId == grantUri.sourceUserId) {
+                    outPerms.add(perm);
+                }
+            }
+            for (int i = node.children.size() - 1; i >= 0; i--) {
+                pending.add(node.children.valueAt(i));
+            }
+        }
+    }
+
+    /**
+     * Returns true if the uid holds a prefix grant covering the given Uri
+     * with at least the given strength, whatever user the grant came from.
+     */
+    boolean hasPrefixGrant(int uid, GrantUri grantUri, int modeFlags, int minStrength) {
+        PathNode node = mRoot.children.get(rootKey(grantUri));
+        if (node == null) {
+            return false;
+        }
+        final List<String> segments = grantUri.uri.getPathSegments();
+        final int N = segments.size();
+        for (int i = 0; ; i++) {
+            for (int j = node.perms.size() - 1; j >= 0; j--) {
+                final UriPermission perm = node.perms.valueAt(j);
+                if (perm.targetUid == uid && perm.uri.prefix && perm.getStrength(modeFlags) >= minStrength) {
+                    return true;
+                }
+            }
+            if (i >= N) {
+                return false;
+            }
+            node = node.children.get(segments.get(i));
+            if (node == null) {
+                return false;
+            }
+        }
+    }
+
+    private void addToPackage(String packageName, UriPermission perm) {
+        ArraySet<UriPermission> perms = mByPackage.get(packageName);
+        if (perms == null) {
+            perms = new ArraySet<UriPermission>();
+            mByPackage.put(packageName, perms);
+        }
+        perms.add(perm);
+    }
+
+    private void removeFromPackage(String packageName, UriPermission perm) {
+        final ArraySet<UriPermission> perms = mByPackage.get(packageName);
+        if (perms != null) {
+            perms.remove(perm);
+            if (perms.isEmpty()) {
+                mByPackage.remove(packageName);
+            }
+        }
+    }
+
+    private static String rootKey(GrantUri grantUri) {
+        return grantUri.uri.getScheme() + "://" + grantUri.uri.getAuthority();
+    }
+
+    private PathNode findNode(GrantUri grantUri, boolean create) {
+        PathNode node = child(mRoot, rootKey(grantUri), create);
+        if (node == null) {
+            return null;
+        }
+        final List<String> segments = grantUri.uri.getPathSegments();
+        for (int i = 0, N = segments.size(); i < N && node != null; i++) {
+            node = child(node, segments.get(i), create);
+        }
+        return node;
+    }
+
+    private static PathNode child(PathNode node, String key, boolean create) {
+        PathNode child = node.children.get(key);
+        if (child == null && create) {
+            child = new PathNode(node);
+            child.key = key;
+            node.children.put(key, child);
+        }
+        return child;
+    }
+}
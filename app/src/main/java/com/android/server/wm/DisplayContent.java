@@ -51,7 +51,7 @@ class DisplayContent {
 	 * Z-ordered (bottom-most first) list of all Window objects. Assigned to an element
 	 * from mDisplayWindows;
 	 */
-	private final WindowList mWindows = new WindowList();
+	private final WindowList mWindows = new WindowList(true);
 
 	// This protects the following display size properties, so that
 	// getDisplaySize() doesn't need to acquire the global lock.  This is
@@ -81,6 +81,11 @@ class DisplayContent {
 	int pendingLayoutChanges;
 	final boolean isDefaultDisplay;
 
+	/**
+	 * The window of this display that gets focus, as last found.
+	 */
+	final FocusCandidateCache mFocusCache = new FocusCandidateCache();
+
 	/**
 	 * Window tokens that are in the process of exiting, but still on screen for animations.
 	 */
@@ -410,6 +415,8 @@ class DisplayContent {
 		pw.print(mDeferredRemoval);
 		pw.print(" layoutNeeded=");
 		pw.println(layoutNeeded);
+		mWindows.dump(pw, subPrefix);
+		mFocusCache.dump(pw, subPrefix);
 		for (int stackNdx = mStacks.size() - 1; stackNdx >= 0; --stackNdx) {
 			final TaskStack stack = mStacks.get(stackNdx);
 			pw.print(prefix);
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wm;
+
+import static com.android.server.wm.WindowManagerService.TAG;
+
+import android.os.SystemProperties;
+import android.util.Slog;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * The window of a display that gets focus, kept from one focus update to
+ * the next.
+ *
+ * <p>Focus goes to the topmost window that can receive keys, unless that
+ * window's app is below the focused app.  Once that candidate is known, it
+ * only changes when the candidate itself changes, or when a window at or
+ * above it is added or changes in a way that may let it receive keys; the
+ * windows below it can do anything without moving focus.  The window list
+ * records the windows added to it, see {@link WindowList#getAddedWindows},
+ * and the places that change a window's visibility or flags report that
+ * window, so most checks come down to comparing two positions.  Changes to
+ * app tokens, tasks, the focused app and app transitions drop the cached
+ * window altogether.</p>
+ *
+ * <p>Setting the debug.wm.verify_focus property to true makes every use of
+ * the cached window compare it with a full scan of the list.</p>
+ *
+ * <p>Guarded by the window manager lock.</p>
+ */
+final class FocusCandidateCache {
+    private final boolean mVerify = SystemProperties.getBoolean("debug.wm.verify_focus", false);
+
+    private boolean mValid;
+    // The topmost window that can receive keys, or null if there is none.
+    private WindowState mCandidate;
+    // mCandidate, or null if it is below the focused app.
+    private WindowState mFocus;
+
+    private long mNumHits;
+    private long mNumMisses;
+    private long mNumInvalidations;
+    private long mNumChangesBelow;
+    private long mNumMismatches;
+
+    /**
+     * Whether the window could take focus if nothing above it does.
+     */
+    static boolean isCandidate(WindowState win) {
+        final AppWindowToken wtoken = win.mAppToken;
+        if (wtoken != null && (wtoken.removed || wtoken.sendingToBottom)) {
+            return false;
+        }
+        return win.canReceiveKeys();
+    }
+
+    /**
+     * Whether the cached focus still holds for the list.  Counts a hit or
+     * a miss, so only call it when the focus is wanted.
+     */
+    boolean isValid(WindowList windows) {
+        if (mValid) {
+            if (isStillValid(windows)) {
+                windows.clearAddedWindows();
+                mNumHits++;
+                return true;
+            }
+            invalidate();
+        }
+        mNumMisses++;
+        return false;
+    }
+
+    private boolean isStillValid(WindowList windows) {
+        int candidateIndex = -1;
+        if (mCandidate != null) {
+            candidateIndex = windows.indexOf(mCandidate);
+            if (candidateIndex < 0 || !isCandidate(mCandidate)) {
+                return false;
+            }
+        }
+        final ArrayList<WindowState> added = windows.getAddedWindows();
+        if (added == null) {
+            return false;
+        }
+        for (int i = added.size() - 1; i >= 0; i--) {
+            final int index = windows.indexOf(added.get(i));
+            if (index >= 0 && index >= candidateIndex) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    WindowState getFocus() {
+        return mFocus;
+    }
+
+    void set(WindowList windows, WindowState candidate, WindowState focus) {
+        windows.clearAddedWindows();
+        mCandidate = candidate;
+        mFocus = focus;
+        mValid = true;
+    }
+
+    void invalidate() {
+        if (mValid) {
+            mValid = false;
+            mCandidate = null;
+            mFocus = null;
+            mNumInvalidations++;
+        }
+    }
+
+    /**
+     * The window's visibility, flags or surface may have changed in a way
+     * that affects whether it can receive keys; so may its child windows'.
+     */
+    void windowChanged(WindowList windows, WindowState win) {
+        if (!mValid) {
+            return;
+        }
+        if (mCandidate == null || win == mCandidate) {
+            invalidate();
+            return;
+        }
+        final int candidateIndex = windows.indexOf(mCandidate);
+        if (candidateIndex < 0 || windows.indexOf(win) >= candidateIndex) {
+            invalidate();
+            return;
+        }
+        final WindowList children = win.mChildWindows;
+        for (int i = children.size() - 1; i >= 0; i--) {
+            if (windows.indexOf(children.get(i)) >= candidateIndex) {
+                invalidate();
+                return;
+            }
+        }
+        mNumChangesBelow++;
+    }
+
+    boolean shouldVerify() {
+        return mVerify;
+    }
+
+    /**
+     * Compare the cached focus with the one a full scan found, and return
+     * the latter.
+     */
+    WindowState verify(WindowState cached, WindowState scanned) {
+        if (cached != scanned) {
+            mNumMismatches++;
+            Slog.wtf(TAG, "Cached focus " + cached + " but scan found " + scanned);
+            invalidate();
+        }
+        return scanned;
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix);
+        pw.print("Focus cache: ");
+        if (mValid) {
+            pw.print("focus=");
+            pw.print(mFocus);
+            if (mFocus != mCandidate) {
+                pw.print(" candidate=");
+                pw.print(mCandidate);
+            }
+        } else {
+            pw.print("invalid");
+        }
+        pw.print(" hits=");
+        pw.print(mNumHits);
+        pw.print(" misses=");
+        pw.print(mNumMisses);
+        pw.print(" invalidations=");
+        pw.print(mNumInvalidations);
+        pw.print(" changesBelow=");
+        pw.print(mNumChangesBelow);
+        if (mVerify) {
+            pw.print(" mismatches=");
+            pw.print(mNumMismatches);
+        }
+        pw.println();
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wm;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.os.IBinder;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * The last few app screenshots, so asking again for the same picture of an
+ * app returns the bitmap taken last time instead of capturing it again.
+ *
+ * <p>A screenshot is reused only for the same app, display, size, bitmap
+ * config and rotation, with the same windows at the same surface layers, and only
+ * if none of those windows was relaid out, shown, hidden or finished
+ * drawing since; see {@link WindowState#mDrawSeq}.  An app can still draw a
+ * new frame without the window manager hearing about it, so a screenshot is
+ * never reused once it is older than {@link #MAX_AGE_MS}.</p>
+ *
+ * <p>Everyone who gets a reused bitmap shares it, so only immutable bitmaps
+ * are cached, and they must not be recycled.  Sharing also lets TaskRecord.setLastThumbnail see that the
+ * thumbnail did not change and skip saving it again.</p>
+ *
+ * <p>Guarded by the window manager lock.</p>
+ */
+final class ScreenshotCache {
+    static final long MAX_AGE_MS = 500;
+    private static final int MAX_ENTRIES = 4;
+
+    /**
+     * What a screenshot was taken of.
+     */
+    static final class Key {
+        final IBinder appToken;
+        final int displayId;
+        final int width;
+        final int height;
+        final boolean force565;
+        final int rotation;
+        final Rect crop;
+        final WindowState[] windows;
+        final int[] drawSeqs;
+        final int[] layers;
+
+        Key(IBinder _appToken, int _displayId, int _width, int _height, boolean _force565, int _rotation, Rect _crop, ArrayList<WindowState> _windows) {
+            appToken = _appToken;
+            displayId = _displayId;
+            width = _width;
+            height = _height;
+            force565 = _force565;
+            rotation = _rotation;
+            crop = new Rect(_crop);
+            final int N = _windows.size();
+            windows = new WindowState[N];
+            drawSeqs = new int[N];
+            layers = new int[N];
+            for (int i = 0; i < N; i++) {
+                final WindowState win = _windows.get(i);
+                windows[i] = win;
+                drawSeqs[i] = win.mDrawSeq;
+                layers[i] = win.mWinAnimator.mSurfaceLayer;
+            }
+        }
+
+        boolean matches(Key other) {
+            if (appToken != other.appToken || displayId != other.displayId || width != other.width || height != other.height || force565 != other.force565 || rotation != other.rotation || !crop.equals(other.crop)) {
+                return false;
+            }
+            final int N = windows.length;
+            if (N != other.windows.length) {
+                return false;
+            }
+            for (int i = 0; i < N; i++) {
+                if (windows[i] != other.windows[i] || drawSeqs[i] != other.drawSeqs[i] || layers[i] != other.layers[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class Entry {
+        final Key key;
+        final Bitmap bitmap;
+        final long time;
+
+        Entry(Key _key, Bitmap _bitmap, long _time) {
+            key = _key;
+            bitmap = _bitmap;
+            time = _time;
+        }
+    }
+
+    // Most recently used first.
+    private final ArrayList<Entry> mEntries = new ArrayList<Entry>();
+
+    private long mNumHits;
+    private long mNumMisses;
+    private long mNumExpired;
+
+    /**
+     * The screenshot taken of the same thing, or null.
+     */
+    Bitmap get(Key key) {
+        trim(SystemClock.uptimeMillis());
+        for (int i = 0; i < mEntries.size(); i++) {
+            final Entry entry = mEntries.get(i);
+            if (entry.key.matches(key) && !entry.bitmap.isRecycled()) {
+                if (i > 0) {
+                    mEntries.remove(i);
+                    mEntries.add(0, entry);
+                }
+                mNumHits++;
+                return entry.bitmap;
+            }
+        }
+        mNumMisses++;
+        return null;
+    }
+
+    /**
+     * Remember a screenshot, replacing any other of the same app.  The
+     * bitmap must be immutable.
+     */
+    void put(Key key, Bitmap bitmap) {
+        final long now = SystemClock.uptimeMillis();
+        trim(now);
+        for (int i = mEntries.size() - 1; i >= 0; i--) {
+            if (mEntries.get(i).key.appToken == key.appToken) {
+                mEntries.remove(i);
+            }
+        }
+        mEntries.add(0, new Entry(key, bitmap, now));
+        while (mEntries.size() > MAX_ENTRIES) {
+            mEntries.remove(mEntries.size() - 1);
+        }
+    }
+
+    private void trim(long now) {
+        for (int i = mEntries.size() - 1; i >= 0; i--) {
+            if (now - mEntries.get(i).time > MAX_AGE_MS) {
+                mEntries.remove(i);
+                mNumExpired++;
+            }
+        }
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix);
+        pw.print("Screenshot cache: entries=");
+        pw.print(mEntries.size());
+        pw.print(" hits=");
+        pw.print(mNumHits);
+        pw.print(" misses=");
+        pw.print(mNumMisses);
+        pw.print(" expired=");
+        pw.println(mNumExpired);
+    }
+}
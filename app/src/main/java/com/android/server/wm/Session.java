@@ -64,6 +64,10 @@ final class Session extends IWindowSession.Stub implements IBinder.DeathRecipien
     SurfaceSession mSurfaceSession;
     int mNumWindow = 0;
     boolean mClientDead = false;
+    // Relayouts of this session's windows and how long they took, in ns.
+    int mNumRelayouts;
+    long mRelayoutNanos;
+    long mMaxRelayoutNanos;
     float mLastReportedAnimatorScale;
 
     public Session(WindowManagerService service, IWindowSessionCallback callback, IInputMethodClient client, IInputContext inputContext) {
@@ -217,9 +221,7 @@ final class Session extends IWindowSession.Stub implements IBinder.DeathRecipien
     }
 
     public boolean getInTouchMode() {
-        synchronized (mService.mWindowMap) {
-            return mService.mInTouchMode;
-        }
+        return mService.mInTouchMode;
     }
 
     public boolean performHapticFeedback(IWindow window, int effectId, boolean always) {
@@ -474,6 +476,14 @@ final class Session extends IWindowSession.Stub implements IBinder.DeathRecipien
         }
     }
 
+    void noteRelayout(long nanos) {
+        mNumRelayouts++;
+        mRelayoutNanos += nanos;
+        if (nanos > mMaxRelayoutNanos) {
+            mMaxRelayoutNanos = nanos;
+        }
+    }
+
     void dump(PrintWriter pw, String prefix) {
         pw.print(prefix);
         pw.print("mNumWindow=");
@@ -482,6 +492,16 @@ final class Session extends IWindowSession.Stub implements IBinder.DeathRecipien
         pw.print(mClientDead);
         pw.print(" mSurfaceSession=");
         pw.println(mSurfaceSession);
+        if (mNumRelayouts > 0) {
+            pw.print(prefix);
+            pw.print("mNumRelayouts=");
+            pw.print(mNumRelayouts);
+            pw.print(" avg=");
+            pw.print(mRelayoutNanos / mNumRelayouts / 1000);
+            pw.print("us max=");
+            pw.print(mMaxRelayoutNanos / 1000);
+            pw.println("us");
+        }
     }
 
     @Override
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wm;
+
+import android.graphics.Rect;
+
+/**
+ * A window's frames as of its last layout.
+ *
+ * <p>Never changed once created: each layout that moves the window
+ * publishes a new one in {@link WindowState#mGeometry}, so it can be read
+ * from any thread without the window manager lock.</p>
+ */
+final class WindowGeometry {
+    static final WindowGeometry EMPTY = new WindowGeometry();
+
+    private final Rect mFrame = new Rect();
+    private final Rect mDisplayFrame = new Rect();
+
+    private WindowGeometry() {
+    }
+
+    WindowGeometry(WindowState win) {
+        mFrame.set(win.mFrame);
+        mDisplayFrame.set(win.mDisplayFrame);
+    }
+
+    /**
+     * Whether this is still the geometry of the window.  Called with the
+     * window manager lock held.
+     */
+    boolean matches(WindowState win) {
+        return mFrame.equals(win.mFrame) && mDisplayFrame.equals(win.mDisplayFrame);
+    }
+
+    void getFrame(Rect outFrame) {
+        outFrame.set(mFrame);
+    }
+
+    void getDisplayFrame(Rect outDisplayFrame) {
+        outDisplayFrame.set(mDisplayFrame);
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wm;
+
+import static com.android.server.wm.WindowManagerService.DEBUG_LAYERS;
+import static com.android.server.wm.WindowManagerService.TAG;
+import static com.android.server.wm.WindowManagerService.WINDOW_LAYER_MULTIPLIER;
+
+import android.util.Slog;
+import android.view.Display;
+
+import java.io.PrintWriter;
+
+/**
+ * Assigns the Z-order layers of the windows on a display.
+ *
+ * <p>A window's layer depends only on its own base layer and the windows
+ * below it, so when the list changes only the windows from the lowest
+ * changed position up get new layers; the ones below it keep theirs.  The
+ * list records that position itself as windows are added, removed or
+ * moved, see {@link WindowList#getLayersDirtyFrom}.  Each window keeps the
+ * base layer that was in effect for it, so the assignment can carry on from
+ * the window just below the changed position.</p>
+ *
+ * <p>Animation layers of the windows below are left alone as well; the
+ * places that change an animation layer adjustment update the windows it
+ * applies to themselves.  A window's new layer reaches its surface in the
+ * animator's next transaction, so a dimming window whose layer changed
+ * needs one animation pass scheduled, however many of them changed.</p>
+ *
+ * <p>Guarded by the window manager lock.</p>
+ */
+final class WindowLayersAssigner {
+    private final WindowManagerService mService;
+
+    private long mNumCalls;
+    private long mNumUpToDate;
+    private long mNumWindowsAssigned;
+    private long mNumWindowsChanged;
+    private int mLastChanged;
+
+    WindowLayersAssigner(WindowManagerService service) {
+        mService = service;
+    }
+
+    /**
+     * Assign layers to the windows that need them; returns how many
+     * windows' layer or animation layer changed.
+     */
+    int assignLayersLocked(WindowList windows) {
+        final int N = windows.size();
+        final int start = windows.getLayersDirtyFrom();
+        mNumCalls++;
+
+        if (DEBUG_LAYERS) {
+            Slog.v(TAG, "Assigning layers from " + start + " based on windows=" + windows, new RuntimeException("here").fillInStackTrace());
+            checkLayersBelow(windows, start);
+        }
+
+        if (start >= N) {
+            mNumUpToDate++;
+            mLastChanged = 0;
+            windows.layersAssigned();
+            return 0;
+        }
+
+        int curBaseLayer = 0;
+        int curLayer = 0;
+        if (start > 0) {
+            final WindowState below = windows.get(start - 1);
+            curBaseLayer = below.mAssignedBaseLayer;
+            curLayer = below.mLayer;
+        }
+
+        int numChanged = 0;
+        boolean dimmingChanged = false;
+        for (int i = start; i < N; i++) {
+            final WindowState w = windows.get(i);
+            final WindowStateAnimator winAnimator = w.mWinAnimator;
+            boolean layerChanged = false;
+            int oldLayer = w.mLayer;
+            if (w.mBaseLayer == curBaseLayer || w.mIsImWindow || (i > 0 && w.mIsWallpaper)) {
+                curLayer += WINDOW_LAYER_MULTIPLIER;
+                w.mLayer = curLayer;
+            } else {
+                curBaseLayer = curLayer = w.mBaseLayer;
+                w.mLayer = curLayer;
+            }
+            w.mAssignedBaseLayer = curBaseLayer;
+            if (w.mLayer != oldLayer) {
+                layerChanged = true;
+            }
+            final AppWindowToken wtoken = w.mAppToken;
+            oldLayer = winAnimator.mAnimLayer;
+            if (w.mTargetAppToken != null) {
+                winAnimator.mAnimLayer = w.mLayer + w.mTargetAppToken.mAppAnimator.animLayerAdjustment;
+            } else if (wtoken != null) {
+                winAnimator.mAnimLayer = w.mLayer + wtoken.mAppAnimator.animLayerAdjustment;
+            } else {
+                winAnimator.mAnimLayer = w.mLayer;
+            }
+            if (w.mIsImWindow) {
+                winAnimator.mAnimLayer += mService.mInputMethodAnimLayerAdjustment;
+            } else if (w.mIsWallpaper) {
+                winAnimator.mAnimLayer += mService.mWallpaperAnimLayerAdjustment;
+            }
+            if (winAnimator.mAnimLayer != oldLayer) {
+                layerChanged = true;
+            }
+            if (layerChanged) {
+                numChanged++;
+                final TaskStack stack = w.getStack();
+                if (stack != null && stack.isDimming(winAnimator)) {
+                    dimmingChanged = true;
+                }
+            }
+            if (DEBUG_LAYERS)
+                Slog.v(TAG, "Assign layer " + w + ": " + "mBase=" + w.mBaseLayer + " mLayer=" + w.mLayer + (wtoken == null ? "" : " mAppLayer=" + wtoken.mAppAnimator.animLayerAdjustment) + " =mAnimLayer=" + winAnimator.mAnimLayer);
+        }
+        windows.layersAssigned();
+
+        if (dimmingChanged) {
+            // Force an animation pass just to update the mDimLayer layer.
+            mService.scheduleAnimationLocked();
+        }
+
+        //TODO (multidisplay): Magnification is supported only for the default display.
+        if (mService.mAccessibilityController != null && numChanged > 0 && windows.get(N - 1).getDisplayId() == Display.DEFAULT_DISPLAY) {
+            mService.mAccessibilityController.onWindowLayersChangedLocked();
+        }
+
+        mNumWindowsAssigned += N - start;
+        mNumWindowsChanged += numChanged;
+        mLastChanged = numChanged;
+        if (DEBUG_LAYERS) Slog.v(TAG, "Assigned layers to " + (N - start) + " windows, " + numChanged + " changed");
+        return numChanged;
+    }
+
+    /**
+     * Check that the windows below start have the layers a full assignment
+     * would give them.
+     */
+    private static void checkLayersBelow(WindowList windows, int start) {
+        int curBaseLayer = 0;
+        int curLayer = 0;
+        final int N = Math.min(start, windows.size());
+        for (int i = 0; i < N; i++) {
+            final WindowState w = windows.get(i);
+            if (w.mBaseLayer == curBaseLayer || w.mIsImWindow || (i > 0 && w.mIsWallpaper)) {
+                curLayer += WINDOW_LAYER_MULTIPLIER;
+            } else {
+                curBaseLayer = curLayer = w.mBaseLayer;
+            }
+            if (w.mLayer != curLayer) {
+                Slog.wtf(TAG, "Stale layer " + w.mLayer + " for " + w + " at " + i + ", expected " + curLayer);
+            }
+        }
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix);
+        pw.print("Layer assignment: calls=");
+        pw.print(mNumCalls);
+        pw.print(" upToDate=");
+        pw.print(mNumUpToDate);
+        pw.print(" windowsAssigned=");
+        pw.print(mNumWindowsAssigned);
+        pw.print(" windowsChanged=");
+        pw.print(mNumWindowsChanged);
+        pw.print(" lastChanged=");
+        pw.println(mLastChanged);
+    }
+}
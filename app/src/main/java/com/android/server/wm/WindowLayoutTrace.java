@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wm;
+
+import android.graphics.Rect;
+
+import java.io.PrintWriter;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+
+/**
+ * The last window adds, relayouts and removals, and a replay of them
+ * through the layout code.
+ *
+ * <p>Replaying a trace lays out the display of each recorded window again
+ * and reports the passes, the windows laid out and the time taken.  The
+ * windows keep the state they are in, so the passes compute the frames
+ * they already have; what is measured is the layout code itself, on the
+ * windows the device really has.  A removed window can not be laid out, so
+ * its removal is replayed as a layout of the display it was on.</p>
+ *
+ * <p>A replayed pass leaves nothing behind: everything a layout pass
+ * changes on the windows of the display, on the display and on the service
+ * is saved before it and put back after it, and while it runs the windows
+ * publish no new geometry and move no wallpaper.  Only the policy keeps
+ * what it computed, until the traversal requested at the end lays the
+ * display out for real.  Replays are only allowed on debuggable builds.</p>
+ *
+ * <p>Guarded by the window manager lock, except for
+ * {@link #replay}, which takes it once for each event it replays so
+ * that nothing waits for the lock longer than one layout pass.</p>
+ */
+final class WindowLayoutTrace {
+    static final int EVENT_ADD = 0;
+    static final int EVENT_RELAYOUT = 1;
+    static final int EVENT_REMOVE = 2;
+
+    private static final int MAX_EVENTS = 256;
+    static final int MAX_ROUNDS = 10;
+
+    private static final class Event {
+        int type;
+        int displayId;
+        WeakReference<WindowState> win;
+    }
+
+    // Ring of events; mNextEvent is where the next one goes.
+    private final Event[] mEvents = new Event[MAX_EVENTS];
+    private int mNextEvent;
+    private int mNumEvents;
+
+    /**
+     * Layout passes, windows and time of one replay.
+     */
+    private static final class Result {
+        int passes;
+        int skippedEvents;
+        long laidOut;
+        long nanos;
+    }
+
+    /**
+     * What a layout pass changes on one window.
+     */
+    private static final class SavedWindow {
+        final Rect frame = new Rect();
+        final Rect compatFrame = new Rect();
+        final Rect containingFrame = new Rect();
+        final Rect parentFrame = new Rect();
+        final Rect displayFrame = new Rect();
+        final Rect overscanFrame = new Rect();
+        final Rect stableFrame = new Rect();
+        final Rect decorFrame = new Rect();
+        final Rect contentFrame = new Rect();
+        final Rect visibleFrame = new Rect();
+        final Rect overscanInsets = new Rect();
+        final Rect contentInsets = new Rect();
+        final Rect visibleInsets = new Rect();
+        final Rect stableInsets = new Rect();
+        boolean haveFrame;
+        boolean layoutNeeded;
+        int layoutSeq;
+        int lastRequestedWidth;
+        int lastRequestedHeight;
+        float globalScale;
+        float invGlobalScale;
+        boolean overscanInsetsChanged;
+        boolean contentInsetsChanged;
+        boolean visibleInsetsChanged;
+        boolean stableInsetsChanged;
+
+        void save(WindowState win) {
+            frame.set(win.mFrame);
+            compatFrame.set(win.mCompatFrame);
+            containingFrame.set(win.mContainingFrame);
+            parentFrame.set(win.mParentFrame);
+            displayFrame.set(win.mDisplayFrame);
+            overscanFrame.set(win.mOverscanFrame);
+            stableFrame.set(win.mStableFrame);
+            decorFrame.set(win.mDecorFrame);
+            contentFrame.set(win.mContentFrame);
+            visibleFrame.set(win.mVisibleFrame);
+            overscanInsets.set(win.mOverscanInsets);
+            contentInsets.set(win.mContentInsets);
+            visibleInsets.set(win.mVisibleInsets);
+            stableInsets.set(win.mStableInsets);
+            haveFrame = win.mHaveFrame;
+            layoutNeeded = win.mLayoutNeeded;
+            layoutSeq = win.mLayoutSeq;
+            lastRequestedWidth = win.mLastRequestedWidth;
+            lastRequestedHeight = win.mLastRequestedHeight;
+            globalScale = win.mGlobalScale;
+            invGlobalScale = win.mInvGlobalScale;
+            overscanInsetsChanged = win.mOverscanInsetsChanged;
+            contentInsetsChanged = win.mContentInsetsChanged;
+            visibleInsetsChanged = win.mVisibleInsetsChanged;
+            stableInsetsChanged = win.mStableInsetsChanged;
+        }
+
+        void restore(WindowState win) {
+            win.mFrame.set(frame);
+            win.mCompatFrame.set(compatFrame);
+            win.mContainingFrame.set(containingFrame);
+            win.mParentFrame.set(parentFrame);
+            win.mDisplayFrame.set(displayFrame);
+            win.mOverscanFrame.set(overscanFrame);
+            win.mStableFrame.set(stableFrame);
+            win.mDecorFrame.set(decorFrame);
+            win.mContentFrame.set(contentFrame);
+            win.mVisibleFrame.set(visibleFrame);
+            win.mOverscanInsets.set(overscanInsets);
+            win.mContentInsets.set(contentInsets);
+            win.mVisibleInsets.set(visibleInsets);
+            win.mStableInsets.set(stableInsets);
+            win.mHaveFrame = haveFrame;
+            win.mLayoutNeeded = layoutNeeded;
+            win.mLayoutSeq = layoutSeq;
+            win.mLastRequestedWidth = lastRequestedWidth;
+            win.mLastRequestedHeight = lastRequestedHeight;
+            win.mGlobalScale = globalScale;
+            win.mInvGlobalScale = invGlobalScale;
+            win.mOverscanInsetsChanged = overscanInsetsChanged;
+            win.mContentInsetsChanged = contentInsetsChanged;
+            win.mVisibleInsetsChanged = visibleInsetsChanged;
+            win.mStableInsetsChanged = stableInsetsChanged;
+        }
+    }
+
+    // Reused by every replayed pass.
+    private final ArrayList<SavedWindow> mSavedWindows = new ArrayList<SavedWindow>();
+    private final Rect mSavedContentRect = new Rect();
+    private final Rect mSavedScreenRect = new Rect();
+
+    void noteEventLocked(int type, WindowState win) {
+        Event event = mEvents[mNextEvent];
+        if (event == null) {
+            event = mEvents[mNextEvent] = new Event();
+        }
+        event.type = type;
+        event.displayId = win.getDisplayId();
+        event.win = new WeakReference<WindowState>(win);
+        mNextEvent = (mNextEvent + 1) % MAX_EVENTS;
+        if (mNumEvents < MAX_EVENTS) {
+            mNumEvents++;
+        }
+    }
+
+    /**
+     * Replay the recorded events the given number of times, at most
+     * {@link #MAX_ROUNDS}, and print what that took.  For "dumpsys window replay"; must be called without the window
+     * manager lock.
+     */
+    void replay(WindowManagerService service, PrintWriter pw, int rounds) {
+        rounds = Math.max(1, Math.min(rounds, MAX_ROUNDS));
+        // The ring changes as windows come and go, so replay a copy.
+        final Event[] events;
+        synchronized (service.mWindowMap) {
+            events = new Event[mNumEvents];
+            final int first = (mNextEvent - mNumEvents + MAX_EVENTS) % MAX_EVENTS;
+            for (int i = 0; i < mNumEvents; i++) {
+                final Event event = mEvents[(first + i) % MAX_EVENTS];
+                events[i] = new Event();
+                events[i].type = event.type;
+                events[i].displayId = event.displayId;
+                events[i].win = event.win;
+            }
+        }
+        pw.print("  Replaying ");
+        pw.print(events.length);
+        pw.print(" events ");
+        pw.print(rounds);
+        pw.println(" times");
+        if (events.length == 0) {
+            return;
+        }
+        final Result result = new Result();
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < events.length; i++) {
+                synchronized (service.mWindowMap) {
+                    replayEventLocked(service, events[i], result);
+                }
+            }
+        }
+        printResult(pw, result);
+        synchronized (service.mWindowMap) {
+            // The policy still has what the last replayed pass computed.
+            service.requestTraversalLocked();
+        }
+    }
+
+    private void replayEventLocked(WindowManagerService service, Event event, Result result) {
+        final DisplayContent displayContent = service.mDisplayReady ? service.getDisplayContentLocked(event.displayId) : null;
+        final WindowState win = event.win.get();
+        if (displayContent == null || (event.type != EVENT_REMOVE && (win == null || win.mRemoved))) {
+            result.skippedEvents++;
+            return;
+        }
+
+        final WindowList windows = displayContent.getWindowList();
+        final int N = windows.size();
+        while (mSavedWindows.size() < N) {
+            mSavedWindows.add(new SavedWindow());
+        }
+        for (int i = 0; i < N; i++) {
+            mSavedWindows.get(i).save(windows.get(i));
+        }
+        final boolean layoutNeeded = displayContent.layoutNeeded;
+        mSavedContentRect.set(displayContent.mContentRect);
+        mSavedScreenRect.set(service.mScreenRect);
+        final int layoutSeq = service.mLayoutSeq;
+        final int systemDecorLayer = service.mSystemDecorLayer;
+        final boolean focusMayChange = service.mFocusMayChange;
+        final WindowStateAnimator universeBackground = service.mAnimator.mUniverseBackground;
+
+        result.nanos += service.replayLayoutPassLocked(displayContent);
+        result.passes++;
+
+        for (int i = 0; i < N; i++) {
+            final WindowState win = windows.get(i);
+            if (win.mLayoutSeq == service.mLayoutSeq) {
+                result.laidOut++;
+            }
+            mSavedWindows.get(i).restore(win);
+        }
+        displayContent.layoutNeeded = layoutNeeded;
+        displayContent.mContentRect.set(mSavedContentRect);
+        service.mScreenRect.set(mSavedScreenRect);
+        service.mLayoutSeq = layoutSeq;
+        service.mSystemDecorLayer = systemDecorLayer;
+        service.mFocusMayChange = focusMayChange;
+        service.mAnimator.mUniverseBackground = universeBackground;
+    }
+
+    private static void printResult(PrintWriter pw, Result result) {
+        pw.print("  passes=");
+        pw.print(result.passes);
+        pw.print(" skippedEvents=");
+        pw.print(result.skippedEvents);
+        pw.print(" laidOut=");
+        pw.print(result.laidOut);
+        pw.print(" total=");
+        pw.print(result.nanos / 1000);
+        pw.print("us");
+        if (result.passes > 0) {
+            pw.print(" perPass=");
+            pw.print(result.nanos / result.passes / 1000);
+            pw.print("us");
+        }
+        pw.println();
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix);
+        pw.print("Layout trace: events=");
+        pw.println(mNumEvents);
+    }
+}
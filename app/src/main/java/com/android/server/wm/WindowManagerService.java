@@ -31,6 +31,7 @@ import android.view.IWindowSessionCallback;
 import android.view.WindowContentFrameStats;
 
 import com.android.internal.app.IBatteryStats;
+import com.android.internal.os.BackgroundThread;
 import com.android.internal.policy.PolicyManager;
 import com.android.internal.policy.impl.PhoneWindowManager;
 import com.android.internal.util.FastPrintWriter;
@@ -382,9 +383,15 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
     final HashMap<IBinder, WindowState> mWindowMap = new HashMap<IBinder, WindowState>();
 
     /**
-     * Mapping from a token IBinder to a WindowToken object.
+     * The same windows as mWindowMap, for queries that do not take the lock.
      */
-    final HashMap<IBinder, WindowToken> mTokenMap = new HashMap<IBinder, WindowToken>();
+    final WindowRegistry mWindowRegistry = new WindowRegistry();
+
+    /**
+     * Mapping from a token IBinder to a WindowToken object, also indexed by
+     * window type and by the displays of the tokens' windows.
+     */
+    final WindowTokenRegistry mTokenMap = new WindowTokenRegistry();
 
     /**
      * List of window tokens that have finished starting their application,
@@ -536,6 +543,10 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
     // State while inside of layoutAndPlaceSurfacesLocked().
     boolean mFocusMayChange;
 
+    // Set while WindowLayoutTrace replays a layout pass, whose results are
+    // thrown away: nothing may be published from it.
+    boolean mReplayingLayout;
+
     Configuration mCurConfiguration = new Configuration();
 
     // This is held as long as we have the screen frozen, to give us time to
@@ -606,7 +617,8 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
         }
     }
 
-    final ArrayList<WindowToken> mWallpaperTokens = new ArrayList<WindowToken>();
+    // The wallpaper entry of the token registry's type index.
+    final ArrayList<WindowToken> mWallpaperTokens = mTokenMap.getTokensOfTypeLocked(TYPE_WALLPAPER);
 
     // If non-null, this is the currently visible window that is associated
     // with the wallpaper.
@@ -714,6 +726,26 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
      */
     private int mLayoutRepeatCount;
 
+    /**
+     * Timings of recent traversals and relayouts, for dumpsys window traversals.
+     */
+    final WindowTraversalTimeline mTraversalTimeline = new WindowTraversalTimeline();
+
+    /**
+     * Recent window adds, relayouts and removals, for dumpsys window replay.
+     */
+    final WindowLayoutTrace mLayoutTrace = new WindowLayoutTrace();
+
+    /**
+     * Assigns window layers from the lowest changed window up.
+     */
+    final WindowLayersAssigner mLayersAssigner = new WindowLayersAssigner(this);
+
+    /**
+     * Recent app screenshots, see screenshotApplications().
+     */
+    final ScreenshotCache mScreenshotCache = new ScreenshotCache();
+
     final WindowAnimator mAnimator;
 
     SparseArray<Task> mTaskIdToTask = new SparseArray<Task>();
@@ -796,7 +828,7 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
      * Whether the UI is currently running in touch mode (not showing
      * navigational focus because the user is directly pressing the screen).
      */
-    boolean mInTouchMode;
+    volatile boolean mInTouchMode;
 
     private ViewServer mViewServer;
     private final ArrayList<WindowChangeListener> mWindowChangeListeners = new ArrayList<WindowChangeListener>();
@@ -980,6 +1012,19 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
     //win. used for z ordering the windows in mWindows
     private int findIdxBasedOnAppTokens(WindowState win) {
         WindowList windows = win.getWindowList();
+        if (win.mAppToken != null) {
+            // The windows of the app token are all the candidates, and the
+            // display's list knows where each of them is.
+            final WindowList appWindows = win.mAppToken.allAppWindows;
+            int top = -1;
+            for (int j = appWindows.size() - 1; j >= 0; j--) {
+                final int index = windows.indexOf(appWindows.get(j));
+                if (index > top) {
+                    top = index;
+                }
+            }
+            return top;
+        }
         for (int j = windows.size() - 1; j >= 0; j--) {
             WindowState wentry = windows.get(j);
             if (wentry.mAppToken == win.mAppToken) {
@@ -994,12 +1039,23 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
      *
      * @param token          The token with all the windows.
      * @param displayContent The display we are interested in.
-     * @return List of windows from token that are on displayContent.
+     * @return List of windows from token that are on displayContent.  This is
+     *         token.windows itself if they all are, so it must not be modified.
      */
     WindowList getTokenWindowsOnDisplay(WindowToken token, DisplayContent displayContent) {
-        final WindowList windowList = new WindowList();
         final int count = token.windows.size();
-        for (int i = 0; i < count; i++) {
+        int i = 0;
+        while (i < count && token.windows.get(i).getDisplayContent() == displayContent) {
+            i++;
+        }
+        if (i == count) {
+            return token.windows;
+        }
+        final WindowList windowList = new WindowList();
+        for (int j = 0; j < i; j++) {
+            windowList.add(token.windows.get(j));
+        }
+        for (i++; i < count; i++) {
             final WindowState win = token.windows.get(i);
             if (win.getDisplayContent() == displayContent) {
                 windowList.add(win);
@@ -1016,6 +1072,10 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
      * @return The index of win in windows or of the window that is an ancestor of win.
      */
     private int indexOfWinInWindowList(WindowState targetWin, WindowList windows) {
+        if (targetWin.mAttachedWindow == null) {
+            // Only attached windows can be found through an ancestor.
+            return windows.lastIndexOf(targetWin);
+        }
         for (int i = windows.size() - 1; i >= 0; i--) {
             final WindowState w = windows.get(i);
             if (w == targetWin) {
@@ -1625,8 +1685,10 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
                 if (pos >= N) {
                     // Z order is good.
                     // The IM target window may be changed, so update the mTargetAppToken.
-                    if (imWin != null) {
+                    if (imWin != null && imWin.mTargetAppToken != mInputMethodTarget.mAppToken) {
                         imWin.mTargetAppToken = mInputMethodTarget.mAppToken;
+                        // Its animation layer follows the new target.
+                        windows.invalidateLayers(imPos);
                     }
                     return false;
                 }
@@ -2378,6 +2440,9 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
             win.attach();
             //窗口添加成功，W类存放至mWindowMap
             mWindowMap.put(client.asBinder(), win);
+            mWindowRegistry.addLocked(client.asBinder(), win);
+            mTokenMap.windowAddedLocked(token, win);
+            mLayoutTrace.noteEventLocked(WindowLayoutTrace.EVENT_ADD, win);
             if (win.mAppOp != AppOpsManager.OP_NONE) {
                 if (mAppOps.startOpNoThrow(win.mAppOp, win.getOwningUid(), win.getOwningPackage()) != AppOpsManager.MODE_ALLOWED) {
                     win.setAppOpVisibilityLw(false);
@@ -2556,6 +2621,7 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
                 //Slog.i(TAG, "*** Running exit animation...");
                 win.mExiting = true;
                 win.mRemoveOnExit = true;
+                windowFocusStateChangedLocked(win);
                 final DisplayContent displayContent = win.getDisplayContent();
                 if (displayContent != null) {
                     displayContent.layoutNeeded = true;
@@ -2612,7 +2678,9 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
         win.removeLocked();
 
         if (DEBUG_ADD_REMOVE) Slog.v(TAG, "removeWindowInnerLocked: " + win);
+        mLayoutTrace.noteEventLocked(WindowLayoutTrace.EVENT_REMOVE, win);
         mWindowMap.remove(win.mClient.asBinder());
+        mWindowRegistry.removeLocked(win.mClient.asBinder());
         if (win.mAppOp != AppOpsManager.OP_NONE) {
             mAppOps.finishOp(win.mAppOp, win.getOwningUid(), win.getOwningPackage());
         }
@@ -2632,6 +2700,7 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
         final AppWindowToken atoken = win.mAppToken;
         if (DEBUG_ADD_REMOVE) Slog.v(TAG, "Removing " + win + " from " + token);
         token.windows.remove(win);
+        mTokenMap.windowRemovedLocked(token, win);
         if (atoken != null) {
             atoken.allAppWindows.remove(win);
         }
@@ -2764,14 +2833,14 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
     }
 
     public void getWindowDisplayFrame(Session session, IWindow client, Rect outDisplayFrame) {
-        synchronized (mWindowMap) {
-            WindowState win = windowForClientLocked(session, client, false);
-            if (win == null) {
-                outDisplayFrame.setEmpty();
-                return;
-            }
-            outDisplayFrame.set(win.mDisplayFrame);
+        // Reads the published geometry, so it does not wait for the lock.
+        final WindowState win = mWindowRegistry.get(client.asBinder());
+        if (win == null || win.mSession != session) {
+            Slog.w(TAG, "Failed looking up window " + client.asBinder() + " in " + session);
+            outDisplayFrame.setEmpty();
+            return;
         }
+        win.mGeometry.getDisplayFrame(outDisplayFrame);
     }
 
     public void setWindowWallpaperPositionLocked(WindowState window, float x, float y, float xStep, float yStep) {
@@ -2869,10 +2938,8 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
     }
 
     public IWindowId getWindowId(IBinder token) {
-        synchronized (mWindowMap) {
-            WindowState window = mWindowMap.get(token);
-            return window != null ? window.mWindowId : null;
-        }
+        final WindowState window = mWindowRegistry.get(token);
+        return window != null ? window.mWindowId : null;
     }
 
     public int relayoutWindow(Session session, IWindow client, int seq, LayoutParams attrs, int requestedWidth, int requestedHeight, int viewVisibility, int flags, Rect outFrame, Rect outOverscanInsets, Rect outContentInsets, Rect outVisibleInsets, Rect outStableInsets, Configuration outConfig, Surface outSurface) {
@@ -2882,15 +2949,19 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
         boolean surfaceChanged = false;
         boolean animating;
         boolean hasStatusBarPermission = mContext.checkCallingOrSelfPermission(Manifest.permission.STATUS_BAR) == PackageManager.PERMISSION_GRANTED;
+        final long startTime = System.nanoTime();
 
         long origId = Binder.clearCallingIdentity();
 
         synchronized (mWindowMap) {
+            final long lockWait = System.nanoTime() - startTime;
             WindowState win = windowForClientLocked(session, client, false);
             if (win == null) {
                 return 0;
             }
             WindowStateAnimator winAnimator = win.mWinAnimator;
+            win.mDrawSeq++;
+            mLayoutTrace.noteEventLocked(WindowLayoutTrace.EVENT_RELAYOUT, win);
             if (viewVisibility != View.GONE && (win.mRequestedWidth != requestedWidth || win.mRequestedHeight != requestedHeight)) {
                 win.mLayoutNeeded = true;
                 win.mRequestedWidth = requestedWidth;
@@ -3080,6 +3151,10 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
                 if (DEBUG_VISIBILITY) Slog.i(TAG, "Releasing surface in: " + win);
             }
 
+            // Whether or not focus may change on the default display, the
+            // window's visibility and surface may have, so the cached focus
+            // of its display has to hear about it.
+            windowFocusStateChangedLocked(win);
             if (focusMayChange) {
                 //System.out.println("Focus may change: " + win.mAttrs.getTitle());
                 if (updateFocusedWindowLocked(UPDATE_FOCUS_WILL_PLACE_SURFACES, false /*updateInputWindows*/)) {
@@ -3138,6 +3213,7 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
             if (DEBUG_LAYOUT) {
                 Slog.v(TAG, "Relayout complete " + win + ": outFrame=" + outFrame.toShortString());
             }
+            mTraversalTimeline.noteRelayout(session, win, System.nanoTime() - startTime, lockWait);
         }
 
         if (configChanged) {
@@ -3186,6 +3262,9 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
         try {
             synchronized (mWindowMap) {
                 WindowState win = windowForClientLocked(session, client, false);
+                if (win != null) {
+                    win.mDrawSeq++;
+                }
                 if (win != null && win.mWinAnimator.finishDrawingLocked()) {
                     if ((win.mAttrs.flags & FLAG_SHOW_WALLPAPER) != 0) {
                         getDefaultDisplayContentLocked().pendingLayoutChanges |= WindowManagerPolicy.FINISH_LAYOUT_REDO_WALLPAPER;
@@ -3360,9 +3439,6 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
             }
             wtoken = new WindowToken(this, token, type, true);
             mTokenMap.put(token, wtoken);
-            if (type == TYPE_WALLPAPER) {
-                mWallpaperTokens.add(wtoken);
-            }
         }
     }
 
@@ -3377,6 +3453,7 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
             DisplayContent displayContent = null;
             WindowToken wtoken = mTokenMap.remove(token);
             if (wtoken != null) {
+                invalidateFocusCacheLocked();
                 boolean delayed = false;
                 if (!wtoken.hidden) {
                     final int N = wtoken.windows.size();
@@ -3414,8 +3491,8 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
                         if (displayContent != null) {
                             displayContent.mExitingTokens.add(wtoken);
                         }
-                    } else if (wtoken.windowType == TYPE_WALLPAPER) {
-                        mWallpaperTokens.remove(wtoken);
+                    } else {
+                        mTokenMap.tokenGoneLocked(wtoken);
                     }
                 }
 
@@ -3489,6 +3566,7 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
             // Application tokens start out hidden.
             atoken.hidden = true;
             atoken.hiddenRequested = true;
+            invalidateFocusCacheLocked();
 
             //dump();
         }
@@ -3516,6 +3594,7 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
             } else {
                 newTask.mAppTokens.add(atoken);
             }
+            invalidateFocusCacheLocked();
         }
     }
 
@@ -3831,6 +3910,7 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
             if (changed) {
                 mFocusedApp = newFocus;
                 mInputMonitor.setFocusedAppLw(newFocus);
+                invalidateFocusCacheLocked();
             }
 
             if (moveFocusNow && changed) {
@@ -4014,6 +4094,7 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
                             wtoken.hidden = false;
                             wtoken.hiddenRequested = false;
                             wtoken.willBeHidden = false;
+                            invalidateFocusCacheLocked();
                         }
                         if (wtoken.clientHidden != ttoken.clientHidden) {
                             wtoken.clientHidden = ttoken.clientHidden;
@@ -4186,6 +4267,7 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
         if (wtoken.hidden == visible) {
             boolean changed = false;
             if (DEBUG_APP_TRANSITIONS) Slog.v(TAG, "Changing app " + wtoken + " hidden=" + wtoken.hidden + " performLayout=" + performLayout);
+            invalidateFocusCacheLocked();
 
             boolean runningAppAnimation = false;
 
@@ -4314,6 +4396,7 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
             // the visibility of this token until we execute that transition.
             if (okToDisplay() && mAppTransition.isTransitionSet()) {
                 wtoken.hiddenRequested = !visible;
+                invalidateFocusCacheLocked();
 
                 if (!wtoken.startingDisplayed) {
                     if (DEBUG_APP_TRANSITIONS) Slog.v(TAG, "Setting dummy animation on: " + wtoken);
@@ -4545,6 +4628,7 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
                 }
 
                 wtoken.removed = true;
+                invalidateFocusCacheLocked();
                 if (wtoken.startingData != null) {
                     startingToken = wtoken;
                 }
@@ -4753,6 +4837,7 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
     }
 
     void moveStackWindowsLocked(DisplayContent displayContent) {
+        invalidateFocusCacheLocked();
         // First remove all of the windows from the list.
         final ArrayList<Task> tasks = displayContent.getTasks();
         final int numTasks = tasks.size();
@@ -4879,6 +4964,7 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
     void detachStackLocked(DisplayContent displayContent, TaskStack stack) {
         displayContent.detachStack(stack);
         stack.detachDisplay();
+        invalidateFocusCacheLocked();
     }
 
     public void detachStack(int stackId) {
@@ -4914,6 +5000,7 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
         task.mDeferRemoval = false;
         stack.removeTask(task);
         mTaskIdToTask.delete(task.taskId);
+        invalidateFocusCacheLocked();
 
         final ArrayList<AppWindowToken> exitingApps = stack.mExitingAppTokens;
         for (int appNdx = exitingApps.size() - 1; appNdx >= 0; --appNdx) {
@@ -4945,6 +5032,7 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
             }
             TaskStack stack = mStackIdToStack.get(stackId);
             stack.addTask(task, toTop);
+            invalidateFocusCacheLocked();
             final DisplayContent displayContent = stack.getDisplayContent();
             displayContent.layoutNeeded = true;
             performLayoutAndPlaceSurfacesLocked();
@@ -5753,6 +5841,8 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
 
         int retryCount = 0;
         WindowState appWin = null;
+        final ArrayList<WindowState> included = new ArrayList<WindowState>();
+        ScreenshotCache.Key cacheKey = null;
 
         final boolean appIsImTarget = mInputMethodTarget != null && mInputMethodTarget.mAppToken != null && mInputMethodTarget.mAppToken.appToken != null && mInputMethodTarget.mAppToken.appToken.asBinder() == appToken;
 
@@ -5764,6 +5854,7 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
                 // layer based on the previous try.
                 maxLayer = 0;
                 minLayer = Integer.MAX_VALUE;
+                included.clear();
                 try {
                     Thread.sleep(100);
                 } catch (InterruptedException e) {
@@ -5807,6 +5898,7 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
                     }
 
                     // Include this window.
+                    included.add(ws);
 
                     final WindowStateAnimator winAnim = ws.mWinAnimator;
                     if (maxLayer < winAnim.mSurfaceLayer) {
@@ -5899,6 +5991,16 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
                 final boolean inRotation = screenRotationAnimation != null && screenRotationAnimation.isAnimating();
                 if (DEBUG_SCREENSHOT && inRotation) Slog.v(TAG, "Taking screenshot while rotating");
 
+                // Nothing to be gained from caching what is taken mid-rotation.
+                if (!inRotation) {
+                    cacheKey = new ScreenshotCache.Key(appToken, displayId, width, height, force565, rot, crop, included);
+                    final Bitmap cached = mScreenshotCache.get(cacheKey);
+                    if (cached != null) {
+                        if (DEBUG_SCREENSHOT) Slog.i(TAG, "Screenshot of " + appToken + ": returning cached " + cached);
+                        return cached;
+                    }
+                }
+
                 bm = SurfaceControl.screenshot(crop, width, height, minLayer, maxLayer, inRotation, rot);
                 if (bm == null) {
                     Slog.w(TAG, "Screenshot failure taking screenshot for (" + dw + "x" + dh + ") to layer " + maxLayer);
@@ -5929,11 +6031,59 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
         // Copy the screenshot bitmap to another buffer so that the gralloc backed
         // bitmap will not have a long lifetime. Gralloc memory can be pinned or
         // duplicated and might have a higher cost than a skia backed buffer.
-        Bitmap ret = bm.copy(bm.getConfig(), true);
+        // A bitmap that goes in the cache is handed to everyone who asks for
+        // the same screenshot, so nobody may change it.
+        Bitmap ret = bm.copy(bm.getConfig(), cacheKey == null);
         bm.recycle();
+        if (cacheKey != null) {
+            synchronized (mWindowMap) {
+                mScreenshotCache.put(cacheKey, ret);
+            }
+        }
         return ret;
     }
 
+    /**
+     * Receives a screenshot taken by {@link #screenshotApplicationsAsync}.
+     */
+    public interface ScreenshotCallback {
+        /**
+         * The screenshot, or null if none could be taken.
+         */
+        void onScreenshotTaken(Bitmap bitmap);
+    }
+
+    /**
+     * Like {@link #screenshotApplications}, but the screenshot, including
+     * any wait for the app to draw, is taken on a background thread and
+     * handed to the callback on the given handler.  For callers in the
+     * system process that must not block while they hold their own locks.
+     */
+    public void screenshotApplicationsAsync(final IBinder appToken, final int displayId, final int width, final int height, final boolean force565, final ScreenshotCallback callback, final Handler handler) {
+        if (!checkCallingPermission(Manifest.permission.READ_FRAME_BUFFER, "screenshotApplicationsAsync()")) {
+            throw new SecurityException("Requires READ_FRAME_BUFFER permission");
+        }
+
+        BackgroundThread.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap bm = null;
+                try {
+                    bm = screenshotApplications(appToken, displayId, width, height, force565);
+                } catch (RuntimeException e) {
+                    Slog.w(TAG, "Screenshot of " + appToken + " failed", e);
+                }
+                final Bitmap result = bm;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onScreenshotTaken(result);
+                    }
+                });
+            }
+        });
+    }
+
     /**
      * Freeze rotation changes.  (Enable "rotation lock".)
      * Persists across reboots.
@@ -8081,25 +8231,30 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
             mRebuildTmp = new WindowState[NW + 10];
         }
 
-        // First remove all existing app windows.
-        i = 0;
-        while (i < NW) {
+        // First remove all existing app windows, moving the others down
+        // in one pass rather than shifting the list for each removal.
+        int numKept = 0;
+        for (i = 0; i < NW; i++) {
             WindowState w = windows.get(i);
             if (w.mAppToken != null) {
-                WindowState win = windows.remove(i);
-                win.mRebuilding = true;
-                mRebuildTmp[numRemoved] = win;
+                w.mRebuilding = true;
+                mRebuildTmp[numRemoved] = w;
                 mWindowsChanged = true;
-                if (DEBUG_WINDOW_MOVEMENT) Slog.v(TAG, "Rebuild removing window: " + win);
-                NW--;
+                if (DEBUG_WINDOW_MOVEMENT) Slog.v(TAG, "Rebuild removing window: " + w);
                 numRemoved++;
                 continue;
-            } else if (lastBelow == i - 1) {
+            } else if (lastBelow == numKept - 1) {
                 if (w.mAttrs.type == TYPE_WALLPAPER || w.mAttrs.type == TYPE_UNIVERSE_BACKGROUND) {
-                    lastBelow = i;
+                    lastBelow = numKept;
                 }
             }
-            i++;
+            if (numKept != i) {
+                windows.set(numKept, w);
+            }
+            numKept++;
+        }
+        if (numRemoved > 0) {
+            windows.subList(numKept, NW).clear();
         }
 
         // Keep whatever windows were below the app windows still below,
@@ -8161,64 +8316,9 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
     }
 
     private final void assignLayersLocked(WindowList windows) {
-        int N = windows.size();
-        int curBaseLayer = 0;
-        int curLayer = 0;
-        int i;
-
-        if (DEBUG_LAYERS) Slog.v(TAG, "Assigning layers based on windows=" + windows, new RuntimeException("here").fillInStackTrace());
-
-        boolean anyLayerChanged = false;
-
-        for (i = 0; i < N; i++) {
-            final WindowState w = windows.get(i);
-            final WindowStateAnimator winAnimator = w.mWinAnimator;
-            boolean layerChanged = false;
-            int oldLayer = w.mLayer;
-            if (w.mBaseLayer == curBaseLayer || w.mIsImWindow || (i > 0 && w.mIsWallpaper)) {
-                curLayer += WINDOW_LAYER_MULTIPLIER;
-                w.mLayer = curLayer;
-            } else {
-                curBaseLayer = curLayer = w.mBaseLayer;
-                w.mLayer = curLayer;
-            }
-            if (w.mLayer != oldLayer) {
-                layerChanged = true;
-                anyLayerChanged = true;
-            }
-            final AppWindowToken wtoken = w.mAppToken;
-            oldLayer = winAnimator.mAnimLayer;
-            if (w.mTargetAppToken != null) {
-                winAnimator.mAnimLayer = w.mLayer + w.mTargetAppToken.mAppAnimator.animLayerAdjustment;
-            } else if (wtoken != null) {
-                winAnimator.mAnimLayer = w.mLayer + wtoken.mAppAnimator.animLayerAdjustment;
-            } else {
-                winAnimator.mAnimLayer = w.mLayer;
-            }
-            if (w.mIsImWindow) {
-                winAnimator.mAnimLayer += mInputMethodAnimLayerAdjustment;
-            } else if (w.mIsWallpaper) {
-                winAnimator.mAnimLayer += mWallpaperAnimLayerAdjustment;
-            }
-            if (winAnimator.mAnimLayer != oldLayer) {
-                layerChanged = true;
-                anyLayerChanged = true;
-            }
-            final TaskStack stack = w.getStack();
-            if (layerChanged && stack != null && stack.isDimming(winAnimator)) {
-                // Force an animation pass just to update the mDimLayer layer.
-                scheduleAnimationLocked();
-            }
-            if (DEBUG_LAYERS)
-                Slog.v(TAG, "Assign layer " + w + ": " + "mBase=" + w.mBaseLayer + " mLayer=" + w.mLayer + (wtoken == null ? "" : " mAppLayer=" + wtoken.mAppAnimator.animLayerAdjustment) + " =mAnimLayer=" + winAnimator.mAnimLayer);
-            //System.out.println(
-            //    "Assigned layer " + curLayer + " to " + w.mClient.asBinder());
-        }
-
-        //TODO (multidisplay): Magnification is supported only for the default display.
-        if (mAccessibilityController != null && anyLayerChanged && windows.get(windows.size() - 1).getDisplayId() == Display.DEFAULT_DISPLAY) {
-            mAccessibilityController.onWindowLayersChangedLocked();
-        }
+        final long startTime = System.nanoTime();
+        mLayersAssigner.assignLayersLocked(windows);
+        mTraversalTimeline.noteAssignLayers(System.nanoTime() - startTime);
     }
 
     private final void performLayoutAndPlaceSurfacesLocked() {
@@ -8257,6 +8357,7 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
 
         Trace.traceBegin(Trace.TRACE_TAG_WINDOW_MANAGER, "wmLayout");
         mInLayout = true;
+        mTraversalTimeline.beginTraversal();
         boolean recoveringMemory = false;
 
         try {
@@ -8292,6 +8393,7 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
                     requestTraversalLocked();
                 } else {
                     Slog.e(TAG, "Performed 6 layouts in a row. Skipping");
+                    mTraversalTimeline.noteAbortedRepeat();
                     mLayoutRepeatCount = 0;
                 }
             } else {
@@ -8306,6 +8408,7 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
             mInLayout = false;
             Slog.wtf(TAG, "Unhandled exception while laying out windows", e);
         }
+        mTraversalTimeline.endTraversal(mLayoutRepeatCount);
 
         Trace.traceEnd(Trace.TRACE_TAG_WINDOW_MANAGER);
     }
@@ -8314,6 +8417,7 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
         if (!displayContent.layoutNeeded) {
             return;
         }
+        final long startTime = System.nanoTime();
         displayContent.layoutNeeded = false;
         WindowList windows = displayContent.getWindowList();
         boolean isDefaultDisplay = displayContent.isDefaultDisplay;
@@ -8327,16 +8431,11 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
             mFakeWindows.get(i).layout(dw, dh);
         }
 
-        final int N = windows.size();
-        int i;
-
         if (DEBUG_LAYOUT) {
             Slog.v(TAG, "-------------------------------------");
             Slog.v(TAG, "performLayout: needed=" + displayContent.layoutNeeded + " dw=" + dw + " dh=" + dh);
         }
 
-        WindowStateAnimator universeBackground = null;
-
         mPolicy.beginLayoutLw(isDefaultDisplay, dw, dh, mRotation);
         if (isDefaultDisplay) {
             // Not needed on non-default displays.
@@ -8351,6 +8450,11 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
         if (seq < 0) seq = 0;
         mLayoutSeq = seq;
 
+        final int N = windows.size();
+        int i;
+        int numLaidOut = 0;
+
+        WindowStateAnimator universeBackground = null;
         boolean behindDream = false;
 
         // First perform layout of any root windows (not attached
@@ -8394,6 +8498,7 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
                     win.prelayout();
                     mPolicy.layoutWindowLw(win, null);
                     win.mLayoutSeq = seq;
+                    numLaidOut++;
                     if (DEBUG_LAYOUT)
                         Slog.v(TAG, "  LAYOUT: mFrame=" + win.mFrame + " mContainingFrame=" + win.mContainingFrame + " mDisplayFrame=" + win.mDisplayFrame);
                 } else {
@@ -8439,6 +8544,7 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
                     win.prelayout();
                     mPolicy.layoutWindowLw(win, win.mAttachedWindow);
                     win.mLayoutSeq = seq;
+                    numLaidOut++;
                     if (DEBUG_LAYOUT)
                         Slog.v(TAG, "  LAYOUT: mFrame=" + win.mFrame + " mContainingFrame=" + win.mContainingFrame + " mDisplayFrame=" + win.mDisplayFrame);
                 }
@@ -8457,6 +8563,26 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
         }
 
         mPolicy.finishLayoutLw();
+        if (!mReplayingLayout) {
+            mTraversalTimeline.noteLayoutPass(System.nanoTime() - startTime, numLaidOut);
+        }
+    }
+
+    /**
+     * Lay the display out once more, for {@link WindowLayoutTrace}; returns
+     * how long the pass took.  The caller saves and puts back the state the
+     * pass changes.
+     */
+    long replayLayoutPassLocked(DisplayContent displayContent) {
+        final long startTime = System.nanoTime();
+        displayContent.layoutNeeded = true;
+        mReplayingLayout = true;
+        try {
+            performLayoutLockedInner(displayContent, false /*initial*/, false /*updateInputWindows*/);
+        } finally {
+            mReplayingLayout = false;
+        }
+        return System.nanoTime() - startTime;
     }
 
     void makeWindowFreezingScreenIfNeededLocked(WindowState w) {
@@ -8796,6 +8922,7 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
             if (windows == getDefaultWindowListLocked() && !moveInputMethodWindowsIfNeededLocked(true)) {
                 assignLayersLocked(windows);
             }
+            invalidateFocusCacheLocked();
             updateFocusedWindowLocked(UPDATE_FOCUS_PLACING_SURFACES, true /*updateInputWindows*/);
             mFocusMayChange = false;
             notifyActivityDrawnForKeyguard();
@@ -9007,6 +9134,7 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
 
         if (mFocusMayChange) {
             mFocusMayChange = false;
+            invalidateFocusCacheLocked();
             updateInputWindowsNeeded = updateFocusedWindowLocked(UPDATE_FOCUS_WILL_PLACE_SURFACES, false /*updateInputWindows*/);
         }
 
@@ -9324,6 +9452,7 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
 
         if (mFocusMayChange) {
             mFocusMayChange = false;
+            invalidateFocusCacheLocked();
             if (updateFocusedWindowLocked(UPDATE_FOCUS_PLACING_SURFACES, false /*updateInputWindows*/)) {
                 updateInputWindowsNeeded = true;
                 defaultDisplay.pendingLayoutChanges |= WindowManagerPolicy.FINISH_LAYOUT_REDO_ANIM;
@@ -9383,9 +9512,7 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
                 WindowToken token = exitingTokens.get(i);
                 if (!token.hasVisible) {
                     exitingTokens.remove(i);
-                    if (token.windowType == TYPE_WALLPAPER) {
-                        mWallpaperTokens.remove(token);
-                    }
+                    mTokenMap.tokenGoneLocked(token);
                 }
             }
         }
@@ -9823,7 +9950,7 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
         final int displayCount = mDisplayContents.size();
         for (int i = 0; i < displayCount; i++) {
             final DisplayContent displayContent = mDisplayContents.valueAt(i);
-            WindowState win = findFocusedWindowLocked(displayContent);
+            WindowState win = getFocusedWindowLocked(displayContent);
             if (win != null) {
                 return win;
             }
@@ -9831,6 +9958,90 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
         return null;
     }
 
+    /**
+     * Like findFocusedWindowLocked(), but uses the display's cached focus
+     * when nothing that can change it happened since it was found.
+     */
+    private WindowState getFocusedWindowLocked(DisplayContent displayContent) {
+        final FocusCandidateCache cache = displayContent.mFocusCache;
+        final WindowList windows = displayContent.getWindowList();
+        if (cache.isValid(windows)) {
+            final WindowState focus = cache.getFocus();
+            if (cache.shouldVerify()) {
+                return cache.verify(focus, findFocusedWindowLocked(displayContent));
+            }
+            return focus;
+        }
+        final WindowState candidate = findFocusCandidateLocked(windows);
+        final WindowState focus = candidate != null && !isBelowFocusedAppLocked(displayContent, candidate) ? candidate : null;
+        cache.set(windows, candidate, focus);
+        if (DEBUG_FOCUS_LIGHT) Slog.v(TAG, "findFocusedWindow: Found new focus " + focus + " on " + displayContent.getDisplayId());
+        return focus;
+    }
+
+    /**
+     * Drop the cached focus of every display; for changes to app tokens,
+     * tasks or the focused app, which can move focus anywhere.
+     */
+    void invalidateFocusCacheLocked() {
+        for (int i = mDisplayContents.size() - 1; i >= 0; i--) {
+            mDisplayContents.valueAt(i).mFocusCache.invalidate();
+        }
+    }
+
+    /**
+     * The window's visibility, flags or surface may have changed in a way
+     * that affects whether it can receive keys.
+     */
+    void windowFocusStateChangedLocked(WindowState win) {
+        final DisplayContent displayContent = win.getDisplayContent();
+        if (displayContent != null) {
+            displayContent.mFocusCache.windowChanged(displayContent.getWindowList(), win);
+        }
+    }
+
+    private WindowState findFocusCandidateLocked(WindowList windows) {
+        for (int i = windows.size() - 1; i >= 0; i--) {
+            final WindowState win = windows.get(i);
+
+            if (localLOGV || DEBUG_FOCUS)
+                Slog.v(TAG, "Looking for focus: " + i + " = " + win + ", flags=" + win.mAttrs.flags + ", canReceive=" + win.canReceiveKeys());
+
+            if (FocusCandidateCache.isCandidate(win)) {
+                return win;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Whether the window belongs to an app below the focused app, so it
+     * must not get focus.
+     */
+    private boolean isBelowFocusedAppLocked(DisplayContent displayContent, WindowState win) {
+        final AppWindowToken wtoken = win.mAppToken;
+        if (wtoken == null || win.mAttrs.type == TYPE_APPLICATION_STARTING || mFocusedApp == null) {
+            return false;
+        }
+        // Descend through all of the app tokens and find the first that either matches
+        // win.mAppToken (not below) or mFocusedApp (below).
+        ArrayList<Task> tasks = displayContent.getTasks();
+        for (int taskNdx = tasks.size() - 1; taskNdx >= 0; --taskNdx) {
+            AppTokenList tokens = tasks.get(taskNdx).mAppTokens;
+            for (int tokenNdx = tokens.size() - 1; tokenNdx >= 0; --tokenNdx) {
+                final AppWindowToken token = tokens.get(tokenNdx);
+                if (wtoken == token) {
+                    return false;
+                }
+                if (mFocusedApp == token) {
+                    if (localLOGV || DEBUG_FOCUS_LIGHT) Slog.v(TAG, "findFocusedWindow: Reached focused app=" + mFocusedApp);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     //该函数就是找出最top的可以接收按键事件的window，这个window就获得焦点
     private WindowState findFocusedWindowLocked(DisplayContent displayContent) {
         final WindowList windows = displayContent.getWindowList();
@@ -10275,6 +10486,7 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
                     pw.println();
                 }
             }
+            mTokenMap.dump(pw, "  ");
         }
         if (mWallpaperTokens.size() > 0) {
             pw.println();
@@ -10334,6 +10546,14 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
         }
     }
 
+    void dumpTraversalsLocked(PrintWriter pw, boolean dumpAll) {
+        pw.println("WINDOW MANAGER TRAVERSALS (dumpsys window traversals)");
+        mTraversalTimeline.dump(pw, "  ", dumpAll);
+        mLayersAssigner.dump(pw, "  ");
+        mWindowRegistry.dump(pw, "  ");
+        mLayoutTrace.dump(pw, "  ");
+    }
+
     void dumpDisplayContentsLocked(PrintWriter pw, boolean dumpAll) {
         pw.println("WINDOW MANAGER DISPLAY CONTENTS (dumpsys window displays)");
         if (mDisplayReady) {
@@ -10602,6 +10822,7 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
             pw.println(mSkipAppTransitionAnimation);
             pw.println("  mLayoutToAnim:");
             mAppTransition.dump(pw);
+            mScreenshotCache.dump(pw, "  ");
         }
     }
 
@@ -10728,6 +10949,10 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
                 pw.println("    surfaces: active surfaces (debugging enabled only)");
                 pw.println("    d[isplays]: active display contents");
                 pw.println("    t[okens]: token list");
+                pw.println("    traversals: recent layout traversal and relayout timings");
+                pw.println("    lookups: time window lookups from 16 threads, with and without the lock (debuggable builds only)");
+                pw.println("    replay [ROUNDS]: lay out again after each recent window add, relayout and removal,");
+                pw.println("      at most " + WindowLayoutTrace.MAX_ROUNDS + " rounds (debuggable builds only)");
                 pw.println("    w[indows]: window list");
                 pw.println("  cmd may also be a NAME to dump windows.  NAME may");
                 pw.println("    be a partial substring in a window name, a");
@@ -10780,6 +11005,47 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
                     dumpTokensLocked(pw, true);
                 }
                 return;
+            } else if ("traversals".equals(cmd)) {
+                synchronized (mWindowMap) {
+                    dumpTraversalsLocked(pw, true);
+                }
+                return;
+            } else if ("lookups".equals(cmd)) {
+                // Keeps 16 threads on the lock for a second, which a user
+                // build should never be made to do.
+                if (!Build.IS_DEBUGGABLE) {
+                    pw.println("Window lookup timing is only available on debuggable builds");
+                    return;
+                }
+                // Runs without the lock: the benchmark threads need it.
+                pw.println("WINDOW MANAGER LOOKUPS (dumpsys window lookups)");
+                mWindowRegistry.runContentionBenchmark(this, pw, 16, 1000);
+                return;
+            } else if ("replay".equals(cmd)) {
+                int rounds = 1;
+                if (opti < args.length) {
+                    try {
+                        rounds = Integer.parseInt(args[opti]);
+                    } catch (NumberFormatException e) {
+                        pw.println("Bad number of rounds: " + args[opti]);
+                        return;
+                    }
+                }
+                // Lays out live windows, which a user build should never do.
+                if (!Build.IS_DEBUGGABLE) {
+                    pw.println("Layout replay is only available on debuggable builds");
+                    return;
+                }
+                pw.println("WINDOW MANAGER LAYOUT REPLAY (dumpsys window replay)");
+                synchronized (mWindowMap) {
+                    if (!mDisplayReady) {
+                        pw.println("  Display not ready");
+                        return;
+                    }
+                }
+                // Takes the lock for one event at a time.
+                mLayoutTrace.replay(this, pw, rounds);
+                return;
             } else if ("windows".equals(cmd) || "w".equals(cmd)) {
                 synchronized (mWindowMap) {
                     dumpWindowsLocked(pw, true, null);
@@ -10825,6 +11091,11 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
             if (dumpAll) {
                 pw.println("-------------------------------------------------------------------------------");
             }
+            dumpTraversalsLocked(pw, dumpAll);
+            pw.println();
+            if (dumpAll) {
+                pw.println("-------------------------------------------------------------------------------");
+            }
             WindowStateAnimator.SurfaceTrace.dumpAllSurfaces(pw, dumpAll ? "-------------------------------------------------------------------------------" : null);
             pw.println();
             if (dumpAll) {
@@ -10973,7 +11244,14 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
                 displayContent.mDeferredRemoval = true;
                 return;
             }
-            if (DEBUG_DISPLAY) Slog.v(TAG, "Removing display=" + displayContent);
+            if (DEBUG_DISPLAY) {
+                Slog.v(TAG, "Removing display=" + displayContent);
+                final ArraySet<WindowToken> tokens = mTokenMap.getTokensOnDisplayLocked(displayId);
+                if (tokens != null) {
+                    Slog.v(TAG, "Tokens with windows left on display " + displayId + ": " + tokens);
+                }
+            }
+            mTokenMap.removeDisplayLocked(displayId);
             mDisplayContents.delete(displayId);
             displayContent.close();
             if (displayId == Display.DEFAULT_DISPLAY) {
@@ -11095,13 +11373,11 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
 
         @Override
         public void getWindowFrame(IBinder token, Rect outBounds) {
-            synchronized (mWindowMap) {
-                WindowState windowState = mWindowMap.get(token);
-                if (windowState != null) {
-                    outBounds.set(windowState.mFrame);
-                } else {
-                    outBounds.setEmpty();
-                }
+            final WindowState windowState = mWindowRegistry.get(token);
+            if (windowState != null) {
+                windowState.mGeometry.getFrame(outBounds);
+            } else {
+                outBounds.setEmpty();
             }
         }
 
@@ -11142,6 +11418,7 @@ public class WindowManagerService extends IWindowManager.Stub implements Watchdo
                     WindowToken wtoken = mTokenMap.remove(token);
                     if (wtoken != null) {
                         wtoken.removeAllWindows();
+                        mTokenMap.tokenGoneLocked(wtoken);
                     }
                 }
                 WindowManagerService.this.removeWindowToken(token);
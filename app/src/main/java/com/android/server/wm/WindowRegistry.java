@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wm;
+
+import android.graphics.Rect;
+import android.os.IBinder;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The windows by client binder, readable without the window manager lock.
+ *
+ * <p>{@link WindowManagerService#mWindowMap} stays the map that code holding
+ * the lock uses, and the lock itself; this mirrors it, changed in the same
+ * places with the lock held, for queries that only need to find a window
+ * and read what does not change or is published for them, such as its
+ * {@link WindowGeometry}.  Such queries then never wait for a layout or an
+ * animation pass to release the lock.</p>
+ */
+final class WindowRegistry {
+    private final ConcurrentHashMap<IBinder, WindowState> mWindows = new ConcurrentHashMap<IBinder, WindowState>();
+
+    void addLocked(IBinder client, WindowState win) {
+        mWindows.put(client, win);
+    }
+
+    void removeLocked(IBinder client) {
+        mWindows.remove(client);
+    }
+
+    /**
+     * The window of the client, or null; may be called on any thread.
+     */
+    WindowState get(IBinder client) {
+        return mWindows.get(client);
+    }
+
+    /**
+     * Look up the display frames of the given windows from the given number
+     * of threads for durationMs, once through mWindowMap with the lock
+     * held and once through this registry, and print how many lookups each
+     * way managed.  For "dumpsys window lookups".
+     */
+    void runContentionBenchmark(final WindowManagerService service, PrintWriter pw, final int numThreads, final long durationMs) {
+        final IBinder[] clients;
+        synchronized (service.mWindowMap) {
+            clients = service.mWindowMap.keySet().toArray(new IBinder[0]);
+        }
+        if (clients.length == 0) {
+            pw.println("  No windows");
+            return;
+        }
+        for (int locked = 1; locked >= 0; locked--) {
+            final boolean useLock = locked != 0;
+            final AtomicLong total = new AtomicLong();
+            final ArrayList<Thread> threads = new ArrayList<Thread>();
+            final long end = SystemClock.uptimeMillis() + durationMs;
+            for (int t = 0; t < numThreads; t++) {
+                final int first = t;
+                final Thread thread = new Thread("WindowLookupBench") {
+                    @Override
+                    public void run() {
+                        final Rect frame = new Rect();
+                        long count = 0;
+                        int i = first;
+                        while (SystemClock.uptimeMillis() < end) {
+                            for (int n = 0; n < 64; n++) {
+                                final IBinder client = clients[i++ % clients.length];
+                                if (useLock) {
+                                    synchronized (service.mWindowMap) {
+                                        final WindowState win = service.mWindowMap.get(client);
+                                        if (win != null) {
+                                            frame.set(win.mDisplayFrame);
+                                        }
+                                    }
+                                } else {
+                                    final WindowState win = get(client);
+                                    if (win != null) {
+                                        win.mGeometry.getDisplayFrame(frame);
+                                    }
+                                }
+                            }
+                            count += 64;
+                        }
+                        total.addAndGet(count);
+                    }
+                };
+                threads.add(thread);
+                thread.start();
+            }
+            for (int t = 0; t < threads.size(); t++) {
+                try {
+                    threads.get(t).join();
+                } catch (InterruptedException e) {
+                }
+            }
+            pw.print("  ");
+            pw.print(useLock ? "mWindowMap with lock: " : "Registry without lock: ");
+            pw.print(total.get() * 1000 / durationMs);
+            pw.print(" lookups/s from ");
+            pw.print(numThreads);
+            pw.print(" threads over ");
+            pw.print(clients.length);
+            pw.println(" windows");
+        }
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix);
+        pw.print("Window registry: size=");
+        pw.println(mWindows.size());
+    }
+}
@@ -66,8 +66,235 @@ import android.view.WindowManagerPolicy;
 
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collection;
 
+/**
+ * An ordered list of windows.
+ *
+ * <p>The list of a display is indexed: each window in it remembers its
+ * position, so {@link #indexOf} and {@link #contains} are a field check.
+ * Adding or removing a window only marks the positions from there up as
+ * stale, and the next lookup that needs one of them renumbers that part
+ * of the list once, which costs no more than the shift the change already
+ * did.  A window is in the list of at most one display, so only those are
+ * indexed; the lists of tokens and child windows search as before.</p>
+ *
+ * <p>The list also remembers the lowest position any change touched since
+ * layers were last assigned, so layer assignment can start from there, and
+ * an indexed list the windows added to it since the focus was last
+ * computed, see {@link FocusCandidateCache}.</p>
+ */
 class WindowList extends ArrayList<WindowState> {
+    private final boolean mIndexed;
+
+    // Every change to the order of the list.
+    private int mChangeCount;
+
+    // Windows below here have their position in mListIndex.
+    private int mIndexValidBelow;
+
+    // Windows from here up may not have the layers of their position.
+    private int mLayersDirtyFrom;
+
+    // Windows added since clearAddedWindows(), until there are more than
+    // MAX_ADDED_WINDOWS of them.
+    private static final int MAX_ADDED_WINDOWS = 16;
+    private final ArrayList<WindowState> mAddedWindows = new ArrayList<WindowState>();
+    private boolean mAddedWindowsOverflow;
+
+    private long mNumLookups;
+    private long mNumRenumbered;
+
+    WindowList() {
+        this(false);
+    }
+
+    WindowList(boolean indexed) {
+        mIndexed = indexed;
+    }
+
+    /**
+     * The lowest position whose window may need a new layer; the size of
+     * the list if none does.
+     */
+    int getLayersDirtyFrom() {
+        return Math.min(mLayersDirtyFrom, size());
+    }
+
+    void invalidateLayers(int index) {
+        if (index < mLayersDirtyFrom) {
+            mLayersDirtyFrom = index;
+        }
+    }
+
+    void layersAssigned() {
+        mLayersDirtyFrom = size();
+    }
+
+    /**
+     * The windows added, or moved, since {@link #clearAddedWindows}; null
+     * if there were too many to keep track of.  Always empty if the list
+     * is not indexed.
+     */
+    ArrayList<WindowState> getAddedWindows() {
+        return mAddedWindowsOverflow ? null : mAddedWindows;
+    }
+
+    void clearAddedWindows() {
+        mAddedWindows.clear();
+        mAddedWindowsOverflow = false;
+    }
+
+    private void added(WindowState win) {
+        if (!mIndexed || mAddedWindowsOverflow) {
+            return;
+        }
+        if (mAddedWindows.size() < MAX_ADDED_WINDOWS) {
+            mAddedWindows.add(win);
+        } else {
+            mAddedWindows.clear();
+            mAddedWindowsOverflow = true;
+        }
+    }
+
+    private void addedAll(Collection<? extends WindowState> windows) {
+        for (WindowState win : windows) {
+            added(win);
+        }
+    }
+
+    private void changedFrom(int index) {
+        mChangeCount++;
+        if (index < mIndexValidBelow) {
+            mIndexValidBelow = index;
+        }
+        invalidateLayers(index);
+    }
+
+    private int lookup(WindowState win) {
+        final int index = win.mListIndex;
+        return win.mListIndexOwner == this && index < mIndexValidBelow && index < size() && get(index) == win ? index : -1;
+    }
+
+    private void renumber() {
+        final int N = size();
+        for (int i = mIndexValidBelow; i < N; i++) {
+            final WindowState win = get(i);
+            win.mListIndexOwner = this;
+            win.mListIndex = i;
+        }
+        mNumRenumbered += N - mIndexValidBelow;
+        mIndexValidBelow = N;
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        if (!mIndexed || !(o instanceof WindowState)) {
+            return super.indexOf(o);
+        }
+        mNumLookups++;
+        final WindowState win = (WindowState) o;
+        int index = lookup(win);
+        if (index < 0 && mIndexValidBelow < size()) {
+            renumber();
+            index = lookup(win);
+        }
+        return index;
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        // A window is never in the list twice.
+        return mIndexed ? indexOf(o) : super.lastIndexOf(o);
+    }
+
+    @Override
+    public boolean add(WindowState win) {
+        changedFrom(size());
+        added(win);
+        return super.add(win);
+    }
+
+    @Override
+    public void add(int index, WindowState win) {
+        changedFrom(index);
+        added(win);
+        super.add(index, win);
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends WindowState> windows) {
+        changedFrom(size());
+        addedAll(windows);
+        return super.addAll(windows);
+    }
+
+    @Override
+    public boolean addAll(int index, Collection<? extends WindowState> windows) {
+        changedFrom(index);
+        addedAll(windows);
+        return super.addAll(index, windows);
+    }
+
+    @Override
+    public WindowState set(int index, WindowState win) {
+        changedFrom(index);
+        added(win);
+        return super.set(index, win);
+    }
+
+    @Override
+    public WindowState remove(int index) {
+        changedFrom(index);
+        return super.remove(index);
+    }
+
+    @Override
+    public boolean remove(Object win) {
+        final int index = indexOf(win);
+        if (index < 0) {
+            return false;
+        }
+        remove(index);
+        return true;
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> windows) {
+        changedFrom(0);
+        return super.removeAll(windows);
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> windows) {
+        changedFrom(0);
+        return super.retainAll(windows);
+    }
+
+    @Override
+    protected void removeRange(int fromIndex, int toIndex) {
+        changedFrom(fromIndex);
+        super.removeRange(fromIndex, toIndex);
+    }
+
+    @Override
+    public void clear() {
+        changedFrom(0);
+        clearAddedWindows();
+        super.clear();
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix);
+        pw.print("Window list: size=");
+        pw.print(size());
+        pw.print(" changes=");
+        pw.print(mChangeCount);
+        pw.print(" lookups=");
+        pw.print(mNumLookups);
+        pw.print(" renumbered=");
+        pw.println(mNumRenumbered);
+    }
 }
 
 /**
@@ -125,12 +352,27 @@ final class WindowState implements WindowManagerPolicy.WindowState {
     int mLastRequestedHeight;
 
     int mLayer;
+    // The base layer in effect when mLayer was assigned.
+    int mAssignedBaseLayer;
     boolean mHaveFrame;
     boolean mObscured;
     boolean mTurnOnScreen;
 
     int mLayoutSeq = -1;
 
+    // The frames as of the last layout, for readers without the lock.
+    volatile WindowGeometry mGeometry = WindowGeometry.EMPTY;
+
+    // Changes whenever the window is relaid out, shown, hidden or finishes
+    // drawing, so a screenshot of it can be told apart from an older one;
+    // see ScreenshotCache.
+    int mDrawSeq;
+
+    // The indexed window list that last numbered this window, and the
+    // position it gave it; see WindowList.
+    WindowList mListIndexOwner;
+    int mListIndex;
+
     Configuration mConfiguration = null;
     // Sticky answer to isConfigChanged(), remains true until new Configuration is assigned.
     // Used only on {@link #TYPE_KEYGUARD}.
@@ -627,6 +869,15 @@ final class WindowState implements WindowManagerPolicy.WindowState {
             mCompatFrame.scale(mInvGlobalScale);
         }
 
+        if (mService.mReplayingLayout) {
+            // Thrown away after the pass; see WindowLayoutTrace.
+            return;
+        }
+
+        if (!mGeometry.matches(this)) {
+            mGeometry = new WindowGeometry(this);
+        }
+
         if (mIsWallpaper && (fw != mFrame.width() || fh != mFrame.height())) {
             final DisplayContent displayContent = getDisplayContent();
             if (displayContent != null) {
@@ -1114,8 +1365,12 @@ final class WindowState implements WindowManagerPolicy.WindowState {
                 doAnimation = false;
             }
         }
+        if (!mPolicyVisibility) {
+            mService.windowFocusStateChangedLocked(this);
+        }
         mPolicyVisibility = true;
         mPolicyVisibilityAfterAnim = true;
+        mDrawSeq++;
         if (doAnimation) {
             mWinAnimator.applyAnimationLocked(WindowManagerPolicy.TRANSIT_ENTER, true);
         }
@@ -1147,12 +1402,14 @@ final class WindowState implements WindowManagerPolicy.WindowState {
                 doAnimation = false;
             }
         }
+        mDrawSeq++;
         if (doAnimation) {
             mPolicyVisibilityAfterAnim = false;
         } else {
             if (DEBUG_VISIBILITY) Slog.v(TAG, "Policy visibility false: " + this);
             mPolicyVisibilityAfterAnim = false;
             mPolicyVisibility = false;
+            mService.windowFocusStateChangedLocked(this);
             // Window is no longer visible -- make sure if we were waiting
             // for it to be displayed before enabling the display, that
             // we allow the display to be enabled now.
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wm;
+
+import android.os.IBinder;
+import android.util.ArraySet;
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * The window tokens by binder, by window type and by the displays their
+ * windows are on.
+ *
+ * <p>A token that was added explicitly and is not an app token is listed
+ * under its window type from the time it is registered until
+ * {@link #tokenGoneLocked} is called for it, which is once it has been
+ * removed and its windows have finished animating out.  The list of a type
+ * is created the first time it is asked for and kept from then on, so a
+ * caller may hold on to it.</p>
+ *
+ * <p>A token that is not an app token is listed under a display while it
+ * is registered and has at least one window there.  App tokens go wherever
+ * the stack of their task goes, and are found by task through
+ * {@link WindowManagerService#mTaskIdToTask} and {@link Task#mAppTokens}.</p>
+ *
+ * <p>Guarded by the window manager lock.</p>
+ */
+final class WindowTokenRegistry {
+    private final HashMap<IBinder, WindowToken> mTokens = new HashMap<IBinder, WindowToken>();
+    private final SparseArray<ArrayList<WindowToken>> mTokensByType = new SparseArray<ArrayList<WindowToken>>();
+    private final SparseArray<ArraySet<WindowToken>> mTokensByDisplay = new SparseArray<ArraySet<WindowToken>>();
+
+    WindowToken get(IBinder token) {
+        return mTokens.get(token);
+    }
+
+    /**
+     * Register the token under its binder, and under its window type if it
+     * was added explicitly.
+     */
+    void put(IBinder token, WindowToken wtoken) {
+        final WindowToken old = mTokens.put(token, wtoken);
+        if (old != null && old != wtoken) {
+            removeFromDisplays(old);
+        }
+        if (wtoken.explicit && wtoken.appWindowToken == null) {
+            final ArrayList<WindowToken> tokens = getTokensOfTypeLocked(wtoken.windowType);
+            if (!tokens.contains(wtoken)) {
+                tokens.add(wtoken);
+            }
+        }
+        for (int i = wtoken.windows.size() - 1; i >= 0; i--) {
+            addToDisplay(wtoken, wtoken.windows.get(i).getDisplayId());
+        }
+    }
+
+    /**
+     * Unregister the token's binder.  The token stays listed under its
+     * window type until {@link #tokenGoneLocked} is called for it.
+     */
+    WindowToken remove(IBinder token) {
+        final WindowToken wtoken = mTokens.remove(token);
+        if (wtoken != null) {
+            removeFromDisplays(wtoken);
+        }
+        return wtoken;
+    }
+
+    int size() {
+        return mTokens.size();
+    }
+
+    Collection<WindowToken> values() {
+        return mTokens.values();
+    }
+
+    /**
+     * The tokens of the given window type that have been added explicitly
+     * and are not gone yet.  The list is live; callers must not change it.
+     */
+    ArrayList<WindowToken> getTokensOfTypeLocked(int type) {
+        ArrayList<WindowToken> tokens = mTokensByType.get(type);
+        if (tokens == null) {
+            tokens = new ArrayList<WindowToken>();
+            mTokensByType.put(type, tokens);
+        }
+        return tokens;
+    }
+
+    /**
+     * The token has been removed and none of its windows are animating out
+     * any more.
+     */
+    void tokenGoneLocked(WindowToken wtoken) {
+        final ArrayList<WindowToken> tokens = mTokensByType.get(wtoken.windowType);
+        if (tokens != null) {
+            tokens.remove(wtoken);
+        }
+    }
+
+    /**
+     * The window was added to the token.
+     */
+    void windowAddedLocked(WindowToken wtoken, WindowState win) {
+        if (mTokens.get(wtoken.token) == wtoken) {
+            addToDisplay(wtoken, win.getDisplayId());
+        }
+    }
+
+    /**
+     * The window was removed from the token.
+     */
+    void windowRemovedLocked(WindowToken wtoken, WindowState win) {
+        final int displayId = win.getDisplayId();
+        final ArraySet<WindowToken> tokens = mTokensByDisplay.get(displayId);
+        if (tokens == null) {
+            return;
+        }
+        for (int i = wtoken.windows.size() - 1; i >= 0; i--) {
+            final WindowState other = wtoken.windows.get(i);
+            if (other != win && other.getDisplayId() == displayId) {
+                return;
+            }
+        }
+        tokens.remove(wtoken);
+        if (tokens.isEmpty()) {
+            mTokensByDisplay.remove(displayId);
+        }
+    }
+
+    /**
+     * The tokens that have windows on the display, or null if there are
+     * none.  The set is live; callers must not change it.
+     */
+    ArraySet<WindowToken> getTokensOnDisplayLocked(int displayId) {
+        return mTokensByDisplay.get(displayId);
+    }
+
+    /**
+     * Forget the display, which has been removed.
+     */
+    void removeDisplayLocked(int displayId) {
+        mTokensByDisplay.remove(displayId);
+    }
+
+    private void addToDisplay(WindowToken wtoken, int displayId) {
+        if (wtoken.appWindowToken != null) {
+            return;
+        }
+        ArraySet<WindowToken> tokens = mTokensByDisplay.get(displayId);
+        if (tokens == null) {
+            tokens = new ArraySet<WindowToken>();
+            mTokensByDisplay.put(displayId, tokens);
+        }
+        tokens.add(wtoken);
+    }
+
+    private void removeFromDisplays(WindowToken wtoken) {
+        for (int i = wtoken.windows.size() - 1; i >= 0; i--) {
+            final int displayId = wtoken.windows.get(i).getDisplayId();
+            final ArraySet<WindowToken> tokens = mTokensByDisplay.get(displayId);
+            if (tokens != null) {
+                tokens.remove(wtoken);
+                if (tokens.isEmpty()) {
+                    mTokensByDisplay.remove(displayId);
+                }
+            }
+        }
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix);
+        pw.print("Tokens by type:");
+        for (int i = 0; i < mTokensByType.size(); i++) {
+            pw.print(" ");
+            pw.print(mTokensByType.keyAt(i));
+            pw.print('=');
+            pw.print(mTokensByType.valueAt(i).size());
+        }
+        pw.println();
+        pw.print(prefix);
+        pw.print("Tokens by display:");
+        for (int i = 0; i < mTokensByDisplay.size(); i++) {
+            pw.print(" #");
+            pw.print(mTokensByDisplay.keyAt(i));
+            pw.print('=');
+            pw.print(mTokensByDisplay.valueAt(i).size());
+        }
+        pw.println();
+    }
+}
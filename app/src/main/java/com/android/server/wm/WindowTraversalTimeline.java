@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wm;
+
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.TimeUtils;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Timings of the most recent window traversals and client relayouts, kept
+ * in fixed size rings so that recording one allocates nothing.
+ *
+ * <p>A traversal is one run of the layout and surface placement loop.  It
+ * records how many layout passes it took, how many windows those laid
+ * out, and how its time split between layout, layer assignment
+ * and placing surfaces.  Layers assigned between traversals are counted
+ * against the next one.  A relayout records how long the client waited,
+ * including for the window manager lock, and which window and package it
+ * was for, so the dump can say who the slow ones were.</p>
+ *
+ * <p>Guarded by the window manager lock.</p>
+ */
+final class WindowTraversalTimeline {
+    private static final int MAX_TRAVERSALS = 128;
+    private static final int MAX_RELAYOUTS = 256;
+
+    // How many of the slowest relayouts to list.
+    private static final int NUM_SLOWEST = 5;
+
+    private static final class Traversal {
+        long time;
+        long totalNanos;
+        long layoutNanos;
+        long assignLayersNanos;
+        long placementNanos;
+        int layoutPasses;
+        int windowsLaidOut;
+        int relayouts;
+        int repeatCount;
+    }
+
+    private static final class Relayout {
+        long time;
+        long nanos;
+        long lockWaitNanos;
+        int uid;
+        String packageName;
+        CharSequence title;
+    }
+
+    private final Traversal[] mTraversals = new Traversal[MAX_TRAVERSALS];
+    private final Relayout[] mRelayouts = new Relayout[MAX_RELAYOUTS];
+    private int mNextTraversal;
+    private int mNumTraversals;
+    private int mNextRelayout;
+    private int mNumRelayouts;
+
+    // The traversal in progress, and what happened since the last one.
+    private long mStartNanos;
+    private boolean mInTraversal;
+    private long mLayoutNanos;
+    private long mAssignLayersNanos;
+    private long mAssignLayersInTraversalNanos;
+    private int mLayoutPasses;
+    private int mWindowsLaidOut;
+    private int mPendingRelayouts;
+
+    private long mTotalTraversals;
+    private long mTotalRelayouts;
+    private long mTotalAbortedRepeats;
+
+    WindowTraversalTimeline() {
+        for (int i = 0; i < MAX_TRAVERSALS; i++) {
+            mTraversals[i] = new Traversal();
+        }
+        for (int i = 0; i < MAX_RELAYOUTS; i++) {
+            mRelayouts[i] = new Relayout();
+        }
+    }
+
+    void beginTraversal() {
+        mStartNanos = System.nanoTime();
+        mInTraversal = true;
+    }
+
+    void noteLayoutPass(long nanos, int laidOut) {
+        mLayoutNanos += nanos;
+        mLayoutPasses++;
+        mWindowsLaidOut += laidOut;
+    }
+
+    void noteAssignLayers(long nanos) {
+        mAssignLayersNanos += nanos;
+        if (mInTraversal) {
+            mAssignLayersInTraversalNanos += nanos;
+        }
+    }
+
+    /**
+     * Called after giving up on a traversal that kept asking for another.
+     */
+    void noteAbortedRepeat() {
+        mTotalAbortedRepeats++;
+    }
+
+    /**
+     * Finish the traversal in progress; repeatCount is how many traversals
+     * in a row have now asked for another.
+     */
+    void endTraversal(int repeatCount) {
+        if (!mInTraversal) {
+            return;
+        }
+        mInTraversal = false;
+        final Traversal t = mTraversals[mNextTraversal];
+        t.time = SystemClock.uptimeMillis();
+        t.totalNanos = System.nanoTime() - mStartNanos;
+        t.layoutNanos = mLayoutNanos;
+        t.assignLayersNanos = mAssignLayersNanos;
+        t.placementNanos = Math.max(0, t.totalNanos - mLayoutNanos - mAssignLayersInTraversalNanos);
+        t.layoutPasses = mLayoutPasses;
+        t.windowsLaidOut = mWindowsLaidOut;
+        t.relayouts = mPendingRelayouts;
+        t.repeatCount = repeatCount;
+        mNextTraversal = (mNextTraversal + 1) % MAX_TRAVERSALS;
+        if (mNumTraversals < MAX_TRAVERSALS) {
+            mNumTraversals++;
+        }
+        mTotalTraversals++;
+
+        mLayoutNanos = 0;
+        mAssignLayersNanos = 0;
+        mAssignLayersInTraversalNanos = 0;
+        mLayoutPasses = 0;
+        mWindowsLaidOut = 0;
+        mPendingRelayouts = 0;
+    }
+
+    /**
+     * A client's relayout of the window finished, nanos after the call came
+     * in, of which lockWaitNanos were spent waiting for the lock.
+     */
+    void noteRelayout(Session session, WindowState win, long nanos, long lockWaitNanos) {
+        final Relayout r = mRelayouts[mNextRelayout];
+        r.time = SystemClock.uptimeMillis();
+        r.nanos = nanos;
+        r.lockWaitNanos = lockWaitNanos;
+        r.uid = session.mUid;
+        r.packageName = win.mAttrs.packageName;
+        r.title = win.mAttrs.getTitle();
+        mNextRelayout = (mNextRelayout + 1) % MAX_RELAYOUTS;
+        if (mNumRelayouts < MAX_RELAYOUTS) {
+            mNumRelayouts++;
+        }
+        mTotalRelayouts++;
+        mPendingRelayouts++;
+        session.noteRelayout(nanos);
+    }
+
+    private Traversal getTraversal(int age) {
+        return mTraversals[(mNextTraversal - 1 - age + MAX_TRAVERSALS) % MAX_TRAVERSALS];
+    }
+
+    private Relayout getRelayout(int age) {
+        return mRelayouts[(mNextRelayout - 1 - age + MAX_RELAYOUTS) % MAX_RELAYOUTS];
+    }
+
+    private static void printNanos(PrintWriter pw, long nanos) {
+        pw.print(nanos / 1000000);
+        pw.print('.');
+        final long frac = (nanos / 10000) % 100;
+        if (frac < 10) {
+            pw.print('0');
+        }
+        pw.print(frac);
+        pw.print("ms");
+    }
+
+    /**
+     * Sorts values and prints their percentiles.
+     */
+    private static void printPercentiles(PrintWriter pw, String prefix, String label, long[] values, int count) {
+        pw.print(prefix);
+        pw.print(label);
+        if (count == 0) {
+            pw.println(": none");
+            return;
+        }
+        Arrays.sort(values, 0, count);
+        pw.print(": p50=");
+        printNanos(pw, values[(count - 1) * 50 / 100]);
+        pw.print(" p90=");
+        printNanos(pw, values[(count - 1) * 90 / 100]);
+        pw.print(" p99=");
+        printNanos(pw, values[(count - 1) * 99 / 100]);
+        pw.print(" max=");
+        printNanos(pw, values[count - 1]);
+        pw.println();
+    }
+
+    void dump(PrintWriter pw, String prefix, boolean dumpAll) {
+        final long now = SystemClock.uptimeMillis();
+        final int numTraversals = mNumTraversals;
+        final long[] values = new long[Math.max(MAX_TRAVERSALS, MAX_RELAYOUTS)];
+
+        long passes = 0;
+        long laidOut = 0;
+        for (int i = 0; i < numTraversals; i++) {
+            final Traversal t = getTraversal(i);
+            passes += t.layoutPasses;
+            laidOut += t.windowsLaidOut;
+        }
+        pw.print(prefix);
+        pw.print("Traversals: total=");
+        pw.print(mTotalTraversals);
+        pw.print(" abortedRepeats=");
+        pw.print(mTotalAbortedRepeats);
+        pw.print(" last ");
+        pw.print(numTraversals);
+        if (numTraversals > 0) {
+            pw.print(" over ");
+            TimeUtils.formatDuration(now - getTraversal(numTraversals - 1).time, pw);
+        }
+        pw.print(": layoutPasses=");
+        pw.print(passes);
+        pw.print(" windowsLaidOut=");
+        pw.println(laidOut);
+
+        final String subPrefix = prefix + "  ";
+        for (int i = 0; i < numTraversals; i++) {
+            values[i] = getTraversal(i).totalNanos;
+        }
+        printPercentiles(pw, subPrefix, "total", values, numTraversals);
+        for (int i = 0; i < numTraversals; i++) {
+            values[i] = getTraversal(i).layoutNanos;
+        }
+        printPercentiles(pw, subPrefix, "layout", values, numTraversals);
+        for (int i = 0; i < numTraversals; i++) {
+            values[i] = getTraversal(i).assignLayersNanos;
+        }
+        printPercentiles(pw, subPrefix, "assignLayers", values, numTraversals);
+        for (int i = 0; i < numTraversals; i++) {
+            values[i] = getTraversal(i).placementNanos;
+        }
+        printPercentiles(pw, subPrefix, "placement", values, numTraversals);
+
+        final int numRelayouts = mNumRelayouts;
+        pw.print(prefix);
+        pw.print("Relayouts: total=");
+        pw.print(mTotalRelayouts);
+        pw.print(" last ");
+        pw.println(numRelayouts);
+        for (int i = 0; i < numRelayouts; i++) {
+            values[i] = getRelayout(i).nanos;
+        }
+        printPercentiles(pw, subPrefix, "latency", values, numRelayouts);
+        for (int i = 0; i < numRelayouts; i++) {
+            values[i] = getRelayout(i).lockWaitNanos;
+        }
+        printPercentiles(pw, subPrefix, "lockWait", values, numRelayouts);
+
+        // Per package, to tell which apps the slow relayouts come from.
+        final ArrayMap<String, ArrayList<Relayout>> byPackage = new ArrayMap<String, ArrayList<Relayout>>();
+        for (int i = 0; i < numRelayouts; i++) {
+            final Relayout r = getRelayout(i);
+            ArrayList<Relayout> list = byPackage.get(r.packageName);
+            if (list == null) {
+                list = new ArrayList<Relayout>();
+                byPackage.put(r.packageName, list);
+            }
+            list.add(r);
+        }
+        for (int p = 0; p < byPackage.size(); p++) {
+            final ArrayList<Relayout> list = byPackage.valueAt(p);
+            for (int i = 0; i < list.size(); i++) {
+                values[i] = list.get(i).nanos;
+            }
+            printPercentiles(pw, subPrefix, byPackage.keyAt(p) + " n=" + list.size(), values, list.size());
+        }
+
+        final Relayout[] slowest = new Relayout[Math.min(NUM_SLOWEST, numRelayouts)];
+        for (int i = 0; i < numRelayouts; i++) {
+            Relayout r = getRelayout(i);
+            for (int j = 0; j < slowest.length && r != null; j++) {
+                if (slowest[j] == null || r.nanos > slowest[j].nanos) {
+                    final Relayout tmp = slowest[j];
+                    slowest[j] = r;
+                    r = tmp;
+                }
+            }
+        }
+        if (slowest.length > 0) {
+            pw.print(prefix);
+            pw.println("Slowest relayouts:");
+            for (Relayout r : slowest) {
+                pw.print(subPrefix);
+                printNanos(pw, r.nanos);
+                pw.print(" lockWait=");
+                printNanos(pw, r.lockWaitNanos);
+                pw.print(" uid=");
+                pw.print(r.uid);
+                pw.print(' ');
+                pw.print(r.title);
+                pw.print(' ');
+                TimeUtils.formatDuration(r.time, now, pw);
+                pw.println();
+            }
+        }
+
+        if (dumpAll && numTraversals > 0) {
+            pw.print(prefix);
+            pw.println("Recent traversals:");
+            for (int i = 0; i < numTraversals; i++) {
+                final Traversal t = getTraversal(i);
+                pw.print(subPrefix);
+                TimeUtils.formatDuration(t.time, now, pw);
+                pw.print(" total=");
+                printNanos(pw, t.totalNanos);
+                pw.print(" layout=");
+                printNanos(pw, t.layoutNanos);
+                pw.print(" (");
+                pw.print(t.layoutPasses);
+                pw.print(" passes, ");
+                pw.print(t.windowsLaidOut);
+                pw.print(" laid out) assignLayers=");
+                printNanos(pw, t.assignLayersNanos);
+                pw.print(" placement=");
+                printNanos(pw, t.placementNanos);
+                pw.print(" relayouts=");
+                pw.print(t.relayouts);
+                if (t.repeatCount > 0) {
+                    pw.print(" repeat=");
+                    pw.print(t.repeatCount);
+                }
+                pw.println();
+            }
+        }
+    }
+}
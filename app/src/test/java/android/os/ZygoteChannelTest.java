@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs {@link Process.ZygoteChannel} against a fake zygote on a local TCP
+ * socket that answers each request with the next pid, in order.
+ */
+public class ZygoteChannelTest {
+    private static final String DROP_CONNECTION = "--drop-connection";
+
+    private FakeZygote mZygote;
+    private Process.ZygoteChannel mChannel;
+    private final AtomicInteger mConnects = new AtomicInteger();
+
+    /**
+     * Serves every connection on its own thread, reading requests the way
+     * the zygote does and replying as soon as each one is read.  The pid is
+     * the last argument if that is a number and the next one otherwise.  A
+     * request whose last argument is {@link #DROP_CONNECTION} closes the
+     * connection instead of being answered.
+     */
+    private static final class FakeZygote extends Thread {
+        final ServerSocket server;
+        final LinkedBlockingQueue<String> requests = new LinkedBlockingQueue<String>();
+        private int mNextPid = 1000;
+
+        FakeZygote() throws IOException {
+            super("FakeZygote");
+            server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (;;) {
+                    final Socket socket = server.accept();
+                    new Thread("FakeZygoteConnection") {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    }.start();
+                }
+            } catch (IOException e) {
+                // Closed by the test.
+            }
+        }
+
+        private void serve(Socket socket) {
+            try {
+                final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()), 256);
+                final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                for (;;) {
+                    final String argc = in.readLine();
+                    if (argc == null) {
+                        break;
+                    }
+                    String last = null;
+                    for (int i = Integer.parseInt(argc); i > 0; i--) {
+                        last = in.readLine();
+                    }
+                    requests.add(last);
+                    if (DROP_CONNECTION.equals(last)) {
+                        break;
+                    }
+                    out.writeInt(isNumber(last) ? Integer.parseInt(last) : nextPid());
+                    out.writeBoolean(false);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // The other side went away.
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        private synchronized int nextPid() {
+            return mNextPid++;
+        }
+
+        private static boolean isNumber(String arg) {
+            if (arg == null || arg.isEmpty()) {
+                return false;
+            }
+            for (int i = 0; i < arg.length(); i++) {
+                if (!Character.isDigit(arg.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        String takeRequest() throws InterruptedException {
+            return requests.poll(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mZygote = new FakeZygote();
+        mZygote.start();
+        mChannel = new Process.ZygoteChannel("fake") {
+            @Override
+            Process.ZygoteState connect() throws IOException {
+                mConnects.incrementAndGet();
+                final Socket socket = new Socket(InetAddress.getLoopbackAddress(), mZygote.server.getLocalPort());
+                return new Process.ZygoteState(socket.getInputStream(), socket.getOutputStream(), Arrays.asList("x86"));
+            }
+        };
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mZygote.server.close();
+    }
+
+    private static ArrayList<String> args(String name) {
+        return new ArrayList<String>(Arrays.asList("--runtime-init", "--nice-name=" + name, name));
+    }
+
+    @Test
+    public void requestsOverlapOnOneConnection() throws Exception {
+        final Process.PendingStart first = mChannel.send(args("first"));
+        final Process.PendingStart second = mChannel.send(args("second"));
+        final Process.PendingStart third = mChannel.send(args("third"));
+
+        // The zygote gets every request before any reply has been read.
+        assertEquals("first", mZygote.takeRequest());
+        assertEquals("second", mZygote.takeRequest());
+        assertEquals("third", mZygote.takeRequest());
+        assertEquals(3, mChannel.getOutstandingCount());
+
+        // Each caller gets its own reply, whatever order they ask in.
+        assertEquals(1002, third.getOrThrow().pid);
+        assertEquals(0, mChannel.getOutstandingCount());
+        assertEquals(1000, first.getOrThrow().pid);
+        assertEquals(1001, second.getOrThrow().pid);
+        assertEquals(1, mConnects.get());
+    }
+
+    @Test
+    public void outstandingRequestsAreCapped() throws Exception {
+        final int count = Process.ZYGOTE_MAX_PIPELINED * 2 + 1;
+        final Process.PendingStart[] starts = new Process.PendingStart[count];
+        for (int i = 0; i < count; i++) {
+            starts[i] = mChannel.send(args("proc" + i));
+            assertTrue(mChannel.getOutstandingCount() <= Process.ZYGOTE_MAX_PIPELINED);
+        }
+        for (int i = 0; i < count; i++) {
+            assertEquals(1000 + i, starts[i].getOrThrow().pid);
+        }
+        assertEquals(1, mConnects.get());
+    }
+
+    @Test
+    public void lostConnectionFailsItsRequestsAndReconnects() throws Exception {
+        final Process.PendingStart lost = mChannel.send(args(DROP_CONNECTION));
+        try {
+            lost.getOrThrow();
+            fail("reply read from a closed connection");
+        } catch (ZygoteStartFailedEx expected) {
+        }
+
+        final Process.PendingStart next = mChannel.send(args("next"));
+        assertEquals(1000, next.getOrThrow().pid);
+        assertEquals(2, mConnects.get());
+    }
+
+    @Test
+    public void concurrentCallersEachGetTheirOwnReply() throws Exception {
+        final int threads = 4;
+        final int perThread = 25;
+        final int[][] pids = new int[threads][perThread];
+        // Each request asks for a pid of its own, so a reply read by the
+        // wrong caller shows up as a wrong pid.
+        final Throwable[] failures = new Throwable[threads];
+        final Thread[] callers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int caller = t;
+            callers[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < perThread; i++) {
+                            final int pid = 2000 + caller * perThread + i;
+                            pids[caller][i] = mChannel.send(args(String.valueOf(pid))).getOrThrow().pid;
+                        }
+                    } catch (Throwable e) {
+                        failures[caller] = e;
+                    }
+                }
+            };
+            callers[t].start();
+        }
+        for (Thread caller : callers) {
+            caller.join();
+        }
+
+        for (int t = 0; t < threads; t++) {
+            assertNull(failures[t]);
+            for (int i = 0; i < perThread; i++) {
+                assertEquals(2000 + t * perThread + i, pids[t][i]);
+            }
+        }
+        assertEquals(1, mConnects.get());
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.system.Os;
+import android.system.OsConstants;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs {@link ProcStatsSampler} against stat files laid out like /proc in a
+ * temporary directory.
+ */
+public class ProcStatsSamplerTest {
+    private File mProcRoot;
+    private ProcStatsSampler mSampler;
+    private long mMsPerTick;
+    private long mPageSizeKb;
+
+    @Before
+    public void setUp() throws Exception {
+        mProcRoot = File.createTempFile("proc", "");
+        assertTrue(mProcRoot.delete());
+        assertTrue(mProcRoot.mkdir());
+        mSampler = new ProcStatsSampler(mProcRoot.getPath(), 2);
+        mMsPerTick = 1000 / Os.sysconf(OsConstants._SC_CLK_TCK);
+        mPageSizeKb = Os.sysconf(OsConstants._SC_PAGESIZE) / 1024;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mSampler.close();
+        deleteRecursively(mProcRoot);
+    }
+
+    /**
+     * Writes /proc/&lt;pid&gt;/stat in place, so an open descriptor sees the
+     * new contents as it would on procfs.
+     */
+    private void writeStat(int pid, String comm, long minflt, long majflt, long utime, long stime, long vsize, long rss) throws IOException {
+        final File dir = new File(mProcRoot, Integer.toString(pid));
+        dir.mkdirs();
+        final StringBuilder sb = new StringBuilder();
+        sb.append(pid).append(" (").append(comm).append(") S");
+        // Fields 4 to 9: ppid, pgrp, session, tty_nr, tpgid, flags.
+        sb.append(" 1 1 0 0 -1 4194624");
+        sb.append(' ').append(minflt).append(" 0 ").append(majflt).append(" 0");
+        sb.append(' ').append(utime).append(' ').append(stime);
+        // Fields 16 to 22: cutime, cstime, priority, nice, num_threads,
+        // itrealvalue, starttime.
+        sb.append(" 0 0 20 0 12 0 4711");
+        sb.append(' ').append(vsize).append(' ').append(rss);
+        sb.append(" 18446744073709551615 1 1 0 0 0 0 4612 0 1073775864\n");
+        final FileOutputStream out = new FileOutputStream(new File(dir, "stat"));
+        try {
+            out.write(sb.toString().getBytes(StandardCharsets.US_ASCII));
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeStat(int pid, long utime, long stime) throws IOException {
+        writeStat(pid, "app", 0, 0, utime, stime, 0, 0);
+    }
+
+    private static void deleteRecursively(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    @Test
+    public void parsesStatAfterCommandName() throws Exception {
+        // The command name may contain spaces and parentheses.
+        writeStat(100, "my (odd) app) x", 123, 4, 50, 20, 1048576, 300);
+        assertEquals(1, mSampler.sampleStats(new int[] { 100 }, 1));
+
+        final ProcStatsSampler.PidStats st = mSampler.getStats(100);
+        assertNotNull(st);
+        assertEquals(123, st.minorFaults);
+        assertEquals(4, st.majorFaults);
+        assertEquals(50 * mMsPerTick, st.utime);
+        assertEquals(20 * mMsPerTick, st.stime);
+        assertEquals(1048576, st.vsize);
+        assertEquals(300 * mPageSizeKb, st.rss);
+    }
+
+    @Test
+    public void rereadsOpenFileOnEveryPass() throws Exception {
+        writeStat(100, 10, 5);
+        mSampler.sampleStats(new int[] { 100 }, 1);
+        writeStat(100, 25, 7);
+        mSampler.sampleStats(new int[] { 100 }, 1);
+
+        final ProcStatsSampler.PidStats st = mSampler.getStats(100);
+        assertEquals(25 * mMsPerTick, st.utime);
+        assertEquals(15 * mMsPerTick, st.relUtime);
+        assertEquals(2 * mMsPerTick, st.relStime);
+        assertEquals(1, mSampler.getOpenFdCount());
+    }
+
+    @Test
+    public void missingAndDroppedPidsHaveNoStats() throws Exception {
+        writeStat(100, 10, 5);
+        writeStat(101, 10, 5);
+        // 102 has no stat file, like a process that has died.
+        assertEquals(2, mSampler.sampleStats(new int[] { 100, 101, 102 }, 3));
+        assertNull(mSampler.getStats(102));
+        assertEquals(2, mSampler.getOpenFdCount());
+
+        // Only the first count pids are sampled; the rest are forgotten.
+        assertEquals(1, mSampler.sampleStats(new int[] { 101, 100 }, 1));
+        assertNotNull(mSampler.getStats(101));
+        assertNull(mSampler.getStats(100));
+        assertEquals(1, mSampler.getOpenFdCount());
+    }
+
+    @Test
+    public void keepsAtMostMaxFilesOpen() throws Exception {
+        final int[] pids = { 100, 101, 102, 103, 104 };
+        for (int pid : pids) {
+            writeStat(pid, pid, 0);
+        }
+        assertEquals(pids.length, mSampler.sampleStats(pids, pids.length));
+        assertEquals(2, mSampler.getOpenFdCount());
+
+        // The pids over the limit are still read, fresh, on every pass.
+        for (int pid : pids) {
+            writeStat(pid, pid + 10, 0);
+        }
+        assertEquals(pids.length, mSampler.sampleStats(pids, pids.length));
+        assertEquals(2, mSampler.getOpenFdCount());
+        for (int pid : pids) {
+            final ProcStatsSampler.PidStats st = mSampler.getStats(pid);
+            assertEquals((pid + 10) * mMsPerTick, st.utime);
+            assertEquals(10 * mMsPerTick, st.relUtime);
+        }
+
+        // Room freed by pids that are gone is used by the others.
+        assertEquals(3, mSampler.sampleStats(new int[] { 102, 103, 104 }, 3));
+        assertEquals(2, mSampler.getOpenFdCount());
+
+        mSampler.close();
+        assertEquals(0, mSampler.getOpenFdCount());
+    }
+}